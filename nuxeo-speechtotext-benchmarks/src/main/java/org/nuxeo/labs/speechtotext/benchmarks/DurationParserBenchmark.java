@@ -0,0 +1,76 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.nuxeo.labs.speechtotext.google.DurationParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The durations of the word offsets, as returned by Google ("1.500s", "2s", "2.500000001s").
+ *
+ * @since 2023.0.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DurationParserBenchmark {
+
+    // Not constants, so they are not folded
+    public String seconds = "2s";
+
+    public String millis = "1234.500s";
+
+    public String nanos = "2.500000001s";
+
+    public char[] chars = "\"1234.500s\"".toCharArray();
+
+    @Benchmark
+    public double parseSeconds() {
+        return DurationParser.parse(seconds);
+    }
+
+    @Benchmark
+    public double parseMillis() {
+        return DurationParser.parse(millis);
+    }
+
+    @Benchmark
+    public double parseNanos() {
+        return DurationParser.parse(nanos);
+    }
+
+    @Benchmark
+    public double parseChars() {
+        return DurationParser.parse(chars, 1, chars.length - 2);
+    }
+
+}
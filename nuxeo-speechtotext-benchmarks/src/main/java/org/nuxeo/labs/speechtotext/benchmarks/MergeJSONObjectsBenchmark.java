@@ -0,0 +1,77 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.nuxeo.labs.speechtotext.api.SpeechToText;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Merging moreOptions in the config, as done for each call.
+ *
+ * @since 2023.0.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MergeJSONObjectsBenchmark {
+
+    protected String configStr;
+
+    protected JSONObject moreOptions;
+
+    @Setup
+    public void setup() throws JSONException {
+
+        JSONObject config = new JSONObject();
+        config.put("languageCode", "en-US");
+        config.put("enableAutomaticPunctuation", true);
+        config.put("enableWordTimeOffsets", false);
+        configStr = config.toString();
+
+        moreOptions = new JSONObject();
+        moreOptions.put("model", "video");
+        moreOptions.put("useEnhanced", true);
+        moreOptions.put("maxAlternatives", 3);
+        moreOptions.put("profanityFilter", false);
+        moreOptions.put("speechContexts", new JSONObject().put("boost", 10.5));
+    }
+
+    @Benchmark
+    public JSONObject merge() throws JSONException {
+        // The config is modified by the merge
+        return SpeechToText.mergeJSONObjects(new JSONObject(configStr), moreOptions);
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.ByteArrayBlob;
+import org.nuxeo.labs.speechtotext.google.GoogleRecognizeRequestEntity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building the recognize body: JSON envelope and audio Base64-encoded while written. The network is not part of it
+ * (written to a null stream).
+ *
+ * @since 2023.0.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class RequestBodyBenchmark {
+
+    @Param({ "1", "10", "100" })
+    public int sizeMB;
+
+    protected Blob blob;
+
+    protected JSONObject config;
+
+    @Setup
+    public void setup() throws JSONException {
+
+        byte[] audio = new byte[sizeMB * 1024 * 1024];
+        new Random(42).nextBytes(audio);
+        blob = new ByteArrayBlob(audio, "audio/wav");
+
+        config = new JSONObject();
+        config.put("languageCode", "en-US");
+        config.put("enableAutomaticPunctuation", true);
+        config.put("enableWordTimeOffsets", true);
+    }
+
+    @Benchmark
+    public long writeBody() throws IOException {
+        GoogleRecognizeRequestEntity entity = new GoogleRecognizeRequestEntity(config, blob);
+        entity.writeTo(OutputStream.nullOutputStream());
+        return entity.getContentLength();
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.benchmarks;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextWord;
+import org.nuxeo.labs.speechtotext.api.WordTimings;
+import org.nuxeo.labs.speechtotext.google.GoogleRESTSpeechToTextResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reading a recognize response. A new response is created for each call, its parsing is lazy.
+ *
+ * @since 2023.0.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ResponseParsingBenchmark {
+
+    @Param({ "1000", "100000", "1000000" })
+    public int words;
+
+    protected String json;
+
+    @Setup
+    public void setup() {
+        json = SyntheticResponses.recognizeResponse(words);
+    }
+
+    @Benchmark
+    public String getText() throws JSONException {
+        return new GoogleRESTSpeechToTextResponse(json).getText();
+    }
+
+    @Benchmark
+    public JSONArray getWordTimeOffsets() throws JSONException {
+        return new GoogleRESTSpeechToTextResponse(json).getWordTimeOffsets(false);
+    }
+
+    @Benchmark
+    public void getWordIterator(Blackhole blackhole) throws JSONException {
+        Iterator<SpeechToTextWord> it = new GoogleRESTSpeechToTextResponse(json).getWordIterator(false);
+        while (it.hasNext()) {
+            blackhole.consume(it.next());
+        }
+    }
+
+    @Benchmark
+    public WordTimings getWordTimings() throws JSONException {
+        return new GoogleRESTSpeechToTextResponse(json).getWordTimings(false);
+    }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.benchmarks;
+
+import java.util.Locale;
+
+/**
+ * Builds recognize responses, in the format returned by Google, with as many words as needed. Always the same for the
+ * same number of words.
+ *
+ * @since 2023.0.1
+ */
+public class SyntheticResponses {
+
+    protected static final String[] WORDS = { "the", "quick", "brown", "fox", "jumps", "over", "lazy", "dog",
+            "speech", "to", "text", "Nuxeo" };
+
+    private SyntheticResponses() {
+    }
+
+    public static String recognizeResponse(int wordCount) {
+
+        StringBuilder transcript = new StringBuilder(wordCount * 6);
+        StringBuilder words = new StringBuilder(wordCount * 80);
+        double time = 0;
+        for (int i = 0; i < wordCount; i++) {
+            String word = WORDS[i % WORDS.length];
+            if (i > 0) {
+                transcript.append(' ');
+                words.append(',');
+            }
+            transcript.append(word);
+            double end = time + 0.1 + (i % 7) * 0.05;
+            words.append("{\"startTime\":\"")
+                 .append(formatDuration(time))
+                 .append("\",\"endTime\":\"")
+                 .append(formatDuration(end))
+                 .append("\",\"word\":\"")
+                 .append(word)
+                 .append("\"}");
+            time = end;
+        }
+
+        return "{\"results\":[{\"alternatives\":[{\"transcript\":\"" + transcript
+                + "\",\"confidence\":0.92,\"words\":[" + words + "]}],\"languageCode\":\"en-us\"}]}";
+    }
+
+    /*
+     * As Google does: "1.500s", or "2s"
+     */
+    public static String formatDuration(double seconds) {
+        if (seconds == Math.rint(seconds)) {
+            return ((long) seconds) + "s";
+        }
+        return String.format(Locale.ROOT, "%.3fs", seconds);
+    }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.api;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * The words of a {@link Spliterator} of segments, in order.
+ * <p>
+ * Splits on the segments first, so each part of a parallel stream reads its own segments. When the segments cannot be
+ * split anymore (one big segment, or the end of a sequential source), the words of the current segment are split.
+ * Only the segments being read are held in memory.
+ *
+ * @since 2023.0.1
+ */
+public class SegmentWordSpliterator implements Spliterator<SpeechToTextWord> {
+
+    protected final Spliterator<SpeechToTextSegment> segments;
+
+    // The words of the segment being read, null before the first one
+    protected Spliterator<SpeechToTextWord> current;
+
+    public SegmentWordSpliterator(Spliterator<SpeechToTextSegment> segments) {
+        this.segments = segments;
+    }
+
+    /*
+     * Moves to the next segment with words
+     */
+    protected boolean advanceSegment() {
+        return segments.tryAdvance(segment -> current = segment.getWords().spliterator());
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super SpeechToTextWord> action) {
+
+        do {
+            if (current != null && current.tryAdvance(action)) {
+                return true;
+            }
+        } while (advanceSegment());
+        return false;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super SpeechToTextWord> action) {
+
+        if (current != null) {
+            current.forEachRemaining(action);
+        }
+        segments.forEachRemaining(segment -> segment.getWords().forEach(action));
+        current = null;
+    }
+
+    /*
+     * The returned spliterator must hold the first words: the rest of the current segment, then the first segments not
+     * read yet
+     */
+    @Override
+    public Spliterator<SpeechToTextWord> trySplit() {
+
+        Spliterator<SpeechToTextSegment> prefix = segments.trySplit();
+        if (prefix != null) {
+            SegmentWordSpliterator split = new SegmentWordSpliterator(prefix);
+            split.current = current;
+            current = null;
+            return split;
+        }
+        // Last segment: split its words
+        if ((current == null || current.estimateSize() == 0) && !advanceSegment()) {
+            return null;
+        }
+        return current.trySplit();
+    }
+
+    @Override
+    public long estimateSize() {
+
+        long size = current == null ? 0 : current.estimateSize();
+        long segmentCount = segments.estimateSize();
+        if (segmentCount == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        // Unknown until read, a segment is usually a sentence or more
+        return size + segmentCount * 10;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL | IMMUTABLE;
+    }
+
+}
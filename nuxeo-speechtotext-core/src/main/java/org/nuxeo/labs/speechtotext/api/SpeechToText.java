@@ -20,10 +20,20 @@
 package org.nuxeo.labs.speechtotext.api;
 
 import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.labs.speechtotext.index.TranscriptIndex;
+import org.nuxeo.labs.speechtotext.metrics.SpeechToTextMetrics;
 
 public interface SpeechToText {
 
@@ -33,6 +43,34 @@ public interface SpeechToText {
      */
     public static final String AUDIO_TO_FLAC_CONVERTER = "audio-to-flac";
 
+    /*
+     * Convert an audio file to 16KHz mono 16 bits PCM WAV. If the file is a video, extracts the audio. (See the command
+     * line XML contribution)
+     */
+    public static final String AUDIO_TO_WAV_CONVERTER = "audio-to-wav";
+
+    /*
+     * Same conversions as the converters above, writing to the standard output. Used when the conversion is streamed
+     * (see FFmpegPipeBlob)
+     */
+    public static final String AUDIO_TO_FLAC_PIPE_COMMAND = "ffmpeg-audio-to-flac-pipe";
+
+    public static final String AUDIO_TO_WAV_PIPE_COMMAND = "ffmpeg-audio-to-wav-pipe";
+
+    /*
+     * Facet of the documents storing their transcript in the transcript schema (see transcript-contrib.xml). The word
+     * timings are a blob in the format of WordTimingsCodec.
+     */
+    public static final String TRANSCRIPT_FACET = "Transcript";
+
+    public static final String TRANSCRIPT_TEXT_XPATH = "transcript:text";
+
+    public static final String TRANSCRIPT_LANGUAGE_XPATH = "transcript:language";
+
+    public static final String TRANSCRIPT_WORD_COUNT_XPATH = "transcript:wordCount";
+
+    public static final String TRANSCRIPT_WORD_TIMINGS_XPATH = "transcript:wordTimings";
+
     /**
      * Returns the transcript of the audio file.<br>
      * This will convert the input blob to FLAC before sending it to the cloud service, possibly using the
@@ -79,6 +117,167 @@ public interface SpeechToText {
     SpeechToTextResponse run(SpeechToTextOptions options, Blob blob, String audioEncoding, int sampleRateHertz,
             String languageCode, JSONObject moreOptions);
 
+    /**
+     * Same as {@link #run(SpeechToTextOptions, Blob, String, JSONObject)}, without blocking the calling thread.
+     * <p>
+     * The service runs the calls on virtual threads when the JVM supports them (see AsyncExecutor), and cancelling
+     * the returned future interrupts the call (not a future depending on it, cancel this one). This default
+     * implementation runs in the common pool, and is not interrupted.
+     *
+     * @return the response of the provider, or its error
+     * @since 2023.0.1
+     */
+    default CompletableFuture<SpeechToTextResponse> runAsync(SpeechToTextOptions options, Blob blob,
+            String languageCode, JSONObject moreOptions) {
+        return CompletableFuture.supplyAsync(() -> run(options, blob, languageCode, moreOptions));
+    }
+
+    /**
+     * Same as {@link #run(SpeechToTextOptions, Blob, String, int, String, JSONObject)}, without blocking the calling
+     * thread. See {@link #runAsync(SpeechToTextOptions, Blob, String, JSONObject)}.
+     *
+     * @since 2023.0.1
+     */
+    default CompletableFuture<SpeechToTextResponse> runAsync(SpeechToTextOptions options, Blob blob,
+            String audioEncoding, int sampleRateHertz, String languageCode, JSONObject moreOptions) {
+        return CompletableFuture.supplyAsync(
+                () -> run(options, blob, audioEncoding, sampleRateHertz, languageCode, moreOptions));
+    }
+
+    /**
+     * Submits the audio file for a long running recognition and returns immediately.<br>
+     * This is to be used for long audio files (more than one minute for Google): The thread is not blocked while the
+     * provider processes the audio, the returned job is completed when the result is available.
+     * <p>
+     * The blob is converted, if needed, as in {@link #run(SpeechToTextOptions, Blob, String, JSONObject)}
+     *
+     * @param options, the options when calling the service. If null, default options apply see
+     *            {@link SpeechToTextOptions}
+     * @param Blob audio file, or at least a file that can be converted to audio
+     * @param languageCode of the audio file
+     * @param moreOptions to add to the configuration sent to the provider
+     * @return the job, whose result is completed with the response from the provider
+     * @since 2023.0.1
+     */
+    SpeechToTextJob runLongRunning(SpeechToTextOptions options, Blob blob, String languageCode,
+            JSONObject moreOptions);
+
+    /**
+     * Submits the audio file for a long running recognition and returns immediately. See
+     * {@link #run(SpeechToTextOptions, Blob, String, int, String, JSONObject)} for the parameters.
+     *
+     * @return the job, whose result is completed with the response from the provider
+     * @since 2023.0.1
+     */
+    SpeechToTextJob runLongRunning(SpeechToTextOptions options, Blob blob, String audioEncoding, int sampleRateHertz,
+            String languageCode, JSONObject moreOptions);
+
+    /**
+     * Submits the blob stored in <code>blobXpath</code> for a long running recognition, and saves the transcript in
+     * the <code>transcriptXpath</code> field of the document when done (in a Work, after the commit of the current
+     * transaction).
+     * <p>
+     * The document must exist in the repository. The pending jobs are only held in memory: If the server restarts
+     * before the provider is done, the transcript is not saved.
+     *
+     * @return the job, whose result is completed with the response from the provider
+     * @since 2023.0.1
+     */
+    SpeechToTextJob runLongRunning(DocumentModel doc, String blobXpath, String transcriptXpath,
+            SpeechToTextOptions options, String languageCode, JSONObject moreOptions);
+
+    /**
+     * Transcribes many audio files. Implementations may run the conversions and the calls to the provider in parallel
+     * (see SpeechToTextImpl): The results are then returned as they complete, not in the order of the items, and the
+     * items are pulled from the iterator only when there is room for them. This default implementation transcribes
+     * them one after the other, as the results are read.
+     * <p>
+     * A failed item is returned with its error, it does not stop the batch. Close the stream to cancel the items not
+     * done yet.
+     *
+     * @param items the audio files, with their options
+     * @return the results, to be read from one thread
+     * @since 2023.0.1
+     */
+    default Stream<SpeechToTextBatchResult> runBatch(Iterator<SpeechToTextBatchItem> items) {
+
+        Iterator<SpeechToTextBatchResult> results = new Iterator<SpeechToTextBatchResult>() {
+
+            @Override
+            public boolean hasNext() {
+                return items.hasNext();
+            }
+
+            @Override
+            public SpeechToTextBatchResult next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                SpeechToTextBatchItem item = items.next();
+                try {
+                    return new SpeechToTextBatchResult(item, run(item.getOptions(), item.getBlob(),
+                            item.getLanguageCode(), item.getMoreOptions()), null);
+                } catch (RuntimeException e) {
+                    return new SpeechToTextBatchResult(item, null, e);
+                }
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(results, Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Same as {@link #runBatch(Iterator)}, the consumer is called in the calling thread for each result. Returns when
+     * all the items are done.
+     *
+     * @since 2023.0.1
+     */
+    default void runBatch(Iterator<SpeechToTextBatchItem> items, Consumer<SpeechToTextBatchResult> consumer) {
+        try (Stream<SpeechToTextBatchResult> results = runBatch(items)) {
+            results.forEach(consumer);
+        }
+    }
+
+    /**
+     * Stores the transcript and its word timings in the transcript schema of the document, adding the
+     * {@value #TRANSCRIPT_FACET} facet if needed. The document is not saved.
+     *
+     * @since 2023.0.1
+     */
+    void setTranscript(DocumentModel doc, SpeechToTextResponse response, String languageCode);
+
+    /**
+     * Returns the words spoken between <code>fromSeconds</code> and <code>toSeconds</code>, reading only this part
+     * of the word timings (see {@link WordTimingsCodec#read(Blob, double, double)}).
+     *
+     * @param wordTimings a blob in the format of {@link WordTimingsCodec}
+     * @since 2023.0.1
+     */
+    WordTimings getWords(Blob wordTimings, double fromSeconds, double toSeconds);
+
+    /**
+     * Same as {@link #getWords(Blob, double, double)} with the word timings stored by
+     * {@link #setTranscript(DocumentModel, SpeechToTextResponse, String)}. Empty if the document has no transcript.
+     *
+     * @since 2023.0.1
+     */
+    WordTimings getWords(DocumentModel doc, double fromSeconds, double toSeconds);
+
+    /**
+     * @return the index of the transcripts stored in the transcript schema, null if disabled (or not supported)
+     * @since 2023.0.1
+     */
+    default TranscriptIndex getTranscriptIndex() {
+        return null;
+    }
+
+    /**
+     * @return the metrics of the transcriptions (see {@link SpeechToTextMetrics})
+     * @since 2023.0.1
+     */
+    default SpeechToTextMetrics getMetrics() {
+        return new SpeechToTextMetrics(SpeechToTextMetrics.UNKNOWN);
+    }
+
     /**
      * Utility to allow for merging <code>toMerge</code> into <code>dest</code>
      * 
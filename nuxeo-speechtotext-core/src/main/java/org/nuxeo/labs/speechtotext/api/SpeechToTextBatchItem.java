@@ -0,0 +1,83 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.api;
+
+import org.json.JSONObject;
+import org.nuxeo.ecm.core.api.Blob;
+
+/**
+ * An audio to transcribe in a batch, see {@link SpeechToText#runBatch(java.util.Iterator)}.
+ *
+ * @since 2023.0.1
+ */
+public class SpeechToTextBatchItem {
+
+    protected final String id;
+
+    protected final Blob blob;
+
+    protected final SpeechToTextOptions options;
+
+    protected final String languageCode;
+
+    protected final JSONObject moreOptions;
+
+    /**
+     * @param id identifies the item for the caller (a document id for example), returned with its result
+     * @param blob the audio, in any format
+     * @param options the options, default options if null
+     * @param languageCode the language of the audio
+     * @param moreOptions more options for the provider, can be null
+     */
+    public SpeechToTextBatchItem(String id, Blob blob, SpeechToTextOptions options, String languageCode,
+            JSONObject moreOptions) {
+        super();
+        this.id = id;
+        this.blob = blob;
+        this.options = options == null ? SpeechToTextOptions.buildDefaultOptions() : options;
+        this.languageCode = languageCode;
+        this.moreOptions = moreOptions;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Blob getBlob() {
+        return blob;
+    }
+
+    public SpeechToTextOptions getOptions() {
+        return options;
+    }
+
+    public String getLanguageCode() {
+        return languageCode;
+    }
+
+    public JSONObject getMoreOptions() {
+        return moreOptions;
+    }
+
+    @Override
+    public String toString() {
+        return id;
+    }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.api;
+
+/**
+ * The result of an item of a batch: its response, or the error that stopped it. One failure does not stop the other
+ * items of the batch.
+ *
+ * @since 2023.0.1
+ */
+public class SpeechToTextBatchResult {
+
+    protected final SpeechToTextBatchItem item;
+
+    protected final SpeechToTextResponse response;
+
+    protected final RuntimeException error;
+
+    public SpeechToTextBatchResult(SpeechToTextBatchItem item, SpeechToTextResponse response,
+            RuntimeException error) {
+        super();
+        this.item = item;
+        this.response = response;
+        this.error = error;
+    }
+
+    public SpeechToTextBatchItem getItem() {
+        return item;
+    }
+
+    /**
+     * @return the response, null if the item failed
+     */
+    public SpeechToTextResponse getResponse() {
+        return response;
+    }
+
+    /**
+     * @return the error, null if the item succeeded
+     */
+    public RuntimeException getError() {
+        return error;
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    @Override
+    public String toString() {
+        return item + (error == null ? ": OK" : ": " + error.getMessage());
+    }
+
+}
@@ -0,0 +1,57 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.api;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Handle on a long running recognition submitted to the provider.
+ * <p>
+ * The result is completed by the provider once the recognition is done (or failed). Cancelling the result stops
+ * waiting for it, it does not cancel the recognition on the provider side.
+ *
+ * @since 2023.0.1
+ */
+public class SpeechToTextJob {
+
+    protected final String id;
+
+    protected final CompletableFuture<SpeechToTextResponse> result = new CompletableFuture<>();
+
+    public SpeechToTextJob(String id) {
+        super();
+        this.id = id;
+    }
+
+    /**
+     * @return the id of the operation, as returned by the provider
+     */
+    public String getId() {
+        return id;
+    }
+
+    public CompletableFuture<SpeechToTextResponse> getResult() {
+        return result;
+    }
+
+    public boolean isDone() {
+        return result.isDone();
+    }
+
+}
@@ -31,6 +31,8 @@ public class SpeechToTextOptions {
     
     protected boolean withDetectSpeakers = false;
 
+    protected int maxSegmentSeconds = 0;
+
     public SpeechToTextOptions(boolean withPunctuation, boolean withWordTimeOffsets) {
         super();
         this.withPunctuation = withPunctuation;
@@ -65,4 +67,18 @@ public class SpeechToTextOptions {
         return withDetectSpeakers;
     }
 
+    /**
+     * When > 0, the audio is split in segments of at most this duration (cut at silence when possible), the segments
+     * are transcribed in parallel and the results merged in a single response.
+     *
+     * @since 2023.0.1
+     */
+    public void setMaxSegmentSeconds(int value) {
+        maxSegmentSeconds = value;
+    }
+
+    public int getMaxSegmentSeconds() {
+        return maxSegmentSeconds;
+    }
+
 }
@@ -18,10 +18,154 @@
  */
 package org.nuxeo.labs.speechtotext.api;
 
+import java.util.Map;
+
+import org.json.JSONObject;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.labs.speechtotext.audio.AudioProbe;
+import org.nuxeo.labs.speechtotext.resilience.ResilienceDescriptor;
+import org.nuxeo.runtime.api.Framework;
+
 /**
- * 
+ * A provider, contributed to the "providers" extension point of the service. Several instances of the same class can
+ * be contributed (different endpoints, accounts or limits), each one gets its name and its properties before being
+ * started.
+ *
  * @since 10.2
  */
 public interface SpeechToTextProvider extends SpeechToText {
 
+    /**
+     * Called once, before {@link #start()}.
+     *
+     * @param name the name of the contribution
+     * @param properties the properties of the contribution, never null
+     * @since 2023.0.1
+     */
+    default void initialize(String name, Map<String, String> properties) {
+    }
+
+    /**
+     * @since 2023.0.1
+     */
+    default String getName() {
+        return getClass().getSimpleName();
+    }
+
+    /**
+     * Allocates the resources (connections, threads...)
+     *
+     * @since 2023.0.1
+     */
+    default void start() {
+    }
+
+    /**
+     * @since 2023.0.1
+     */
+    default void stop() {
+    }
+
+    /**
+     * Converts the audio to a format {@link #run(SpeechToTextOptions, Blob, String, org.json.JSONObject)} sends
+     * without converting it again. Called by a batch, so the conversion of an audio overlaps with the call for the
+     * previous one. Returns the blob itself by default, the conversion is then made by run().
+     *
+     * @since 2023.0.1
+     */
+    default Blob prepareAudio(Blob blob, String languageCode) {
+        return blob;
+    }
+
+    /**
+     * Called once the audio returned by {@link #prepareAudio(Blob, String)} is not needed anymore, whether its
+     * transcription succeeded or not. Deletes what the provider created for it, never the original audio nor a shared
+     * file (the result of a converter can be in the cache of the conversion service). Does nothing by default.
+     *
+     * @param blob the original audio
+     * @param prepared the audio returned by prepareAudio
+     * @since 2023.0.1
+     */
+    default void disposePreparedAudio(Blob blob, Blob prepared) {
+    }
+
+    /*
+     * The same calls, with the audio already probed by the service (see AudioProbe#probe): The probe is null when the
+     * format is not recognized, the blob is not read again. A provider not using the probe ignores it.
+     */
+
+    /**
+     * @since 2023.0.1
+     */
+    default Blob prepareAudio(Blob blob, AudioProbe probe, String languageCode) {
+        return prepareAudio(blob, languageCode);
+    }
+
+    /**
+     * @since 2023.0.1
+     */
+    default SpeechToTextResponse run(SpeechToTextOptions options, Blob blob, AudioProbe probe, String languageCode,
+            JSONObject moreOptions) {
+        return run(options, blob, languageCode, moreOptions);
+    }
+
+    /**
+     * @since 2023.0.1
+     */
+    default SpeechToTextResponse run(SpeechToTextOptions options, Blob blob, AudioProbe probe, String audioEncoding,
+            int sampleRateHertz, String languageCode, JSONObject moreOptions) {
+        return run(options, blob, audioEncoding, sampleRateHertz, languageCode, moreOptions);
+    }
+
+    /**
+     * @since 2023.0.1
+     */
+    default SpeechToTextJob runLongRunning(SpeechToTextOptions options, Blob blob, AudioProbe probe,
+            String languageCode, JSONObject moreOptions) {
+        return runLongRunning(options, blob, languageCode, moreOptions);
+    }
+
+    /**
+     * @since 2023.0.1
+     */
+    default SpeechToTextJob runLongRunning(SpeechToTextOptions options, Blob blob, AudioProbe probe,
+            String audioEncoding, int sampleRateHertz, String languageCode, JSONObject moreOptions) {
+        return runLongRunning(options, blob, audioEncoding, sampleRateHertz, languageCode, moreOptions);
+    }
+
+    /**
+     * Retries, timeouts and hedging of the calls, can be changed while started. Ignored by default.
+     *
+     * @since 2023.0.1
+     */
+    default void setResilienceDescriptor(ResilienceDescriptor descriptor) {
+    }
+
+    /*
+     * The documents are handled by the service (see SpeechToTextImpl), a provider only transcribes blobs
+     */
+
+    @Override
+    default SpeechToTextJob runLongRunning(DocumentModel doc, String blobXpath, String transcriptXpath,
+            SpeechToTextOptions options, String languageCode, JSONObject moreOptions) {
+        return Framework.getService(SpeechToText.class)
+                        .runLongRunning(doc, blobXpath, transcriptXpath, options, languageCode, moreOptions);
+    }
+
+    @Override
+    default void setTranscript(DocumentModel doc, SpeechToTextResponse response, String languageCode) {
+        Framework.getService(SpeechToText.class).setTranscript(doc, response, languageCode);
+    }
+
+    @Override
+    default WordTimings getWords(Blob wordTimings, double fromSeconds, double toSeconds) {
+        return Framework.getService(SpeechToText.class).getWords(wordTimings, fromSeconds, toSeconds);
+    }
+
+    @Override
+    default WordTimings getWords(DocumentModel doc, double fromSeconds, double toSeconds) {
+        return Framework.getService(SpeechToText.class).getWords(doc, fromSeconds, toSeconds);
+    }
+
 }
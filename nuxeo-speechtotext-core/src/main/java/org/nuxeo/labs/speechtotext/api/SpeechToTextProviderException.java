@@ -0,0 +1,36 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.api;
+
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+/**
+ * The provider answered with an error. The status code is the HTTP status returned by the provider.
+ *
+ * @since 2023.0.1
+ */
+public class SpeechToTextProviderException extends NuxeoException {
+
+    private static final long serialVersionUID = 1L;
+
+    public SpeechToTextProviderException(String message, int statusCode) {
+        super(message, statusCode);
+    }
+
+}
@@ -18,8 +18,18 @@
  */
 package org.nuxeo.labs.speechtotext.api;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
 import org.json.JSONArray;
 import org.json.JSONException;
+import org.nuxeo.ecm.core.api.NuxeoException;
 
 /**
  * @since 10.2
@@ -59,6 +69,89 @@ public interface SpeechToTextResponse {
      */
     JSONArray getWordTimeOffsets(boolean withSpeakerTag) throws JSONException;
 
+    /**
+     * Same words as {@link #getWordTimeOffsets(boolean)}, one at a time. Implementations should read the words as
+     * they are iterated (this default implementation builds them all, from getWordTimeOffsets)
+     *
+     * @return an iterator on the words of the most relevant transcript
+     * @since 2023.0.1
+     */
+    default Iterator<SpeechToTextWord> getWordIterator(boolean withSpeakerTag) {
+
+        try {
+            JSONArray array = getWordTimeOffsets(withSpeakerTag);
+            int max = array.length();
+            List<SpeechToTextWord> words = new ArrayList<>(max);
+            for (int i = 0; i < max; i++) {
+                words.add(SpeechToTextWord.fromJSON(array.getJSONObject(i)));
+            }
+            return words.iterator();
+        } catch (JSONException e) {
+            throw new NuxeoException("Cannot read the words of the transcript", e);
+        }
+    }
+
+    /**
+     * Same words as {@link #getWordTimeOffsets(boolean)}, in a compact structure. See {@link WordTimings}
+     *
+     * @since 2023.0.1
+     */
+    default WordTimings getWordTimings(boolean withSpeakerTag) {
+        return WordTimings.from(getWordIterator(withSpeakerTag));
+    }
+
+    /**
+     * All the segments of the transcript, in order, not only the most relevant one: A provider may return one result
+     * for each part of the audio (and getText() returns the first one). Implementations should read the segments as
+     * they are iterated (this default implementation returns the whole response as one segment).
+     *
+     * @since 2023.0.1
+     */
+    default Iterator<SpeechToTextSegment> getSegmentIterator() {
+
+        List<SpeechToTextWord> words = new ArrayList<>();
+        getWordIterator(false).forEachRemaining(words::add);
+        double start = words.isEmpty() ? 0 : words.get(0).getStart();
+        double end = words.isEmpty() ? 0 : words.get(words.size() - 1).getEnd();
+        return Collections.singletonList(
+                new SpeechToTextSegment(0, getText(), getConfidence(), start, end, null, words)).iterator();
+    }
+
+    /**
+     * Same segments as {@link #getSegmentIterator()}. Split in batches of segments for parallel processing.
+     *
+     * @since 2023.0.1
+     */
+    default Spliterator<SpeechToTextSegment> getSegmentSpliterator() {
+        return Spliterators.spliteratorUnknownSize(getSegmentIterator(),
+                Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.IMMUTABLE);
+    }
+
+    /**
+     * The words of all the segments, in order. See {@link SegmentWordSpliterator} for the splitting.
+     *
+     * @since 2023.0.1
+     */
+    default Spliterator<SpeechToTextWord> getWordSpliterator() {
+        return new SegmentWordSpliterator(getSegmentSpliterator());
+    }
+
+    /**
+     * @param parallel true for a parallel stream
+     * @since 2023.0.1
+     */
+    default Stream<SpeechToTextSegment> getSegmentStream(boolean parallel) {
+        return StreamSupport.stream(getSegmentSpliterator(), parallel);
+    }
+
+    /**
+     * @param parallel true for a parallel stream
+     * @since 2023.0.1
+     */
+    default Stream<SpeechToTextWord> getWordStream(boolean parallel) {
+        return StreamSupport.stream(getWordSpliterator(), parallel);
+    }
+
     /**
      * @return the native object returned by the service provider
      */
@@ -0,0 +1,100 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.api;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A part of a transcript, with its words: a result of the provider (Google returns one result for each part of the
+ * audio, in order), or a whole response when the provider does not split it.
+ *
+ * @since 2023.0.1
+ */
+public class SpeechToTextSegment {
+
+    protected final int index;
+
+    protected final String text;
+
+    protected final double confidence;
+
+    protected final double start;
+
+    protected final double end;
+
+    protected final String languageCode;
+
+    protected final List<SpeechToTextWord> words;
+
+    /**
+     * @param index of the segment in the response, from 0
+     * @param text the transcript of the segment
+     * @param confidence 0-1, -1 if unknown
+     * @param start in seconds
+     * @param end in seconds
+     * @param languageCode the language detected by the provider, null if unknown
+     * @param words the words, in order
+     */
+    public SpeechToTextSegment(int index, String text, double confidence, double start, double end,
+            String languageCode, List<SpeechToTextWord> words) {
+        super();
+        this.index = index;
+        this.text = text;
+        this.confidence = confidence;
+        this.start = start;
+        this.end = end;
+        this.languageCode = languageCode;
+        this.words = Collections.unmodifiableList(words);
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public double getConfidence() {
+        return confidence;
+    }
+
+    public double getStart() {
+        return start;
+    }
+
+    public double getEnd() {
+        return end;
+    }
+
+    public String getLanguageCode() {
+        return languageCode;
+    }
+
+    public List<SpeechToTextWord> getWords() {
+        return words;
+    }
+
+    @Override
+    public String toString() {
+        return index + " [" + start + " - " + end + "] " + words.size() + " words";
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.api;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A word of a transcript and its position in the audio.
+ *
+ * @since 2023.0.1
+ */
+public class SpeechToTextWord {
+
+    protected final String word;
+
+    protected final double start;
+
+    protected final double end;
+
+    protected final double confidence;
+
+    protected final int speakerTag;
+
+    /**
+     * @param word the word
+     * @param start in seconds
+     * @param end in seconds
+     * @param confidence 0-1, -1 if unknown
+     * @param speakerTag the ID of the speaker (starts at 1), 0 if unknown
+     */
+    public SpeechToTextWord(String word, double start, double end, double confidence, int speakerTag) {
+        super();
+        this.word = word;
+        this.start = start;
+        this.end = end;
+        this.confidence = confidence;
+        this.speakerTag = speakerTag;
+    }
+
+    /**
+     * Reads a word as returned by {@link SpeechToTextResponse#getWordTimeOffsets(boolean)}
+     */
+    public static SpeechToTextWord fromJSON(JSONObject json) throws JSONException {
+        return new SpeechToTextWord(json.getString("word"), json.getDouble("start"), json.getDouble("end"),
+                json.optDouble("confidence", -1), json.optInt("speakerTag", 0));
+    }
+
+    /**
+     * @return the word in the format of {@link SpeechToTextResponse#getWordTimeOffsets(boolean)}
+     */
+    public JSONObject toJSON(boolean withSpeakerTag) throws JSONException {
+
+        JSONObject json = new JSONObject();
+        json.put("word", word);
+        json.put("start", start);
+        json.put("end", end);
+        if (confidence >= 0) {
+            json.put("confidence", confidence);
+        }
+        if (withSpeakerTag) {
+            json.put("speakerTag", speakerTag);
+        }
+        return json;
+    }
+
+    public String getWord() {
+        return word;
+    }
+
+    public double getStart() {
+        return start;
+    }
+
+    public double getEnd() {
+        return end;
+    }
+
+    public double getConfidence() {
+        return confidence;
+    }
+
+    public int getSpeakerTag() {
+        return speakerTag;
+    }
+
+    @Override
+    public String toString() {
+        return word + " [" + start + " - " + end + "]";
+    }
+
+}
@@ -0,0 +1,273 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.api;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The words of a transcript, stored in columns: One array per value (start, end, confidence, speaker tag), the word
+ * itself being an index in a dictionary of the distinct words.
+ * <p>
+ * Times are in seconds, stored as float: Precise to the millisecond for audio up to more than 2 hours. Confidence is
+ * -1 and speaker tag is 0 when unknown.
+ * <p>
+ * Use {@link #toJSON(boolean)} to get the same JSON as {@link SpeechToTextResponse#getWordTimeOffsets(boolean)}.
+ *
+ * @since 2023.0.1
+ */
+public class WordTimings {
+
+    public static final WordTimings EMPTY = new Builder().build();
+
+    protected final int size;
+
+    protected final String[] dictionary;
+
+    protected final int[] wordIds;
+
+    protected final float[] starts;
+
+    protected final float[] ends;
+
+    protected final float[] confidences;
+
+    protected final int[] speakerTags;
+
+    // True when the words are ordered by start time, so we can use a binary search
+    protected final boolean sorted;
+
+    protected WordTimings(int size, String[] dictionary, int[] wordIds, float[] starts, float[] ends,
+            float[] confidences, int[] speakerTags, boolean sorted) {
+        super();
+        this.size = size;
+        this.dictionary = dictionary;
+        this.wordIds = wordIds;
+        this.starts = starts;
+        this.ends = ends;
+        this.confidences = confidences;
+        this.speakerTags = speakerTags;
+        this.sorted = sorted;
+    }
+
+    public static WordTimings from(Iterator<SpeechToTextWord> words) {
+
+        Builder builder = new Builder();
+        while (words.hasNext()) {
+            builder.add(words.next());
+        }
+        return builder.build();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String getWord(int index) {
+        return dictionary[wordIds[checkIndex(index)]];
+    }
+
+    /**
+     * @return the index of the word in {@link #getDictionary()}
+     */
+    public int getWordId(int index) {
+        return wordIds[checkIndex(index)];
+    }
+
+    public float getStart(int index) {
+        return starts[checkIndex(index)];
+    }
+
+    public float getEnd(int index) {
+        return ends[checkIndex(index)];
+    }
+
+    public float getConfidence(int index) {
+        return confidences[checkIndex(index)];
+    }
+
+    public int getSpeakerTag(int index) {
+        return speakerTags[checkIndex(index)];
+    }
+
+    /**
+     * @return the distinct words (a copy)
+     */
+    public String[] getDictionary() {
+        return dictionary.clone();
+    }
+
+    public SpeechToTextWord getSpeechToTextWord(int index) {
+        return new SpeechToTextWord(getWord(index), starts[index], ends[index], confidences[index],
+                speakerTags[index]);
+    }
+
+    /**
+     * @param parallel true for a parallel stream, split evenly on the index of the words
+     * @return the words, in order
+     */
+    public Stream<SpeechToTextWord> stream(boolean parallel) {
+        IntStream indexes = IntStream.range(0, size);
+        return (parallel ? indexes.parallel() : indexes).mapToObj(this::getSpeechToTextWord);
+    }
+
+    /**
+     * @return the index of the word spoken at <code>seconds</code>, -1 if none (silence, or outside the audio)
+     */
+    public int indexAt(double seconds) {
+
+        if (!sorted) {
+            for (int i = 0; i < size; i++) {
+                if (starts[i] <= seconds && seconds < ends[i]) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        // Last word starting at or before seconds
+        int low = 0;
+        int high = size - 1;
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (starts[middle] <= seconds) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        return found >= 0 && seconds < ends[found] ? found : -1;
+    }
+
+    /**
+     * @return the word spoken at <code>seconds</code>, null if none
+     */
+    public String getWordAt(double seconds) {
+        int index = indexAt(seconds);
+        return index < 0 ? null : getWord(index);
+    }
+
+    /**
+     * @return the words in the format of {@link SpeechToTextResponse#getWordTimeOffsets(boolean)}
+     */
+    public JSONArray toJSON(boolean withSpeakerTag) throws JSONException {
+
+        JSONArray array = new JSONArray();
+        for (int i = 0; i < size; i++) {
+            JSONObject obj = new JSONObject();
+            obj.put("word", dictionary[wordIds[i]]);
+            // Back to the 3 digits of the JSON
+            obj.put("start", Math.round(starts[i] * 1000d) / 1000d);
+            obj.put("end", Math.round(ends[i] * 1000d) / 1000d);
+            if (withSpeakerTag) {
+                obj.put("speakerTag", speakerTags[i]);
+            }
+            array.put(obj);
+        }
+        return array;
+    }
+
+    protected int checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+        return index;
+    }
+
+    /**
+     * Adds the words one at a time, the arrays grow as needed.
+     */
+    public static class Builder {
+
+        protected int size = 0;
+
+        protected final Map<String, Integer> wordToId = new HashMap<>();
+
+        protected String[] dictionary = new String[64];
+
+        protected int[] wordIds = new int[64];
+
+        protected float[] starts = new float[64];
+
+        protected float[] ends = new float[64];
+
+        protected float[] confidences = new float[64];
+
+        protected int[] speakerTags = new int[64];
+
+        protected boolean sorted = true;
+
+        public Builder add(SpeechToTextWord word) {
+            return add(word.getWord(), word.getStart(), word.getEnd(), word.getConfidence(), word.getSpeakerTag());
+        }
+
+        public Builder add(String word, double start, double end, double confidence, int speakerTag) {
+
+            if (size == wordIds.length) {
+                int capacity = size * 2;
+                wordIds = Arrays.copyOf(wordIds, capacity);
+                starts = Arrays.copyOf(starts, capacity);
+                ends = Arrays.copyOf(ends, capacity);
+                confidences = Arrays.copyOf(confidences, capacity);
+                speakerTags = Arrays.copyOf(speakerTags, capacity);
+            }
+
+            Integer id = wordToId.get(word);
+            if (id == null) {
+                id = wordToId.size();
+                if (id == dictionary.length) {
+                    dictionary = Arrays.copyOf(dictionary, id * 2);
+                }
+                dictionary[id] = word;
+                wordToId.put(word, id);
+            }
+
+            if (size > 0 && start < starts[size - 1]) {
+                sorted = false;
+            }
+
+            wordIds[size] = id;
+            starts[size] = (float) start;
+            ends[size] = (float) end;
+            confidences[size] = (float) confidence;
+            speakerTags[size] = speakerTag;
+            size++;
+
+            return this;
+        }
+
+        public WordTimings build() {
+            return new WordTimings(size, Arrays.copyOf(dictionary, wordToId.size()), Arrays.copyOf(wordIds, size),
+                    Arrays.copyOf(starts, size), Arrays.copyOf(ends, size), Arrays.copyOf(confidences, size),
+                    Arrays.copyOf(speakerTags, size), sorted);
+        }
+    }
+
+}
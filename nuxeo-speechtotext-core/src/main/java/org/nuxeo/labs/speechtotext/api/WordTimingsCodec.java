@@ -0,0 +1,331 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.api;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Comparator;
+import java.util.stream.IntStream;
+
+import org.apache.commons.io.IOUtils;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+
+/**
+ * Binary format of {@link WordTimings}, much smaller than the JSON of the word time offsets, and where the words of
+ * a time range can be read without reading the others.
+ * <p>
+ * Layout (big endian):
+ * <ul>
+ * <li>Header: magic ("STTW"), version, number of words, longest word duration (ms)</li>
+ * <li>Dictionary: the distinct words, as modified UTF-8</li>
+ * <li>Index: for each second s of the audio, the offset (in the words section) of the first word starting at or
+ * after s, then the length of the words section</li>
+ * <li>Words, ordered by start time: start (ms, delta from the previous word of the same second, or from the start of
+ * the second for its first word), duration (ms), id in the dictionary, speaker tag (all varints), confidence (one
+ * byte, 255 when unknown)</li>
+ * </ul>
+ * Times are stored to the millisecond, confidence to about 0.4%.
+ *
+ * @since 2023.0.1
+ */
+public class WordTimingsCodec {
+
+    public static final String MIME_TYPE = "application/x-speechtotext-word-timings";
+
+    public static final String FILENAME = "word-timings.bin";
+
+    protected static final int MAGIC = 0x53545457;
+
+    protected static final byte VERSION = 1;
+
+    protected static final int UNKNOWN_CONFIDENCE = 255;
+
+    private WordTimingsCodec() {
+    }
+
+    public static Blob toBlob(WordTimings timings) {
+        Blob blob = Blobs.createBlob(encode(timings), MIME_TYPE);
+        blob.setFilename(FILENAME);
+        return blob;
+    }
+
+    public static byte[] encode(WordTimings timings) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 + timings.size() * 6);
+        try {
+            encode(timings, out);
+        } catch (IOException e) {
+            // Not with a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    public static void encode(WordTimings timings, OutputStream output) throws IOException {
+
+        int size = timings.size;
+        int[] order = IntStream.range(0, size).toArray();
+        if (!timings.sorted) {
+            order = IntStream.range(0, size)
+                             .boxed()
+                             .sorted(Comparator.comparingDouble(i -> timings.starts[i]))
+                             .mapToInt(Integer::intValue)
+                             .toArray();
+        }
+
+        // The words, and the offset of each second
+        long lastStart = size == 0 ? -1 : toMillis(timings.starts[order[size - 1]]);
+        int[] index = new int[(int) (lastStart / 1000) + 2];
+        ByteArrayOutputStream words = new ByteArrayOutputStream(size * 6);
+        long maxDuration = 0;
+        int second = -1;
+        long previous = 0;
+        for (int i : order) {
+            long start = toMillis(timings.starts[i]);
+            long duration = Math.max(0, toMillis(timings.ends[i]) - start);
+            maxDuration = Math.max(maxDuration, duration);
+            int wordSecond = (int) (start / 1000);
+            while (second < wordSecond) {
+                index[++second] = words.size();
+                previous = second * 1000L;
+            }
+            writeVarLong(words, start - previous);
+            writeVarLong(words, duration);
+            writeVarLong(words, timings.wordIds[i]);
+            writeVarLong(words, Math.max(0, timings.speakerTags[i]));
+            words.write(toByte(timings.confidences[i]));
+            previous = start;
+        }
+        index[index.length - 1] = words.size();
+
+        DataOutputStream out = new DataOutputStream(output);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeInt(size);
+        out.writeInt((int) maxDuration);
+        out.writeInt(timings.dictionary.length);
+        for (String word : timings.dictionary) {
+            out.writeUTF(word);
+        }
+        out.writeInt(index.length);
+        for (int offset : index) {
+            out.writeInt(offset);
+        }
+        words.writeTo(out);
+        out.flush();
+    }
+
+    public static WordTimings decode(Blob blob) throws IOException {
+        try (InputStream in = blob.getStream()) {
+            return decode(in);
+        }
+    }
+
+    public static WordTimings decode(InputStream input) throws IOException {
+
+        Header header = Header.read(input);
+        byte[] words = new byte[header.index[header.index.length - 1]];
+        IOUtils.readFully(header.in, words);
+
+        int size = header.wordCount;
+        int[] wordIds = new int[size];
+        float[] starts = new float[size];
+        float[] ends = new float[size];
+        float[] confidences = new float[size];
+        int[] speakerTags = new int[size];
+        WordReader reader = new WordReader(words, header.index, 0);
+        for (int i = 0; i < size && reader.next(); i++) {
+            wordIds[i] = reader.wordId;
+            starts[i] = reader.start / 1000f;
+            ends[i] = (reader.start + reader.duration) / 1000f;
+            confidences[i] = reader.confidence;
+            speakerTags[i] = reader.speakerTag;
+        }
+        return new WordTimings(size, header.dictionary, wordIds, starts, ends, confidences, speakerTags, true);
+    }
+
+    /**
+     * Reads only the words spoken between <code>fromSeconds</code> and <code>toSeconds</code> (a word partially in
+     * the range is included): The header is read, then the stream skips to the words of the range.
+     */
+    public static WordTimings read(Blob blob, double fromSeconds, double toSeconds) throws IOException {
+        try (InputStream in = blob.getStream()) {
+            return read(in, fromSeconds, toSeconds);
+        }
+    }
+
+    public static WordTimings read(InputStream input, double fromSeconds, double toSeconds) throws IOException {
+
+        Header header = Header.read(input);
+        int[] index = header.index;
+        int seconds = index.length - 1;
+        long from = toMillis(fromSeconds);
+        long to = toMillis(toSeconds);
+        WordTimings.Builder builder = new WordTimings.Builder();
+        if (to < from || seconds == 0) {
+            return builder.build();
+        }
+
+        // A word starting before the range may end in it
+        int first = (int) Math.max(0, Math.min(seconds - 1, (from - header.maxDuration) / 1000));
+        int last = (int) Math.max(0, Math.min(seconds - 1, to / 1000));
+        IOUtils.skipFully(header.in, index[first]);
+        byte[] words = new byte[index[last + 1] - index[first]];
+        IOUtils.readFully(header.in, words);
+
+        WordReader reader = new WordReader(words, index, first);
+        while (reader.next() && reader.start <= to) {
+            if (reader.start + reader.duration >= from) {
+                builder.add(header.dictionary[reader.wordId], reader.start / 1000d,
+                        (reader.start + reader.duration) / 1000d, reader.confidence, reader.speakerTag);
+            }
+        }
+        return builder.build();
+    }
+
+    protected static long toMillis(double seconds) {
+        return Math.max(0, Math.round(seconds * 1000));
+    }
+
+    protected static int toByte(float confidence) {
+        return confidence < 0 ? UNKNOWN_CONFIDENCE : Math.min(254, Math.round(confidence * 254));
+    }
+
+    protected static void writeVarLong(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    protected static class Header {
+
+        protected DataInputStream in;
+
+        protected int wordCount;
+
+        protected long maxDuration;
+
+        protected String[] dictionary;
+
+        protected int[] index;
+
+        protected static Header read(InputStream input) throws IOException {
+
+            Header header = new Header();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(input));
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not word timings");
+            }
+            byte version = in.readByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported word timings version: " + version);
+            }
+            header.in = in;
+            header.wordCount = in.readInt();
+            header.maxDuration = in.readInt();
+            header.dictionary = new String[in.readInt()];
+            for (int i = 0; i < header.dictionary.length; i++) {
+                header.dictionary[i] = in.readUTF();
+            }
+            header.index = new int[in.readInt()];
+            for (int i = 0; i < header.index.length; i++) {
+                header.index[i] = in.readInt();
+            }
+            return header;
+        }
+    }
+
+    /**
+     * Decodes the words of a part of the words section, starting at the first word of a second
+     */
+    protected static class WordReader {
+
+        protected final byte[] bytes;
+
+        protected final int[] index;
+
+        // Offset of bytes in the words section
+        protected final int base;
+
+        protected int position = 0;
+
+        protected int second;
+
+        protected long previous;
+
+        protected long start;
+
+        protected long duration;
+
+        protected int wordId;
+
+        protected int speakerTag;
+
+        protected float confidence;
+
+        protected WordReader(byte[] bytes, int[] index, int second) {
+            this.bytes = bytes;
+            this.index = index;
+            this.second = second;
+            base = index[second];
+            previous = second * 1000L;
+        }
+
+        protected boolean next() {
+
+            if (position >= bytes.length) {
+                return false;
+            }
+            // First word of a second: the delta is from the start of the second
+            int offset = base + position;
+            while (second + 1 < index.length - 1 && index[second + 1] <= offset) {
+                second++;
+                previous = second * 1000L;
+            }
+            start = previous + readVarLong();
+            duration = readVarLong();
+            wordId = (int) readVarLong();
+            speakerTag = (int) readVarLong();
+            int value = bytes[position++] & 0xFF;
+            confidence = value == UNKNOWN_CONFIDENCE ? -1 : value / 254f;
+            previous = start;
+            return true;
+        }
+
+        protected long readVarLong() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = bytes[position++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+    }
+
+}
@@ -0,0 +1,634 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.audio;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+/**
+ * Reads the codec, sample rate, channels and duration of an audio file from its header, without decoding it and
+ * whatever its mime type.
+ * <p>
+ * Handles WAV, FLAC, Ogg (Opus, Vorbis, Speex), MP3, MP4/M4A and ADTS AAC. Only the first {@link #PROBE_SIZE} bytes
+ * are read, plus, when needed, a few KB at another position: The last page of an Ogg file (its granule position gives
+ * the duration), or a "moov" box written after the audio of an MP4. Skipping to them is cheap for a file, the blob
+ * streams of the binary managers being files or seekable.
+ *
+ * @since 2023.0.1
+ */
+public class AudioProbe {
+
+    public static final int PROBE_SIZE = 64 * 1024;
+
+    public enum Container {
+        WAV, FLAC, OGG, MP3, MP4, ADTS
+    }
+
+    public static final String CODEC_PCM = "pcm";
+
+    public static final String CODEC_FLOAT = "float";
+
+    public static final String CODEC_ALAW = "alaw";
+
+    public static final String CODEC_MULAW = "mulaw";
+
+    public static final String CODEC_FLAC = "flac";
+
+    public static final String CODEC_OPUS = "opus";
+
+    public static final String CODEC_VORBIS = "vorbis";
+
+    public static final String CODEC_SPEEX = "speex";
+
+    public static final String CODEC_MP3 = "mp3";
+
+    public static final String CODEC_AAC = "aac";
+
+    public static final String CODEC_UNKNOWN = "unknown";
+
+    protected static final int[] MP3_BITRATES_V1 = { 0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256,
+            320 };
+
+    protected static final int[] MP3_BITRATES_V2 = { 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160 };
+
+    protected static final int[] MP3_SAMPLE_RATES = { 44100, 48000, 32000 };
+
+    protected static final int[] AAC_SAMPLE_RATES = { 96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000,
+            12000, 11025, 8000, 7350 };
+
+    protected Container container;
+
+    protected String codec = CODEC_UNKNOWN;
+
+    protected int sampleRate;
+
+    protected int channels;
+
+    // 0 for lossy codecs
+    protected int bitsPerSample;
+
+    protected double durationSeconds = -1;
+
+    // Only for a WAV
+    protected WavHeader wavHeader;
+
+    protected AudioProbe(Container container) {
+        this.container = container;
+    }
+
+    public Container getContainer() {
+        return container;
+    }
+
+    /**
+     * @return one of the CODEC_ constants
+     */
+    public String getCodec() {
+        return codec;
+    }
+
+    /**
+     * @return the sample rate, 0 if unknown. For Opus, this is the rate of the original audio (it is always decoded at
+     *         48 kHz)
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getBitsPerSample() {
+        return bitsPerSample;
+    }
+
+    /**
+     * @return the duration in seconds, -1 if unknown. Estimated from the bitrate for a MP3 without a Xing/VBRI header
+     *         and for ADTS
+     */
+    public double getDurationSeconds() {
+        return durationSeconds;
+    }
+
+    /**
+     * @return the header of a WAV, null for other containers
+     */
+    public WavHeader getWavHeader() {
+        return wavHeader;
+    }
+
+    @Override
+    public String toString() {
+        return container + "/" + codec + " " + sampleRate + "Hz " + channels + "ch " + durationSeconds + "s";
+    }
+
+    /**
+     * @return the probe, or null if the format is not recognized or if the blob is streamed (see FFmpegPipeBlob, it
+     *         can be read only once)
+     */
+    public static AudioProbe probe(Blob blob) throws IOException {
+
+        long length = blob.getLength();
+        if (length < 0) {
+            return null;
+        }
+        byte[] head = new byte[(int) Math.min(PROBE_SIZE, length)];
+        int count;
+        try (InputStream in = blob.getStream()) {
+            count = WavHeader.readFully(in, head, head.length);
+        }
+        return new Reader(blob, head, count, length).probe();
+    }
+
+    /**
+     * @return the duration of the audio, 0 when unknown: not recognized, a blob being streamed, or an error reading it
+     */
+    public static double readDurationSeconds(Blob blob) {
+        return durationSeconds(tryProbe(blob));
+    }
+
+    /**
+     * @return the probe, or null if the format is not recognized, the blob is streamed, or on error reading it
+     * @since 2023.0.1
+     */
+    public static AudioProbe tryProbe(Blob blob) {
+
+        try {
+            return probe(blob);
+        } catch (IOException | NuxeoException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the duration of the probed audio, 0 when unknown (null probe)
+     * @since 2023.0.1
+     */
+    public static double durationSeconds(AudioProbe probe) {
+        return probe == null ? 0 : Math.max(0, probe.getDurationSeconds());
+    }
+
+    /*
+     * Parses the head of the blob, and reads other ranges of the blob when needed
+     */
+    protected static class Reader {
+
+        protected final Blob blob;
+
+        protected final byte[] head;
+
+        protected final int count;
+
+        protected final long length;
+
+        protected Reader(Blob blob, byte[] head, int count, long length) {
+            this.blob = blob;
+            this.head = head;
+            this.count = count;
+            this.length = length;
+        }
+
+        protected AudioProbe probe() throws IOException {
+
+            if (count >= 12 && "RIFF".equals(ascii(head, 0)) && "WAVE".equals(ascii(head, 8))) {
+                return probeWav();
+            }
+            if (count >= 4 && "OggS".equals(ascii(head, 0))) {
+                return probeOgg();
+            }
+            if (count >= 8 && "ftyp".equals(ascii(head, 4))) {
+                return probeMP4();
+            }
+
+            // FLAC, MP3 and AAC may start with an ID3v2 tag
+            long start = 0;
+            if (count >= 10 && head[0] == 'I' && head[1] == 'D' && head[2] == '3') {
+                start = 10 + ((head[6] & 0x7F) << 21 | (head[7] & 0x7F) << 14 | (head[8] & 0x7F) << 7
+                        | (head[9] & 0x7F));
+                if ((head[5] & 0x10) != 0) {
+                    start += 10; // Footer
+                }
+            }
+            byte[] b = read(start, 4096);
+            if (b.length >= 4 && "fLaC".equals(ascii(b, 0))) {
+                return probeFlac(read(start, 42));
+            }
+            if (b.length >= 7 && (b[0] & 0xFF) == 0xFF && (b[1] & 0xF6) == 0xF0) {
+                return probeADTS(start);
+            }
+            if (b.length >= 4 && (b[0] & 0xFF) == 0xFF && (b[1] & 0xE0) == 0xE0) {
+                return probeMP3(b, start);
+            }
+            return null;
+        }
+
+        protected AudioProbe probeWav() throws IOException {
+
+            WavHeader header = WavHeader.read(new ByteArrayInputStream(head, 0, count));
+            if (header == null && count < length) {
+                // Large chunks before the samples
+                try (InputStream in = blob.getStream()) {
+                    header = WavHeader.read(in);
+                }
+            }
+            if (header == null) {
+                return null;
+            }
+            AudioProbe probe = new AudioProbe(Container.WAV);
+            probe.wavHeader = header;
+            switch (header.getFormat()) {
+            case WavHeader.FORMAT_PCM:
+                probe.codec = CODEC_PCM;
+                break;
+            case WavHeader.FORMAT_IEEE_FLOAT:
+                probe.codec = CODEC_FLOAT;
+                break;
+            case WavHeader.FORMAT_ALAW:
+                probe.codec = CODEC_ALAW;
+                break;
+            case WavHeader.FORMAT_MULAW:
+                probe.codec = CODEC_MULAW;
+                break;
+            default:
+                probe.codec = CODEC_UNKNOWN;
+            }
+            probe.sampleRate = header.getSampleRate();
+            probe.channels = header.getChannels();
+            probe.bitsPerSample = header.getBitsPerSample();
+            probe.durationSeconds = header.getDurationSeconds();
+            return probe;
+        }
+
+        /*
+         * "fLaC", then the STREAMINFO metadata block, which is always the first one
+         */
+        protected AudioProbe probeFlac(byte[] b) {
+
+            if (b.length < 42 || (b[4] & 0x7F) != 0) {
+                return null;
+            }
+            int o = 8;
+            AudioProbe probe = new AudioProbe(Container.FLAC);
+            probe.codec = CODEC_FLAC;
+            probe.sampleRate = (b[o + 10] & 0xFF) << 12 | (b[o + 11] & 0xFF) << 4 | (b[o + 12] & 0xFF) >> 4;
+            probe.channels = ((b[o + 12] & 0x0E) >> 1) + 1;
+            probe.bitsPerSample = ((b[o + 12] & 0x01) << 4 | (b[o + 13] & 0xFF) >> 4) + 1;
+            long totalSamples = (long) (b[o + 13] & 0x0F) << 32 | readIntBE(b, o + 14) & 0xFFFFFFFFL;
+            if (totalSamples > 0 && probe.sampleRate > 0) {
+                probe.durationSeconds = (double) totalSamples / probe.sampleRate;
+            }
+            return probe;
+        }
+
+        /*
+         * The first packet of the first page identifies the codec. The granule position of the last page is the
+         * number of samples (at 48 kHz for Opus, minus the pre-skip)
+         */
+        protected AudioProbe probeOgg() throws IOException {
+
+            if (count < 27) {
+                return null;
+            }
+            int payload = 27 + (head[26] & 0xFF);
+            if (count < payload + 19) {
+                return null;
+            }
+            AudioProbe probe = new AudioProbe(Container.OGG);
+            int granuleRate;
+            long preSkip = 0;
+            if ("OpusHead".equals(new String(head, payload, 8, StandardCharsets.US_ASCII))) {
+                probe.codec = CODEC_OPUS;
+                probe.channels = head[payload + 9] & 0xFF;
+                preSkip = WavHeader.readShortLE(head, payload + 10);
+                probe.sampleRate = WavHeader.readIntLE(head, payload + 12);
+                granuleRate = 48000;
+            } else if (head[payload] == 1 && "vorbis".equals(new String(head, payload + 1, 6, StandardCharsets.US_ASCII))) {
+                probe.codec = CODEC_VORBIS;
+                probe.channels = head[payload + 11] & 0xFF;
+                probe.sampleRate = WavHeader.readIntLE(head, payload + 12);
+                granuleRate = probe.sampleRate;
+            } else if (count >= payload + 52
+                    && "Speex   ".equals(new String(head, payload, 8, StandardCharsets.US_ASCII))) {
+                probe.codec = CODEC_SPEEX;
+                probe.sampleRate = WavHeader.readIntLE(head, payload + 36);
+                probe.channels = WavHeader.readIntLE(head, payload + 48);
+                granuleRate = probe.sampleRate;
+            } else {
+                probe.codec = CODEC_UNKNOWN;
+                return probe;
+            }
+
+            long granule = lastOggGranule();
+            if (granule > preSkip && granuleRate > 0) {
+                probe.durationSeconds = (double) (granule - preSkip) / granuleRate;
+            }
+            return probe;
+        }
+
+        protected long lastOggGranule() throws IOException {
+
+            long start = Math.max(0, length - PROBE_SIZE);
+            byte[] tail = read(start, (int) (length - start));
+            for (int i = tail.length - 27; i >= 0; i--) {
+                if (tail[i] == 'O' && tail[i + 1] == 'g' && tail[i + 2] == 'g' && tail[i + 3] == 'S'
+                        && tail[i + 4] == 0) {
+                    return (long) readIntLE(tail, i + 10) << 32 | readIntLE(tail, i + 6) & 0xFFFFFFFFL;
+                }
+            }
+            return -1;
+        }
+
+        /*
+         * MPEG audio frame header, then the Xing/Info or VBRI header of a VBR file, if any
+         */
+        protected AudioProbe probeMP3(byte[] b, long start) {
+
+            int version = (b[1] >> 3) & 0x03; // 3: MPEG 1, 2: MPEG 2, 0: MPEG 2.5
+            int layer = (b[1] >> 1) & 0x03; // 1: Layer III
+            int bitrateIndex = (b[2] & 0xFF) >> 4;
+            int rateIndex = (b[2] >> 2) & 0x03;
+            if (version == 1 || layer == 0 || bitrateIndex == 0 || bitrateIndex == 15 || rateIndex == 3) {
+                return null;
+            }
+
+            AudioProbe probe = new AudioProbe(Container.MP3);
+            boolean v1 = version == 3;
+            probe.codec = layer == 1 ? CODEC_MP3 : CODEC_UNKNOWN;
+            probe.sampleRate = MP3_SAMPLE_RATES[rateIndex] >> (v1 ? 0 : version == 2 ? 1 : 2);
+            boolean mono = ((b[3] & 0xFF) >> 6) == 3;
+            probe.channels = mono ? 1 : 2;
+            if (layer != 1) {
+                return probe;
+            }
+
+            int bitrate = (v1 ? MP3_BITRATES_V1 : MP3_BITRATES_V2)[bitrateIndex] * 1000;
+            int samplesPerFrame = v1 ? 1152 : 576;
+            int frameLength = samplesPerFrame / 8 * bitrate / probe.sampleRate + ((b[2] >> 1) & 0x01);
+
+            // Not a frame if the next one does not follow
+            if (frameLength + 2 <= b.length
+                    && ((b[frameLength] & 0xFF) != 0xFF || (b[frameLength + 1] & 0xE0) != 0xE0)) {
+                return null;
+            }
+
+            int xing = 4 + (v1 ? (mono ? 17 : 32) : (mono ? 9 : 17));
+            long frames = -1;
+            if (b.length >= xing + 12
+                    && ("Xing".equals(ascii(b, xing)) || "Info".equals(ascii(b, xing)))) {
+                if ((readIntBE(b, xing + 4) & 0x01) != 0) {
+                    frames = readIntBE(b, xing + 8) & 0xFFFFFFFFL;
+                }
+            } else if (b.length >= 36 + 18 && "VBRI".equals(ascii(b, 36))) {
+                frames = readIntBE(b, 36 + 14) & 0xFFFFFFFFL;
+            }
+            if (frames > 0) {
+                probe.durationSeconds = (double) frames * samplesPerFrame / probe.sampleRate;
+            } else {
+                probe.durationSeconds = (double) (length - start) * 8 / bitrate;
+            }
+            return probe;
+        }
+
+        /*
+         * AAC in ADTS frames: The duration is estimated from the average length of the frames of the head
+         */
+        protected AudioProbe probeADTS(long start) throws IOException {
+
+            byte[] b = start == 0 ? head : read(start, PROBE_SIZE);
+            int available = start == 0 ? count : b.length;
+            int rateIndex = (b[2] >> 2) & 0x0F;
+            if (rateIndex >= AAC_SAMPLE_RATES.length) {
+                return null;
+            }
+            AudioProbe probe = new AudioProbe(Container.ADTS);
+            probe.codec = CODEC_AAC;
+            probe.sampleRate = AAC_SAMPLE_RATES[rateIndex];
+            probe.channels = (b[2] & 0x01) << 2 | (b[3] & 0xFF) >> 6;
+
+            int offset = 0;
+            int frames = 0;
+            while (offset + 7 <= available && (b[offset] & 0xFF) == 0xFF && (b[offset + 1] & 0xF6) == 0xF0) {
+                int frameLength = (b[offset + 3] & 0x03) << 11 | (b[offset + 4] & 0xFF) << 3
+                        | (b[offset + 5] & 0xFF) >> 5;
+                if (frameLength < 7) {
+                    break;
+                }
+                // One or more raw data blocks of 1024 samples
+                frames += (b[offset + 6] & 0x03) + 1;
+                offset += frameLength;
+            }
+            if (frames > 0 && offset > 0) {
+                double bytesPerFrame = (double) Math.min(offset, available) / frames;
+                probe.durationSeconds = (length - start) / bytesPerFrame * 1024 / probe.sampleRate;
+            }
+            return probe;
+        }
+
+        /*
+         * Walks the top level boxes up to "moov", then reads mvhd for the duration, and the sample entry of the first
+         * sound track for the codec, channels and sample rate
+         */
+        protected AudioProbe probeMP4() throws IOException {
+
+            long offset = 0;
+            while (offset + 8 <= length) {
+                byte[] h = read(offset, 16);
+                if (h.length < 8) {
+                    return null;
+                }
+                long size = readIntBE(h, 0) & 0xFFFFFFFFL;
+                int headerSize = 8;
+                if (size == 1 && h.length == 16) {
+                    size = (long) readIntBE(h, 8) << 32 | readIntBE(h, 12) & 0xFFFFFFFFL;
+                    headerSize = 16;
+                } else if (size == 0) {
+                    size = length - offset;
+                }
+                if (size < headerSize) {
+                    return null;
+                }
+                if ("moov".equals(ascii(h, 4))) {
+                    // The sample tables come after what is needed, don't read them
+                    byte[] moov = read(offset + headerSize, (int) Math.min(size - headerSize, PROBE_SIZE));
+                    AudioProbe probe = new AudioProbe(Container.MP4);
+                    parseMoov(probe, moov);
+                    return probe;
+                }
+                offset += size;
+            }
+            return null;
+        }
+
+        protected void parseMoov(AudioProbe probe, byte[] moov) {
+
+            int mvhd = findBox(moov, 0, moov.length, "mvhd");
+            if (mvhd >= 0) {
+                probe.durationSeconds = readMediaDuration(moov, mvhd);
+            }
+            int offset = 0;
+            int trak;
+            while ((trak = findBox(moov, offset, moov.length, "trak")) >= 0) {
+                offset = nextBox(moov, trak - 8);
+                if (offset < 0) {
+                    return;
+                }
+                int trakEnd = Math.min(moov.length, offset);
+                int mdia = findBox(moov, trak, trakEnd, "mdia");
+                if (mdia < 0) {
+                    continue;
+                }
+                int mdiaEnd = Math.min(trakEnd, nextBox(moov, mdia - 8));
+                int hdlr = findBox(moov, mdia, mdiaEnd, "hdlr");
+                if (hdlr < 0 || hdlr + 12 > moov.length || !"soun".equals(ascii(moov, hdlr + 8))) {
+                    continue;
+                }
+                int mdhd = findBox(moov, mdia, mdiaEnd, "mdhd");
+                if (probe.durationSeconds < 0 && mdhd >= 0) {
+                    probe.durationSeconds = readMediaDuration(moov, mdhd);
+                }
+                int stsd = findPath(moov, mdia, mdiaEnd, "minf", "stbl", "stsd");
+                // version/flags, entry count, then the first sample entry
+                int entry = stsd + 8;
+                if (stsd >= 0 && entry + 36 <= moov.length) {
+                    String type = ascii(moov, entry + 4);
+                    probe.codec = "mp4a".equals(type) ? CODEC_AAC
+                            : "Opus".equals(type) ? CODEC_OPUS
+                                    : "fLaC".equals(type) ? CODEC_FLAC
+                                            : ".mp3".equals(type) ? CODEC_MP3 : CODEC_UNKNOWN;
+                    probe.channels = readShortBE(moov, entry + 24);
+                    probe.bitsPerSample = CODEC_FLAC.equals(probe.codec) ? readShortBE(moov, entry + 26) : 0;
+                    // 16.16 fixed point, 0 above 65535 Hz
+                    probe.sampleRate = readShortBE(moov, entry + 32);
+                }
+                int timeScaleOffset = mdhd < 0 || mdhd >= moov.length ? -1 : mdhd + (moov[mdhd] == 1 ? 20 : 12);
+                if (probe.sampleRate == 0 && timeScaleOffset >= 0 && timeScaleOffset + 4 <= moov.length) {
+                    // The time scale of an audio track is usually its sample rate
+                    probe.sampleRate = readIntBE(moov, timeScaleOffset);
+                }
+                return;
+            }
+        }
+
+        /*
+         * mvhd and mdhd: version and flags, creation and modification times, time scale and duration (64 bits with
+         * version 1)
+         */
+        protected double readMediaDuration(byte[] b, int payload) {
+
+            if (payload >= b.length) {
+                return -1;
+            }
+            boolean v1 = b[payload] == 1;
+            int timeScaleOffset = payload + (v1 ? 20 : 12);
+            if (timeScaleOffset + (v1 ? 12 : 8) > b.length) {
+                return -1;
+            }
+            long timeScale = readIntBE(b, timeScaleOffset) & 0xFFFFFFFFL;
+            long duration = v1 ? (long) readIntBE(b, timeScaleOffset + 4) << 32
+                    | readIntBE(b, timeScaleOffset + 8) & 0xFFFFFFFFL
+                    : readIntBE(b, timeScaleOffset + 4) & 0xFFFFFFFFL;
+            return timeScale == 0 || duration == 0 || duration == 0xFFFFFFFFL ? -1 : (double) duration / timeScale;
+        }
+
+        protected int findPath(byte[] b, int from, int to, String... types) {
+
+            int payload = from;
+            int end = to;
+            for (String type : types) {
+                payload = findBox(b, payload, end, type);
+                if (payload < 0) {
+                    return -1;
+                }
+                end = Math.min(end, nextBox(b, payload - 8));
+            }
+            return payload;
+        }
+
+        /*
+         * Returns the offset of the payload of the first box of this type between from and to, or -1
+         */
+        protected int findBox(byte[] b, int from, int to, String type) {
+
+            int offset = from;
+            while (offset + 8 <= Math.min(to, b.length)) {
+                if (type.equals(ascii(b, offset + 4))) {
+                    return offset + 8;
+                }
+                int next = nextBox(b, offset);
+                if (next <= offset) {
+                    return -1;
+                }
+                offset = next;
+            }
+            return -1;
+        }
+
+        protected int nextBox(byte[] b, int offset) {
+            long size = readIntBE(b, offset) & 0xFFFFFFFFL;
+            return size < 8 ? -1 : (int) Math.min(Integer.MAX_VALUE, offset + size);
+        }
+
+        /*
+         * Reads at most size bytes at offset, from the head when it contains them
+         */
+        protected byte[] read(long offset, int size) throws IOException {
+
+            int wanted = (int) Math.max(0, Math.min(size, length - offset));
+            byte[] b = new byte[wanted];
+            if (offset + wanted <= count) {
+                System.arraycopy(head, (int) offset, b, 0, wanted);
+                return b;
+            }
+            try (InputStream in = blob.getStream()) {
+                WavHeader.skipFully(in, offset);
+                int read = WavHeader.readFully(in, b, wanted);
+                if (read < wanted) {
+                    byte[] truncated = new byte[read];
+                    System.arraycopy(b, 0, truncated, 0, read);
+                    return truncated;
+                }
+            }
+            return b;
+        }
+    }
+
+    protected static String ascii(byte[] b, int offset) {
+        return new String(b, offset, 4, StandardCharsets.US_ASCII);
+    }
+
+    protected static int readShortBE(byte[] b, int offset) {
+        return (b[offset] & 0xFF) << 8 | (b[offset + 1] & 0xFF);
+    }
+
+    protected static int readIntBE(byte[] b, int offset) {
+        return (b[offset] & 0xFF) << 24 | (b[offset + 1] & 0xFF) << 16 | (b[offset + 2] & 0xFF) << 8
+                | (b[offset + 3] & 0xFF);
+    }
+
+    protected static int readIntLE(byte[] b, int offset) {
+        return WavHeader.readIntLE(b, offset);
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.audio;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.input.ProxyInputStream;
+import org.nuxeo.ecm.core.api.Blob;
+
+/**
+ * The audio cannot be read or converted (missing file, ffmpeg failing on it...): Another attempt, or another provider,
+ * would fail the same way, so it is neither retried nor failed over. It is an IOException so it goes through the HTTP
+ * clients, which read the audio while sending it.
+ *
+ * @since 2023.0.1
+ */
+public class AudioReadException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public AudioReadException(String message) {
+        super(message);
+    }
+
+    public AudioReadException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    /**
+     * @return the stream of the audio, failing with an AudioReadException
+     */
+    public static InputStream getStream(Blob blob) throws AudioReadException {
+
+        String message = "Cannot read the audio " + blob.getFilename();
+        InputStream in;
+        try {
+            in = blob.getStream();
+        } catch (AudioReadException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new AudioReadException(message, e);
+        }
+        return new ProxyInputStream(in) {
+
+            @Override
+            protected void handleIOException(IOException e) throws IOException {
+                throw e instanceof AudioReadException ? e : new AudioReadException(message, e);
+            }
+        };
+    }
+
+    /**
+     * @return true if the error, or one of its causes, is an AudioReadException
+     */
+    public static boolean isAudioError(Throwable t) {
+
+        for (; t != null; t = t.getCause()) {
+            if (t instanceof AudioReadException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
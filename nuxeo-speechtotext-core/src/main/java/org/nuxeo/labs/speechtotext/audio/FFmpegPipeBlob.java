@@ -0,0 +1,252 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.audio;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.CloseableFile;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.api.impl.blob.AbstractBlob;
+import org.nuxeo.ecm.platform.commandline.executor.api.CommandLineExecutorService;
+import org.nuxeo.ecm.platform.commandline.executor.service.CommandLineDescriptor;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * A blob whose content is the output of a command (ffmpeg) run on another blob, read from the standard output of the
+ * command while it runs: Nothing is written to disk, and the caller (typically the upload to the provider) reads the
+ * converted audio while it is produced.
+ * <p>
+ * The blob can be read only once: The command is run by the first call to {@link #getStream()}, the next calls throw
+ * an IOException (the conversion is not run again, see {@link #isConsumed()}). The length is not known in advance
+ * (-1).
+ * <p>
+ * The command must write to its standard output (<code>pipe:1</code> for ffmpeg). Only the
+ * <code>#{sourceFilePath}</code> parameter is replaced, the command is not run in a shell.
+ *
+ * @since 2023.0.1
+ */
+public class FFmpegPipeBlob extends AbstractBlob {
+
+    private static final long serialVersionUID = 1L;
+
+    // nuxeo.conf, true to use the conversions to a pipe instead of the converters
+    public static final String STREAMING_CONVERSION_PARAM = "speechtotext.streamingConversion";
+
+    public static final String SOURCE_FILE_PATH = "#{sourceFilePath}";
+
+    // Only the end of the error output is kept, for the error message
+    protected static final int MAX_ERROR_OUTPUT = 4096;
+
+    protected final Blob source;
+
+    protected final String command;
+
+    protected final String parameters;
+
+    protected final AtomicBoolean consumed = new AtomicBoolean();
+
+    public FFmpegPipeBlob(Blob source, String command, String parameters, String mimeType, String extension) {
+        super();
+        this.source = source;
+        this.command = command;
+        this.parameters = parameters;
+        setMimeType(mimeType);
+        String sourceName = source.getFilename();
+        setFilename((StringUtils.isBlank(sourceName) ? "audio" : FilenameUtils.getBaseName(sourceName)) + extension);
+    }
+
+    /**
+     * Uses the command line and parameters of a command contributed to the CommandLineExecutorService
+     */
+    public static FFmpegPipeBlob fromCommandLine(Blob source, String commandName, String mimeType, String extension) {
+
+        CommandLineExecutorService service = Framework.getService(CommandLineExecutorService.class);
+        CommandLineDescriptor descriptor = service.getCommandLineDescriptor(commandName);
+        if (descriptor == null) {
+            throw new NuxeoException("Unknown command line: " + commandName);
+        }
+        return new FFmpegPipeBlob(source, descriptor.getCommand(), descriptor.getParametersString(), mimeType,
+                extension);
+    }
+
+    /**
+     * @return true if the command is contributed and can be run on this server
+     */
+    public static boolean isAvailable(String commandName) {
+        CommandLineExecutorService service = Framework.getService(CommandLineExecutorService.class);
+        return service.getCommandAvailability(commandName).isAvailable();
+    }
+
+    public Blob getSource() {
+        return source;
+    }
+
+    /**
+     * @return true if the stream was already read, the blob cannot be read again
+     */
+    public boolean isConsumed() {
+        return consumed.get();
+    }
+
+    protected List<String> buildCommand(String sourceFilePath) {
+
+        List<String> commandLine = new ArrayList<>();
+        commandLine.add(command.trim());
+        for (String parameter : StringUtils.split(parameters)) {
+            commandLine.add(parameter.replace(SOURCE_FILE_PATH, sourceFilePath));
+        }
+        return commandLine;
+    }
+
+    @Override
+    public InputStream getStream() throws IOException {
+
+        if (!consumed.compareAndSet(false, true)) {
+            throw new AudioReadException("The conversion of " + source.getFilename() + " can be read only once");
+        }
+        CloseableFile file = source.getCloseableFile();
+        Process process;
+        try {
+            process = new ProcessBuilder(buildCommand(file.getFile().getAbsolutePath())).start();
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        // Nothing to send
+        process.getOutputStream().close();
+
+        return new ProcessInputStream(process, file);
+    }
+
+    /*
+     * Unknown until the command is done
+     */
+    @Override
+    public long getLength() {
+        return -1;
+    }
+
+    /*
+     * The standard output of the process. At the end of the stream, throws an AudioReadException if the process
+     * failed, so a truncated output is not taken for a complete one
+     */
+    protected class ProcessInputStream extends FilterInputStream {
+
+        protected final Process process;
+
+        protected final CloseableFile file;
+
+        protected final StringBuilder errorOutput = new StringBuilder();
+
+        protected final Thread errorReader;
+
+        protected boolean closed = false;
+
+        protected ProcessInputStream(Process process, CloseableFile file) {
+            super(process.getInputStream());
+            this.process = process;
+            this.file = file;
+            // The error output must be read, or the process blocks when the pipe is full
+            errorReader = new Thread(this::readErrorOutput, "speechtotext-ffmpeg-stderr");
+            errorReader.setDaemon(true);
+            errorReader.start();
+        }
+
+        protected void readErrorOutput() {
+            byte[] buffer = new byte[1024];
+            try (InputStream err = process.getErrorStream()) {
+                int count;
+                while ((count = err.read(buffer)) >= 0) {
+                    synchronized (errorOutput) {
+                        errorOutput.append(new String(buffer, 0, count, StandardCharsets.UTF_8));
+                        if (errorOutput.length() > MAX_ERROR_OUTPUT) {
+                            errorOutput.delete(0, errorOutput.length() - MAX_ERROR_OUTPUT);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // Process is gone
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b < 0) {
+                checkExitValue();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = super.read(b, off, len);
+            if (count < 0) {
+                checkExitValue();
+            }
+            return count;
+        }
+
+        protected void checkExitValue() throws IOException {
+
+            int exitValue;
+            try {
+                exitValue = process.waitFor();
+                errorReader.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for " + command, e);
+            }
+            if (exitValue != 0) {
+                synchronized (errorOutput) {
+                    throw new AudioReadException(command + " failed on " + source.getFilename() + " (exit value "
+                            + exitValue + "): " + errorOutput.toString().trim());
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                super.close();
+            } finally {
+                // Stopped before the end
+                if (process.isAlive()) {
+                    process.destroyForcibly();
+                }
+                file.close();
+            }
+        }
+    }
+
+}
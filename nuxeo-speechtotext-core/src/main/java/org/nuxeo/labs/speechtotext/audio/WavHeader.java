@@ -0,0 +1,276 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.audio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+/**
+ * Minimal RIFF/WAVE header reader and writer.
+ * <p>
+ * {@link #read(InputStream)} reads the chunks up to the "data" chunk, so the stream is then positioned on the first
+ * sample.
+ *
+ * @since 2023.0.1
+ */
+public class WavHeader {
+
+    public static final int FORMAT_PCM = 1;
+
+    public static final int FORMAT_IEEE_FLOAT = 3;
+
+    public static final int FORMAT_ALAW = 6;
+
+    public static final int FORMAT_MULAW = 7;
+
+    public static final int FORMAT_EXTENSIBLE = 0xFFFE;
+
+    protected int format;
+
+    protected int channels;
+
+    protected int sampleRate;
+
+    protected int bitsPerSample;
+
+    protected int blockAlign;
+
+    // -1 if unknown (streamed WAV)
+    protected long dataLength = -1;
+
+    public int getFormat() {
+        return format;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getBitsPerSample() {
+        return bitsPerSample;
+    }
+
+    public int getBlockAlign() {
+        return blockAlign;
+    }
+
+    public long getDataLength() {
+        return dataLength;
+    }
+
+    public boolean isPCM() {
+        return format == FORMAT_PCM;
+    }
+
+    public boolean isFloat() {
+        return format == FORMAT_IEEE_FLOAT;
+    }
+
+    /**
+     * @return true if the samples are 16 bits, mono, signed integers at <code>rate</code> Hz
+     */
+    public boolean isPCM16Mono(int rate) {
+        return isPCM() && bitsPerSample == 16 && channels == 1 && sampleRate == rate;
+    }
+
+    /**
+     * @return the duration in seconds, -1 if unknown
+     */
+    public double getDurationSeconds() {
+        if (dataLength < 0 || blockAlign == 0 || sampleRate == 0) {
+            return -1;
+        }
+        return (double) (dataLength / blockAlign) / sampleRate;
+    }
+
+    /**
+     * Reads the header and leaves the stream positioned at the start of the samples.
+     *
+     * @return the header, or null if the stream is not a RIFF/WAVE file
+     */
+    public static WavHeader read(InputStream in) throws IOException {
+
+        byte[] buf = new byte[12];
+        if (readFully(in, buf, 12) < 12 || !"RIFF".equals(ascii(buf, 0)) || !"WAVE".equals(ascii(buf, 8))) {
+            return null;
+        }
+
+        WavHeader header = new WavHeader();
+        boolean hasFmt = false;
+        byte[] chunkHeader = new byte[8];
+        while (readFully(in, chunkHeader, 8) == 8) {
+            String id = ascii(chunkHeader, 0);
+            long size = readIntLE(chunkHeader, 4) & 0xFFFFFFFFL;
+            if ("fmt ".equals(id)) {
+                byte[] fmt = new byte[(int) size];
+                if (readFully(in, fmt, fmt.length) < fmt.length || fmt.length < 16) {
+                    return null;
+                }
+                header.format = readShortLE(fmt, 0);
+                header.channels = readShortLE(fmt, 2);
+                header.sampleRate = readIntLE(fmt, 4);
+                header.blockAlign = readShortLE(fmt, 12);
+                header.bitsPerSample = readShortLE(fmt, 14);
+                // WAVE_FORMAT_EXTENSIBLE: the actual format is the first 2 bytes of the sub format GUID
+                if (header.format == FORMAT_EXTENSIBLE && fmt.length >= 26) {
+                    header.format = readShortLE(fmt, 24);
+                }
+                hasFmt = true;
+                skipPadding(in, size);
+            } else if ("data".equals(id)) {
+                if (!hasFmt) {
+                    return null;
+                }
+                // 0 or 0xFFFFFFFF when written by a streaming encoder
+                header.dataLength = size == 0 || size == 0xFFFFFFFFL ? -1 : size;
+                return header;
+            } else {
+                skipFully(in, size);
+                skipPadding(in, size);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the header of the blob, or null if it is not a RIFF/WAVE file
+     */
+    public static WavHeader read(Blob blob) throws IOException {
+        try (InputStream in = blob.getStream()) {
+            return read(in);
+        }
+    }
+
+    /**
+     * @return the duration of the audio, 0 when unknown: not a WAV, a WAV being streamed (see FFmpegPipeBlob, it can
+     *         be read only once), or an error reading it
+     * @since 2023.0.1
+     */
+    public static double readDurationSeconds(Blob blob) {
+
+        String mimeType = blob.getMimeType();
+        if (blob.getLength() < 0 || mimeType == null || mimeType.toLowerCase().indexOf("wav") < 0) {
+            return 0;
+        }
+        try {
+            WavHeader header = read(blob);
+            return header == null ? 0 : Math.max(0, header.getDurationSeconds());
+        } catch (IOException | NuxeoException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Writes a canonical 44 bytes PCM header
+     */
+    public static void writePCMHeader(OutputStream out, int sampleRate, int channels, int bitsPerSample,
+            long dataLength) throws IOException {
+
+        int blockAlign = channels * bitsPerSample / 8;
+        byte[] h = new byte[44];
+        putAscii(h, 0, "RIFF");
+        putIntLE(h, 4, (int) (36 + dataLength));
+        putAscii(h, 8, "WAVE");
+        putAscii(h, 12, "fmt ");
+        putIntLE(h, 16, 16);
+        putShortLE(h, 20, FORMAT_PCM);
+        putShortLE(h, 22, channels);
+        putIntLE(h, 24, sampleRate);
+        putIntLE(h, 28, sampleRate * blockAlign);
+        putShortLE(h, 32, blockAlign);
+        putShortLE(h, 34, bitsPerSample);
+        putAscii(h, 36, "data");
+        putIntLE(h, 40, (int) dataLength);
+        out.write(h);
+    }
+
+    protected static void skipPadding(InputStream in, long size) throws IOException {
+        if ((size & 1) == 1) {
+            skipFully(in, 1);
+        }
+    }
+
+    protected static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException();
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    public static int readFully(InputStream in, byte[] buf, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int count = in.read(buf, total, length - total);
+            if (count < 0) {
+                break;
+            }
+            total += count;
+        }
+        return total;
+    }
+
+    protected static String ascii(byte[] b, int offset) {
+        return new String(b, offset, 4, StandardCharsets.US_ASCII);
+    }
+
+    protected static int readShortLE(byte[] b, int offset) {
+        return (b[offset] & 0xFF) | (b[offset + 1] & 0xFF) << 8;
+    }
+
+    protected static int readIntLE(byte[] b, int offset) {
+        return (b[offset] & 0xFF) | (b[offset + 1] & 0xFF) << 8 | (b[offset + 2] & 0xFF) << 16
+                | (b[offset + 3] & 0xFF) << 24;
+    }
+
+    protected static void putAscii(byte[] b, int offset, String value) {
+        for (int i = 0; i < 4; i++) {
+            b[offset + i] = (byte) value.charAt(i);
+        }
+    }
+
+    protected static void putShortLE(byte[] b, int offset, int value) {
+        b[offset] = (byte) value;
+        b[offset + 1] = (byte) (value >> 8);
+    }
+
+    protected static void putIntLE(byte[] b, int offset, int value) {
+        b[offset] = (byte) value;
+        b[offset + 1] = (byte) (value >> 8);
+        b[offset + 2] = (byte) (value >> 16);
+        b[offset + 3] = (byte) (value >> 24);
+    }
+
+}
@@ -0,0 +1,387 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.audio;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+
+/**
+ * Converts a PCM (8, 16, 24 or 32 bits) or float WAV to a 16 bits mono PCM WAV (LINEAR16) at most at
+ * <code>maxSampleRate</code>, in the JVM: Channels are averaged, the audio is low-pass filtered and resampled when its
+ * rate is higher than <code>maxSampleRate</code>. It is never upsampled.
+ * <p>
+ * The audio is processed as it is read, only a few KB are held in memory whatever the duration.
+ * <p>
+ * Other formats (compressed, A-law/mu-law WAV, containers, ...) must be converted with ffmpeg (see the
+ * <code>audio-to-wav</code> and <code>audio-to-flac</code> converters).
+ *
+ * @since 2023.0.1
+ */
+public class WavNormalizer {
+
+    // nuxeo.conf, 0 disables the normalization in the JVM
+    public static final String MAX_SAMPLE_RATE_PARAM = "speechtotext.normalization.maxSampleRate";
+
+    public static final int DEFAULT_MAX_SAMPLE_RATE = 16000;
+
+    // Half the number of coefficients of the low-pass filter
+    protected static final int FILTER_HALF_LENGTH = 16;
+
+    protected static final int FRAMES_PER_READ = 4096;
+
+    protected final int maxSampleRate;
+
+    public WavNormalizer() {
+        this(DEFAULT_MAX_SAMPLE_RATE);
+    }
+
+    public WavNormalizer(int maxSampleRate) {
+        super();
+        this.maxSampleRate = maxSampleRate;
+    }
+
+    /**
+     * @return true if the samples of this WAV can be read by {@link #normalize(Blob)}
+     */
+    public static boolean canNormalize(WavHeader header) {
+
+        if (header == null || header.getChannels() <= 0 || header.getSampleRate() <= 0) {
+            return false;
+        }
+        int bits = header.getBitsPerSample();
+        if (header.getBlockAlign() != header.getChannels() * bits / 8) {
+            return false;
+        }
+        if (header.isPCM()) {
+            return bits == 8 || bits == 16 || bits == 24 || bits == 32;
+        }
+        if (header.isFloat()) {
+            return bits == 32 || bits == 64;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the WAV is not already 16 bits mono PCM at a rate lower or equal to the max. sample rate
+     */
+    public boolean needsNormalization(WavHeader header) {
+        return !(header.isPCM16Mono(header.getSampleRate()) && header.getSampleRate() <= maxSampleRate);
+    }
+
+    /**
+     * @return true if the blob is a WAV written by {@link #normalize(Blob)}, a temporary file owned by the caller
+     * @since 2023.0.1
+     */
+    public static boolean isNormalized(Blob blob) {
+        return blob instanceof NormalizedWavBlob;
+    }
+
+    /**
+     * Deletes the file of a WAV written by {@link #normalize(Blob)}. Other blobs (the original audio, the result of a
+     * converter, which can be in the cache of the conversion service) are left as is.
+     *
+     * @since 2023.0.1
+     */
+    public static void dispose(Blob blob) {
+        if (isNormalized(blob)) {
+            File file = blob.getFile();
+            if (file != null) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * @param wav a WAV accepted by {@link #canNormalize(WavHeader)}
+     * @return a new 16 bits mono PCM WAV blob, in a temporary file (see {@link #dispose(Blob)})
+     */
+    public Blob normalize(Blob wav) throws IOException {
+
+        Blob result = new NormalizedWavBlob();
+        long dataLength;
+        int outputRate;
+
+        try (InputStream in = wav.getStream();
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(result.getFile()), 64 * 1024)) {
+
+            WavHeader header = WavHeader.read(in);
+            if (!canNormalize(header)) {
+                throw new NuxeoException("Unsupported WAV format, cannot normalize " + wav.getFilename());
+            }
+
+            outputRate = Math.min(header.getSampleRate(), maxSampleRate);
+            // Real length is written once known
+            WavHeader.writePCMHeader(out, outputRate, 1, 16, 0);
+
+            SampleWriter writer = new SampleWriter(out);
+            Resampler resampler = new Resampler(header.getSampleRate(), outputRate, writer);
+            readMonoSamples(in, header, resampler);
+            resampler.flush();
+
+            dataLength = writer.count * 2;
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(result.getFile(), "rw")) {
+            ByteArrayOutputStream headerBytes = new ByteArrayOutputStream(44);
+            WavHeader.writePCMHeader(headerBytes, outputRate, 1, 16, dataLength);
+            file.seek(0);
+            file.write(headerBytes.toByteArray());
+        }
+
+        result.setMimeType("audio/wav");
+        return result;
+    }
+
+    /*
+     * Decodes the frames and sends the average of the channels, between -1 and 1
+     */
+    protected void readMonoSamples(InputStream in, WavHeader header, Resampler resampler) throws IOException {
+
+        int channels = header.getChannels();
+        int bytesPerSample = header.getBitsPerSample() / 8;
+        int frameSize = header.getBlockAlign();
+        boolean isFloat = header.isFloat();
+        long remaining = header.getDataLength() < 0 ? Long.MAX_VALUE : header.getDataLength();
+
+        byte[] buffer = new byte[frameSize * FRAMES_PER_READ];
+        while (remaining > 0) {
+            int toRead = (int) Math.min(buffer.length, remaining);
+            int count = WavHeader.readFully(in, buffer, toRead);
+            remaining -= count;
+            int frames = count / frameSize;
+            for (int frame = 0; frame < frames; frame++) {
+                double sum = 0;
+                int offset = frame * frameSize;
+                for (int channel = 0; channel < channels; channel++) {
+                    sum += decode(buffer, offset + channel * bytesPerSample, bytesPerSample, isFloat);
+                }
+                resampler.accept(sum / channels);
+            }
+            if (count < toRead) {
+                break;
+            }
+        }
+    }
+
+    protected static double decode(byte[] b, int offset, int bytesPerSample, boolean isFloat) {
+
+        switch (bytesPerSample) {
+        case 1:
+            // 8 bits WAV is unsigned
+            return ((b[offset] & 0xFF) - 128) / 128.0;
+        case 2:
+            return (short) ((b[offset] & 0xFF) | (b[offset + 1] << 8)) / 32768.0;
+        case 3:
+            return ((b[offset] & 0xFF) | (b[offset + 1] & 0xFF) << 8 | b[offset + 2] << 16) / 8388608.0;
+        case 4:
+            int value = (b[offset] & 0xFF) | (b[offset + 1] & 0xFF) << 8 | (b[offset + 2] & 0xFF) << 16
+                    | b[offset + 3] << 24;
+            return isFloat ? Float.intBitsToFloat(value) : value / 2147483648.0;
+        case 8:
+            long low = (b[offset] & 0xFF) | (b[offset + 1] & 0xFF) << 8 | (b[offset + 2] & 0xFF) << 16
+                    | (long) (b[offset + 3] & 0xFF) << 24;
+            long high = (b[offset + 4] & 0xFF) | (b[offset + 5] & 0xFF) << 8 | (b[offset + 6] & 0xFF) << 16
+                    | (long) (b[offset + 7] & 0xFF) << 24;
+            return Double.longBitsToDouble(low | high << 32);
+        default:
+            throw new IllegalArgumentException("Unsupported sample size: " + bytesPerSample);
+        }
+    }
+
+    /*
+     * Writes 16 bits little endian samples
+     */
+    protected static class SampleWriter {
+
+        protected final OutputStream out;
+
+        protected long count = 0;
+
+        protected SampleWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        protected void write(double sample) throws IOException {
+            long value = Math.round(sample * 32767);
+            if (value > Short.MAX_VALUE) {
+                value = Short.MAX_VALUE;
+            } else if (value < Short.MIN_VALUE) {
+                value = Short.MIN_VALUE;
+            }
+            out.write((int) value & 0xFF);
+            out.write((int) (value >> 8) & 0xFF);
+            count++;
+        }
+    }
+
+    /*
+     * Low-pass filter (windowed sinc, cut below the new Nyquist frequency) then linear interpolation. The filter delay
+     * is compensated, so the time of each sample is unchanged.
+     */
+    protected static class Resampler {
+
+        protected final int inputRate;
+
+        protected final int outputRate;
+
+        protected final SampleWriter writer;
+
+        // null when there is nothing to filter
+        protected final double[] coefficients;
+
+        protected final double[] history;
+
+        protected int historyPos = 0;
+
+        // Number of samples received, and filtered samples produced
+        protected long received = 0;
+
+        protected long filtered = 0;
+
+        protected double previous = 0;
+
+        // Next output sample to write
+        protected long outputIndex = 0;
+
+        protected Resampler(int inputRate, int outputRate, SampleWriter writer) {
+            this.inputRate = inputRate;
+            this.outputRate = outputRate;
+            this.writer = writer;
+            if (inputRate == outputRate) {
+                coefficients = null;
+                history = null;
+            } else {
+                coefficients = buildLowPass(0.45 * outputRate / inputRate, FILTER_HALF_LENGTH);
+                history = new double[coefficients.length];
+            }
+        }
+
+        /*
+         * Blackman windowed sinc, cutoff in cycles per sample
+         */
+        protected static double[] buildLowPass(double cutoff, int halfLength) {
+
+            int length = 2 * halfLength + 1;
+            double[] h = new double[length];
+            double sum = 0;
+            for (int i = 0; i < length; i++) {
+                int n = i - halfLength;
+                double sinc = n == 0 ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * n) / (Math.PI * n);
+                double window = 0.42 - 0.5 * Math.cos(2 * Math.PI * i / (length - 1))
+                        + 0.08 * Math.cos(4 * Math.PI * i / (length - 1));
+                h[i] = sinc * window;
+                sum += h[i];
+            }
+            for (int i = 0; i < length; i++) {
+                h[i] /= sum;
+            }
+            return h;
+        }
+
+        protected void accept(double sample) throws IOException {
+
+            if (coefficients == null) {
+                writer.write(sample);
+                return;
+            }
+
+            history[historyPos] = sample;
+            historyPos = (historyPos + 1) % history.length;
+            received++;
+            // The first filtered sample is centered on the first input sample
+            if (received > FILTER_HALF_LENGTH) {
+                interpolate(filter());
+            }
+        }
+
+        protected double filter() {
+            double value = 0;
+            int pos = historyPos;
+            // From the oldest sample to the newest
+            for (double coefficient : coefficients) {
+                value += coefficient * history[pos];
+                pos = pos == history.length - 1 ? 0 : pos + 1;
+            }
+            return value;
+        }
+
+        /*
+         * Filtered sample #filtered is at time filtered / inputRate, writes the output samples up to this time
+         */
+        protected void interpolate(double current) throws IOException {
+
+            while (true) {
+                // Position of the next output sample, in input samples
+                double position = (double) outputIndex * inputRate / outputRate;
+                if (position > filtered) {
+                    break;
+                }
+                double fraction = position - (filtered - 1);
+                writer.write(filtered == 0 ? current : previous + (current - previous) * fraction);
+                outputIndex++;
+            }
+            previous = current;
+            filtered++;
+        }
+
+        protected void flush() throws IOException {
+            if (coefficients == null) {
+                return;
+            }
+            // Push silence to get the last filtered samples, without writing more than the duration of the audio
+            long expected = received * outputRate / inputRate;
+            for (int i = 0; i < FILTER_HALF_LENGTH; i++) {
+                history[historyPos] = 0;
+                historyPos = (historyPos + 1) % history.length;
+                double value = filter();
+                if (filtered >= received) {
+                    break;
+                }
+                interpolate(value);
+            }
+            while (outputIndex < expected) {
+                writer.write(previous);
+                outputIndex++;
+            }
+        }
+    }
+
+    /*
+     * Tells the WAV written by the normalizer from the other blobs
+     */
+    protected static class NormalizedWavBlob extends FileBlob {
+
+        private static final long serialVersionUID = 1L;
+
+        protected NormalizedWavBlob() throws IOException {
+            super(".wav");
+        }
+    }
+
+}
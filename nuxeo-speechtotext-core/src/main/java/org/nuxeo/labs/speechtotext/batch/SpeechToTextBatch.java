@@ -0,0 +1,238 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.batch;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextBatchItem;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextBatchResult;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextResponse;
+
+/**
+ * Transcribes items in a pipeline of two stages, each one in its own pool: prepare (convert the audio) and transcribe
+ * (upload, wait for the provider, parse). So the conversion of an item overlaps with the upload of the previous ones.
+ * <p>
+ * Results are returned as they complete, not in the order of the items. The items are pulled from their iterator only
+ * when there is room: At most maxInFlight items are being prepared, transcribed or waiting to be returned. A slow
+ * consumer slows the pipeline down, and the memory (and temporary files) stays bounded whatever the number of items.
+ * <p>
+ * Once an item is done (transcribed, failed or cancelled), the result of its prepare stage is given to the dispose
+ * function, to delete its temporary files.
+ * <p>
+ * Not thread safe: one thread iterates the results (and pulls the items).
+ *
+ * @param <P> the result of the prepare stage
+ * @since 2023.0.1
+ */
+public class SpeechToTextBatch<P> implements Iterator<SpeechToTextBatchResult>, AutoCloseable {
+
+    private static final Logger log = LogManager.getLogger(SpeechToTextBatch.class);
+
+    protected final Iterator<SpeechToTextBatchItem> items;
+
+    protected final int maxInFlight;
+
+    protected final Function<SpeechToTextBatchItem, P> prepare;
+
+    protected final BiFunction<SpeechToTextBatchItem, P, SpeechToTextResponse> transcribe;
+
+    protected final BiConsumer<SpeechToTextBatchItem, P> dispose;
+
+    protected final Executor prepareExecutor;
+
+    protected final Executor transcribeExecutor;
+
+    protected final BlockingQueue<SpeechToTextBatchResult> completed = new LinkedBlockingQueue<>();
+
+    protected final Set<CompletableFuture<?>> running = ConcurrentHashMap.newKeySet();
+
+    // Submitted and not returned yet
+    protected int inFlight;
+
+    protected volatile boolean closed;
+
+    public SpeechToTextBatch(Iterator<SpeechToTextBatchItem> items, int maxInFlight,
+            Function<SpeechToTextBatchItem, P> prepare,
+            BiFunction<SpeechToTextBatchItem, P, SpeechToTextResponse> transcribe, Executor prepareExecutor,
+            Executor transcribeExecutor) {
+        this(items, maxInFlight, prepare, transcribe, (item, prepared) -> {
+        }, prepareExecutor, transcribeExecutor);
+    }
+
+    public SpeechToTextBatch(Iterator<SpeechToTextBatchItem> items, int maxInFlight,
+            Function<SpeechToTextBatchItem, P> prepare,
+            BiFunction<SpeechToTextBatchItem, P, SpeechToTextResponse> transcribe,
+            BiConsumer<SpeechToTextBatchItem, P> dispose, Executor prepareExecutor, Executor transcribeExecutor) {
+        this.items = items;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.prepare = prepare;
+        this.transcribe = transcribe;
+        this.dispose = dispose;
+        this.prepareExecutor = prepareExecutor;
+        this.transcribeExecutor = transcribeExecutor;
+    }
+
+    /**
+     * @return the results as they complete. Closing the stream closes the batch
+     */
+    public Stream<SpeechToTextBatchResult> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.NONNULL), false)
+                            .onClose(this::close);
+    }
+
+    @Override
+    public boolean hasNext() {
+        fill();
+        return !closed && inFlight > 0;
+    }
+
+    @Override
+    public SpeechToTextBatchResult next() {
+
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        SpeechToTextBatchResult result;
+        try {
+            result = completed.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new NuxeoException("Interrupted while waiting for the batch", e);
+        }
+        inFlight--;
+        return result;
+    }
+
+    protected void fill() {
+        while (!closed && inFlight < maxInFlight && items.hasNext()) {
+            submit(items.next());
+        }
+    }
+
+    protected void submit(SpeechToTextBatchItem item) {
+
+        Preparation preparation = new Preparation(item);
+        // A cancelled stage still runs to its end, its result is kept by the preparation to be disposed of
+        CompletableFuture<P> prepared = CompletableFuture.supplyAsync(() -> preparation.prepared(prepare.apply(item)),
+                prepareExecutor);
+        CompletableFuture<SpeechToTextResponse> future = prepared.thenApplyAsync(
+                audio -> transcribe.apply(item, audio), transcribeExecutor);
+        inFlight++;
+        running.add(prepared);
+        running.add(future);
+        prepared.whenComplete((audio, error) -> running.remove(prepared));
+        future.whenComplete((response, error) -> {
+            running.remove(future);
+            // Disposed of before the result is returned, the errors of the dispose function are logged
+            preparation.done();
+            completed.add(new SpeechToTextBatchResult(item, error == null ? response : null,
+                    error == null ? null : unwrap(error)));
+        });
+    }
+
+    protected static RuntimeException unwrap(Throwable error) {
+
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        return new NuxeoException(cause);
+    }
+
+    /**
+     * @return the number of items submitted and not returned yet
+     */
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Stops pulling items. The items in progress are cancelled, in both stages: A stage already running goes to its
+     * end, but its result is dropped, and the result of the prepare stage is disposed of.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        running.forEach(future -> future.cancel(false));
+        completed.clear();
+    }
+
+    /*
+     * The result of the prepare stage of an item. Disposed of once both prepared and done, whichever comes last: The
+     * transcribe stage can fail, or be cancelled, before the prepare stage ends.
+     */
+    protected class Preparation {
+
+        protected final SpeechToTextBatchItem item;
+
+        protected P value;
+
+        protected boolean prepared;
+
+        protected boolean done;
+
+        protected Preparation(SpeechToTextBatchItem item) {
+            this.item = item;
+        }
+
+        protected synchronized P prepared(P value) {
+            this.value = value;
+            prepared = true;
+            disposeIfDone();
+            return value;
+        }
+
+        protected synchronized void done() {
+            done = true;
+            disposeIfDone();
+        }
+
+        protected void disposeIfDone() {
+            if (prepared && done) {
+                try {
+                    dispose.accept(item, value);
+                } catch (RuntimeException e) {
+                    log.warn("Cannot dispose of the prepared audio of " + item.getId(), e);
+                }
+                value = null;
+                prepared = false;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,226 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.bulk;
+
+import static org.nuxeo.ecm.core.bulk.BulkServiceImpl.STATUS_STREAM;
+import static org.nuxeo.lib.stream.computation.AbstractComputation.INPUT_1;
+import static org.nuxeo.lib.stream.computation.AbstractComputation.OUTPUT_1;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.bulk.action.computation.AbstractBulkComputation;
+import org.nuxeo.labs.speechtotext.api.SpeechToText;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextOptions;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextResponse;
+import org.nuxeo.lib.stream.computation.Topology;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.stream.StreamProcessorTopology;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+import io.dropwizard.metrics5.Timer;
+
+/**
+ * Bulk action transcribing the documents of a NXQL query, and storing the transcript in transcriptXpath.
+ * <p>
+ * The documents are partitioned across the computations (see bulk-contrib.xml for the concurrency, which is per
+ * node). The transaction is committed before calling the provider, so it is not held during the call, and each
+ * document is saved in its own short transaction.
+ * <p>
+ * Parameters are the same as the Convert.SpeechToTextForDocument operation: transcriptXpath (required),
+ * blobXpath (default file:content), languageCode (default en-US), withPunctuation (default true),
+ * withWordTimeOffets (default false), maxSegmentSeconds (default 0) and moreOptionsJSONStr.
+ * <p>
+ * A document that cannot be transcribed does not stop the others, it is counted in the errorCount of the bulk status
+ * (and its error is the errorMessage).
+ *
+ * @since 2023.0.1
+ */
+public class SpeechToTextAction implements StreamProcessorTopology {
+
+    public static final String ACTION_NAME = "speechToText";
+
+    public static final String ACTION_FULL_NAME = "bulk/" + ACTION_NAME;
+
+    public static final String PARAM_BLOB_XPATH = "blobXpath";
+
+    public static final String PARAM_TRANSCRIPT_XPATH = "transcriptXpath";
+
+    public static final String PARAM_LANGUAGE_CODE = "languageCode";
+
+    public static final String PARAM_WITH_PUNCTUATION = "withPunctuation";
+
+    public static final String PARAM_WITH_WORD_TIME_OFFSETS = "withWordTimeOffets";
+
+    public static final String PARAM_MAX_SEGMENT_SECONDS = "maxSegmentSeconds";
+
+    public static final String PARAM_MORE_OPTIONS = "moreOptionsJSONStr";
+
+    @Override
+    public Topology getTopology(Map<String, String> options) {
+        return Topology.builder()
+                       .addComputation(SpeechToTextComputation::new,
+                               Arrays.asList(INPUT_1 + ":" + ACTION_FULL_NAME, OUTPUT_1 + ":" + STATUS_STREAM))
+                       .build();
+    }
+
+    public static class SpeechToTextComputation extends AbstractBulkComputation {
+
+        private static final Logger log = LogManager.getLogger(SpeechToTextComputation.class);
+
+        public SpeechToTextComputation() {
+            super(ACTION_FULL_NAME);
+        }
+
+        @Override
+        protected void compute(CoreSession session, List<String> ids, Map<String, Serializable> properties) {
+
+            // Same parameters for all the documents: checked once
+            String transcriptXpath;
+            String blobXpath;
+            String languageCode;
+            SpeechToTextOptions options;
+            JSONObject moreOptions;
+            try {
+                transcriptXpath = getString(properties, PARAM_TRANSCRIPT_XPATH, null);
+                if (StringUtils.isBlank(transcriptXpath)) {
+                    throw new NuxeoException("The " + PARAM_TRANSCRIPT_XPATH + " parameter is required");
+                }
+                blobXpath = getString(properties, PARAM_BLOB_XPATH, "file:content");
+                languageCode = getString(properties, PARAM_LANGUAGE_CODE, "en-US");
+                options = new SpeechToTextOptions(getBoolean(properties, PARAM_WITH_PUNCTUATION, true),
+                        getBoolean(properties, PARAM_WITH_WORD_TIME_OFFSETS, false));
+                options.setMaxSegmentSeconds(getInt(properties, PARAM_MAX_SEGMENT_SECONDS, 0));
+                moreOptions = getJSONObject(properties, PARAM_MORE_OPTIONS);
+            } catch (NuxeoException e) {
+                // Retrying would not help: all the documents are in error
+                log.error("Invalid parameters of the " + ACTION_NAME + " bulk command", e);
+                ids.forEach(id -> reportError(id, e));
+                return;
+            }
+
+            SpeechToText speechToText = Framework.getService(SpeechToText.class);
+            for (String id : ids) {
+                try {
+                    transcribe(session, speechToText, id, blobXpath, transcriptXpath, options, languageCode,
+                            moreOptions);
+                } catch (RuntimeException e) {
+                    // One failure must not stop the other documents of the batch, it is counted in the status
+                    log.error("Error transcribing document " + id, e);
+                    reportError(id, e);
+                    // The next document starts with a new transaction, this one may be marked rollback only
+                    if (TransactionHelper.isTransactionActiveOrMarkedRollback()) {
+                        TransactionHelper.setTransactionRollbackOnly();
+                        TransactionHelper.commitOrRollbackTransaction();
+                    }
+                    TransactionHelper.startTransaction();
+                }
+            }
+        }
+
+        protected void transcribe(CoreSession session, SpeechToText speechToText, String id, String blobXpath,
+                String transcriptXpath, SpeechToTextOptions options, String languageCode, JSONObject moreOptions) {
+
+            IdRef ref = new IdRef(id);
+            if (!session.exists(ref)) {
+                return;
+            }
+            Blob blob = (Blob) session.getDocument(ref).getPropertyValue(blobXpath);
+            if (blob == null) {
+                return;
+            }
+
+            // Don't hold the transaction while waiting for the provider
+            SpeechToTextResponse response;
+            TransactionHelper.commitOrRollbackTransaction();
+            try {
+                response = speechToText.run(options, blob, languageCode, moreOptions);
+            } finally {
+                TransactionHelper.startTransaction();
+            }
+
+            // The document may have changed (or been deleted) during the call
+            if (session.exists(ref)) {
+                DocumentModel doc = session.getDocument(ref);
+                doc.setPropertyValue(transcriptXpath, response.getText());
+                try (Timer.Context timer = speechToText.getMetrics().timer("save", languageCode).time()) {
+                    session.saveDocument(doc);
+                    TransactionHelper.commitOrRollbackTransaction();
+                }
+                TransactionHelper.startTransaction();
+            }
+        }
+
+        /*
+         * The errors of the command are the sum of the errors of the deltas, the message is the last one
+         */
+        protected void reportError(String id, Exception e) {
+            long errorCount = delta.getErrorCount();
+            delta.inError("Error transcribing document " + id + ": " + e.getMessage());
+            delta.setErrorCount(errorCount + 1);
+        }
+
+        protected static String getString(Map<String, Serializable> properties, String key, String defaultValue) {
+            Serializable value = properties.get(key);
+            return value == null ? defaultValue : value.toString();
+        }
+
+        protected static int getInt(Map<String, Serializable> properties, String key, int defaultValue) {
+            String value = getString(properties, key, null);
+            if (StringUtils.isBlank(value)) {
+                return defaultValue;
+            }
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                throw new NuxeoException("Invalid " + key + ": " + value, e);
+            }
+        }
+
+        protected static JSONObject getJSONObject(Map<String, Serializable> properties, String key) {
+            String value = getString(properties, key, null);
+            if (StringUtils.isBlank(value)) {
+                return null;
+            }
+            try {
+                return new JSONObject(value);
+            } catch (JSONException e) {
+                throw new NuxeoException("Invalid " + key + ": " + value, e);
+            }
+        }
+
+        protected static boolean getBoolean(Map<String, Serializable> properties, String key, boolean defaultValue) {
+            Serializable value = properties.get(key);
+            return value == null ? defaultValue : Boolean.parseBoolean(value.toString());
+        }
+    }
+
+}
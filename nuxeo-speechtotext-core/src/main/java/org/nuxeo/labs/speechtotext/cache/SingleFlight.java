@@ -0,0 +1,106 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.cache;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+/**
+ * Coalesces concurrent calls for the same key: The first caller runs the supplier, the others wait for its result
+ * and get the same value (or the same exception).
+ * <p>
+ * Nothing is kept once the call is done, this is not a cache.
+ * <p>
+ * When the first caller is interrupted (its call was cancelled), the others are not failed: one of them runs the
+ * supplier again.
+ *
+ * @since 2023.0.1
+ */
+public class SingleFlight<K, V> {
+
+    protected final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    public V execute(K key, Supplier<V> supplier) {
+
+        for (;;) {
+            CompletableFuture<V> future = new CompletableFuture<>();
+            CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+            if (existing == null) {
+                return run(key, future, supplier);
+            }
+            try {
+                return await(existing);
+            } catch (CancellationException e) {
+                // The first caller was cancelled, try again
+            }
+        }
+    }
+
+    protected V run(K key, CompletableFuture<V> future, Supplier<V> supplier) {
+
+        try {
+            V value = supplier.get();
+            future.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            if (Thread.currentThread().isInterrupted()) {
+                future.cancel(false);
+            } else {
+                future.completeExceptionally(e);
+            }
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    protected V await(CompletableFuture<V> future) {
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NuxeoException("Interrupted while waiting for the same call in another thread", e);
+        } catch (ExecutionException e) {
+            // Rethrow what the first caller got, so the waiters can handle it the same way
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new NuxeoException(cause);
+        }
+    }
+
+    /**
+     * @return the number of calls currently running
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+}
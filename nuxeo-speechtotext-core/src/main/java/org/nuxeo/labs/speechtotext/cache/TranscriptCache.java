@@ -0,0 +1,251 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextResponse;
+import org.nuxeo.labs.speechtotext.google.GoogleRESTSpeechToTextResponse;
+import org.nuxeo.labs.speechtotext.local.LocalSpeechToTextResponse;
+import org.nuxeo.labs.speechtotext.segmentation.SegmentedSpeechToTextResponse;
+import org.nuxeo.runtime.kv.KeyValueStore;
+
+/**
+ * Cache of the responses, see {@link TranscriptCacheKey} for the key.
+ * <p>
+ * Two tiers:
+ * <ul>
+ * <li>An in memory LRU map, on each node, bounded by the size of the responses: The length of their JSON (the
+ * body returned by the provider), not their number, since a transcript of a few hours weighs a thousand times one of a
+ * few seconds. A response larger than the whole tier is not held in memory.</li>
+ * <li>Optionally, a KeyValueStore, shared by the nodes of the cluster (depends on the store implementation) and
+ * surviving a restart. Only {@link GoogleRESTSpeechToTextResponse} and {@link LocalSpeechToTextResponse} are stored
+ * there: Their JSON, prefixed with their type, so they are read back as the same class. Other responses (segmented
+ * audio for example) are only cached in memory.</li>
+ * </ul>
+ *
+ * @since 2023.0.1
+ */
+public class TranscriptCache {
+
+    private static final Logger log = LogManager.getLogger(TranscriptCache.class);
+
+    protected static final String KV_PREFIX = "speechtotext:";
+
+    // Type of the response, before its JSON in the KeyValueStore. Entries without type are Google responses
+    protected static final String GOOGLE_TYPE = "google:";
+
+    protected static final String LOCAL_TYPE = "local:";
+
+    protected final Map<String, Weighted> memory = new LinkedHashMap<>(16, 0.75f, true);
+
+    protected final long maxMemorySize;
+
+    protected long memorySize = 0;
+
+    protected final KeyValueStore keyValueStore;
+
+    protected final long ttlSeconds;
+
+    protected long hits = 0;
+
+    protected long misses = 0;
+
+    /**
+     * @param maxMemorySize of the in memory tier, in characters of JSON (see {@link #weigh}), 0 disables it
+     * @param keyValueStore the persistent tier, can be null
+     * @param ttlSeconds time to live of the entries in the persistent tier
+     */
+    public TranscriptCache(long maxMemorySize, KeyValueStore keyValueStore, long ttlSeconds) {
+        super();
+        this.maxMemorySize = maxMemorySize;
+        this.keyValueStore = keyValueStore;
+        this.ttlSeconds = ttlSeconds;
+    }
+
+    /**
+     * @return the cached response, null if not found
+     */
+    public SpeechToTextResponse get(String key) {
+
+        SpeechToTextResponse response = null;
+        synchronized (memory) {
+            Weighted weighted = memory.get(key);
+            if (weighted != null) {
+                response = weighted.response;
+            }
+        }
+
+        if (response == null && keyValueStore != null) {
+            String value = keyValueStore.getString(KV_PREFIX + key);
+            if (value != null) {
+                try {
+                    response = fromStoredValue(value);
+                    putInMemory(key, response, value.length());
+                } catch (JSONException e) {
+                    log.warn("Ignoring invalid cached response for " + key, e);
+                }
+            }
+        }
+
+        synchronized (memory) {
+            if (response == null) {
+                misses++;
+            } else {
+                hits++;
+            }
+        }
+
+        return response;
+    }
+
+    public void put(String key, SpeechToTextResponse response) {
+
+        if (response == null) {
+            return;
+        }
+
+        String value = toStoredValue(response);
+        putInMemory(key, response, value == null ? weigh(response) : value.length());
+
+        if (keyValueStore != null && value != null) {
+            keyValueStore.put(KV_PREFIX + key, value, ttlSeconds);
+        }
+    }
+
+    /**
+     * @return the size of the response in memory, estimated from the length of its JSON
+     */
+    protected long weigh(SpeechToTextResponse response) {
+
+        String value = toStoredValue(response);
+        if (value != null) {
+            return value.length();
+        }
+        if (response instanceof SegmentedSpeechToTextResponse) {
+            long weight = 0;
+            SegmentedSpeechToTextResponse segmented = (SegmentedSpeechToTextResponse) response;
+            for (SpeechToTextResponse segmentResponse : segmented.getSegmentResponses()) {
+                weight += weigh(segmentResponse);
+            }
+            return weight;
+        }
+        String text = response.getText();
+        return text == null ? 0 : text.length();
+    }
+
+    /*
+     * null if the response cannot be stored
+     */
+    protected String toStoredValue(SpeechToTextResponse response) {
+
+        if (response instanceof GoogleRESTSpeechToTextResponse) {
+            // Avoid parsing the response just to write it back
+            return GOOGLE_TYPE + ((GoogleRESTSpeechToTextResponse) response).getJSONString();
+        }
+        if (response instanceof LocalSpeechToTextResponse && response.getNativeResponse() != null) {
+            return LOCAL_TYPE + response.getNativeResponse().toString();
+        }
+        return null;
+    }
+
+    protected SpeechToTextResponse fromStoredValue(String value) throws JSONException {
+
+        if (value.startsWith(LOCAL_TYPE)) {
+            return LocalSpeechToTextResponse.fromNativeResponse(new JSONObject(value.substring(LOCAL_TYPE.length())));
+        }
+        if (value.startsWith(GOOGLE_TYPE)) {
+            return new GoogleRESTSpeechToTextResponse(value.substring(GOOGLE_TYPE.length()));
+        }
+        return new GoogleRESTSpeechToTextResponse(value);
+    }
+
+    protected void putInMemory(String key, SpeechToTextResponse response, long weight) {
+        synchronized (memory) {
+            Weighted previous = memory.remove(key);
+            if (previous != null) {
+                memorySize -= previous.weight;
+            }
+            if (weight > maxMemorySize) {
+                return;
+            }
+            memory.put(key, new Weighted(response, weight));
+            memorySize += weight;
+            // Least recently used first
+            Iterator<Weighted> it = memory.values().iterator();
+            while (memorySize > maxMemorySize) {
+                memorySize -= it.next().weight;
+                it.remove();
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (memory) {
+            memory.clear();
+            memorySize = 0;
+        }
+    }
+
+    public int size() {
+        synchronized (memory) {
+            return memory.size();
+        }
+    }
+
+    /**
+     * @return the size of the responses held in memory, in characters of JSON
+     */
+    public long getMemorySize() {
+        synchronized (memory) {
+            return memorySize;
+        }
+    }
+
+    public long getHits() {
+        synchronized (memory) {
+            return hits;
+        }
+    }
+
+    public long getMisses() {
+        synchronized (memory) {
+            return misses;
+        }
+    }
+
+    protected static class Weighted {
+
+        protected final SpeechToTextResponse response;
+
+        protected final long weight;
+
+        protected Weighted(SpeechToTextResponse response, long weight) {
+            this.response = response;
+            this.weight = weight;
+        }
+    }
+
+}
@@ -0,0 +1,130 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.cache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextOptions;
+
+/**
+ * Builds the key of a transcript in the cache: The digest of the audio, plus a hash of everything that changes the
+ * result (options, language, encoding, sample rate and <code>moreOptions</code>).
+ * <p>
+ * <code>moreOptions</code> is canonicalized (keys sorted, recursively), so the same options in a different order give
+ * the same key.
+ * <p>
+ * The provider is not part of the key: The cache is read before a provider is selected (see ProviderRouter), so the
+ * providers share the entries, and a transcript is returned whichever provider made it.
+ *
+ * @since 2023.0.1
+ */
+public class TranscriptCacheKey {
+
+    private TranscriptCacheKey() {
+    }
+
+    public static String compute(Blob blob, SpeechToTextOptions options, String audioEncoding, int sampleRateHertz,
+            String languageCode, JSONObject moreOptions) {
+
+        if (options == null) {
+            options = SpeechToTextOptions.buildDefaultOptions();
+        }
+
+        StringBuilder config = new StringBuilder();
+        config.append("punctuation=").append(options.isWithPunctuation());
+        config.append("|wordTimeOffsets=").append(options.isWithWordTimeOffsets());
+        config.append("|speakers=").append(options.isWithDetectSpeakers());
+        config.append("|maxSegmentSeconds=").append(options.getMaxSegmentSeconds());
+        config.append("|language=").append(languageCode);
+        config.append("|encoding=").append(audioEncoding);
+        config.append("|sampleRateHertz=").append(sampleRateHertz);
+        config.append("|moreOptions=");
+        try {
+            appendCanonical(config, moreOptions);
+        } catch (JSONException e) {
+            throw new NuxeoException("Cannot read moreOptions", e);
+        }
+
+        return getBlobDigest(blob) + ":" + DigestUtils.sha256Hex(config.toString());
+    }
+
+    /*
+     * Blobs stored in the repository already have a digest of their content. Others are hashed.
+     */
+    protected static String getBlobDigest(Blob blob) {
+
+        String digest = blob.getDigest();
+        if (StringUtils.isNotBlank(digest)) {
+            String algorithm = blob.getDigestAlgorithm();
+            return StringUtils.isBlank(algorithm) ? digest : algorithm + "-" + digest;
+        }
+
+        try (InputStream in = blob.getStream()) {
+            return "SHA-256-" + DigestUtils.sha256Hex(in);
+        } catch (IOException e) {
+            throw new NuxeoException("Cannot compute the digest of the blob", e);
+        }
+    }
+
+    protected static void appendCanonical(StringBuilder sb, Object value) throws JSONException {
+
+        if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            List<String> keys = new ArrayList<>();
+            @SuppressWarnings("unchecked")
+            Iterator<String> it = object.keys();
+            while (it.hasNext()) {
+                keys.add(it.next());
+            }
+            Collections.sort(keys);
+            sb.append('{');
+            for (String key : keys) {
+                sb.append(JSONObject.quote(key)).append(':');
+                appendCanonical(sb, object.get(key));
+                sb.append(',');
+            }
+            sb.append('}');
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            sb.append('[');
+            for (int i = 0; i < array.length(); i++) {
+                appendCanonical(sb, array.get(i));
+                sb.append(',');
+            }
+            sb.append(']');
+        } else if (value instanceof String) {
+            sb.append(JSONObject.quote((String) value));
+        } else {
+            sb.append(value);
+        }
+    }
+
+}
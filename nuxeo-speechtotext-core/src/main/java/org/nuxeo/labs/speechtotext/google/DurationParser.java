@@ -0,0 +1,80 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.google;
+
+/**
+ * Parses a <code>com.google.protobuf.Duration</code> as returned in JSON ("3.5s", "5.050006765s") to seconds, keeping
+ * max 3 digits (truncated, "5.050006765s" => 5.05).
+ *
+ * @since 2023.0.1
+ */
+public class DurationParser {
+
+    private DurationParser() {
+    }
+
+    public static double parse(String value) {
+        return value == null ? 0.0 : parse(value.toCharArray(), 0, value.length());
+    }
+
+    /**
+     * Parses a range of chars, as returned by a streaming JSON parser
+     */
+    public static double parse(char[] chars, int offset, int length) {
+
+        long millis = 0;
+        int fractionDigits = -1;
+        boolean negative = false;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            char c = chars[i];
+            if (c >= '0' && c <= '9') {
+                // Digits after the 3rd fractional one are ignored
+                if (fractionDigits < 3) {
+                    millis = millis * 10 + (c - '0');
+                    if (fractionDigits >= 0) {
+                        fractionDigits++;
+                    }
+                }
+            } else if (c == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else if (c == '-' && i == offset) {
+                negative = true;
+            } else if (c != ' ') {
+                // Final "s"
+                break;
+            }
+        }
+
+        return toSeconds(millis, fractionDigits, negative);
+    }
+
+    /*
+     * Dividing the exact number of milliseconds gives the same double as Double.parseDouble("5.050")
+     */
+    protected static double toSeconds(long value, int fractionDigits, boolean negative) {
+
+        for (int i = Math.max(fractionDigits, 0); i < 3; i++) {
+            value *= 10;
+        }
+        double seconds = value / 1000.0;
+        return negative ? -seconds : seconds;
+    }
+
+}
@@ -0,0 +1,144 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.google;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextJob;
+import org.nuxeo.labs.speechtotext.impl.NamedThreadFactory;
+
+/**
+ * Polls the pending long running operations.
+ * <p>
+ * All the pending operations share the same few threads: Each poll is a short GET, and the next one is scheduled
+ * only once it is done. Nothing is blocked while waiting for the provider.
+ * <p>
+ * See https://cloud.google.com/speech-to-text/docs/reference/rest/v1p1beta1/operations for the format of an
+ * operation.
+ *
+ * @since 2023.0.1
+ */
+public class GoogleOperationPoller {
+
+    private static final Logger log = LogManager.getLogger(GoogleOperationPoller.class);
+
+    protected final ScheduledExecutorService scheduler;
+
+    protected final long pollIntervalMs;
+
+    protected final long timeoutMs;
+
+    // Gets the operation (as JSON) from its name
+    protected final Function<String, JSONObject> operationFetcher;
+
+    protected final Set<SpeechToTextJob> pending = ConcurrentHashMap.newKeySet();
+
+    public GoogleOperationPoller(int threads, long pollIntervalMs, long timeoutMs,
+            Function<String, JSONObject> operationFetcher) {
+        super();
+        this.pollIntervalMs = pollIntervalMs;
+        this.timeoutMs = timeoutMs;
+        this.operationFetcher = operationFetcher;
+        scheduler = Executors.newScheduledThreadPool(threads, new NamedThreadFactory("speechtotext-poller"));
+    }
+
+    public void watch(SpeechToTextJob job) {
+
+        pending.add(job);
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        schedulePoll(job, deadline);
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    protected void schedulePoll(SpeechToTextJob job, long deadline) {
+        try {
+            scheduler.schedule(() -> poll(job, deadline), pollIntervalMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            complete(job, null, new NuxeoException("Speech to text service stopped before the end of " + job.getId()));
+        }
+    }
+
+    protected void poll(SpeechToTextJob job, long deadline) {
+
+        // Cancelled by the caller
+        if (job.isDone()) {
+            pending.remove(job);
+            return;
+        }
+
+        try {
+            JSONObject operation = operationFetcher.apply(job.getId());
+            if (operation.optBoolean("done", false)) {
+                if (operation.has("error")) {
+                    JSONObject error = operation.getJSONObject("error");
+                    complete(job, null, new NuxeoException("Long running recognition " + job.getId() + " failed: "
+                            + error.optString("message", error.toString())));
+                } else {
+                    // "response" has the same "results" as a synchronous recognize
+                    JSONObject response = operation.optJSONObject("response");
+                    String responseStr = response == null ? "{\"results\": []}" : response.toString();
+                    complete(job, new GoogleRESTSpeechToTextResponse(responseStr), null);
+                }
+                return;
+            }
+        } catch (NuxeoException | JSONException e) {
+            // Polling is retried until the deadline, a failure can be temporary
+            log.warn("Error polling long running recognition " + job.getId(), e);
+        }
+
+        if (System.currentTimeMillis() > deadline) {
+            complete(job, null, new NuxeoException("Timeout waiting for long running recognition " + job.getId()));
+        } else {
+            schedulePoll(job, deadline);
+        }
+    }
+
+    protected void complete(SpeechToTextJob job, GoogleRESTSpeechToTextResponse response, Throwable error) {
+
+        pending.remove(job);
+        if (error != null) {
+            job.getResult().completeExceptionally(error);
+        } else {
+            job.getResult().complete(response);
+        }
+    }
+
+    public void shutdown() {
+
+        scheduler.shutdownNow();
+        for (SpeechToTextJob job : pending) {
+            complete(job, null, new NuxeoException("Speech to text service stopped before the end of " + job.getId()));
+        }
+    }
+
+}
@@ -18,12 +18,27 @@
  */
 package org.nuxeo.labs.speechtotext.google;
 
-import org.apache.commons.lang3.StringUtils;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.nuxeo.ecm.core.api.NuxeoException;
 import org.nuxeo.labs.speechtotext.api.SpeechToTextResponse;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextSegment;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextWord;
+import org.nuxeo.labs.speechtotext.api.WordTimings;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import io.dropwizard.metrics5.Timer;
 
 /**
  * Encapsulate the response received after a call to <code>recognize</code> via REST. <br>
@@ -60,27 +75,37 @@ import org.nuxeo.labs.speechtotext.api.SpeechToTextResponse;
  *  }
  * </pre>
  * 
- * Google doc says there is always at least one alternative.
+ * Google doc says there is always at least one alternative in a result. There is no result when no speech is
+ * recognized (silence, noise): The text is then empty, the confidence is -1 and there is no word.
  * <p>
  * If an error occured during the call, the response object contains the error in the "transcript" field for first
  * alternative.
+ * <p>
+ * The response is kept as received and read with a streaming parser, only when needed: getText() and getConfidence()
+ * stop reading after the first alternative, the words are read one at a time by getWordIterator(), and the results one
+ * at a time by getSegmentIterator(). The JSON object returned by getNativeResponse() is built only if it is called.
  * 
  * @since 10.2
  */
 public class GoogleRESTSpeechToTextResponse implements SpeechToTextResponse {
 
+    protected static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    protected String httpResponse;
+
     protected JSONObject jsonResponse = null;
 
     protected String cachedText = null;
 
     protected Double cachedConfidence = null;
 
+    protected volatile Timer parseTimer;
+
+    /*
+     * The constructor does not parse the response anymore, JSONException is kept for compatibility
+     */
     public GoogleRESTSpeechToTextResponse(String httpResponse) throws JSONException {
-        try {
-            jsonResponse = new JSONObject(httpResponse);
-        } catch (JSONException e) {
-            buildErrorResponse(e);
-        }
+        this.httpResponse = httpResponse;
     }
 
     /*
@@ -115,133 +140,544 @@ public class GoogleRESTSpeechToTextResponse implements SpeechToTextResponse {
         results.put(firstResult);
         jsonResponse.put("results", results);
 
+        httpResponse = jsonResponse.toString();
     }
 
-    protected JSONObject getFirstAlternative() throws JSONException {
-
-        JSONObject alternative = null;
+    /*
+     * An invalid response is replaced by the error response, as when it was parsed in the constructor
+     */
+    protected synchronized void handleInvalidResponse(JsonParseException e) {
+        try {
+            buildErrorResponse(e);
+        } catch (JSONException e1) {
+            throw new NuxeoException("Cannot build the error response", e1);
+        }
+    }
 
-        JSONArray results = jsonResponse.getJSONArray("results");
-        JSONObject firstResult = results.getJSONObject(0);
-        JSONArray alternatives = firstResult.getJSONArray("alternatives");
-        alternative = alternatives.getJSONObject(0);
+    /**
+     * @return the response, as received from Google
+     * @since 2023.0.1
+     */
+    public synchronized String getJSONString() {
+        return httpResponse;
+    }
 
-        return alternative;
+    protected JsonParser createParser() throws IOException {
+        return JSON_FACTORY.createParser(getJSONString());
     }
 
-    protected JSONObject getSecondAlternative() throws JSONException {
+    /*
+     * Moves the parser to the start of the first alternative of results[resultIndex]
+     */
+    protected static boolean moveToAlternative(JsonParser parser, int resultIndex) throws IOException {
+
+        return parser.nextToken() == JsonToken.START_OBJECT //
+                && moveToField(parser, "results") && parser.nextToken() == JsonToken.START_ARRAY //
+                && moveToArrayElement(parser, resultIndex) && parser.currentToken() == JsonToken.START_OBJECT //
+                && moveToField(parser, "alternatives") && parser.nextToken() == JsonToken.START_ARRAY //
+                && parser.nextToken() == JsonToken.START_OBJECT;
+    }
 
-        JSONObject alternative = null;
+    /*
+     * The parser is on the START_OBJECT or on a value of an object. Skips the other fields until it is on the name of
+     * the field
+     */
+    protected static boolean moveToField(JsonParser parser, String name) throws IOException {
 
-        JSONArray results = jsonResponse.getJSONArray("results");
-        if(results != null && results.length() > 1) {
-            JSONObject secondResult = results.getJSONObject(1);
-            if(secondResult != null) {
-                JSONArray alternatives = secondResult.getJSONArray("alternatives");
-                alternative = alternatives.getJSONObject(0);
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            if (name.equals(parser.currentName())) {
+                return true;
             }
+            parser.nextToken();
+            parser.skipChildren();
         }
-        return alternative;
+        return false;
     }
 
-    protected double parseDuration(String secondsStr) {
-
-        double result = 0.0;
+    /*
+     * The parser is on the START_ARRAY, skips the elements before index
+     */
+    protected static boolean moveToArrayElement(JsonParser parser, int index) throws IOException {
 
-        if (StringUtils.isNotBlank(secondsStr)) {
-            // Remove the final "s"
-            int pos = secondsStr.indexOf("s");
-            if (pos > -1) {
-                secondsStr = secondsStr.substring(0, pos);
+        for (int i = 0;; i++) {
+            JsonToken token = parser.nextToken();
+            if (token == null || token == JsonToken.END_ARRAY) {
+                return false;
             }
+            if (i == index) {
+                return true;
+            }
+            parser.skipChildren();
+        }
+    }
+
+    /**
+     * The first read of the response (getText(), getConfidence()) is recorded by this timer.
+     *
+     * @since 2023.0.1
+     */
+    public void setParseTimer(Timer timer) {
+        parseTimer = timer;
+    }
 
-            pos = secondsStr.indexOf(".");
-            if (pos > -1 && secondsStr.length() > (pos + 4)) {
-                secondsStr = secondsStr.substring(0, pos + 4);
+    /*
+     * Reads transcript and confidence of the first alternative, stops as soon as both are found
+     */
+    protected void readFirstAlternative() {
+
+        Timer timer = parseTimer;
+        parseTimer = null;
+        if (timer == null) {
+            readFirstAlternativeUntimed();
+        } else {
+            try (Timer.Context context = timer.time()) {
+                readFirstAlternativeUntimed();
             }
+        }
+    }
 
-            result = Double.parseDouble(secondsStr);
+    protected void readFirstAlternativeUntimed() {
+
+        String text = null;
+        Double confidence = null;
+        try (JsonParser parser = createParser()) {
+            if (moveToAlternative(parser, 0)) {
+                while ((text == null || confidence == null) && parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.currentName();
+                    JsonToken value = parser.nextToken();
+                    if ("transcript".equals(name) && value == JsonToken.VALUE_STRING) {
+                        text = parser.getText();
+                    } else if ("confidence".equals(name) && value.isNumeric()) {
+                        confidence = parser.getDoubleValue();
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            }
+        } catch (JsonParseException e) {
+            handleInvalidResponse(e);
+            readFirstAlternativeUntimed();
+            return;
+        } catch (IOException e) {
+            throw new NuxeoException("Cannot read the first alternative", e);
         }
 
-        return result;
+        // No results when no speech was recognized (silence, noise), a valid empty transcript
+        cachedText = text == null ? "" : text;
+        cachedConfidence = confidence == null ? -1 : confidence;
+    }
+
+    protected double parseDuration(String secondsStr) {
+        return DurationParser.parse(secondsStr);
     }
 
     /*
-     * In this implementation, we get the first result and its first alternative.
+     * In this implementation, we get the first result and its first alternative. Empty if there is no result.
      */
     @Override
     public String getText() {
 
         if (cachedText == null) {
-            try {
-                JSONObject alternative = getFirstAlternative();
-                cachedText = alternative.getString("transcript");
-            } catch (JSONException e) {
-                throw new NuxeoException("Cannot get the first alternative to read its transcript", e);
-            }
+            readFirstAlternative();
         }
         return cachedText;
     }
 
+    /*
+     * -1 if there is no result, or if Google did not return a confidence
+     */
     @Override
     public double getConfidence() {
 
         if (cachedConfidence == null) {
-            try {
-                JSONObject alternative = getFirstAlternative();
-                cachedConfidence = alternative.getDouble("confidence");
-            } catch (JSONException e) {
-                throw new NuxeoException("Cannot get the first alternative to read its confidence", e);
-            }
-        }
-        if (cachedConfidence == null) {
-            return -1;
+            readFirstAlternative();
         }
         return cachedConfidence.doubleValue();
     }
 
     /*
      * Here, we convert to a JSON Array with Double values instead of String for the offsets.
-     * It can be big, we don't cache it.
+     * It can be big, we don't cache it. Use getWordIterator() to avoid building it.
      */
     @Override
     public JSONArray getWordTimeOffsets(boolean withSpeakerTag) throws JSONException {
 
         JSONArray array = new JSONArray();
 
-        JSONObject alternative = getFirstAlternative();
-        JSONArray resultWords = alternative.getJSONArray("words");
-        // Speaker can be in the second alternative.
-        if(resultWords != null && withSpeakerTag) {
-            JSONObject oneResultWord = resultWords.getJSONObject(0);
-            if(!oneResultWord.has("speakerTag")) {
-                alternative = getSecondAlternative();
-                resultWords = alternative.getJSONArray("words");
-            }
-        }
-        if (resultWords != null) {
-            JSONObject oneResultWord;
-            int max = resultWords.length();
-            for (int i = 0; i < max; i++) {
-                oneResultWord = resultWords.getJSONObject(i);
-                JSONObject obj = new JSONObject();
-                obj.put("word", oneResultWord.getString("word"));
-                obj.put("start", parseDuration(oneResultWord.getString("startTime")));
-                obj.put("end", parseDuration(oneResultWord.getString("endTime")));
-                if(withSpeakerTag) {
-                    obj.put("speakerTag", oneResultWord.optInt("speakerTag", 0));
+        Iterator<SpeechToTextWord> words = getWordIterator(withSpeakerTag);
+        while (words.hasNext()) {
+            SpeechToTextWord word = words.next();
+            JSONObject obj = new JSONObject();
+            obj.put("word", word.getWord());
+            obj.put("start", word.getStart());
+            obj.put("end", word.getEnd());
+            if (withSpeakerTag) {
+                obj.put("speakerTag", word.getSpeakerTag());
+            }
+            array.put(obj);
+        }
+
+        return array;
+    }
+
+    /*
+     * The words of the first alternative of the first result. Speaker can be in the second result: If the first word
+     * has no speaker tag, the words are read from there.
+     */
+    @Override
+    public Iterator<SpeechToTextWord> getWordIterator(boolean withSpeakerTag) {
+
+        try {
+            WordIterator words = new WordIterator(0);
+            if (withSpeakerTag && words.hasNext() && !words.hasSpeakerTag()) {
+                WordIterator secondResultWords = new WordIterator(1);
+                if (secondResultWords.hasNext()) {
+                    words.close();
+                    words = secondResultWords;
                 }
+            }
+            return words;
+        } catch (JsonParseException e) {
+            handleInvalidResponse(e);
+            return getWordIterator(withSpeakerTag);
+        } catch (IOException e) {
+            throw new NuxeoException("Cannot read the words of the transcript", e);
+        }
+    }
 
-                array.put(obj);
+    /*
+     * All the results, read as they are iterated
+     */
+    @Override
+    public Iterator<SpeechToTextSegment> getSegmentIterator() {
+
+        SegmentIterator segments = null;
+        try {
+            segments = new SegmentIterator();
+            // Reads the first one, to handle an invalid response as getText() does
+            segments.readAhead();
+            return segments;
+        } catch (JsonParseException e) {
+            if (segments != null) {
+                segments.close();
             }
+            handleInvalidResponse(e);
+            return getSegmentIterator();
+        } catch (IOException e) {
+            throw new NuxeoException("Cannot read the results of the transcript", e);
         }
+    }
 
-        return array;
+    /*
+     * Filled directly from the parser, without a SpeechToTextWord per word
+     */
+    @Override
+    public WordTimings getWordTimings(boolean withSpeakerTag) {
+
+        WordTimings.Builder builder = new WordTimings.Builder();
+        WordIterator words = (WordIterator) getWordIterator(withSpeakerTag);
+        while (words.hasNext()) {
+            words.addNextTo(builder);
+        }
+        return builder.build();
     }
 
+    /*
+     * Lazily built, most callers only need the text
+     */
     @Override
-    public Object getNativeResponse() {
+    public synchronized Object getNativeResponse() {
+
+        if (jsonResponse == null) {
+            try {
+                try {
+                    jsonResponse = new JSONObject(httpResponse);
+                } catch (JSONException e) {
+                    buildErrorResponse(e);
+                }
+            } catch (JSONException e) {
+                throw new NuxeoException("Cannot build the error response", e);
+            }
+        }
         return jsonResponse;
     }
 
+    /*
+     * Reads one word ahead: The next word is parsed by hasNext()
+     */
+    protected class WordIterator implements Iterator<SpeechToTextWord>, AutoCloseable {
+
+        protected final JsonParser parser;
+
+        protected boolean done;
+
+        // The word read by hasNext(), not returned yet
+        protected boolean pending;
+
+        protected String word;
+
+        protected double start;
+
+        protected double end;
+
+        protected double confidence;
+
+        protected int speakerTag;
+
+        protected boolean hasSpeakerTag;
+
+        // False when reading the words of a SegmentIterator, which closes the parser
+        protected final boolean ownParser;
+
+        protected WordIterator(int resultIndex) throws IOException {
+            parser = createParser();
+            ownParser = true;
+            done = !(moveToAlternative(parser, resultIndex) && moveToField(parser, "words")
+                    && parser.nextToken() == JsonToken.START_ARRAY);
+            if (done) {
+                parser.close();
+            }
+        }
+
+        /*
+         * The parser is on the START_ARRAY of the words, and is left on its END_ARRAY
+         */
+        protected WordIterator(JsonParser parser) {
+            this.parser = parser;
+            ownParser = false;
+        }
+
+        protected boolean hasSpeakerTag() {
+            return hasSpeakerTag;
+        }
+
+        @Override
+        public boolean hasNext() {
+
+            if (pending) {
+                return true;
+            }
+            if (done) {
+                return false;
+            }
+            try {
+                if (parser.nextToken() == JsonToken.START_OBJECT) {
+                    readWord();
+                    pending = true;
+                } else {
+                    close();
+                }
+            } catch (IOException e) {
+                close();
+                throw new NuxeoException("Cannot read the words of the transcript", e);
+            }
+            return pending;
+        }
+
+        @Override
+        public SpeechToTextWord next() {
+
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            pending = false;
+            return new SpeechToTextWord(word, start, end, confidence, speakerTag);
+        }
+
+        protected void addNextTo(WordTimings.Builder builder) {
+
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            pending = false;
+            builder.add(word, start, end, confidence, speakerTag);
+        }
+
+        protected void readWord() throws IOException {
+
+            word = null;
+            start = 0;
+            end = 0;
+            confidence = -1;
+            speakerTag = 0;
+            hasSpeakerTag = false;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.currentName();
+                parser.nextToken();
+                switch (name) {
+                case "word":
+                    word = parser.getText();
+                    break;
+                case "startTime":
+                    start = DurationParser.parse(parser.getTextCharacters(), parser.getTextOffset(),
+                            parser.getTextLength());
+                    break;
+                case "endTime":
+                    end = DurationParser.parse(parser.getTextCharacters(), parser.getTextOffset(),
+                            parser.getTextLength());
+                    break;
+                case "confidence":
+                    confidence = parser.getValueAsDouble(-1);
+                    break;
+                case "speakerTag":
+                    speakerTag = parser.getValueAsInt(0);
+                    hasSpeakerTag = true;
+                    break;
+                default:
+                    parser.skipChildren();
+                }
+            }
+            if (word == null) {
+                throw new NuxeoException("Missing word in the words of the transcript");
+            }
+        }
+
+        @Override
+        public void close() {
+            done = true;
+            if (ownParser) {
+                try {
+                    parser.close();
+                } catch (IOException e) {
+                    // Nothing to release, the parser reads a String
+                }
+            }
+        }
+    }
+
+    /*
+     * Reads one result ahead. A result without transcript is skipped: When asked for the speakers, Google adds a last
+     * result with all the words again, and their speaker tag (see getWordIterator(true)).
+     */
+    protected class SegmentIterator implements Iterator<SpeechToTextSegment>, AutoCloseable {
+
+        protected final JsonParser parser;
+
+        protected boolean done;
+
+        // The segment read by hasNext(), not returned yet
+        protected SpeechToTextSegment pending;
+
+        protected int index;
+
+        protected double previousEnd;
+
+        protected SegmentIterator() throws IOException {
+            parser = createParser();
+            done = !(parser.nextToken() == JsonToken.START_OBJECT && moveToField(parser, "results")
+                    && parser.nextToken() == JsonToken.START_ARRAY);
+            if (done) {
+                parser.close();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+
+            try {
+                return readAhead();
+            } catch (IOException e) {
+                close();
+                throw new NuxeoException("Cannot read the results of the transcript", e);
+            }
+        }
+
+        protected boolean readAhead() throws IOException {
+
+            while (pending == null && !done) {
+                if (parser.nextToken() == JsonToken.START_OBJECT) {
+                    pending = readResult();
+                } else {
+                    close();
+                }
+            }
+            return pending != null;
+        }
+
+        @Override
+        public SpeechToTextSegment next() {
+
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            SpeechToTextSegment segment = pending;
+            pending = null;
+            return segment;
+        }
+
+        /*
+         * The parser is on the START_OBJECT of the result, and is left on its END_OBJECT. Only the first alternative
+         * is read.
+         */
+        protected SpeechToTextSegment readResult() throws IOException {
+
+            String text = null;
+            double confidence = -1;
+            List<SpeechToTextWord> words = new ArrayList<>();
+            double end = -1;
+            String languageCode = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.currentName();
+                JsonToken value = parser.nextToken();
+                switch (name) {
+                case "alternatives":
+                    if (value != JsonToken.START_ARRAY) {
+                        parser.skipChildren();
+                        break;
+                    }
+                    if (parser.nextToken() == JsonToken.START_OBJECT) {
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            String alternativeField = parser.currentName();
+                            JsonToken alternativeValue = parser.nextToken();
+                            if ("transcript".equals(alternativeField) && alternativeValue == JsonToken.VALUE_STRING) {
+                                text = parser.getText();
+                            } else if ("confidence".equals(alternativeField) && alternativeValue.isNumeric()) {
+                                confidence = parser.getDoubleValue();
+                            } else if ("words".equals(alternativeField)
+                                    && alternativeValue == JsonToken.START_ARRAY) {
+                                new WordIterator(parser).forEachRemaining(words::add);
+                            } else {
+                                parser.skipChildren();
+                            }
+                        }
+                        // The other alternatives
+                        while (parser.nextToken() != JsonToken.END_ARRAY) {
+                            parser.skipChildren();
+                        }
+                    }
+                    break;
+                case "resultEndTime":
+                    end = DurationParser.parse(parser.getText());
+                    break;
+                case "languageCode":
+                    languageCode = parser.getText();
+                    break;
+                default:
+                    parser.skipChildren();
+                }
+            }
+
+            if (text == null) {
+                return null;
+            }
+            if (end < 0) {
+                end = words.isEmpty() ? previousEnd : words.get(words.size() - 1).getEnd();
+            }
+            // Results follow each other
+            double start = previousEnd;
+            previousEnd = end;
+            return new SpeechToTextSegment(index++, text, confidence, start, end, languageCode, words);
+        }
+
+        @Override
+        public void close() {
+            done = true;
+            try {
+                parser.close();
+            } catch (IOException e) {
+                // Nothing to release, the parser reads a String
+            }
+        }
+    }
+
 }
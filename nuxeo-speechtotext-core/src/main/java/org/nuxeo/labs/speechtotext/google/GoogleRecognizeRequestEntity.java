@@ -0,0 +1,200 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.google;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+
+import org.apache.commons.codec.binary.Base64InputStream;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.json.JSONObject;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.labs.speechtotext.audio.AudioReadException;
+import org.nuxeo.labs.speechtotext.audio.FFmpegPipeBlob;
+
+/**
+ * Body of a <code>recognize</code> (or <code>longrunningrecognize</code>) call, written directly to the connection.
+ * <p>
+ * The JSON envelope is written around the audio, and the audio is Base64-encoded on the fly, chunk by chunk, from the
+ * blob's stream. So, whatever the size of the file, we never hold the bytes, the Base64 string or the JSON body in
+ * memory:
+ *
+ * <pre>
+ * {"config":{...},"audio":{"content":"...Base64..."}}
+ * </pre>
+ *
+ * The entity is repeatable as long as the blob can be read several times, which is the case for Nuxeo blobs, not for a
+ * conversion streamed from ffmpeg, read only once (see {@link FFmpegPipeBlob}).
+ * <p>
+ * A {@link WriteListener} gets, for each write, the time spent reading the audio, encoding it and sending it.
+ *
+ * @since 2023.0.1
+ */
+public class GoogleRecognizeRequestEntity extends AbstractHttpEntity {
+
+    protected static final int BUFFER_SIZE = 48 * 1024;
+
+    /**
+     * @since 2023.0.1
+     */
+    @FunctionalInterface
+    public interface WriteListener {
+        void written(long bytes, long readNanos, long encodeNanos, long uploadNanos);
+    }
+
+    protected WriteListener writeListener;
+
+    protected final Blob blob;
+
+    protected final byte[] prefix;
+
+    protected final byte[] suffix;
+
+    public GoogleRecognizeRequestEntity(JSONObject config, Blob blob) {
+        super();
+        this.blob = blob;
+        prefix = ("{\"config\":" + config.toString() + ",\"audio\":{\"content\":\"").getBytes(StandardCharsets.UTF_8);
+        suffix = "\"}}".getBytes(StandardCharsets.UTF_8);
+        setContentType(ContentType.APPLICATION_JSON.toString());
+    }
+
+    public void setWriteListener(WriteListener listener) {
+        writeListener = listener;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return !(blob instanceof FFmpegPipeBlob);
+    }
+
+    /*
+     * Base64 length is known in advance, so we can send a Content-Length instead of chunks when the blob knows its
+     * size.
+     */
+    @Override
+    public long getContentLength() {
+
+        long blobLength = blob.getLength();
+        if (blobLength < 0) {
+            return -1;
+        }
+
+        return prefix.length + 4 * ((blobLength + 2) / 3) + suffix.length;
+    }
+
+    /*
+     * Same bytes as writeTo(), for the interceptors and the wire logging. The calls to the provider use writeTo()
+     */
+    @Override
+    public InputStream getContent() throws IOException {
+
+        InputStream base64In = new Base64InputStream(blob.getStream(), true, 0, null);
+        return new SequenceInputStream(Collections.enumeration(Arrays.asList(new ByteArrayInputStream(prefix),
+                base64In, new ByteArrayInputStream(suffix))));
+    }
+
+    @Override
+    public void writeTo(OutputStream outStream) throws IOException {
+
+        long start = System.nanoTime();
+        long readNanos = 0;
+        TimedOutputStream timedOut = new TimedOutputStream(outStream);
+        timedOut.write(prefix);
+
+        // Closing the encoder writes the final padding, but must not close the connection's stream
+        try (InputStream in = AudioReadException.getStream(blob);
+                OutputStream base64Out = Base64.getEncoder().wrap(CloseShieldOutputStream.wrap(timedOut))) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            long beforeRead = System.nanoTime();
+            while ((count = in.read(buffer)) != -1) {
+                readNanos += System.nanoTime() - beforeRead;
+                base64Out.write(buffer, 0, count);
+                beforeRead = System.nanoTime();
+            }
+        }
+
+        timedOut.write(suffix);
+        timedOut.flush();
+
+        if (writeListener != null) {
+            long total = System.nanoTime() - start;
+            writeListener.written(timedOut.bytes, readNanos, total - readNanos - timedOut.nanos, timedOut.nanos);
+        }
+    }
+
+    /*
+     * Counts the bytes written to the connection, and the time spent writing them
+     */
+    protected static class TimedOutputStream extends OutputStream {
+
+        protected final OutputStream out;
+
+        protected long bytes = 0;
+
+        protected long nanos = 0;
+
+        protected TimedOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            long start = System.nanoTime();
+            out.write(b);
+            nanos += System.nanoTime() - start;
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            out.write(b, off, len);
+            nanos += System.nanoTime() - start;
+            bytes += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            long start = System.nanoTime();
+            out.flush();
+            nanos += System.nanoTime() - start;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+}
@@ -20,20 +20,24 @@ package org.nuxeo.labs.speechtotext.google;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.util.Base64;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.BufferedHttpEntity;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.util.EntityUtils;
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.nuxeo.ecm.core.api.Blob;
@@ -42,10 +46,31 @@ import org.nuxeo.ecm.core.api.blobholder.BlobHolder;
 import org.nuxeo.ecm.core.api.blobholder.SimpleBlobHolder;
 import org.nuxeo.ecm.core.convert.api.ConversionService;
 import org.nuxeo.labs.speechtotext.api.SpeechToText;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextJob;
 import org.nuxeo.labs.speechtotext.api.SpeechToTextOptions;
 import org.nuxeo.labs.speechtotext.api.SpeechToTextProvider;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextProviderException;
 import org.nuxeo.labs.speechtotext.api.SpeechToTextResponse;
+import org.nuxeo.labs.speechtotext.audio.AudioProbe;
+import org.nuxeo.labs.speechtotext.audio.AudioReadException;
+import org.nuxeo.labs.speechtotext.audio.FFmpegPipeBlob;
+import org.nuxeo.labs.speechtotext.audio.WavHeader;
+import org.nuxeo.labs.speechtotext.audio.WavNormalizer;
+import org.nuxeo.labs.speechtotext.impl.ConfigurationHelper;
+import org.nuxeo.labs.speechtotext.metrics.SpeechToTextMetrics;
+import org.nuxeo.labs.speechtotext.resilience.ResilienceDescriptor;
+import org.nuxeo.labs.speechtotext.resilience.ResilientExecutor;
+import org.nuxeo.labs.speechtotext.resilience.ResilientExecutor.AbortableCall;
+import org.nuxeo.labs.speechtotext.throttle.AdaptiveConcurrencyLimiter;
+import org.nuxeo.labs.speechtotext.throttle.CallThrottle;
+import org.nuxeo.labs.speechtotext.throttle.InMemoryTokenBucketStore;
+import org.nuxeo.labs.speechtotext.throttle.KeyValueTokenBucketStore;
+import org.nuxeo.labs.speechtotext.throttle.TokenBucket;
+import org.nuxeo.labs.speechtotext.throttle.TokenBucketStore;
 import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.kv.KeyValueService;
+
+import io.dropwizard.metrics5.Timer;
 
 /**
  * 
@@ -55,20 +80,352 @@ public class GoogleSpeechToTextProvider implements SpeechToTextProvider {
     
     public static final String SPEECHTOTEXT_API_VERSION = "v1p1beta1";
 
+    public static final String SERVICE_URL = "https://speech.googleapis.com/";
+
+    /**
+     * Replaces SERVICE_URL: A regional endpoint, a proxy, a mock server... The API key is optional when set.
+     *
+     * @since 2023.0.1
+     */
+    public static final String ENDPOINT_PARAM = "google.speechtotext.endpoint";
+
+    public static final String PROVIDER_NAME = "google";
+
+    /**
+     * The properties of a contribution to the "providers" extension point override the nuxeo.conf parameters with
+     * this prefix: "endpoint" overrides google.speechtotext.endpoint, "http.maxConnections" overrides
+     * google.speechtotext.http.maxConnections, etc.
+     *
+     * @since 2023.0.1
+     */
+    public static final String PARAM_PREFIX = "google.speechtotext.";
+
     public static final String API_KEY_PARAM = "google.speechtotext.apikey";
 
     public static final String API_KEY_ENV_VAR = "GOOGLE_SPEECHTOTEXT_APIKEY";
-    
+
+    // HTTP connection pool, see start()
+    public static final String HTTP_MAX_CONNECTIONS_PARAM = "google.speechtotext.http.maxConnections";
+
+    public static final String HTTP_MAX_CONNECTIONS_PER_ROUTE_PARAM = "google.speechtotext.http.maxConnectionsPerRoute";
+
+    public static final String HTTP_CONNECT_TIMEOUT_PARAM = "google.speechtotext.http.connectTimeoutMs";
+
+    public static final String HTTP_SOCKET_TIMEOUT_PARAM = "google.speechtotext.http.socketTimeoutMs";
+
+    public static final String HTTP_REQUEST_TIMEOUT_PARAM = "google.speechtotext.http.connectionRequestTimeoutMs";
+
+    public static final String HTTP_IDLE_TIMEOUT_PARAM = "google.speechtotext.http.idleTimeoutSeconds";
+
+    public static final int DEFAULT_HTTP_MAX_CONNECTIONS = 50;
+
+    public static final int DEFAULT_HTTP_MAX_CONNECTIONS_PER_ROUTE = 20;
+
+    public static final int DEFAULT_HTTP_CONNECT_TIMEOUT = 10000;
+
+    // Synchronous recognition can take a while on the provider side
+    public static final int DEFAULT_HTTP_SOCKET_TIMEOUT = 300000;
+
+    public static final int DEFAULT_HTTP_REQUEST_TIMEOUT = 60000;
+
+    public static final int DEFAULT_HTTP_IDLE_TIMEOUT = 60;
+
+    // Long running recognition, see GoogleOperationPoller
+    public static final String LONG_RUNNING_POLLER_THREADS_PARAM = "google.speechtotext.longrunning.pollerThreads";
+
+    public static final String LONG_RUNNING_POLL_INTERVAL_PARAM = "google.speechtotext.longrunning.pollIntervalSeconds";
+
+    public static final String LONG_RUNNING_TIMEOUT_PARAM = "google.speechtotext.longrunning.timeoutMinutes";
+
+    public static final int DEFAULT_LONG_RUNNING_POLLER_THREADS = 2;
+
+    public static final int DEFAULT_LONG_RUNNING_POLL_INTERVAL = 5;
+
+    public static final int DEFAULT_LONG_RUNNING_TIMEOUT = 480;
+
+    // Quotas and concurrency, see createThrottle()
+    public static final String RATE_LIMIT_REQUESTS_PARAM = "google.speechtotext.rateLimit.requestsPerMinute";
+
+    public static final String RATE_LIMIT_AUDIO_SECONDS_PARAM = "google.speechtotext.rateLimit.audioSecondsPerMinute";
+
+    public static final String RATE_LIMIT_KEY_VALUE_STORE_PARAM = "google.speechtotext.rateLimit.keyValueStore";
+
+    public static final String RATE_LIMIT_MAX_WAIT_PARAM = "google.speechtotext.rateLimit.maxWaitSeconds";
+
+    public static final String CONCURRENCY_MAX_PARAM = "google.speechtotext.concurrency.max";
+
+    public static final String CONCURRENCY_MIN_PARAM = "google.speechtotext.concurrency.min";
+
+    public static final String CONCURRENCY_LATENCY_SPIKE_PARAM = "google.speechtotext.concurrency.latencySpikeRatio";
+
+    public static final int DEFAULT_RATE_LIMIT_MAX_WAIT = 120;
+
+    public static final int DEFAULT_CONCURRENCY_MAX = DEFAULT_HTTP_MAX_CONNECTIONS_PER_ROUTE;
+
+    public static final int DEFAULT_CONCURRENCY_MIN = 1;
+
+    public static final int DEFAULT_CONCURRENCY_LATENCY_SPIKE = 3;
+
+    public static final double CONCURRENCY_BACKOFF_RATIO = 0.75;
+
+    protected CloseableHttpClient httpClient = null;
+
+    protected CallThrottle throttle = null;
+
+    // See the "resilience" extension point of the service
+    protected ResilienceDescriptor resilienceDescriptor = new ResilienceDescriptor();
+
+    protected ResilientExecutor resilientExecutor = null;
+
+    protected String name = PROVIDER_NAME;
+
+    protected Map<String, String> properties = Collections.emptyMap();
+
+    protected SpeechToTextMetrics metrics = new SpeechToTextMetrics(PROVIDER_NAME);
+
+    protected GoogleOperationPoller operationPoller = null;
+
     public GoogleSpeechToTextProvider() {
-        
+
+    }
+
+    @Override
+    public void initialize(String name, Map<String, String> properties) {
+        this.name = name;
+        this.properties = properties;
+        metrics = new SpeechToTextMetrics(name);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Creates the pooled, keep-alive, HTTP client shared by all the calls to the service, and the poller of the long
+     * running operations. Limits and timeouts are read from the configuration (nuxeo.conf)
+     */
+    @Override
+    public synchronized void start() {
+
+        if (httpClient != null) {
+            return;
+        }
+
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(getIntProperty(HTTP_MAX_CONNECTIONS_PARAM, DEFAULT_HTTP_MAX_CONNECTIONS));
+        connectionManager.setDefaultMaxPerRoute(
+                getIntProperty(HTTP_MAX_CONNECTIONS_PER_ROUTE_PARAM, DEFAULT_HTTP_MAX_CONNECTIONS_PER_ROUTE));
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                                                   .setConnectTimeout(getIntProperty(HTTP_CONNECT_TIMEOUT_PARAM,
+                                                           DEFAULT_HTTP_CONNECT_TIMEOUT))
+                                                   .setSocketTimeout(getIntProperty(HTTP_SOCKET_TIMEOUT_PARAM,
+                                                           DEFAULT_HTTP_SOCKET_TIMEOUT))
+                                                   .setConnectionRequestTimeout(getIntProperty(
+                                                           HTTP_REQUEST_TIMEOUT_PARAM, DEFAULT_HTTP_REQUEST_TIMEOUT))
+                                                   .build();
+
+        httpClient = HttpClients.custom()
+                                .setConnectionManager(connectionManager)
+                                .setDefaultRequestConfig(requestConfig)
+                                .evictExpiredConnections()
+                                .evictIdleConnections(
+                                        getIntProperty(HTTP_IDLE_TIMEOUT_PARAM, DEFAULT_HTTP_IDLE_TIMEOUT),
+                                        TimeUnit.SECONDS)
+                                .build();
+
+        operationPoller = new GoogleOperationPoller(
+                getIntProperty(LONG_RUNNING_POLLER_THREADS_PARAM, DEFAULT_LONG_RUNNING_POLLER_THREADS),
+                TimeUnit.SECONDS.toMillis(
+                        getIntProperty(LONG_RUNNING_POLL_INTERVAL_PARAM, DEFAULT_LONG_RUNNING_POLL_INTERVAL)),
+                TimeUnit.MINUTES.toMillis(getIntProperty(LONG_RUNNING_TIMEOUT_PARAM, DEFAULT_LONG_RUNNING_TIMEOUT)),
+                this::fetchOperation);
+
+        throttle = createThrottle();
+
+        resilientExecutor = new ResilientExecutor(resilienceDescriptor);
+    }
+
+    /**
+     * Retries, timeouts and hedging of the calls. Can be changed while started.
+     *
+     * @since 2023.0.1
+     */
+    @Override
+    public synchronized void setResilienceDescriptor(ResilienceDescriptor descriptor) {
+
+        resilienceDescriptor = descriptor == null ? new ResilienceDescriptor() : descriptor;
+        if (resilientExecutor != null) {
+            resilientExecutor.setConfiguration(resilienceDescriptor);
+        }
+    }
+
+    /*
+     * The rate limits are disabled by default (0). They are per node, unless a KeyValueStore shared by the nodes is
+     * configured. The concurrency limit is per node.
+     */
+    protected CallThrottle createThrottle() {
+
+        TokenBucketStore store;
+        String storeName = getProperty(RATE_LIMIT_KEY_VALUE_STORE_PARAM);
+        if (storeName != null) {
+            store = new KeyValueTokenBucketStore(
+                    Framework.getService(KeyValueService.class).getKeyValueStore(storeName));
+        } else {
+            store = new InMemoryTokenBucketStore();
+        }
+
+        int requestsPerMinute = getIntProperty(RATE_LIMIT_REQUESTS_PARAM, 0);
+        int audioSecondsPerMinute = getIntProperty(RATE_LIMIT_AUDIO_SECONDS_PARAM, 0);
+        TokenBucket requests = requestsPerMinute > 0 ? new TokenBucket(store, name + ":requests", requestsPerMinute)
+                : null;
+        TokenBucket audioSeconds = audioSecondsPerMinute > 0
+                ? new TokenBucket(store, name + ":audioSeconds", audioSecondsPerMinute)
+                : null;
+
+        AdaptiveConcurrencyLimiter concurrency = null;
+        int maxConcurrency = getIntProperty(CONCURRENCY_MAX_PARAM, DEFAULT_CONCURRENCY_MAX);
+        if (maxConcurrency > 0) {
+            concurrency = new AdaptiveConcurrencyLimiter(
+                    Math.min(maxConcurrency, getIntProperty(CONCURRENCY_MIN_PARAM, DEFAULT_CONCURRENCY_MIN)),
+                    maxConcurrency, CONCURRENCY_BACKOFF_RATIO,
+                    getIntProperty(CONCURRENCY_LATENCY_SPIKE_PARAM, DEFAULT_CONCURRENCY_LATENCY_SPIKE));
+        }
+
+        return new CallThrottle(requests, audioSeconds, concurrency,
+                TimeUnit.SECONDS.toMillis(getIntProperty(RATE_LIMIT_MAX_WAIT_PARAM, DEFAULT_RATE_LIMIT_MAX_WAIT)));
+    }
+
+    /**
+     * Closes the HTTP client and its pool, stops polling the long running operations.
+     */
+    @Override
+    public synchronized void stop() {
+
+        if (operationPoller != null) {
+            operationPoller.shutdown();
+            operationPoller = null;
+        }
+        throttle = null;
+
+        if (resilientExecutor != null) {
+            resilientExecutor.shutdown();
+            resilientExecutor = null;
+        }
+
+        if (httpClient != null) {
+            try {
+                httpClient.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+            httpClient = null;
+        }
+    }
+
+    /*
+     * The provider can also be used outside the service (not started)
+     */
+    protected CloseableHttpClient getHttpClient() {
+
+        if (httpClient == null) {
+            start();
+        }
+        return httpClient;
+    }
+
+    /**
+     * @since 2023.0.1
+     */
+    public SpeechToTextMetrics getMetrics() {
+        return metrics;
+    }
+
+    protected CallThrottle getThrottle() {
+
+        if (throttle == null) {
+            start();
+        }
+        return throttle;
+    }
+
+    protected ResilientExecutor getResilientExecutor() {
+
+        if (resilientExecutor == null) {
+            start();
+        }
+        return resilientExecutor;
+    }
+
+    protected GoogleOperationPoller getOperationPoller() {
+
+        if (operationPoller == null) {
+            start();
+        }
+        return operationPoller;
+    }
+
+    protected int getIntProperty(String param, int defaultValue) {
+        return ConfigurationHelper.toInt(param, getProperty(param), defaultValue);
+    }
+
+    /*
+     * The property of the contribution, or the nuxeo.conf parameter. null if not set
+     */
+    protected String getProperty(String param) {
+
+        String value = null;
+        if (param.startsWith(PARAM_PREFIX)) {
+            value = properties.get(param.substring(PARAM_PREFIX.length()));
+        }
+        if (StringUtils.isBlank(value)) {
+            value = Framework.getProperty(param);
+        }
+        return StringUtils.isBlank(value) ? null : value.trim();
     }
 
     @Override
     public SpeechToTextResponse run(SpeechToTextOptions options, Blob blob, String languageCode, JSONObject moreOptions) {
+        return run(options, blob, probeAudio(blob), languageCode, moreOptions);
+    }
+
+    /*
+     * The audio is probed once: The probe of the original audio gives the duration (quota), the converted audio, if
+     * any, is probed for the config
+     */
+    @Override
+    public SpeechToTextResponse run(SpeechToTextOptions options, Blob blob, AudioProbe probe, String languageCode,
+            JSONObject moreOptions) {
+
+        Blob normalized = normalizeAudio(blob, probe, languageCode);
+
+        return runWithREST(options, normalized, normalized == blob ? probe : probeAudio(normalized),
+                AudioProbe.durationSeconds(probe), null, -1, languageCode, moreOptions);
+    }
+
+    /*
+     * Audio Google reads as is (see getGoogleEncoding), or a FLAC or WAV, which run() sends as is
+     */
+    @Override
+    public Blob prepareAudio(Blob blob, String languageCode) {
+        return prepareAudio(blob, probeAudio(blob), languageCode);
+    }
 
-        Blob normalized = normalizeAudio(blob);
+    @Override
+    public Blob prepareAudio(Blob blob, AudioProbe probe, String languageCode) {
+        return normalizeAudio(blob, probe, languageCode);
+    }
 
-        return run(options, normalized, null, -1, languageCode, moreOptions);
+    /*
+     * Only the WAV normalized in the JVM is owned by the provider: The result of the converter can be in the cache of
+     * the conversion service, and a streamed conversion does not start until it is read
+     */
+    @Override
+    public void disposePreparedAudio(Blob blob, Blob prepared) {
+        if (prepared != blob) {
+            WavNormalizer.dispose(prepared);
+        }
     }
 
     @Override
@@ -78,15 +435,50 @@ public class GoogleSpeechToTextProvider implements SpeechToTextProvider {
         return runWithREST(options, blob, audioEncoding, sampleRateHertz, languageCode, moreOptions);
 
     }
+
+    @Override
+    public SpeechToTextResponse run(SpeechToTextOptions options, Blob blob, AudioProbe probe, String audioEncoding,
+            int sampleRateHertz, String languageCode, JSONObject moreOptions) {
+
+        return runWithREST(options, blob, probe, AudioProbe.durationSeconds(probe), audioEncoding, sampleRateHertz,
+                languageCode, moreOptions);
+    }
+
+    @Override
+    public SpeechToTextJob runLongRunning(SpeechToTextOptions options, Blob blob, String languageCode,
+            JSONObject moreOptions) {
+        return runLongRunning(options, blob, probeAudio(blob), languageCode, moreOptions);
+    }
+
+    @Override
+    public SpeechToTextJob runLongRunning(SpeechToTextOptions options, Blob blob, AudioProbe probe,
+            String languageCode, JSONObject moreOptions) {
+
+        Blob normalized = normalizeAudio(blob, probe, languageCode);
+
+        return submitLongRunning(options, normalized, normalized == blob ? probe : probeAudio(normalized),
+                AudioProbe.durationSeconds(probe), null, -1, languageCode, moreOptions);
+    }
+
+    @Override
+    public SpeechToTextJob runLongRunning(SpeechToTextOptions options, Blob blob, String audioEncoding,
+            int sampleRateHertz, String languageCode, JSONObject moreOptions) {
+
+        return submitLongRunning(options, blob, audioEncoding, sampleRateHertz, languageCode, moreOptions);
+    }
+
+    @Override
+    public SpeechToTextJob runLongRunning(SpeechToTextOptions options, Blob blob, AudioProbe probe,
+            String audioEncoding, int sampleRateHertz, String languageCode, JSONObject moreOptions) {
+
+        return submitLongRunning(options, blob, probe, AudioProbe.durationSeconds(probe), audioEncoding,
+                sampleRateHertz, languageCode, moreOptions);
+    }
     
     protected String getGoogleSpeechToTextAPIKey() {
 
-        String apiKey = Framework.getProperty(API_KEY_PARAM);
-        if (StringUtils.isBlank(apiKey)) {
-            apiKey = System.getenv(API_KEY_ENV_VAR);
-        }
-
-        if (StringUtils.isBlank(apiKey)) {
+        String apiKey = findGoogleSpeechToTextAPIKey();
+        if (apiKey == null) {
             throw new NuxeoException("API Keyfor Google Speech To Text APi not found in nuxeo.conf (" + API_KEY_PARAM
                     + ") nor in an environement variable (" + API_KEY_ENV_VAR + ")");
         }
@@ -94,7 +486,42 @@ public class GoogleSpeechToTextProvider implements SpeechToTextProvider {
         return apiKey;
     }
 
+    /*
+     * null if not found
+     */
+    protected String findGoogleSpeechToTextAPIKey() {
+
+        String apiKey = getProperty(API_KEY_PARAM);
+        if (StringUtils.isBlank(apiKey)) {
+            apiKey = System.getenv(API_KEY_ENV_VAR);
+        }
+        return StringUtils.isBlank(apiKey) ? null : apiKey;
+    }
+
+    /**
+     * @return the configured endpoint, ending with a "/", or the Google one
+     * @since 2023.0.1
+     */
+    public String getEndpoint() {
+
+        String endpoint = StringUtils.defaultIfBlank(getProperty(ENDPOINT_PARAM), SERVICE_URL);
+        return endpoint.endsWith("/") ? endpoint : endpoint + "/";
+    }
+
     protected boolean isFlacOrWav(Blob blob) {
+        return isFlacOrWav(blob, probeAudio(blob));
+    }
+
+    /*
+     * Google reads the encoding and sample rate in the header of a WAV or a FLAC. The mime type is used only when the
+     * header was not read (streamed conversion).
+     */
+    protected boolean isFlacOrWav(Blob blob, AudioProbe probe) {
+
+        if (probe != null) {
+            return probe.getContainer() == AudioProbe.Container.WAV
+                    || probe.getContainer() == AudioProbe.Container.FLAC;
+        }
 
         String mimeType = blob.getMimeType();
         if (StringUtils.isNotBlank(mimeType)) {
@@ -107,12 +534,101 @@ public class GoogleSpeechToTextProvider implements SpeechToTextProvider {
         return false;
     }
 
+    /*
+     * Returns null if the format is not recognized, the blob is streamed, or on error
+     */
+    protected AudioProbe probeAudio(Blob blob) {
+        // Handled as before the probe when null: By its mime type
+        return AudioProbe.tryProbe(blob);
+    }
+
+    /**
+     * @return the encoding of the audio, as expected in the request, if Google can transcribe it as is, or null if it
+     *         must be converted: It must be mono, between 8 and 48 kHz, and be LINEAR16 or MULAW in a WAV, FLAC, Opus in
+     *         an Ogg, or MP3 (v1p1beta1 only)
+     * @since 2023.0.1
+     */
+    protected String getGoogleEncoding(AudioProbe probe) {
+
+        if (probe == null || probe.getChannels() != 1) {
+            return null;
+        }
+        String codec = probe.getCodec();
+        if (AudioProbe.CODEC_OPUS.equals(codec)) {
+            return probe.getContainer() == AudioProbe.Container.OGG ? "OGG_OPUS" : null;
+        }
+        if (probe.getSampleRate() < 8000 || probe.getSampleRate() > 48000) {
+            return null;
+        }
+        switch (probe.getContainer()) {
+        case WAV:
+            if (AudioProbe.CODEC_PCM.equals(codec) && probe.getBitsPerSample() == 16) {
+                return "LINEAR16";
+            }
+            return AudioProbe.CODEC_MULAW.equals(codec) && probe.getBitsPerSample() == 8 ? "MULAW" : null;
+        case FLAC:
+            return probe.getBitsPerSample() == 16 || probe.getBitsPerSample() == 24 ? "FLAC" : null;
+        case MP3:
+            return AudioProbe.CODEC_MP3.equals(codec) ? "MP3" : null;
+        default:
+            return null;
+        }
+    }
+
+    /*
+     * Opus is always decoded at 48 kHz, Google accepts the rate of the original audio when it is one Opus supports
+     */
+    protected int getGoogleSampleRateHertz(AudioProbe probe) {
+
+        if (AudioProbe.CODEC_OPUS.equals(probe.getCodec())) {
+            int rate = probe.getSampleRate();
+            return rate == 8000 || rate == 12000 || rate == 16000 || rate == 24000 ? rate : 48000;
+        }
+        return probe.getSampleRate();
+    }
+
+    protected Blob normalizeAudio(Blob blob, String languageCode) {
+        return normalizeAudio(blob, probeAudio(blob), languageCode);
+    }
+
+    protected Blob normalizeAudio(Blob blob, AudioProbe probe, String languageCode) {
+
+        try (Timer.Context timer = metrics.timer("normalize", languageCode).time()) {
+            return normalizeAudio(blob, probe);
+        }
+    }
+
     protected Blob normalizeAudio(Blob blob) {
+        return normalizeAudio(blob, probeAudio(blob));
+    }
+
+    /*
+     * The header (the probe), not the mime type, tells what Google can read as is
+     */
+    protected Blob normalizeAudio(Blob blob, AudioProbe probe) {
 
-        if (isFlacOrWav(blob)) {
+        // Most WAV can be downmixed and resampled without forking ffmpeg
+        Blob wav = normalizeWav(blob, probe);
+        if (wav != null) {
+            return wav;
+        }
+
+        if (probe != null ? getGoogleEncoding(probe) != null : isFlacOrWav(blob, null)) {
             return blob;
         }
 
+        // Converted while it is uploaded
+        if (ConfigurationHelper.getBoolean(FFmpegPipeBlob.STREAMING_CONVERSION_PARAM, false)
+                && FFmpegPipeBlob.isAvailable(AUDIO_TO_FLAC_PIPE_COMMAND)) {
+            return FFmpegPipeBlob.fromCommandLine(blob, AUDIO_TO_FLAC_PIPE_COMMAND, "audio/flac", ".flac");
+        }
+
+        return convertToFlac(blob);
+
+    }
+
+    protected Blob convertToFlac(Blob blob) {
+
         ConversionService service = Framework.getService(ConversionService.class);
 
         BlobHolder blobholder = new SimpleBlobHolder(blob);
@@ -120,95 +636,306 @@ public class GoogleSpeechToTextProvider implements SpeechToTextProvider {
         BlobHolder result = service.convert(AUDIO_TO_FLAC_CONVERTER, blobholder, new HashMap<>());
 
         return result.getBlob();
-
     }
     
+    /*
+     * Returns the blob converted to 16 bits mono PCM, at most at the max sample rate (or the blob itself if it already
+     * is). Returns null if it is not a WAV the JVM can read, or if disabled.
+     */
+    protected Blob normalizeWav(Blob blob) {
+        return normalizeWav(blob, probeAudio(blob));
+    }
+
+    protected Blob normalizeWav(Blob blob, AudioProbe probe) {
+
+        int maxSampleRate = ConfigurationHelper.getInt(WavNormalizer.MAX_SAMPLE_RATE_PARAM,
+                WavNormalizer.DEFAULT_MAX_SAMPLE_RATE);
+        if (maxSampleRate <= 0 || probe == null || probe.getWavHeader() == null) {
+            return null;
+        }
+
+        try {
+            WavHeader header = probe.getWavHeader();
+            if (!WavNormalizer.canNormalize(header)) {
+                return null;
+            }
+            WavNormalizer normalizer = new WavNormalizer(maxSampleRate);
+            return normalizer.needsNormalization(header) ? normalizer.normalize(blob) : blob;
+        } catch (IOException e) {
+            throw new NuxeoException("Error normalizing the WAV audio",
+                    new AudioReadException("Cannot normalize " + blob.getFilename(), e));
+        }
+    }
+
+    /*
+     * The "config" part of the body. The audio itself is not handled here, see GoogleRecognizeRequestEntity
+     */
+    protected JSONObject buildConfig(SpeechToTextOptions options, Blob blob, String audioEncoding, int sampleRateHertz,
+            String languageCode, JSONObject moreOptions) throws JSONException {
+        return buildConfig(options, blob, probeAudio(blob), audioEncoding, sampleRateHertz, languageCode, moreOptions);
+    }
+
+    protected JSONObject buildConfig(SpeechToTextOptions options, Blob blob, AudioProbe probe, String audioEncoding,
+            int sampleRateHertz, String languageCode, JSONObject moreOptions) throws JSONException {
+
+        JSONObject config = new JSONObject();
+        config.put("languageCode", languageCode);
+        config.put("enableAutomaticPunctuation", options.isWithPunctuation());
+        config.put("enableWordTimeOffsets", options.isWithWordTimeOffsets());
+        /*
+         * Google Cloud doc (2018-10-28): << You are not required to specify the encoding and sample rate for WAV or
+         * FLAC files. If omitted, Speech-to-Text automatically determines the encoding and sample rate for WAV or
+         * FLAC files based on the file header. If you specify an encoding or sample rate value that does not match
+         * the value in the file header, then Speech-to-Text returns an error. >>
+         */
+        if (!isFlacOrWav(blob, probe)) {
+            // Filled from the header when not passed (MP3, Ogg Opus)
+            if (probe != null && getGoogleEncoding(probe) != null) {
+                if (StringUtils.isBlank(audioEncoding)) {
+                    audioEncoding = getGoogleEncoding(probe);
+                }
+                if (sampleRateHertz <= 0) {
+                    sampleRateHertz = getGoogleSampleRateHertz(probe);
+                }
+            }
+            config.put("encoding", audioEncoding);
+            config.put("sampleRateHertz", sampleRateHertz);
+        }
+        // Handle speakers
+        if(options.isWithDetectSpeakers()) {
+            config.put("enableSpeakerDiarization",  true);
+            config.put("diarizationSpeakerCount", 2);
+        }
+        // Handle more options
+        config = SpeechToText.mergeJSONObjects(config, moreOptions);
+
+        return config;
+    }
+
     protected SpeechToTextResponse runWithREST(SpeechToTextOptions options, Blob blob, String audioEncoding,
             int sampleRateHertz, String languageCode, JSONObject moreOptions) {
 
-        SpeechToTextResponse response = null;
+        AudioProbe probe = probeAudio(blob);
+        return runWithREST(options, blob, probe, AudioProbe.durationSeconds(probe), audioEncoding, sampleRateHertz,
+                languageCode, moreOptions);
+    }
+
+    /*
+     * The probe is the one of the blob sent, the duration the one of the original audio (used for the quota)
+     */
+    protected SpeechToTextResponse runWithREST(SpeechToTextOptions options, Blob blob, AudioProbe probe,
+            double audioSeconds, String audioEncoding, int sampleRateHertz, String languageCode,
+            JSONObject moreOptions) {
 
         if (options == null) {
             options = SpeechToTextOptions.buildDefaultOptions();
         }
 
-        CloseableHttpClient client = HttpClients.createDefault();
+        try {
+
+            // ===================================> Setup the body (JSON, audio streamed as Base64)
+            JSONObject config = buildConfig(options, blob, probe, audioEncoding, sampleRateHertz, languageCode,
+                    moreOptions);
+            AttemptAudio audio = new AttemptAudio(blob);
+
+            // ===================================> Call the service, get the result
+            countAudioSeconds(audioSeconds, languageCode);
+            String responseContent = getResilientExecutor().execute(() -> newPostCall("speech:recognize",
+                    newRequestEntity(config, audio.get(), languageCode), audioSeconds, languageCode), true,
+                    audioSeconds);
+
+            // The response is parsed lazily, the parse is timed when the transcript is first read
+            GoogleRESTSpeechToTextResponse response = new GoogleRESTSpeechToTextResponse(responseContent);
+            response.setParseTimer(metrics.timer("parse", languageCode));
+            return response;
+
+        } catch (IOException | JSONException e) {
+            throw new NuxeoException("Error getting the speech-to-text result.", e);
+        }
+    }
+
+    /*
+     * Same body as a synchronous recognize. Google returns the operation, which is then polled until done.
+     */
+    protected SpeechToTextJob submitLongRunning(SpeechToTextOptions options, Blob blob, String audioEncoding,
+            int sampleRateHertz, String languageCode, JSONObject moreOptions) {
+
+        AudioProbe probe = probeAudio(blob);
+        return submitLongRunning(options, blob, probe, AudioProbe.durationSeconds(probe), audioEncoding,
+                sampleRateHertz, languageCode, moreOptions);
+    }
+
+    protected SpeechToTextJob submitLongRunning(SpeechToTextOptions options, Blob blob, AudioProbe probe,
+            double audioSeconds, String audioEncoding, int sampleRateHertz, String languageCode,
+            JSONObject moreOptions) {
+
+        if (options == null) {
+            options = SpeechToTextOptions.buildDefaultOptions();
+        }
+
+        try {
+
+            JSONObject config = buildConfig(options, blob, probe, audioEncoding, sampleRateHertz, languageCode,
+                    moreOptions);
+            AttemptAudio audio = new AttemptAudio(blob);
+
+            // Not hedged, it would start two operations
+            countAudioSeconds(audioSeconds, languageCode);
+            JSONObject operation = new JSONObject(getResilientExecutor().execute(() -> newPostCall(
+                    "speech:longrunningrecognize", newRequestEntity(config, audio.get(), languageCode), audioSeconds,
+                    languageCode), false));
+            SpeechToTextJob job = new SpeechToTextJob(operation.getString("name"));
+            getOperationPoller().watch(job);
+
+            return job;
+
+        } catch (IOException | JSONException e) {
+            throw new NuxeoException("Error submitting the long running speech-to-text.", e);
+        }
+    }
+
+    /*
+     * The audio sent by each attempt of a call. A conversion streamed from ffmpeg can be read only once: It is sent by
+     * the first attempt, the retries and the hedged attempts send the audio converted by the converter, converted once
+     * for all of them.
+     */
+    protected class AttemptAudio implements Supplier<Blob> {
+
+        protected final Blob blob;
+
+        protected final AtomicBoolean pipeTaken = new AtomicBoolean();
+
+        protected Blob converted;
+
+        protected AttemptAudio(Blob blob) {
+            this.blob = blob;
+        }
+
+        @Override
+        public Blob get() {
+
+            if (!(blob instanceof FFmpegPipeBlob) || pipeTaken.compareAndSet(false, true)) {
+                return blob;
+            }
+            synchronized (this) {
+                if (converted == null) {
+                    converted = convertToFlac(((FFmpegPipeBlob) blob).getSource());
+                }
+                return converted;
+            }
+        }
+    }
+
+    protected GoogleRecognizeRequestEntity newRequestEntity(JSONObject config, Blob blob, String languageCode) {
+
+        GoogleRecognizeRequestEntity entity = new GoogleRecognizeRequestEntity(config, blob);
+        entity.setWriteListener((bytes, readNanos, encodeNanos, uploadNanos) -> {
+            metrics.uploaded(languageCode, bytes);
+            metrics.time("read", languageCode, readNanos);
+            metrics.time("encode", languageCode, encodeNanos);
+            metrics.time("upload", languageCode, uploadNanos);
+        });
+        return entity;
+    }
+
+    /*
+     * The duration is used for the audio quota. 0 when unknown (format not recognized, or a conversion streamed from
+     * ffmpeg which can be read only once)
+     */
+    protected void countAudioSeconds(double seconds, String languageCode) {
+        if (seconds > 0) {
+            metrics.audioSeconds(languageCode, seconds);
+        }
+    }
+
+    protected JSONObject fetchOperation(String name) {
 
         try {
+            return new JSONObject(execute(new HttpGet(getServiceURL("operations/" + name))));
+        } catch (IOException | JSONException e) {
+            throw new NuxeoException("Error getting the long running operation " + name, e);
+        }
+    }
+
+    protected String getServiceURL(String method) {
+
+        String endpoint = getEndpoint();
+        String url = endpoint + SPEECHTOTEXT_API_VERSION + "/" + method;
+        // A proxy or a mock server may not need the key, Google does
+        String apiKey = SERVICE_URL.equals(endpoint) ? getGoogleSpeechToTextAPIKey() : findGoogleSpeechToTextAPIKey();
+        return apiKey == null ? url : url + "?key=" + apiKey;
+    }
+
+    protected String post(String method, HttpEntity body) throws IOException {
+        return execute(newPost(method, body));
+    }
 
-            // ===================================> Convert audio to Base64 String
-            byte[] data = blob.getByteArray();
-            String audioStr = Base64.getEncoder().encodeToString(data);
-
-            // ===================================> Setup the body (JSON)
-            JSONObject jsonBody = new JSONObject();
-
-            // -----------------> Audio (a file sent as Base64, not a uri to a file in Google Storage)
-            JSONObject audioJson = new JSONObject();
-            audioJson.put("content", audioStr);
-            jsonBody.put("audio", audioJson);
-
-            // -----------------> Configuration
-            JSONObject config = new JSONObject();
-            config.put("languageCode", languageCode);
-            config.put("enableAutomaticPunctuation", options.isWithPunctuation());
-            config.put("enableWordTimeOffsets", options.isWithWordTimeOffsets());
-            /*
-             * Google Cloud doc (2018-10-28): << You are not required to specify the encoding and sample rate for WAV or
-             * FLAC files. If omitted, Speech-to-Text automatically determines the encoding and sample rate for WAV or
-             * FLAC files based on the file header. If you specify an encoding or sample rate value that does not match
-             * the value in the file header, then Speech-to-Text returns an error. >>
-             */
-            if (!isFlacOrWav(blob)) {
-                config.put("encoding", audioEncoding);
-                config.put("sampleRateHertz", sampleRateHertz);
+    protected HttpPost newPost(String method, HttpEntity body) {
+
+        HttpPost httpPost = new HttpPost(getServiceURL(method));
+        httpPost.setEntity(body);
+        httpPost.setHeader("Content-type", "application/json");
+        return httpPost;
+    }
+
+    /*
+     * One attempt of a POST, throttled. Each attempt (retry, hedged attempt) has its own body, see AttemptAudio.
+     */
+    protected AbortableCall<String> newPostCall(String method, HttpEntity body, double audioSeconds,
+            String languageCode) {
+
+        HttpPost httpPost = newPost(method, body);
+        return new AbortableCall<String>() {
+
+            @Override
+            public String call() throws IOException {
+                return getThrottle().call(audioSeconds, () -> executeWithMetrics(httpPost, languageCode));
             }
-            // Handle speakers
-            if(options.isWithDetectSpeakers()) {
-                config.put("enableSpeakerDiarization",  true);
-                config.put("diarizationSpeakerCount", 2);
+
+            @Override
+            public void abort() {
+                httpPost.abort();
             }
-            // Handle more options
-            config = SpeechToText.mergeJSONObjects(config, moreOptions);
-            
-            jsonBody.put("config", config);
+        };
+    }
 
-            String bodyJsonStr = jsonBody.toString();
+    protected String executeWithMetrics(HttpUriRequest request, String languageCode) throws IOException {
+
+        metrics.callStarted();
+        try (Timer.Context timer = metrics.timer("http", languageCode).time()) {
+            return execute(request);
+        } catch (SpeechToTextProviderException e) {
+            metrics.error(languageCode, String.valueOf(e.getStatusCode()));
+            throw e;
+        } catch (IOException e) {
+            metrics.error(languageCode, "io");
+            throw e;
+        } finally {
+            metrics.callEnded();
+        }
+    }
 
-            // ===================================> Call the service
-            String url = "https://speech.googleapis.com/" + SPEECHTOTEXT_API_VERSION + "/speech:recognize?key=" + getGoogleSpeechToTextAPIKey();
-            HttpPost httpPost = new HttpPost(url);
+    /*
+     * Returns the body of the response, throws a NuxeoException if the status is not 200
+     */
+    protected String execute(HttpUriRequest request) throws IOException {
 
-            StringEntity bodyEntity = new StringEntity(bodyJsonStr);
-            httpPost.setEntity(bodyEntity);
-            httpPost.setHeader("Accept", "application/json");
-            httpPost.setHeader("Content-type", "application/json");
+        request.setHeader("Accept", "application/json");
 
-            CloseableHttpResponse httpResponse = client.execute(httpPost);
+        // Closing the response (not the client) gives the connection back to the pool
+        try (CloseableHttpResponse httpResponse = getHttpClient().execute(request)) {
 
-            // ===================================> Get the result
+            HttpEntity responseEntity = httpResponse.getEntity();
             int httpResponsecode = httpResponse.getStatusLine().getStatusCode();
             if (httpResponsecode != 200) {
-                throw new NuxeoException("Problem calling the service, Status code: " + httpResponsecode + ", "
-                        + httpResponse.getStatusLine().getReasonPhrase());
-            } else {
-                HttpEntity responseEntity = httpResponse.getEntity();
-                BufferedHttpEntity buf = new BufferedHttpEntity(responseEntity);
-                String responseContent = EntityUtils.toString(buf, StandardCharsets.UTF_8);
-                response = new GoogleRESTSpeechToTextResponse(responseContent);
+                EntityUtils.consumeQuietly(responseEntity);
+                // Keep the status, so a 429 (quota exceeded) can be told from other errors
+                throw new SpeechToTextProviderException("Problem calling the service, Status code: "
+                        + httpResponsecode + ", " + httpResponse.getStatusLine().getReasonPhrase(), httpResponsecode);
             }
 
-        } catch (IOException | JSONException e) {
-            throw new NuxeoException("Error getting the speech-to-text result.", e);
-        } finally {
-            try {
-                client.close();
-            } catch (IOException e) {
-                // Ignore;
-            }
+            return EntityUtils.toString(responseEntity, StandardCharsets.UTF_8);
         }
-
-        return response;
     }
 
 }
@@ -0,0 +1,142 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.impl;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Supplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Runs the asynchronous calls of the service: One virtual thread per call when the JVM has them (Java 21+) and they
+ * are enabled, so thousands of calls waiting for a provider do not hold thousands of platform threads. Else a fixed
+ * pool of platform threads.
+ * <p>
+ * Cancelling a future returned by {@link #submit(Supplier)} interrupts its thread: waits for the rate limits, the
+ * concurrency limits, the retries or a conversion stop at once. A request already sent is read to its end on a
+ * platform thread (socket reads are not interruptible there).
+ *
+ * @since 2023.0.1
+ */
+public class AsyncExecutor {
+
+    private static final Logger log = LogManager.getLogger(AsyncExecutor.class);
+
+    public static final String VIRTUAL_THREADS_PARAM = "speechtotext.async.virtualThreads";
+
+    public static final String THREADS_PARAM = "speechtotext.async.threads";
+
+    public static final int DEFAULT_THREADS = 32;
+
+    protected static final String THREAD_PREFIX = "speechtotext-async";
+
+    protected final ExecutorService executor;
+
+    protected final boolean virtual;
+
+    /**
+     * @param virtualThreads use virtual threads if the JVM supports them
+     * @param threads size of the pool of platform threads, when not using virtual threads
+     */
+    public AsyncExecutor(boolean virtualThreads, int threads) {
+
+        ExecutorService virtualExecutor = virtualThreads ? newVirtualThreadExecutor() : null;
+        virtual = virtualExecutor != null;
+        executor = virtual ? virtualExecutor
+                : Executors.newFixedThreadPool(Math.max(1, threads), new NamedThreadFactory(THREAD_PREFIX));
+        log.debug("Asynchronous calls run on " + (virtual ? "virtual threads" : threads + " platform threads"));
+    }
+
+    /*
+     * Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(prefix, 0).factory()), by reflection: The plugin is
+     * compiled for Java 17. null if not available (or a preview feature not enabled).
+     */
+    protected static ExecutorService newVirtualThreadExecutor() {
+
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Method name = builderClass.getMethod("name", String.class, long.class);
+            builder = name.invoke(builder, THREAD_PREFIX + "-", 1L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                                                    .invoke(null, factory);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * @return the result of the call, interrupting it if cancelled
+     */
+    public <T> CompletableFuture<T> submit(Supplier<T> call) {
+
+        InterruptibleFuture<T> future = new InterruptibleFuture<>();
+        future.task = executor.submit(() -> {
+            if (future.isDone()) {
+                return;
+            }
+            try {
+                future.complete(call.get());
+            } catch (Throwable t) {
+                // Reported to the caller
+                future.completeExceptionally(t);
+            }
+        });
+        // Cancelled before the task was known
+        if (future.isCancelled()) {
+            future.task.cancel(true);
+        }
+        return future;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /*
+     * CompletableFuture#cancel does not interrupt the thread running the call
+     */
+    protected static class InterruptibleFuture<T> extends CompletableFuture<T> {
+
+        protected volatile Future<?> task;
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            Future<?> running = task;
+            if (cancelled && running != null) {
+                running.cancel(true);
+            }
+            return cancelled;
+        }
+    }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.impl;
+
+import org.apache.commons.lang3.StringUtils;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Reads the configuration parameters (nuxeo.conf), with a default value when not set.
+ *
+ * @since 2023.0.1
+ */
+public class ConfigurationHelper {
+
+    private ConfigurationHelper() {
+    }
+
+    public static int getInt(String name, int defaultValue) {
+        return toInt(name, Framework.getProperty(name), defaultValue);
+    }
+
+    /**
+     * @param name used in the error message
+     * @param value the value read from the configuration, may be null
+     */
+    public static int toInt(String name, String value, int defaultValue) {
+
+        if (StringUtils.isNotBlank(value)) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                throw new NuxeoException("Invalid value for " + name + ": " + value, e);
+            }
+        }
+        return defaultValue;
+    }
+
+    public static boolean getBoolean(String name, boolean defaultValue) {
+
+        String value = Framework.getProperty(name);
+        if (StringUtils.isNotBlank(value)) {
+            return Boolean.parseBoolean(value.trim());
+        }
+        return defaultValue;
+    }
+
+    public static String getString(String name, String defaultValue) {
+
+        String value = Framework.getProperty(name);
+        return StringUtils.isBlank(value) ? defaultValue : value.trim();
+    }
+
+}
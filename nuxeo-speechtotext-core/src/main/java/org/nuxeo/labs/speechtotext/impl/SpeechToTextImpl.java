@@ -19,26 +19,152 @@
  */
 package org.nuxeo.labs.speechtotext.impl;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.json.JSONObject;
+import org.nuxeo.common.Environment;
 import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.api.blobholder.BlobHolder;
+import org.nuxeo.ecm.core.api.blobholder.SimpleBlobHolder;
+import org.nuxeo.ecm.core.convert.api.ConversionService;
+import org.nuxeo.ecm.core.work.api.Work;
+import org.nuxeo.ecm.core.work.api.WorkManager;
 import org.nuxeo.labs.speechtotext.api.SpeechToText;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextBatchItem;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextBatchResult;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextJob;
 import org.nuxeo.labs.speechtotext.api.SpeechToTextOptions;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextProvider;
 import org.nuxeo.labs.speechtotext.api.SpeechToTextResponse;
-import org.nuxeo.labs.speechtotext.google.GoogleSpeechToTextProvider;
+import org.nuxeo.labs.speechtotext.api.WordTimings;
+import org.nuxeo.labs.speechtotext.api.WordTimingsCodec;
+import org.nuxeo.labs.speechtotext.audio.AudioProbe;
+import org.nuxeo.labs.speechtotext.audio.FFmpegPipeBlob;
+import org.nuxeo.labs.speechtotext.audio.WavHeader;
+import org.nuxeo.labs.speechtotext.audio.WavNormalizer;
+import org.nuxeo.labs.speechtotext.batch.SpeechToTextBatch;
+import org.nuxeo.labs.speechtotext.cache.SingleFlight;
+import org.nuxeo.labs.speechtotext.cache.TranscriptCache;
+import org.nuxeo.labs.speechtotext.cache.TranscriptCacheKey;
+import org.nuxeo.labs.speechtotext.index.TranscriptIndex;
+import org.nuxeo.labs.speechtotext.metrics.SpeechToTextMetrics;
+import org.nuxeo.labs.speechtotext.resilience.ResilienceDescriptor;
+import org.nuxeo.labs.speechtotext.router.ProviderDescriptor;
+import org.nuxeo.labs.speechtotext.router.ProviderRouter;
+import org.nuxeo.labs.speechtotext.router.RoutedProvider;
+import org.nuxeo.labs.speechtotext.segmentation.AudioSegment;
+import org.nuxeo.labs.speechtotext.segmentation.AudioSegmenter;
+import org.nuxeo.labs.speechtotext.segmentation.SegmentedSpeechToTextResponse;
+import org.nuxeo.labs.speechtotext.work.TranscriptSaveWork;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.kv.KeyValueService;
+import org.nuxeo.runtime.kv.KeyValueStore;
 import org.nuxeo.runtime.model.ComponentContext;
 import org.nuxeo.runtime.model.ComponentInstance;
 import org.nuxeo.runtime.model.DefaultComponent;
 
+import io.dropwizard.metrics5.Timer;
+
 /**
  * This is the implementation of the service.
  * <p>
- * In this implementation we support only Google Speech to Text.
- * For other provider, the service should describe a SpeechToText provider, select it by it's name etc. etc.
+ * The providers are contributed to the "providers" extension point (see {@link ProviderDescriptor}), the one of each
+ * call is picked by the {@link ProviderRouter}.
  */
 public class SpeechToTextImpl extends DefaultComponent implements SpeechToText {
 
-    // In this implementation we support only Google Speech to Text
-    GoogleSpeechToTextProvider googleProvider = new GoogleSpeechToTextProvider();
+    private static final Logger log = LogManager.getLogger(SpeechToTextImpl.class);
+
+    // See ProviderDescriptor
+    public static final String PROVIDERS_XP = "providers";
+
+    // Tag of the metrics of the service, all providers included (cache, save...)
+    public static final String SERVICE_METRICS_NAME = "all";
+
+    // Retries, timeouts and hedging of the calls to the provider, see ResilienceDescriptor
+    public static final String RESILIENCE_XP = "resilience";
+
+    // Segmentation of long audio files, see SpeechToTextOptions#setMaxSegmentSeconds
+    public static final String SEGMENTATION_THREADS_PARAM = "speechtotext.segmentation.threads";
+
+    public static final String SEGMENTATION_SILENCE_SEARCH_PARAM = "speechtotext.segmentation.silenceSearchSeconds";
+
+    public static final int DEFAULT_SEGMENTATION_THREADS = 4;
+
+    public static final int DEFAULT_SEGMENTATION_SILENCE_SEARCH = 10;
+
+    // Batches of audio files, see SpeechToText#runBatch
+    public static final String BATCH_PREPARE_THREADS_PARAM = "speechtotext.batch.prepareThreads";
+
+    public static final String BATCH_TRANSCRIBE_THREADS_PARAM = "speechtotext.batch.transcribeThreads";
+
+    public static final String BATCH_MAX_IN_FLIGHT_PARAM = "speechtotext.batch.maxInFlight";
+
+    public static final int DEFAULT_BATCH_PREPARE_THREADS = 2;
+
+    public static final int DEFAULT_BATCH_TRANSCRIBE_THREADS = 8;
+
+    public static final int DEFAULT_BATCH_MAX_IN_FLIGHT = 16;
+
+    // Cache of the transcripts, see TranscriptCache
+    public static final String CACHE_MAX_MEMORY_SIZE_PARAM = "speechtotext.cache.maxMemorySize";
+
+    public static final String CACHE_KEY_VALUE_STORE_PARAM = "speechtotext.cache.keyValueStore";
+
+    public static final String CACHE_TTL_PARAM = "speechtotext.cache.ttlSeconds";
+
+    // In characters of JSON: A few hundred transcripts of an hour, a lot more of shorter audio
+    public static final int DEFAULT_CACHE_MAX_MEMORY_SIZE = 16 * 1024 * 1024;
+
+    public static final int DEFAULT_CACHE_TTL = 30 * 24 * 3600;
+
+    protected final Map<String, ProviderDescriptor> providerDescriptors = new LinkedHashMap<>();
+
+    protected ResilienceDescriptor resilienceDescriptor = null;
+
+    // Created when the component starts, once all the providers are contributed
+    protected ProviderRouter router;
+
+    protected final SpeechToTextMetrics metrics = new SpeechToTextMetrics(SERVICE_METRICS_NAME);
+
+    // Bounds the number of segments transcribed in parallel, all calls included
+    protected ExecutorService segmentExecutor;
+
+    protected AsyncExecutor asyncExecutor;
+
+    // The stages of the batches: conversions (CPU, ffmpeg) and calls to the providers (waiting for the network)
+    protected ExecutorService batchPrepareExecutor;
+
+    protected ExecutorService batchTranscribeExecutor;
+
+    // null when disabled
+    protected TranscriptCache cache;
+
+    // Concurrent calls for the same audio and parameters share the same conversion and provider call (cache enabled)
+    protected final SingleFlight<String, SpeechToTextResponse> inFlight = new SingleFlight<>();
+
+    // null if disabled
+    protected TranscriptIndex transcriptIndex;
 
     /**
      * Component activated notification. Called when the component is activated. All component dependencies are resolved
@@ -49,6 +175,18 @@ public class SpeechToTextImpl extends DefaultComponent implements SpeechToText {
     @Override
     public void activate(ComponentContext context) {
         super.activate(context);
+        segmentExecutor = Executors.newFixedThreadPool(
+                ConfigurationHelper.getInt(SEGMENTATION_THREADS_PARAM, DEFAULT_SEGMENTATION_THREADS),
+                new NamedThreadFactory("speechtotext-segment"));
+        batchPrepareExecutor = Executors.newFixedThreadPool(
+                ConfigurationHelper.getInt(BATCH_PREPARE_THREADS_PARAM, DEFAULT_BATCH_PREPARE_THREADS),
+                new NamedThreadFactory("speechtotext-batch-prepare"));
+        batchTranscribeExecutor = Executors.newFixedThreadPool(
+                ConfigurationHelper.getInt(BATCH_TRANSCRIBE_THREADS_PARAM, DEFAULT_BATCH_TRANSCRIBE_THREADS),
+                new NamedThreadFactory("speechtotext-batch-transcribe"));
+        asyncExecutor = new AsyncExecutor(ConfigurationHelper.getBoolean(AsyncExecutor.VIRTUAL_THREADS_PARAM, true),
+                ConfigurationHelper.getInt(AsyncExecutor.THREADS_PARAM, AsyncExecutor.DEFAULT_THREADS));
+        cache = createCache();
     }
 
     /**
@@ -59,9 +197,41 @@ public class SpeechToTextImpl extends DefaultComponent implements SpeechToText {
      */
     @Override
     public void deactivate(ComponentContext context) {
+        // Normally done by stop(): The providers release their connections and threads (hedging, polling)
+        if (router != null) {
+            router.stop();
+            router = null;
+        }
+        segmentExecutor.shutdownNow();
+        batchPrepareExecutor.shutdownNow();
+        batchTranscribeExecutor.shutdownNow();
+        asyncExecutor.shutdown();
         super.deactivate(context);
     }
 
+    @Override
+    public void start(ComponentContext context) {
+        router = createRouter();
+        router.start();
+        transcriptIndex = createTranscriptIndex();
+    }
+
+    @Override
+    public void stop(ComponentContext context) throws InterruptedException {
+        if (router != null) {
+            router.stop();
+            router = null;
+        }
+        if (transcriptIndex != null) {
+            try {
+                transcriptIndex.close();
+            } catch (IOException e) {
+                log.error("Cannot flush the transcript index", e);
+            }
+            transcriptIndex = null;
+        }
+    }
+
     /**
      * Application started notification. Called after the application started. You can do here any initialization that
      * requires a working application (all resolved bundles and components are active at that moment)
@@ -76,25 +246,598 @@ public class SpeechToTextImpl extends DefaultComponent implements SpeechToText {
 
     @Override
     public void registerContribution(Object contribution, String extensionPoint, ComponentInstance contributor) {
-        // Add some logic here to handle contributions
+        if (RESILIENCE_XP.equals(extensionPoint)) {
+            // The last one wins
+            setResilienceDescriptor((ResilienceDescriptor) contribution);
+        } else if (PROVIDERS_XP.equals(extensionPoint)) {
+            ProviderDescriptor descriptor = (ProviderDescriptor) contribution;
+            if (descriptor.isEnabled()) {
+                providerDescriptors.put(descriptor.getName(), descriptor);
+            } else {
+                providerDescriptors.remove(descriptor.getName());
+            }
+        }
     }
 
     @Override
     public void unregisterContribution(Object contribution, String extensionPoint, ComponentInstance contributor) {
-        // Logic to do when unregistering any contribution
+        if (RESILIENCE_XP.equals(extensionPoint)) {
+            setResilienceDescriptor(null);
+        } else if (PROVIDERS_XP.equals(extensionPoint)) {
+            providerDescriptors.remove(((ProviderDescriptor) contribution).getName());
+        }
+    }
+
+    protected void setResilienceDescriptor(ResilienceDescriptor descriptor) {
+        resilienceDescriptor = descriptor;
+        if (router != null) {
+            router.setResilienceDescriptor(descriptor);
+        }
+    }
+
+    /*
+     * One instance per contribution, each with its own connections and limits
+     */
+    protected ProviderRouter createRouter() {
+
+        List<RoutedProvider> providers = new ArrayList<>();
+        for (ProviderDescriptor descriptor : providerDescriptors.values()) {
+            SpeechToTextProvider provider;
+            try {
+                provider = descriptor.getKlass().getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                throw new NuxeoException("Cannot create the speech-to-text provider " + descriptor.getName(), e);
+            }
+            provider.initialize(descriptor.getName(), descriptor.getProperties());
+            provider.setResilienceDescriptor(resilienceDescriptor);
+            providers.add(new RoutedProvider(descriptor, provider));
+        }
+        if (providers.isEmpty()) {
+            log.warn("No speech-to-text provider contributed to the " + PROVIDERS_XP + " extension point");
+        }
+
+        return new ProviderRouter(providers,
+                ConfigurationHelper.getInt(ProviderRouter.FAILURE_THRESHOLD_PARAM,
+                        ProviderRouter.DEFAULT_FAILURE_THRESHOLD),
+                ConfigurationHelper.getInt(ProviderRouter.DEGRADED_SECONDS_PARAM,
+                        ProviderRouter.DEFAULT_DEGRADED_SECONDS));
+    }
+
+    /**
+     * @since 2023.0.1
+     */
+    public ProviderRouter getRouter() {
+        return router;
+    }
+
+    /*
+     * The calls in progress, all providers included, are the inflight gauge of the service metrics. The audio is probed
+     * once by the caller: The duration picks the provider, the probe is passed to it.
+     */
+    protected <T> T route(double audioSeconds, String languageCode, Function<SpeechToTextProvider, T> call) {
+
+        if (router == null) {
+            throw new NuxeoException("The speech-to-text service is not started");
+        }
+        return route(router.select(languageCode, audioSeconds), audioSeconds, languageCode, call);
+    }
+
+    /*
+     * The providers are already selected, the first one prepared the audio (see prepareBatchItem)
+     */
+    protected <T> T route(List<RoutedProvider> candidates, double audioSeconds, String languageCode,
+            Function<SpeechToTextProvider, T> call) {
+
+        if (router == null) {
+            throw new NuxeoException("The speech-to-text service is not started");
+        }
+        metrics.callStarted();
+        try {
+            return router.call(candidates, languageCode, audioSeconds, call);
+        } finally {
+            metrics.callEnded();
+        }
+    }
+
+    protected TranscriptCache createCache() {
+
+        int maxMemorySize = Math.max(0,
+                ConfigurationHelper.getInt(CACHE_MAX_MEMORY_SIZE_PARAM, DEFAULT_CACHE_MAX_MEMORY_SIZE));
+        KeyValueStore store = null;
+        String storeName = ConfigurationHelper.getString(CACHE_KEY_VALUE_STORE_PARAM, null);
+        if (storeName != null) {
+            store = Framework.getService(KeyValueService.class).getKeyValueStore(storeName);
+        }
+        if (maxMemorySize == 0 && store == null) {
+            return null;
+        }
+
+        return new TranscriptCache(maxMemorySize, store,
+                ConfigurationHelper.getInt(CACHE_TTL_PARAM, DEFAULT_CACHE_TTL));
+    }
+
+    /**
+     * @return the cache of the transcripts, null if disabled
+     * @since 2023.0.1
+     */
+    public TranscriptCache getCache() {
+        return cache;
+    }
+
+    /*
+     * In the data directory by default. An index that cannot be opened is logged, and disabled. Disabled by default in
+     * a cluster, see TranscriptIndex
+     */
+    protected TranscriptIndex createTranscriptIndex() {
+
+        // Local files, updated on the node that runs the indexing Work: Not consistent across the nodes of a cluster
+        boolean cluster = ConfigurationHelper.getBoolean(TranscriptIndex.CLUSTER_ENABLED_PARAM, false);
+        if (!ConfigurationHelper.getBoolean(TranscriptIndex.ENABLED_PARAM, !cluster)) {
+            return null;
+        }
+        if (cluster) {
+            log.warn("The transcript index is local to each node, in a cluster it only finds the transcripts indexed"
+                    + " on this node. Set " + TranscriptIndex.ENABLED_PARAM + "=false to disable it");
+        }
+        String directory = ConfigurationHelper.getString(TranscriptIndex.DIRECTORY_PARAM, null);
+        File dir = directory == null ? new File(Environment.getDefault().getData(), "speechtotext-index")
+                : new File(directory);
+        TranscriptIndex index = new TranscriptIndex(dir.toPath(),
+                ConfigurationHelper.getInt(TranscriptIndex.MAX_BUFFERED_POSTINGS_PARAM,
+                        TranscriptIndex.DEFAULT_MAX_BUFFERED_POSTINGS),
+                ConfigurationHelper.getInt(TranscriptIndex.MAX_SEGMENTS_PARAM, TranscriptIndex.DEFAULT_MAX_SEGMENTS),
+                ConfigurationHelper.getInt(TranscriptIndex.MAX_MERGED_SEGMENT_MB_PARAM,
+                        TranscriptIndex.DEFAULT_MAX_MERGED_SEGMENT_MB) * 1024L * 1024L);
+        try {
+            index.open();
+        } catch (IOException e) {
+            log.error("Cannot open the transcript index " + dir + ", transcripts will not be indexed", e);
+            return null;
+        }
+        index.startFlusher(
+                ConfigurationHelper.getInt(TranscriptIndex.FLUSH_INTERVAL_PARAM, TranscriptIndex.DEFAULT_FLUSH_INTERVAL));
+        return index;
+    }
+
+    @Override
+    public void setTranscript(DocumentModel doc, SpeechToTextResponse response, String languageCode) {
+
+        if (!doc.hasFacet(TRANSCRIPT_FACET)) {
+            doc.addFacet(TRANSCRIPT_FACET);
+        }
+        WordTimings timings = response.getWordTimings(true);
+        doc.setPropertyValue(TRANSCRIPT_TEXT_XPATH, response.getText());
+        doc.setPropertyValue(TRANSCRIPT_LANGUAGE_XPATH, languageCode);
+        doc.setPropertyValue(TRANSCRIPT_WORD_COUNT_XPATH, (long) timings.size());
+        doc.setPropertyValue(TRANSCRIPT_WORD_TIMINGS_XPATH, WordTimingsCodec.toBlob(timings));
+    }
+
+    @Override
+    public WordTimings getWords(Blob wordTimings, double fromSeconds, double toSeconds) {
+
+        if (wordTimings == null) {
+            return WordTimings.EMPTY;
+        }
+        try {
+            return WordTimingsCodec.read(wordTimings, fromSeconds, toSeconds);
+        } catch (IOException e) {
+            throw new NuxeoException("Cannot read the word timings", e);
+        }
+    }
+
+    @Override
+    public WordTimings getWords(DocumentModel doc, double fromSeconds, double toSeconds) {
+
+        if (!doc.hasFacet(TRANSCRIPT_FACET)) {
+            return WordTimings.EMPTY;
+        }
+        return getWords((Blob) doc.getPropertyValue(TRANSCRIPT_WORD_TIMINGS_XPATH), fromSeconds, toSeconds);
+    }
+
+    @Override
+    public TranscriptIndex getTranscriptIndex() {
+        return transcriptIndex;
     }
 
     @Override
     public SpeechToTextResponse run(SpeechToTextOptions options, Blob blob, String languageCode, JSONObject moreOptions) {
 
-        return googleProvider.run(options, blob, languageCode, moreOptions);
+        String key = getRequestKey(options, blob, null, -1, languageCode, moreOptions);
+        SpeechToTextResponse response = getCached(key);
+        countCacheAccess(response != null, languageCode);
+        if (response != null) {
+            return response;
+        }
+
+        return runOnce(key, () -> {
+            if (options != null && options.getMaxSegmentSeconds() > 0) {
+                return runSegmented(options, blob, languageCode, moreOptions);
+            }
+            AudioProbe probe = AudioProbe.tryProbe(blob);
+            return route(AudioProbe.durationSeconds(probe), languageCode,
+                    provider -> provider.run(options, blob, probe, languageCode, moreOptions));
+        });
     }
 
     @Override
     public SpeechToTextResponse run(SpeechToTextOptions options, Blob blob, String audioEncoding, int sampleRateHertz,
             String languageCode, JSONObject moreOptions) {
 
-        return googleProvider.run(options, blob, audioEncoding, sampleRateHertz, languageCode, moreOptions);
+        String key = getRequestKey(options, blob, audioEncoding, sampleRateHertz, languageCode, moreOptions);
+        SpeechToTextResponse response = getCached(key);
+        countCacheAccess(response != null, languageCode);
+        if (response != null) {
+            return response;
+        }
+
+        return runOnce(key, () -> {
+            AudioProbe probe = AudioProbe.tryProbe(blob);
+            return route(AudioProbe.durationSeconds(probe), languageCode, provider -> provider.run(options, blob,
+                    probe, audioEncoding, sampleRateHertz, languageCode, moreOptions));
+        });
+    }
+
+    @Override
+    public CompletableFuture<SpeechToTextResponse> runAsync(SpeechToTextOptions options, Blob blob,
+            String languageCode, JSONObject moreOptions) {
+        return asyncExecutor.submit(() -> run(options, blob, languageCode, moreOptions));
+    }
+
+    @Override
+    public CompletableFuture<SpeechToTextResponse> runAsync(SpeechToTextOptions options, Blob blob,
+            String audioEncoding, int sampleRateHertz, String languageCode, JSONObject moreOptions) {
+        return asyncExecutor.submit(
+                () -> run(options, blob, audioEncoding, sampleRateHertz, languageCode, moreOptions));
+    }
+
+    @Override
+    public SpeechToTextJob runLongRunning(SpeechToTextOptions options, Blob blob, String languageCode,
+            JSONObject moreOptions) {
+
+        String key = getRequestKey(options, blob, null, -1, languageCode, moreOptions);
+        SpeechToTextJob job = getCachedJob(key);
+        countCacheAccess(job != null, languageCode);
+        if (job == null) {
+            AudioProbe probe = AudioProbe.tryProbe(blob);
+            job = route(AudioProbe.durationSeconds(probe), languageCode,
+                    provider -> provider.runLongRunning(options, blob, probe, languageCode, moreOptions));
+            job.getResult().thenAccept(response -> putCached(key, response));
+        }
+
+        return job;
+    }
+
+    @Override
+    public SpeechToTextJob runLongRunning(SpeechToTextOptions options, Blob blob, String audioEncoding,
+            int sampleRateHertz, String languageCode, JSONObject moreOptions) {
+
+        String key = getRequestKey(options, blob, audioEncoding, sampleRateHertz, languageCode, moreOptions);
+        SpeechToTextJob job = getCachedJob(key);
+        countCacheAccess(job != null, languageCode);
+        if (job == null) {
+            AudioProbe probe = AudioProbe.tryProbe(blob);
+            job = route(AudioProbe.durationSeconds(probe), languageCode, provider -> provider.runLongRunning(options,
+                    blob, probe, audioEncoding, sampleRateHertz, languageCode, moreOptions));
+            job.getResult().thenAccept(response -> putCached(key, response));
+        }
+
+        return job;
+    }
+
+    @Override
+    public SpeechToTextJob runLongRunning(DocumentModel doc, String blobXpath, String transcriptXpath,
+            SpeechToTextOptions options, String languageCode, JSONObject moreOptions) {
+
+        String docId = doc.getId();
+        String repositoryName = doc.getRepositoryName();
+        if (docId == null) {
+            throw new NuxeoException("The document must be created before running a long running recognition");
+        }
+
+        Blob blob = (Blob) doc.getPropertyValue(blobXpath);
+        if (blob == null) {
+            throw new NuxeoException("No blob in " + blobXpath + " for document " + docId);
+        }
+
+        SpeechToTextJob job = runLongRunning(options, blob, languageCode, moreOptions);
+        /*
+         * The result is completed by the poller of the provider (or here, on a cache hit): The save runs in a Work,
+         * after the commit of the current transaction, not on that thread.
+         */
+        job.getResult().thenAccept(response -> {
+            Work work = new TranscriptSaveWork(repositoryName, docId, transcriptXpath, response.getText(),
+                    languageCode);
+            Framework.getService(WorkManager.class).schedule(work, true);
+        }).exceptionally(e -> {
+            log.error("Cannot save the transcript of " + job.getId() + " to document " + docId, e);
+            return null;
+        });
+
+        return job;
+    }
+
+    /*
+     * The audio is converted by the provider the router would pick now. The cache is checked before converting it.
+     */
+    @Override
+    public Stream<SpeechToTextBatchResult> runBatch(Iterator<SpeechToTextBatchItem> items) {
+
+        SpeechToTextBatch<BatchAudio> batch = new SpeechToTextBatch<>(items,
+                ConfigurationHelper.getInt(BATCH_MAX_IN_FLIGHT_PARAM, DEFAULT_BATCH_MAX_IN_FLIGHT),
+                this::prepareBatchItem, this::transcribeBatchItem, this::disposeBatchItem, batchPrepareExecutor,
+                batchTranscribeExecutor);
+        return batch.stream();
+    }
+
+    protected BatchAudio prepareBatchItem(SpeechToTextBatchItem item) {
+
+        String languageCode = item.getLanguageCode();
+        String key = getRequestKey(item.getOptions(), item.getBlob(), null, -1, languageCode, item.getMoreOptions());
+        SpeechToTextResponse response = getCached(key);
+        countCacheAccess(response != null, languageCode);
+        // Segmented audio is converted and sent by run()
+        if (response != null || item.getOptions().getMaxSegmentSeconds() > 0) {
+            return new BatchAudio(key, List.of(), item.getBlob(), null, null, 0, response);
+        }
+
+        if (router == null) {
+            throw new NuxeoException("The speech-to-text service is not started");
+        }
+        AudioProbe probe = AudioProbe.tryProbe(item.getBlob());
+        double audioSeconds = AudioProbe.durationSeconds(probe);
+        List<RoutedProvider> candidates = router.select(languageCode, audioSeconds);
+        Blob blob = candidates.isEmpty() ? item.getBlob()
+                : candidates.get(0).getProvider().prepareAudio(item.getBlob(), probe, languageCode);
+        // The converted audio is probed here, not by the transcribe stage
+        return new BatchAudio(key, candidates, blob, blob == item.getBlob() ? probe : AudioProbe.tryProbe(blob), probe,
+                audioSeconds, null);
+    }
+
+    protected SpeechToTextResponse transcribeBatchItem(SpeechToTextBatchItem item, BatchAudio audio) {
+
+        if (audio.response != null) {
+            return audio.response;
+        }
+        SpeechToTextOptions options = item.getOptions();
+        String languageCode = item.getLanguageCode();
+        JSONObject moreOptions = item.getMoreOptions();
+        if (options.getMaxSegmentSeconds() > 0) {
+            return run(options, item.getBlob(), languageCode, moreOptions);
+        }
+        // Cached with the key of the original audio. The audio was prepared for the first provider, another one
+        // (failover) prepares the original audio again: A streamed conversion can be read only once.
+        SpeechToTextProvider prepared = audio.getProvider();
+        return runOnce(audio.key, () -> route(audio.candidates, audio.audioSeconds, languageCode, provider -> {
+            if (provider == prepared) {
+                return provider.run(options, audio.blob, audio.probe, languageCode, moreOptions);
+            }
+            return provider.run(options, item.getBlob(), audio.sourceProbe, languageCode, moreOptions);
+        }));
+    }
+
+    /*
+     * The item is transcribed, failed or was cancelled: The provider deletes what it created to prepare the audio
+     */
+    protected void disposeBatchItem(SpeechToTextBatchItem item, BatchAudio audio) {
+        SpeechToTextProvider provider = audio.getProvider();
+        if (provider != null) {
+            provider.disposePreparedAudio(item.getBlob(), audio.blob);
+        }
+    }
+
+    /*
+     * The result of the prepare stage of a batch: the providers selected, the audio converted by the first one and its
+     * probe, or the cached response. The duration is the one of the original audio.
+     */
+    protected static class BatchAudio {
+
+        protected final String key;
+
+        // Empty if the audio was not prepared by a provider
+        protected final List<RoutedProvider> candidates;
+
+        protected final Blob blob;
+
+        protected final AudioProbe probe;
+
+        // Of the original audio
+        protected final AudioProbe sourceProbe;
+
+        protected final double audioSeconds;
+
+        protected final SpeechToTextResponse response;
+
+        protected BatchAudio(String key, List<RoutedProvider> candidates, Blob blob, AudioProbe probe,
+                AudioProbe sourceProbe, double audioSeconds, SpeechToTextResponse response) {
+            this.key = key;
+            this.candidates = candidates;
+            this.blob = blob;
+            this.probe = probe;
+            this.sourceProbe = sourceProbe;
+            this.audioSeconds = audioSeconds;
+            this.response = response;
+        }
+
+        // The provider which prepared the audio, null if none
+        protected SpeechToTextProvider getProvider() {
+            return candidates.isEmpty() ? null : candidates.get(0).getProvider();
+        }
+    }
+
+    /*
+     * Identifies the audio and everything that changes the result. Used for the cache and to coalesce identical calls.
+     * When the cache is disabled, null for a blob without a digest (not stored in the repository): Computing it means
+     * reading all of it, just to coalesce the calls.
+     */
+    protected String getRequestKey(SpeechToTextOptions options, Blob blob, String audioEncoding, int sampleRateHertz,
+            String languageCode, JSONObject moreOptions) {
+
+        if (cache == null && StringUtils.isBlank(blob.getDigest())) {
+            return null;
+        }
+        return TranscriptCacheKey.compute(blob, options, audioEncoding, sampleRateHertz, languageCode, moreOptions);
+    }
+
+    /*
+     * Identical calls in progress share the same result. Without a key (cache disabled and no digest), the call is
+     * just made
+     */
+    protected SpeechToTextResponse runOnce(String key, Supplier<SpeechToTextResponse> call) {
+
+        if (key == null) {
+            return call.get();
+        }
+        return inFlight.execute(key, () -> runAndCache(key, call));
+    }
+
+    /*
+     * Checks the cache again: Another thread may have stored the response between our first check and the start of
+     * this call.
+     */
+    protected SpeechToTextResponse runAndCache(String key, Supplier<SpeechToTextResponse> call) {
+
+        SpeechToTextResponse response = getCached(key);
+        if (response == null) {
+            response = call.get();
+            putCached(key, response);
+        }
+        return response;
+    }
+
+    protected void countCacheAccess(boolean hit, String languageCode) {
+        if (cache == null) {
+            return;
+        }
+        if (hit) {
+            getMetrics().cacheHit(languageCode);
+        } else {
+            getMetrics().cacheMiss(languageCode);
+        }
+    }
+
+    @Override
+    public SpeechToTextMetrics getMetrics() {
+        return metrics;
+    }
+
+    protected SpeechToTextResponse getCached(String key) {
+        return cache == null ? null : cache.get(key);
+    }
+
+    protected void putCached(String key, SpeechToTextResponse response) {
+        if (cache != null) {
+            cache.put(key, response);
+        }
+    }
+
+    /*
+     * A cache hit is returned as an already completed job
+     */
+    protected SpeechToTextJob getCachedJob(String key) {
+
+        SpeechToTextResponse response = getCached(key);
+        if (response == null) {
+            return null;
+        }
+
+        SpeechToTextJob job = new SpeechToTextJob("cache:" + key);
+        job.getResult().complete(response);
+        return job;
+    }
+
+    /*
+     * Segments are sent to the provider as soon as they are cut, so transcription of the first segments overlaps with
+     * the cutting of the next ones.
+     */
+    protected SpeechToTextResponse runSegmented(SpeechToTextOptions options, Blob blob, String languageCode,
+            JSONObject moreOptions) {
+
+        AudioSegmenter segmenter = new AudioSegmenter(options.getMaxSegmentSeconds(),
+                ConfigurationHelper.getInt(SEGMENTATION_SILENCE_SEARCH_PARAM, DEFAULT_SEGMENTATION_SILENCE_SEARCH));
+
+        List<AudioSegment> segments = new ArrayList<>();
+        List<Future<SpeechToTextResponse>> futures = new ArrayList<>();
+        boolean ok = false;
+        try {
+            Blob wav;
+            try (Timer.Context timer = getMetrics().timer("normalize", languageCode).time()) {
+                wav = toPCMWav(blob);
+            }
+            segmenter.split(wav, segment -> {
+                segments.add(segment);
+                futures.add(segmentExecutor.submit(() -> transcribeSegment(options, segment, languageCode,
+                        moreOptions)));
+            });
+
+            List<SpeechToTextResponse> responses = new ArrayList<>(futures.size());
+            for (Future<SpeechToTextResponse> future : futures) {
+                responses.add(future.get());
+            }
+            ok = true;
+
+            return new SegmentedSpeechToTextResponse(segments, responses);
+
+        } catch (IOException e) {
+            throw new NuxeoException("Error splitting the audio in segments", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NuxeoException("Interrupted while transcribing the segments", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NuxeoException) {
+                throw (NuxeoException) cause;
+            }
+            throw new NuxeoException("Error transcribing a segment", cause);
+        } finally {
+            if (!ok) {
+                futures.forEach(future -> future.cancel(true));
+            }
+        }
+    }
+
+    protected SpeechToTextResponse transcribeSegment(SpeechToTextOptions options, AudioSegment segment,
+            String languageCode, JSONObject moreOptions) {
+
+        try {
+            // The segment is a WAV, no conversion needed
+            AudioProbe probe = AudioProbe.tryProbe(segment.getBlob());
+            return route(AudioProbe.durationSeconds(probe), languageCode, provider -> provider.run(options,
+                    segment.getBlob(), probe, null, -1, languageCode, moreOptions));
+        } finally {
+            File file = segment.getBlob().getFile();
+            if (file != null) {
+                file.delete();
+            }
+        }
+    }
+
+    /*
+     * The segmenter works on 16 bits mono PCM. Other WAV are converted in the JVM when possible, other formats with
+     * ffmpeg.
+     */
+    protected Blob toPCMWav(Blob blob) throws IOException {
+
+        WavHeader header = WavHeader.read(blob);
+        if (header != null && header.isPCM() && header.getBitsPerSample() == 16 && header.getChannels() == 1) {
+            return blob;
+        }
+
+        int maxSampleRate = ConfigurationHelper.getInt(WavNormalizer.MAX_SAMPLE_RATE_PARAM,
+                WavNormalizer.DEFAULT_MAX_SAMPLE_RATE);
+        if (maxSampleRate > 0 && WavNormalizer.canNormalize(header)) {
+            return new WavNormalizer(maxSampleRate).normalize(blob);
+        }
+
+        // The segmenter reads the WAV while ffmpeg writes it
+        if (ConfigurationHelper.getBoolean(FFmpegPipeBlob.STREAMING_CONVERSION_PARAM, false)
+                && FFmpegPipeBlob.isAvailable(AUDIO_TO_WAV_PIPE_COMMAND)) {
+            return FFmpegPipeBlob.fromCommandLine(blob, AUDIO_TO_WAV_PIPE_COMMAND, "audio/wav", ".wav");
+        }
+
+        ConversionService service = Framework.getService(ConversionService.class);
+        BlobHolder result = service.convert(AUDIO_TO_WAV_CONVERTER, new SimpleBlobHolder(blob), new HashMap<>());
+
+        return result.getBlob();
     }
 
 }
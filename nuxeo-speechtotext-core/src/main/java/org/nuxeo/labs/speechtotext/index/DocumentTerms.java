@@ -0,0 +1,133 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.index;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import org.nuxeo.labs.speechtotext.api.WordTimings;
+
+/**
+ * The terms and n-grams of one transcript, each with its postings: the position of its first word in the transcript
+ * and its start time.
+ *
+ * @since 2023.0.1
+ */
+public class DocumentTerms {
+
+    public static final DocumentTerms EMPTY = new DocumentTerms(0, Collections.emptyMap(), 0);
+
+    protected final int length;
+
+    // term => position, start (ms), position, start...
+    protected final Map<String, int[]> postings;
+
+    protected final int postingCount;
+
+    protected DocumentTerms(int length, Map<String, int[]> postings, int postingCount) {
+        this.length = length;
+        this.postings = postings;
+        this.postingCount = postingCount;
+    }
+
+    public static DocumentTerms from(WordTimings words) {
+
+        int[] order = IntStream.range(0, words.size())
+                               .boxed()
+                               .sorted(Comparator.comparingDouble(words::getStart))
+                               .mapToInt(Integer::intValue)
+                               .toArray();
+        String[] terms = new String[order.length];
+        int[] starts = new int[order.length];
+        int length = 0;
+        for (int i : order) {
+            String term = TranscriptTokenizer.normalize(words.getWord(i));
+            if (!term.isEmpty()) {
+                terms[length] = term;
+                starts[length] = (int) Math.round(words.getStart(i) * 1000d);
+                length++;
+            }
+        }
+
+        Map<String, IntList> lists = new HashMap<>();
+        int postingCount = 0;
+        for (int position = 0; position < length; position++) {
+            StringBuilder ngram = new StringBuilder();
+            for (int n = 0; n < TranscriptTokenizer.MAX_NGRAM && position + n < length; n++) {
+                if (n > 0) {
+                    ngram.append(' ');
+                }
+                ngram.append(terms[position + n]);
+                IntList list = lists.computeIfAbsent(ngram.toString(), k -> new IntList());
+                list.add(position);
+                list.add(starts[position]);
+                postingCount++;
+            }
+        }
+
+        Map<String, int[]> postings = new HashMap<>(lists.size() * 4 / 3 + 1);
+        lists.forEach((term, list) -> postings.put(term, list.toArray()));
+        return new DocumentTerms(length, postings, postingCount);
+    }
+
+    /**
+     * @return the number of words
+     */
+    public int getLength() {
+        return length;
+    }
+
+    public int getPostingCount() {
+        return postingCount;
+    }
+
+    /**
+     * @return position, start (ms), position, start... ordered by position, null if the term is not in the transcript
+     */
+    public int[] getPostings(String term) {
+        return postings.get(term);
+    }
+
+    public Map<String, int[]> getPostings() {
+        return Collections.unmodifiableMap(postings);
+    }
+
+    protected static class IntList {
+
+        protected int[] values = new int[4];
+
+        protected int size = 0;
+
+        protected void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        protected int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+}
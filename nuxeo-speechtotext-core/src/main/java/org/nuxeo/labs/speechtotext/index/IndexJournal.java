@@ -0,0 +1,135 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.index;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Append only log of the documents indexed in the buffer of the transcript index, so they are not lost if the node
+ * stops before the buffer is written as a segment: Each document is written and forced to the disk before
+ * {@link TranscriptIndex#index(String, DocumentTerms)} returns, and the journals are replayed by
+ * {@link TranscriptIndex#open()}. A journal is deleted once its documents are in a segment.
+ * <p>
+ * Each record is its length, then the key of the document (UTF), its number of words, its number of postings and its
+ * number of terms, and for each term: the term (UTF), the number of values and the values (position, start...). A
+ * record truncated by a crash is ignored.
+ *
+ * @since 2023.0.1
+ */
+public class IndexJournal implements Closeable {
+
+    protected final Path file;
+
+    protected final FileChannel channel;
+
+    protected final ByteArrayOutputStream record = new ByteArrayOutputStream();
+
+    public IndexJournal(Path file) throws IOException {
+        this.file = file;
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public void append(String docKey, DocumentTerms terms) throws IOException {
+
+        record.reset();
+        DataOutputStream out = new DataOutputStream(record);
+        // Length, written below
+        out.writeInt(0);
+        out.writeUTF(docKey);
+        out.writeInt(terms.getLength());
+        out.writeInt(terms.getPostingCount());
+        out.writeInt(terms.postings.size());
+        for (Map.Entry<String, int[]> entry : terms.postings.entrySet()) {
+            out.writeUTF(entry.getKey());
+            int[] values = entry.getValue();
+            out.writeInt(values.length);
+            for (int value : values) {
+                out.writeInt(value);
+            }
+        }
+        out.flush();
+
+        ByteBuffer buffer = ByteBuffer.wrap(record.toByteArray());
+        buffer.putInt(0, buffer.capacity() - Integer.BYTES);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Reads the documents of a journal, in the order they were indexed
+     */
+    public static void replay(Path file, BiConsumer<String, DocumentTerms> consumer) throws IOException {
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            for (;;) {
+                byte[] bytes;
+                try {
+                    bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                } catch (EOFException | NegativeArraySizeException e) {
+                    // End of the journal, or a record truncated by a crash
+                    return;
+                }
+                DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(bytes));
+                String docKey = recordIn.readUTF();
+                int length = recordIn.readInt();
+                int postingCount = recordIn.readInt();
+                int termCount = recordIn.readInt();
+                Map<String, int[]> postings = new HashMap<>(termCount * 4 / 3 + 1);
+                for (int i = 0; i < termCount; i++) {
+                    String term = recordIn.readUTF();
+                    int[] values = new int[recordIn.readInt()];
+                    for (int j = 0; j < values.length; j++) {
+                        values[j] = recordIn.readInt();
+                    }
+                    postings.put(term, values);
+                }
+                consumer.accept(docKey, new DocumentTerms(length, postings, postingCount));
+            }
+        }
+    }
+
+}
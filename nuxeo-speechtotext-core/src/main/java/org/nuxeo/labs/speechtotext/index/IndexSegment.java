@@ -0,0 +1,304 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.index;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+/**
+ * An immutable part of the transcript index, memory mapped: Searching a term is a binary search in the mapped term
+ * table, then reading its postings, nothing is loaded in the heap but the keys of the documents.
+ * <p>
+ * Layout (big endian):
+ * <ul>
+ * <li>Header: magic ("STTI"), version, number of documents, number of terms, offsets of the term bytes, of the term
+ * table and of the documents</li>
+ * <li>Postings of each term: document (delta from the previous posting, 0 for the same document), position of the
+ * first word (delta in the document), start time in ms (delta in the document), as varints</li>
+ * <li>Term bytes: length (2 bytes) and UTF-8 bytes of each term, in byte order</li>
+ * <li>Term table: for each term, offset of its bytes, offset and number of its postings, number of documents (20
+ * bytes)</li>
+ * <li>Documents: key (modified UTF-8) and number of words</li>
+ * </ul>
+ * A document indexed again, or removed, is in a newer segment: Its postings in this one are ignored (see
+ * {@link #isDeleted(int)}) until the segments are merged.
+ *
+ * @since 2023.0.1
+ */
+public class IndexSegment {
+
+    public static final int MAGIC = 0x53545449;
+
+    public static final byte VERSION = 1;
+
+    public static final int HEADER_LENGTH = 4 + 1 + 4 + 4 + 8 + 8 + 8;
+
+    protected static final int TERM_ENTRY_LENGTH = 4 + 8 + 4 + 4;
+
+    protected final long number;
+
+    protected final Path file;
+
+    protected final ByteBuffer buffer;
+
+    protected final int termCount;
+
+    protected final int termBytesOffset;
+
+    protected final int termTableOffset;
+
+    protected final String[] docKeys;
+
+    protected final int[] docLengths;
+
+    // Documents indexed again, or removed, in a newer segment. Maintained by the index
+    protected final BitSet deleted = new BitSet();
+
+    protected IndexSegment(long number, Path file, ByteBuffer buffer) throws IOException {
+
+        this.number = number;
+        this.file = file;
+        this.buffer = buffer;
+        if (buffer.getInt(0) != MAGIC || buffer.get(4) != VERSION) {
+            throw new IOException("Not a transcript index segment: " + file);
+        }
+        int docCount = buffer.getInt(5);
+        termCount = buffer.getInt(9);
+        termBytesOffset = (int) buffer.getLong(13);
+        termTableOffset = (int) buffer.getLong(21);
+        int docsOffset = (int) buffer.getLong(29);
+
+        docKeys = new String[docCount];
+        docLengths = new int[docCount];
+        ByteBuffer docs = buffer.duplicate();
+        docs.position(docsOffset);
+        try (DataInputStream in = new DataInputStream(new ByteBufferInputStream(docs))) {
+            for (int i = 0; i < docCount; i++) {
+                docKeys[i] = in.readUTF();
+                docLengths[i] = in.readInt();
+            }
+        }
+    }
+
+    public static IndexSegment open(long number, Path file) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Transcript index segment too large: " + file);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return new IndexSegment(number, file, buffer);
+        }
+    }
+
+    public long getNumber() {
+        return number;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public long getSize() throws IOException {
+        return Files.size(file);
+    }
+
+    public int getDocCount() {
+        return docKeys.length;
+    }
+
+    public String getDocKey(int doc) {
+        return docKeys[doc];
+    }
+
+    public int getDocLength(int doc) {
+        return docLengths[doc];
+    }
+
+    /**
+     * @return true if the document was indexed again, or removed, in a newer segment
+     */
+    public boolean isDeleted(int doc) {
+        return deleted.get(doc);
+    }
+
+    public int getTermCount() {
+        return termCount;
+    }
+
+    /**
+     * @return the index of the term, -1 if not found
+     */
+    public int findTerm(String term) {
+
+        byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = termCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int cmp = compareTerm(middle, bytes);
+            if (cmp < 0) {
+                low = middle + 1;
+            } else if (cmp > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    protected int compareTerm(int index, byte[] bytes) {
+
+        int offset = termBytesOffset + buffer.getInt(termTableOffset + index * TERM_ENTRY_LENGTH);
+        int length = ((buffer.get(offset) & 0xFF) << 8) | (buffer.get(offset + 1) & 0xFF);
+        offset += 2;
+        int max = Math.min(length, bytes.length);
+        for (int i = 0; i < max; i++) {
+            int cmp = (buffer.get(offset + i) & 0xFF) - (bytes[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - bytes.length;
+    }
+
+    public byte[] getTerm(int index) {
+
+        int offset = termBytesOffset + buffer.getInt(termTableOffset + index * TERM_ENTRY_LENGTH);
+        int length = ((buffer.get(offset) & 0xFF) << 8) | (buffer.get(offset + 1) & 0xFF);
+        byte[] bytes = new byte[length];
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(offset + 2);
+        slice.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return the number of documents with the term (live or not)
+     */
+    public int getDocFrequency(int index) {
+        return buffer.getInt(termTableOffset + index * TERM_ENTRY_LENGTH + 16);
+    }
+
+    public PostingsCursor postings(int index) {
+        int entry = termTableOffset + index * TERM_ENTRY_LENGTH;
+        return new PostingsCursor(buffer, (int) buffer.getLong(entry + 4), buffer.getInt(entry + 12));
+    }
+
+    /**
+     * Reads the postings of a term, in order
+     */
+    public static class PostingsCursor {
+
+        protected final ByteBuffer buffer;
+
+        protected int offset;
+
+        protected int remaining;
+
+        protected int doc = -1;
+
+        protected int position;
+
+        protected int startMs;
+
+        protected PostingsCursor(ByteBuffer buffer, int offset, int count) {
+            this.buffer = buffer;
+            this.offset = offset;
+            remaining = count;
+        }
+
+        public boolean next() {
+
+            if (remaining == 0) {
+                return false;
+            }
+            remaining--;
+            int docDelta = readVarInt();
+            if (docDelta != 0) {
+                doc += docDelta;
+                position = 0;
+                startMs = 0;
+            }
+            position += readVarInt();
+            startMs += readVarInt();
+            return true;
+        }
+
+        public int getDoc() {
+            return doc;
+        }
+
+        public int getPosition() {
+            return position;
+        }
+
+        public int getStartMs() {
+            return startMs;
+        }
+
+        protected int readVarInt() {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.get(offset++);
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+    }
+
+    protected static class ByteBufferInputStream extends InputStream {
+
+        protected final ByteBuffer buffer;
+
+        protected ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+    }
+
+}
@@ -0,0 +1,168 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.index;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.apache.commons.io.output.CountingOutputStream;
+
+/**
+ * Writes a segment of the transcript index (see {@link IndexSegment} for the format): the terms, in order, each with
+ * its postings ordered by document and position, then the documents.
+ *
+ * @since 2023.0.1
+ */
+public class SegmentWriter implements Closeable {
+
+    protected final Path file;
+
+    protected final CountingOutputStream counter;
+
+    protected final DataOutputStream out;
+
+    protected final ByteArrayOutputStream termBytes = new ByteArrayOutputStream();
+
+    protected final DataOutputStream termTable;
+
+    protected final ByteArrayOutputStream termTableBytes = new ByteArrayOutputStream();
+
+    protected int termCount = 0;
+
+    // Current term
+    protected byte[] term;
+
+    protected long postingsOffset;
+
+    protected int postingCount;
+
+    protected int docFrequency;
+
+    protected int previousDoc;
+
+    protected int previousPosition;
+
+    protected int previousStart;
+
+    public SegmentWriter(Path file) throws IOException {
+        this.file = file;
+        counter = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+        out = new DataOutputStream(counter);
+        termTable = new DataOutputStream(termTableBytes);
+        // Offsets written by finish
+        out.write(new byte[IndexSegment.HEADER_LENGTH]);
+    }
+
+    /**
+     * @param term UTF-8 bytes of the term, greater than the previous one
+     */
+    public void startTerm(byte[] term) {
+        this.term = term;
+        postingsOffset = counter.getByteCount();
+        postingCount = 0;
+        docFrequency = 0;
+        previousDoc = -1;
+    }
+
+    /**
+     * Documents in increasing order, positions in increasing order for a document
+     */
+    public void addPosting(int doc, int position, int startMs) throws IOException {
+
+        // 0 for the same document, the first document of the term is the delta from -1
+        writeVarInt(out, doc - previousDoc);
+        if (doc != previousDoc) {
+            previousDoc = doc;
+            previousPosition = 0;
+            previousStart = 0;
+            docFrequency++;
+        }
+        int startDelta = Math.max(0, startMs - previousStart);
+        writeVarInt(out, position - previousPosition);
+        writeVarInt(out, startDelta);
+        previousPosition = position;
+        previousStart += startDelta;
+        postingCount++;
+    }
+
+    /**
+     * A term without postings is not written
+     */
+    public void endTerm() throws IOException {
+
+        if (postingCount == 0) {
+            return;
+        }
+        termTable.writeInt(termBytes.size());
+        termTable.writeLong(postingsOffset);
+        termTable.writeInt(postingCount);
+        termTable.writeInt(docFrequency);
+        termBytes.write(term.length >>> 8);
+        termBytes.write(term.length);
+        termBytes.write(term);
+        termCount++;
+    }
+
+    public void finish(List<String> docKeys, int[] docLengths) throws IOException {
+
+        long termBytesOffset = counter.getByteCount();
+        termBytes.writeTo(out);
+        long termTableOffset = counter.getByteCount();
+        termTableBytes.writeTo(out);
+        long docsOffset = counter.getByteCount();
+        for (int i = 0; i < docKeys.size(); i++) {
+            out.writeUTF(docKeys.get(i));
+            out.writeInt(docLengths[i]);
+        }
+        out.close();
+
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.writeInt(IndexSegment.MAGIC);
+            raf.writeByte(IndexSegment.VERSION);
+            raf.writeInt(docKeys.size());
+            raf.writeInt(termCount);
+            raf.writeLong(termBytesOffset);
+            raf.writeLong(termTableOffset);
+            raf.writeLong(docsOffset);
+            raf.getFD().sync();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    protected static void writeVarInt(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.index;
+
+import org.apache.commons.lang3.StringUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A document matching a search of the transcript index, with the times (in seconds, ordered) where the terms or the
+ * phrase are said.
+ *
+ * @since 2023.0.1
+ */
+public class TranscriptHit {
+
+    protected final String docKey;
+
+    protected final double score;
+
+    protected final double[] times;
+
+    public TranscriptHit(String docKey, double score, double[] times) {
+        this.docKey = docKey;
+        this.score = score;
+        this.times = times;
+    }
+
+    /**
+     * @return repositoryName:docId
+     */
+    public String getDocKey() {
+        return docKey;
+    }
+
+    public String getRepositoryName() {
+        return StringUtils.substringBefore(docKey, ":");
+    }
+
+    public String getDocId() {
+        return StringUtils.substringAfter(docKey, ":");
+    }
+
+    public double getScore() {
+        return score;
+    }
+
+    public double[] getTimes() {
+        return times.clone();
+    }
+
+    public JSONObject toJSON() throws JSONException {
+
+        JSONObject obj = new JSONObject();
+        obj.put("repository", getRepositoryName());
+        obj.put("docId", getDocId());
+        obj.put("score", Math.round(score * 1000d) / 1000d);
+        JSONArray array = new JSONArray();
+        for (double time : times) {
+            array.put(time);
+        }
+        obj.put("times", array);
+        return obj;
+    }
+
+    @Override
+    public String toString() {
+        return docKey + " (" + score + ", " + times.length + " times)";
+    }
+
+}
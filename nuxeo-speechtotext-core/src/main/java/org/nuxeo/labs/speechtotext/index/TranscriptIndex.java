@@ -0,0 +1,846 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.index;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.labs.speechtotext.api.WordTimings;
+import org.nuxeo.labs.speechtotext.impl.NamedThreadFactory;
+
+/**
+ * Inverted index of the transcripts: Each term, and each n-gram of up to {@value TranscriptTokenizer#MAX_NGRAM}
+ * terms, leads to the documents where it is said, with the position and start time of each occurrence.
+ * <p>
+ * The index is incremental: Documents are indexed in memory, and written as a new immutable segment (see
+ * {@link IndexSegment}, memory mapped) when the buffer is full, every few seconds (see
+ * {@link #startFlusher(int)}), or on {@link #flush()}. Until then, they are kept in a journal (see
+ * {@link IndexJournal}), replayed by {@link #open()} after a crash. When there are more than maxSegments segments,
+ * the small ones are merged, dropping the postings of the documents indexed again or removed.
+ * <p>
+ * A search looks up the terms in each segment (a binary search in the mapped term table), and scores the documents
+ * with BM25. A phrase longer than the n-grams is searched as a chain of n-grams at the expected positions.
+ * <p>
+ * The documents are identified by their key, see {@link #key(String, String)}.
+ * <p>
+ * The index is local to the node, and is updated by the Work of the indexing queue, which may run on any node: It is
+ * meant for single node setups. It is disabled by default when the cluster is enabled
+ * ({@value #CLUSTER_ENABLED_PARAM}), if it is enabled anyway each node only finds the documents it indexed itself.
+ *
+ * @since 2023.0.1
+ */
+public class TranscriptIndex implements AutoCloseable {
+
+    private static final Logger log = LogManager.getLogger(TranscriptIndex.class);
+
+    // Default: true, false in a cluster
+    public static final String ENABLED_PARAM = "speechtotext.index.enabled";
+
+    public static final String CLUSTER_ENABLED_PARAM = "nuxeo.cluster.enabled";
+
+    public static final String DIRECTORY_PARAM = "speechtotext.index.directory";
+
+    public static final String MAX_BUFFERED_POSTINGS_PARAM = "speechtotext.index.maxBufferedPostings";
+
+    public static final String FLUSH_INTERVAL_PARAM = "speechtotext.index.flushIntervalSeconds";
+
+    public static final String MAX_SEGMENTS_PARAM = "speechtotext.index.maxSegments";
+
+    public static final String MAX_MERGED_SEGMENT_MB_PARAM = "speechtotext.index.maxMergedSegmentMB";
+
+    public static final int DEFAULT_MAX_BUFFERED_POSTINGS = 500000;
+
+    public static final int DEFAULT_FLUSH_INTERVAL = 30;
+
+    public static final int DEFAULT_MAX_SEGMENTS = 8;
+
+    public static final int DEFAULT_MAX_MERGED_SEGMENT_MB = 512;
+
+    public static final int MAX_TIMES_PER_HIT = 100;
+
+    protected static final String SEGMENT_PREFIX = "segment-";
+
+    protected static final String SEGMENT_SUFFIX = ".sti";
+
+    protected static final String TMP_SUFFIX = ".tmp";
+
+    protected static final String JOURNAL_PREFIX = "journal-";
+
+    protected static final String JOURNAL_SUFFIX = ".stj";
+
+    // Segment number of the documents in the buffer
+    protected static final long BUFFERED = -1;
+
+    // BM25
+    protected static final double K1 = 1.2;
+
+    protected static final double B = 0.75;
+
+    protected final Path directory;
+
+    protected final int maxBufferedPostings;
+
+    protected final int maxSegments;
+
+    protected final long maxMergedSegmentBytes;
+
+    // Searches and updates of the buffer, the segments and the live documents
+    protected final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // One flush or merge at a time
+    protected final Object flushLock = new Object();
+
+    // Ordered by number, replaced (not modified) on flush and merge
+    protected List<IndexSegment> segments = Collections.emptyList();
+
+    // Where the current version of each document is
+    protected final Map<String, LiveDoc> liveDocs = new HashMap<>();
+
+    protected final Map<String, DocumentTerms> buffer = new LinkedHashMap<>();
+
+    protected int bufferedPostings = 0;
+
+    protected long nextNumber = 1;
+
+    // Documents with words, and their total number of words, for the scores
+    protected int liveDocCount = 0;
+
+    protected long liveLength = 0;
+
+    // Documents of the buffer, null until opened
+    protected IndexJournal journal;
+
+    protected long nextJournalNumber = 1;
+
+    protected ScheduledExecutorService flusher;
+
+    public TranscriptIndex(Path directory, int maxBufferedPostings, int maxSegments, long maxMergedSegmentBytes) {
+        this.directory = directory;
+        this.maxBufferedPostings = maxBufferedPostings;
+        this.maxSegments = maxSegments;
+        this.maxMergedSegmentBytes = maxMergedSegmentBytes;
+    }
+
+    public static String key(String repositoryName, String docId) {
+        return repositoryName + ":" + docId;
+    }
+
+    /**
+     * Opens the segments found in the directory, creating it if needed, then replays the journals: The documents
+     * indexed but not flushed before the last stop are in the buffer again.
+     */
+    public void open() throws IOException {
+
+        Files.createDirectories(directory);
+        TreeMap<Long, Path> files = new TreeMap<>();
+        TreeMap<Long, Path> journals = getJournals(Long.MAX_VALUE);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(TMP_SUFFIX)) {
+                    // Interrupted flush or merge
+                    Files.delete(file);
+                } else if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    files.put(Long.valueOf(StringUtils.substringBetween(name, SEGMENT_PREFIX, SEGMENT_SUFFIX)), file);
+                }
+            }
+        }
+
+        lock.writeLock().lock();
+        try {
+            List<IndexSegment> opened = new ArrayList<>();
+            for (Map.Entry<Long, Path> entry : files.entrySet()) {
+                IndexSegment segment = IndexSegment.open(entry.getKey(), entry.getValue());
+                opened.add(segment);
+                segments = opened;
+                for (int doc = 0; doc < segment.getDocCount(); doc++) {
+                    setLive(segment.getDocKey(doc), new LiveDoc(segment.getNumber(), doc, segment.getDocLength(doc)));
+                }
+                nextNumber = segment.getNumber() + 1;
+            }
+            segments = Collections.unmodifiableList(opened);
+
+            // Deleted by the next flush, once their documents are in a segment
+            for (Path file : journals.values()) {
+                IndexJournal.replay(file, this::buffer);
+            }
+            nextJournalNumber = journals.isEmpty() ? 1 : journals.lastKey() + 1;
+            journal = new IndexJournal(directory.resolve(getJournalFileName(nextJournalNumber++)));
+        } finally {
+            lock.writeLock().unlock();
+        }
+        log.debug("Opened transcript index " + directory + ": " + segments.size() + " segments, " + liveDocCount
+                + " documents, " + buffer.size() + " documents replayed from " + journals.size() + " journals");
+    }
+
+    /*
+     * The journals older than the given number, by number
+     */
+    protected TreeMap<Long, Path> getJournals(long before) throws IOException {
+
+        TreeMap<Long, Path> journals = new TreeMap<>();
+        String glob = JOURNAL_PREFIX + "*" + JOURNAL_SUFFIX;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, glob)) {
+            for (Path file : stream) {
+                long number = Long.parseLong(StringUtils.substringBetween(file.getFileName().toString(),
+                        JOURNAL_PREFIX, JOURNAL_SUFFIX));
+                if (number < before) {
+                    journals.put(number, file);
+                }
+            }
+        }
+        return journals;
+    }
+
+    protected static String getJournalFileName(long number) {
+        return String.format("%s%012d%s", JOURNAL_PREFIX, number, JOURNAL_SUFFIX);
+    }
+
+    /**
+     * Flushes the buffer every <code>seconds</code>
+     */
+    public void startFlusher(int seconds) {
+        if (seconds > 0 && flusher == null) {
+            flusher = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("speechtotext-index"));
+            flusher.scheduleWithFixedDelay(this::flushQuietly, seconds, seconds, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (flusher != null) {
+            flusher.shutdownNow();
+            flusher = null;
+        }
+        flush();
+        lock.writeLock().lock();
+        try {
+            segments = Collections.emptyList();
+            liveDocs.clear();
+            if (journal != null) {
+                journal.close();
+                // Flushed: nothing to replay
+                if (buffer.isEmpty()) {
+                    Files.deleteIfExists(journal.getFile());
+                }
+                journal = null;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Indexes the words of a document, replacing its previous version
+     */
+    public void index(String docKey, WordTimings words) throws IOException {
+        index(docKey, DocumentTerms.from(words));
+    }
+
+    public void index(String docKey, DocumentTerms terms) throws IOException {
+
+        boolean full;
+        lock.writeLock().lock();
+        try {
+            // On the disk before the caller (the indexing Work) is done
+            if (journal != null) {
+                journal.append(docKey, terms);
+            }
+            buffer(docKey, terms);
+            full = bufferedPostings >= maxBufferedPostings;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (full) {
+            flush();
+        }
+    }
+
+    /*
+     * Under the write lock
+     */
+    protected void buffer(String docKey, DocumentTerms terms) {
+
+        DocumentTerms previous = buffer.put(docKey, terms);
+        if (previous != null) {
+            bufferedPostings -= previous.getPostingCount();
+        }
+        bufferedPostings += terms.getPostingCount();
+        setLive(docKey, new LiveDoc(BUFFERED, -1, terms.getLength()));
+    }
+
+    /**
+     * Removes a document from the index
+     */
+    public void delete(String docKey) throws IOException {
+        index(docKey, DocumentTerms.EMPTY);
+    }
+
+    /*
+     * Under the write lock
+     */
+    protected void setLive(String docKey, LiveDoc doc) {
+
+        LiveDoc previous = liveDocs.put(docKey, doc);
+        if (previous != null) {
+            markDeleted(previous);
+            countLive(previous, -1);
+        }
+        countLive(doc, 1);
+    }
+
+    protected void markDeleted(LiveDoc doc) {
+        if (doc.segment != BUFFERED) {
+            for (IndexSegment segment : segments) {
+                if (segment.getNumber() == doc.segment) {
+                    segment.deleted.set(doc.ordinal);
+                    return;
+                }
+            }
+        }
+    }
+
+    protected void countLive(LiveDoc doc, int sign) {
+        if (doc.length > 0) {
+            liveDocCount += sign;
+            liveLength += sign * doc.length;
+        }
+    }
+
+    /**
+     * @return the number of documents with a transcript in the index
+     */
+    public int getDocCount() {
+        lock.readLock().lock();
+        try {
+            return liveDocCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getSegmentCount() {
+        lock.readLock().lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    protected void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException | RuntimeException e) {
+            log.error("Cannot flush the transcript index " + directory, e);
+        }
+    }
+
+    /**
+     * Writes the buffer to a new segment, then merges the segments if there are too many
+     */
+    public void flush() throws IOException {
+
+        synchronized (flushLock) {
+            long number;
+            Map<String, DocumentTerms> flushed;
+            // The documents indexed from now on go to a new journal
+            long journalNumber;
+            lock.writeLock().lock();
+            try {
+                if (buffer.isEmpty()) {
+                    return;
+                }
+                number = nextNumber++;
+                flushed = new LinkedHashMap<>(buffer);
+                journalNumber = rotateJournal();
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            // Documents indexed in the meantime stay in the buffer
+            IndexSegment segment = writeSegment(number, flushed);
+            lock.writeLock().lock();
+            try {
+                List<IndexSegment> updated = new ArrayList<>(segments);
+                updated.add(segment);
+                segments = Collections.unmodifiableList(updated);
+                int doc = 0;
+                for (Map.Entry<String, DocumentTerms> entry : flushed.entrySet()) {
+                    String docKey = entry.getKey();
+                    if (buffer.get(docKey) == entry.getValue()) {
+                        buffer.remove(docKey);
+                        bufferedPostings -= entry.getValue().getPostingCount();
+                        LiveDoc live = liveDocs.get(docKey);
+                        live.segment = number;
+                        live.ordinal = doc;
+                    } else {
+                        segment.deleted.set(doc);
+                    }
+                    doc++;
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            // The documents of the previous journals are in the segment, or in the buffer and the new journal
+            for (Path file : getJournals(journalNumber).values()) {
+                Files.delete(file);
+            }
+
+            maybeMerge();
+        }
+    }
+
+    /*
+     * Under the write lock. Returns the number of the new journal, 0 if the index is not opened
+     */
+    protected long rotateJournal() throws IOException {
+
+        if (journal == null) {
+            return 0;
+        }
+        journal.close();
+        long number = nextJournalNumber++;
+        journal = new IndexJournal(directory.resolve(getJournalFileName(number)));
+        return number;
+    }
+
+    protected IndexSegment writeSegment(long number, Map<String, DocumentTerms> docs) throws IOException {
+
+        List<String> docKeys = new ArrayList<>(docs.keySet());
+        List<DocumentTerms> docTerms = new ArrayList<>(docs.values());
+        int[] docLengths = docTerms.stream().mapToInt(DocumentTerms::getLength).toArray();
+        TreeMap<String, List<Integer>> terms = new TreeMap<>(TranscriptTokenizer::compare);
+        for (int doc = 0; doc < docTerms.size(); doc++) {
+            for (String term : docTerms.get(doc).getPostings().keySet()) {
+                terms.computeIfAbsent(term, k -> new ArrayList<>()).add(doc);
+            }
+        }
+
+        Path tmp = directory.resolve(getFileName(number) + TMP_SUFFIX);
+        try (SegmentWriter writer = new SegmentWriter(tmp)) {
+            for (Map.Entry<String, List<Integer>> entry : terms.entrySet()) {
+                writer.startTerm(entry.getKey().getBytes(StandardCharsets.UTF_8));
+                for (int doc : entry.getValue()) {
+                    int[] postings = docTerms.get(doc).getPostings(entry.getKey());
+                    for (int i = 0; i < postings.length; i += 2) {
+                        writer.addPosting(doc, postings[i], postings[i + 1]);
+                    }
+                }
+                writer.endTerm();
+            }
+            writer.finish(docKeys, docLengths);
+        }
+        return IndexSegment.open(number, moveSegment(tmp, number));
+    }
+
+    protected static String getFileName(long number) {
+        return String.format("%s%012d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX);
+    }
+
+    protected Path moveSegment(Path tmp, long number) throws IOException {
+        return Files.move(tmp, directory.resolve(getFileName(number)), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Merges the smallest segments (up to maxMergedSegmentMB) when there are more than maxSegments. The merged segment
+     * takes the number of the newest one: The documents indexed since are in newer segments.
+     */
+    protected void maybeMerge() throws IOException {
+
+        List<IndexSegment> merged = new ArrayList<>();
+        List<BitSet> deleted = new ArrayList<>();
+        boolean all;
+        lock.readLock().lock();
+        try {
+            if (segments.size() <= maxSegments) {
+                return;
+            }
+            List<IndexSegment> bySize = new ArrayList<>(segments);
+            bySize.sort(Comparator.comparingLong(segment -> segment.file.toFile().length()));
+            long total = 0;
+            for (IndexSegment segment : bySize) {
+                total += segment.getSize();
+                if (total > maxMergedSegmentBytes) {
+                    break;
+                }
+                merged.add(segment);
+            }
+            if (merged.size() < 2) {
+                return;
+            }
+            merged.sort(Comparator.comparingLong(IndexSegment::getNumber));
+            for (IndexSegment segment : merged) {
+                deleted.add((BitSet) segment.deleted.clone());
+            }
+            all = merged.size() == segments.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        // New ordinal of each live document. With all the segments, the removed documents can be forgotten
+        List<String> docKeys = new ArrayList<>();
+        List<Integer> docLengths = new ArrayList<>();
+        List<LiveDoc> origins = new ArrayList<>();
+        List<LiveDoc> forgotten = new ArrayList<>();
+        int[][] remaps = new int[merged.size()][];
+        for (int i = 0; i < merged.size(); i++) {
+            IndexSegment segment = merged.get(i);
+            remaps[i] = new int[segment.getDocCount()];
+            for (int doc = 0; doc < segment.getDocCount(); doc++) {
+                remaps[i][doc] = -1;
+                if (deleted.get(i).get(doc)) {
+                    continue;
+                }
+                LiveDoc origin = new LiveDoc(segment.getNumber(), doc, segment.getDocLength(doc));
+                if (all && origin.length == 0) {
+                    origin.key = segment.getDocKey(doc);
+                    forgotten.add(origin);
+                    continue;
+                }
+                remaps[i][doc] = docKeys.size();
+                docKeys.add(segment.getDocKey(doc));
+                docLengths.add(segment.getDocLength(doc));
+                origins.add(origin);
+            }
+        }
+
+        long number = merged.get(merged.size() - 1).getNumber();
+        Path tmp = directory.resolve(getFileName(number) + TMP_SUFFIX);
+        try (SegmentWriter writer = new SegmentWriter(tmp)) {
+            PriorityQueue<TermCursor> queue = new PriorityQueue<>();
+            for (int i = 0; i < merged.size(); i++) {
+                TermCursor cursor = new TermCursor(merged.get(i), i);
+                if (cursor.next()) {
+                    queue.add(cursor);
+                }
+            }
+            List<TermCursor> same = new ArrayList<>();
+            while (!queue.isEmpty()) {
+                same.clear();
+                same.add(queue.poll());
+                while (!queue.isEmpty() && TermCursor.compareBytes(queue.peek().term, same.get(0).term) == 0) {
+                    same.add(queue.poll());
+                }
+                // Same term: polled in the order of the segments, so the documents are in order
+                writer.startTerm(same.get(0).term);
+                for (TermCursor cursor : same) {
+                    IndexSegment.PostingsCursor postings = cursor.segment.postings(cursor.index);
+                    int[] remap = remaps[cursor.order];
+                    while (postings.next()) {
+                        int doc = remap[postings.getDoc()];
+                        if (doc >= 0) {
+                            writer.addPosting(doc, postings.getPosition(), postings.getStartMs());
+                        }
+                    }
+                }
+                writer.endTerm();
+                for (TermCursor cursor : same) {
+                    if (cursor.next()) {
+                        queue.add(cursor);
+                    }
+                }
+            }
+            writer.finish(docKeys, docLengths.stream().mapToInt(Integer::intValue).toArray());
+        }
+
+        IndexSegment segment = IndexSegment.open(number, moveSegment(tmp, number));
+        lock.writeLock().lock();
+        try {
+            List<IndexSegment> updated = new ArrayList<>(segments);
+            updated.removeAll(merged);
+            updated.add(segment);
+            updated.sort(Comparator.comparingLong(IndexSegment::getNumber));
+            segments = Collections.unmodifiableList(updated);
+            // Documents indexed again during the merge are deleted from the new segment
+            for (int doc = 0; doc < origins.size(); doc++) {
+                LiveDoc origin = origins.get(doc);
+                LiveDoc live = liveDocs.get(docKeys.get(doc));
+                if (live != null && live.segment == origin.segment && live.ordinal == origin.ordinal) {
+                    live.segment = number;
+                    live.ordinal = doc;
+                } else {
+                    segment.deleted.set(doc);
+                }
+            }
+            for (LiveDoc origin : forgotten) {
+                LiveDoc live = liveDocs.get(origin.key);
+                if (live != null && live.segment == origin.segment && live.ordinal == origin.ordinal) {
+                    liveDocs.remove(origin.key);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        for (IndexSegment old : merged) {
+            if (old.getNumber() != number) {
+                Files.deleteIfExists(old.getFile());
+            }
+        }
+        log.debug("Merged " + merged.size() + " transcript index segments into " + segment.getFile());
+    }
+
+    /**
+     * Searches the transcripts.
+     *
+     * @param phrase if true, the documents where the words are said in this order, else the documents where any of
+     *            them is said
+     * @param limit maximum number of hits
+     * @param filter the keys of the documents that can be returned (permissions...), null for all. Not called under
+     *            the lock of the index.
+     * @return the hits, best first
+     */
+    public List<TranscriptHit> search(String query, boolean phrase, int limit, Predicate<String> filter) {
+
+        List<String> terms = TranscriptTokenizer.tokenize(query);
+        if (terms.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+
+        List<TranscriptHit> hits = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            List<Map<String, List<Integer>>> matches = new ArrayList<>();
+            if (phrase) {
+                matches.add(findPhrase(terms));
+            } else {
+                for (String term : new TreeSet<>(terms)) {
+                    matches.add(findTerm(term));
+                }
+            }
+
+            int docCount = Math.max(1, liveDocCount);
+            double averageLength = Math.max(1, (double) liveLength / docCount);
+            Map<String, double[]> scores = new HashMap<>();
+            Map<String, TreeSet<Integer>> times = new HashMap<>();
+            for (Map<String, List<Integer>> termMatches : matches) {
+                int df = termMatches.size();
+                double idf = Math.log(1 + (docCount - df + 0.5) / (df + 0.5));
+                for (Map.Entry<String, List<Integer>> entry : termMatches.entrySet()) {
+                    String docKey = entry.getKey();
+                    int tf = entry.getValue().size();
+                    LiveDoc live = liveDocs.get(docKey);
+                    double length = live == null ? averageLength : live.length;
+                    double score = idf * tf * (K1 + 1) / (tf + K1 * (1 - B + B * length / averageLength));
+                    scores.computeIfAbsent(docKey, k -> new double[1])[0] += score;
+                    times.computeIfAbsent(docKey, k -> new TreeSet<>()).addAll(entry.getValue());
+                }
+            }
+            scores.forEach((docKey, score) -> hits.add(new TranscriptHit(docKey, score[0],
+                    times.get(docKey).stream().limit(MAX_TIMES_PER_HIT).mapToDouble(ms -> ms / 1000d).toArray())));
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        hits.sort(Comparator.comparingDouble(TranscriptHit::getScore).reversed().thenComparing(TranscriptHit::getDocKey));
+        List<TranscriptHit> result = new ArrayList<>();
+        for (TranscriptHit hit : hits) {
+            if (filter == null || filter.test(hit.getDocKey())) {
+                result.add(hit);
+                if (result.size() == limit) {
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    /*
+     * Under the read lock: document => start times
+     */
+    protected Map<String, List<Integer>> findTerm(String term) {
+
+        Map<String, List<Integer>> matches = new HashMap<>();
+        forEachPosting(term, (docKey, position, startMs) -> matches.computeIfAbsent(docKey, k -> new ArrayList<>())
+                                                                   .add(startMs));
+        return matches;
+    }
+
+    /*
+     * Under the read lock: document => start times. A long phrase is a chain of n-grams, each one at its position
+     */
+    protected Map<String, List<Integer>> findPhrase(List<String> terms) {
+
+        int max = TranscriptTokenizer.MAX_NGRAM;
+        if (terms.size() <= max) {
+            return findTerm(String.join(" ", terms));
+        }
+
+        Map<Integer, String> ngrams = new LinkedHashMap<>();
+        for (int offset = 0; offset + max <= terms.size(); offset += max) {
+            ngrams.put(offset, String.join(" ", terms.subList(offset, offset + max)));
+        }
+        int last = terms.size() - max;
+        ngrams.put(last, String.join(" ", terms.subList(last, terms.size())));
+
+        // document => position => start
+        Map<String, Map<Integer, Integer>> candidates = new HashMap<>();
+        forEachPosting(ngrams.get(0), (docKey, position, startMs) -> candidates.computeIfAbsent(docKey,
+                k -> new HashMap<>()).put(position, startMs));
+        for (Map.Entry<Integer, String> ngram : ngrams.entrySet()) {
+            int offset = ngram.getKey();
+            if (offset == 0 || candidates.isEmpty()) {
+                continue;
+            }
+            Map<String, Set<Integer>> found = new HashMap<>();
+            forEachPosting(ngram.getValue(), (docKey, position, startMs) -> {
+                if (candidates.containsKey(docKey)) {
+                    found.computeIfAbsent(docKey, k -> new HashSet<>()).add(position - offset);
+                }
+            });
+            candidates.entrySet().removeIf(entry -> {
+                entry.getValue().keySet().retainAll(found.getOrDefault(entry.getKey(), Collections.emptySet()));
+                return entry.getValue().isEmpty();
+            });
+        }
+
+        Map<String, List<Integer>> matches = new HashMap<>();
+        candidates.forEach((docKey, positions) -> matches.put(docKey, new ArrayList<>(positions.values())));
+        return matches;
+    }
+
+    /*
+     * Under the read lock: the postings of the live documents, in the buffer and in the segments
+     */
+    protected void forEachPosting(String term, PostingConsumer consumer) {
+
+        buffer.forEach((docKey, terms) -> {
+            int[] postings = terms.getPostings(term);
+            if (postings != null) {
+                for (int i = 0; i < postings.length; i += 2) {
+                    consumer.accept(docKey, postings[i], postings[i + 1]);
+                }
+            }
+        });
+        for (IndexSegment segment : segments) {
+            int index = segment.findTerm(term);
+            if (index < 0) {
+                continue;
+            }
+            IndexSegment.PostingsCursor postings = segment.postings(index);
+            while (postings.next()) {
+                int doc = postings.getDoc();
+                if (!segment.isDeleted(doc)) {
+                    consumer.accept(segment.getDocKey(doc), postings.getPosition(), postings.getStartMs());
+                }
+            }
+        }
+    }
+
+    @FunctionalInterface
+    protected interface PostingConsumer {
+        void accept(String docKey, int position, int startMs);
+    }
+
+    /**
+     * Where the current version of a document is: a segment and its ordinal there, or the buffer
+     */
+    protected static class LiveDoc {
+
+        protected long segment;
+
+        protected int ordinal;
+
+        protected final int length;
+
+        // Only when forgotten by a merge
+        protected String key;
+
+        protected LiveDoc(long segment, int ordinal, int length) {
+            this.segment = segment;
+            this.ordinal = ordinal;
+            this.length = length;
+        }
+    }
+
+    /**
+     * The terms of a segment, in order, for a merge
+     */
+    protected static class TermCursor implements Comparable<TermCursor> {
+
+        protected final IndexSegment segment;
+
+        // Of the segment in the merge
+        protected final int order;
+
+        protected int index = -1;
+
+        protected byte[] term;
+
+        protected TermCursor(IndexSegment segment, int order) {
+            this.segment = segment;
+            this.order = order;
+        }
+
+        protected boolean next() {
+            if (++index >= segment.getTermCount()) {
+                return false;
+            }
+            term = segment.getTerm(index);
+            return true;
+        }
+
+        @Override
+        public int compareTo(TermCursor other) {
+            int cmp = compareBytes(term, other.term);
+            return cmp != 0 ? cmp : Integer.compare(order, other.order);
+        }
+
+        protected static int compareBytes(byte[] a, byte[] b) {
+            int max = Math.min(a.length, b.length);
+            for (int i = 0; i < max; i++) {
+                int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return a.length - b.length;
+        }
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.index;
+
+import static org.nuxeo.ecm.core.api.event.DocumentEventTypes.ABOUT_TO_CREATE;
+import static org.nuxeo.ecm.core.api.event.DocumentEventTypes.BEFORE_DOC_UPDATE;
+import static org.nuxeo.ecm.core.api.event.DocumentEventTypes.DOCUMENT_CREATED;
+import static org.nuxeo.ecm.core.api.event.DocumentEventTypes.DOCUMENT_REMOVED;
+import static org.nuxeo.ecm.core.api.event.DocumentEventTypes.DOCUMENT_UPDATED;
+
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.event.Event;
+import org.nuxeo.ecm.core.event.EventContext;
+import org.nuxeo.ecm.core.event.EventListener;
+import org.nuxeo.ecm.core.event.impl.DocumentEventContext;
+import org.nuxeo.ecm.core.work.api.WorkManager;
+import org.nuxeo.labs.speechtotext.api.SpeechToText;
+import org.nuxeo.labs.speechtotext.work.TranscriptIndexWork;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Keeps the transcript index up to date: When the word timings of a document are written (see
+ * {@link SpeechToText#setTranscript}), or when a document with a transcript is removed, a
+ * {@link TranscriptIndexWork} is scheduled after the commit. Versions and proxies are not indexed.
+ *
+ * @since 2023.0.1
+ */
+public class TranscriptIndexListener implements EventListener {
+
+    // Set before the save when the word timings changed
+    public static final String INDEX_TRANSCRIPT = "speechtotextIndexTranscript";
+
+    @Override
+    public void handleEvent(Event event) {
+
+        EventContext ctx = event.getContext();
+        if (!(ctx instanceof DocumentEventContext)) {
+            return;
+        }
+        DocumentModel doc = ((DocumentEventContext) ctx).getSourceDocument();
+        if (doc == null || doc.isVersion() || doc.isProxy() || !doc.hasFacet(SpeechToText.TRANSCRIPT_FACET)) {
+            return;
+        }
+
+        switch (event.getName()) {
+        case ABOUT_TO_CREATE:
+        case BEFORE_DOC_UPDATE:
+            if (doc.getProperty(SpeechToText.TRANSCRIPT_WORD_TIMINGS_XPATH).isDirty()) {
+                doc.putContextData(INDEX_TRANSCRIPT, Boolean.TRUE);
+            }
+            break;
+        case DOCUMENT_CREATED:
+        case DOCUMENT_UPDATED:
+            if (Boolean.TRUE.equals(doc.getContextData(INDEX_TRANSCRIPT))) {
+                doc.putContextData(INDEX_TRANSCRIPT, null);
+                schedule(doc);
+            }
+            break;
+        case DOCUMENT_REMOVED:
+            schedule(doc);
+            break;
+        default:
+            break;
+        }
+    }
+
+    protected void schedule(DocumentModel doc) {
+        if (Framework.getService(SpeechToText.class).getTranscriptIndex() != null) {
+            Framework.getService(WorkManager.class)
+                     .schedule(new TranscriptIndexWork(doc.getRepositoryName(), doc.getId()), true);
+        }
+    }
+
+}
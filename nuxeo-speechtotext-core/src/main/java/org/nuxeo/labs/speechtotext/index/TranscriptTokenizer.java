@@ -0,0 +1,97 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.index;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Terms of the transcript index: words in lower case, without accents nor punctuation ("Élève," => "eleve"). An
+ * n-gram is its terms separated with a space.
+ *
+ * @since 2023.0.1
+ */
+public class TranscriptTokenizer {
+
+    /**
+     * Longest n-gram indexed. Longer phrases are searched as a chain of n-grams.
+     */
+    public static final int MAX_NGRAM = 3;
+
+    private TranscriptTokenizer() {
+    }
+
+    /**
+     * @return the term, empty if the word has no letter nor digit
+     */
+    public static String normalize(String word) {
+
+        if (word == null) {
+            return "";
+        }
+        String decomposed = Normalizer.normalize(word, Normalizer.Form.NFD);
+        StringBuilder term = new StringBuilder(decomposed.length());
+        decomposed.codePoints()
+                  .filter(Character::isLetterOrDigit)
+                  .map(Character::toLowerCase)
+                  .forEach(term::appendCodePoint);
+        return term.toString();
+    }
+
+    /**
+     * @return the terms of a text (a query), in order
+     */
+    public static List<String> tokenize(String text) {
+
+        List<String> terms = new ArrayList<>();
+        for (String word : StringUtils.split(StringUtils.defaultString(text).toLowerCase(Locale.ROOT))) {
+            String term = normalize(word);
+            if (!term.isEmpty()) {
+                terms.add(term);
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Orders the terms as their UTF-8 bytes, the order of a segment
+     */
+    public static int compare(String term1, String term2) {
+
+        int length1 = term1.length();
+        int length2 = term2.length();
+        int i = 0;
+        int j = 0;
+        while (i < length1 && j < length2) {
+            int c1 = term1.codePointAt(i);
+            int c2 = term2.codePointAt(j);
+            if (c1 != c2) {
+                return Integer.compare(c1, c2);
+            }
+            i += Character.charCount(c1);
+            j += Character.charCount(c2);
+        }
+        return Integer.compare(length1 - i, length2 - j);
+    }
+
+}
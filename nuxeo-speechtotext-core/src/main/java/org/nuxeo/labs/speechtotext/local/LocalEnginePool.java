@@ -0,0 +1,120 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.local;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.labs.speechtotext.throttle.TokenBucket;
+
+/**
+ * Warm engine processes: They are started with the provider (without waiting for them to load their model), each one
+ * handles one call at a time. A call waits for a free process, and a process found dead is started again.
+ *
+ * @since 2023.0.1
+ */
+public class LocalEnginePool {
+
+    private static final Logger log = LogManager.getLogger(LocalEnginePool.class);
+
+    protected final List<LocalEngineServer> servers;
+
+    protected final BlockingQueue<LocalEngineServer> available = new LinkedBlockingQueue<>();
+
+    protected final long startupTimeoutMs;
+
+    protected final long acquireTimeoutMs;
+
+    public LocalEnginePool(List<LocalEngineServer> servers, long startupTimeoutMs, long acquireTimeoutMs) {
+        this.servers = new ArrayList<>(servers);
+        this.startupTimeoutMs = startupTimeoutMs;
+        this.acquireTimeoutMs = acquireTimeoutMs;
+    }
+
+    public int getSize() {
+        return servers.size();
+    }
+
+    public int getAvailable() {
+        return available.size();
+    }
+
+    public void start() {
+        for (LocalEngineServer server : servers) {
+            try {
+                server.start();
+            } catch (IOException e) {
+                // Retried when the server is acquired
+                log.error("Cannot start a local engine", e);
+            }
+            available.add(server);
+        }
+    }
+
+    public void stop() {
+        available.clear();
+        servers.forEach(LocalEngineServer::stop);
+    }
+
+    /**
+     * @return a running process, ready, to give back with {@link #release(LocalEngineServer)}
+     * @throws NuxeoException with a 429 status if no process is free in time
+     */
+    public LocalEngineServer acquire() throws IOException {
+
+        LocalEngineServer server;
+        try {
+            server = available.poll(acquireTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NuxeoException("Interrupted waiting for a local engine", e);
+        }
+        if (server == null) {
+            throw new NuxeoException("No local engine available after " + acquireTimeoutMs + "ms",
+                    TokenBucket.HTTP_TOO_MANY_REQUESTS);
+        }
+
+        try {
+            if (!server.isAlive()) {
+                log.warn("Local engine on port " + server.getPort() + " is not running, starting it again");
+                server.stop();
+                server.start();
+            }
+            server.waitReady(startupTimeoutMs);
+            return server;
+        } catch (IOException | RuntimeException e) {
+            // Started again by the next call
+            server.stop();
+            available.add(server);
+            throw e;
+        }
+    }
+
+    public void release(LocalEngineServer server) {
+        available.add(server);
+    }
+
+}
@@ -0,0 +1,209 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.local;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextProviderException;
+import org.nuxeo.labs.speechtotext.audio.AudioReadException;
+
+/**
+ * One engine process (whisper-server), listening on a local port. The model is loaded once, when the process starts,
+ * then each call only sends the audio.
+ * <p>
+ * The command is the one of a CommandLineExecutorService contribution: Its <code>#{name}</code> parameters are
+ * replaced with the values of the provider, and <code>#{port}</code> with the port of this process. It is not run in a
+ * shell.
+ *
+ * @since 2023.0.1
+ */
+public class LocalEngineServer {
+
+    private static final Logger log = LogManager.getLogger(LocalEngineServer.class);
+
+    public static final String HOST = "127.0.0.1";
+
+    public static final String PORT_PARAM = "port";
+
+    protected static final long READY_CHECK_INTERVAL_MS = 200;
+
+    protected final String command;
+
+    protected final String parameters;
+
+    protected final Map<String, String> values;
+
+    protected final int index;
+
+    protected Process process;
+
+    protected int port;
+
+    protected volatile boolean ready = false;
+
+    /**
+     * @param index of the process in the pool, for the logs
+     */
+    public LocalEngineServer(String command, String parameters, Map<String, String> values, int index) {
+        this.command = command;
+        this.parameters = parameters;
+        this.values = values;
+        this.index = index;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public boolean isAlive() {
+        return process != null && process.isAlive();
+    }
+
+    /**
+     * Starts the process, does not wait for it to load the model (see {@link #waitReady(long)})
+     */
+    public synchronized void start() throws IOException {
+
+        port = findFreePort();
+        ready = false;
+        ProcessBuilder builder = new ProcessBuilder(buildCommand());
+        // Nothing reads its logs: They must not fill a pipe and block the process
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        process = builder.start();
+        process.getOutputStream().close();
+        log.debug("Started local engine #" + index + " on port " + port);
+    }
+
+    public synchronized void stop() {
+        if (process != null) {
+            process.destroy();
+            process = null;
+        }
+        ready = false;
+    }
+
+    protected List<String> buildCommand() {
+
+        List<String> commandLine = new ArrayList<>();
+        commandLine.add(command.trim());
+        for (String parameter : StringUtils.split(parameters)) {
+            String value = parameter.replace("#{" + PORT_PARAM + "}", String.valueOf(port));
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                value = value.replace("#{" + entry.getKey() + "}", entry.getValue());
+            }
+            commandLine.add(value);
+        }
+        return commandLine;
+    }
+
+    protected static int findFreePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Waits until the process accepts connections (its model is loaded).
+     *
+     * @throws IOException if the process exits, or is not ready in time
+     */
+    public void waitReady(long timeoutMs) throws IOException {
+
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!ready) {
+            if (!isAlive()) {
+                throw new IOException("Local engine #" + index + " is not running (" + command + ")");
+            }
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(HOST, port), (int) READY_CHECK_INTERVAL_MS);
+                ready = true;
+                log.debug("Local engine #" + index + " ready on port " + port);
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("Local engine #" + index + " not ready after " + timeoutMs + "ms", e);
+                }
+                try {
+                    Thread.sleep(READY_CHECK_INTERVAL_MS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for the local engine", ie);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends the audio (a 16 kHz WAV) to /inference, returns the verbose JSON.
+     *
+     * @param language the language of the engine ("en", "fr"...), or "auto"
+     * @param withWordTimeOffsets if true, asks for one word per segment
+     */
+    public JSONObject transcribe(CloseableHttpClient httpClient, Blob wav, String language,
+            boolean withWordTimeOffsets) throws IOException, JSONException {
+
+        MultipartEntityBuilder body = MultipartEntityBuilder.create();
+        try (InputStream in = AudioReadException.getStream(wav)) {
+            body.addBinaryBody("file", in, ContentType.create("audio/wav"),
+                    StringUtils.defaultIfBlank(wav.getFilename(), "audio.wav"));
+            body.addTextBody("response_format", "verbose_json");
+            body.addTextBody("language", language);
+            body.addTextBody("temperature", "0");
+            if (withWordTimeOffsets) {
+                body.addTextBody("max_len", "1");
+                body.addTextBody("split_on_word", "true");
+            }
+
+            HttpPost post = new HttpPost("http://" + HOST + ":" + port + "/inference");
+            post.setEntity(body.build());
+            try (CloseableHttpResponse response = httpClient.execute(post)) {
+                HttpEntity entity = response.getEntity();
+                String content = EntityUtils.toString(entity, StandardCharsets.UTF_8);
+                int status = response.getStatusLine().getStatusCode();
+                if (status != 200) {
+                    throw new SpeechToTextProviderException("Local engine #" + index + " failed, status " + status
+                            + ": " + StringUtils.abbreviate(content, 500), status);
+                }
+                return new JSONObject(content);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,429 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.local;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.CloseableFile;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.api.blobholder.SimpleBlobHolder;
+import org.nuxeo.ecm.core.convert.api.ConversionService;
+import org.nuxeo.ecm.platform.commandline.executor.api.CmdParameters;
+import org.nuxeo.ecm.platform.commandline.executor.api.CommandLineExecutorService;
+import org.nuxeo.ecm.platform.commandline.executor.api.CommandNotAvailable;
+import org.nuxeo.ecm.platform.commandline.executor.api.ExecResult;
+import org.nuxeo.ecm.platform.commandline.executor.service.CommandLineDescriptor;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextJob;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextOptions;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextProvider;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextResponse;
+import org.nuxeo.labs.speechtotext.audio.AudioReadException;
+import org.nuxeo.labs.speechtotext.audio.WavHeader;
+import org.nuxeo.labs.speechtotext.audio.WavNormalizer;
+import org.nuxeo.labs.speechtotext.impl.ConfigurationHelper;
+import org.nuxeo.labs.speechtotext.impl.NamedThreadFactory;
+import org.nuxeo.labs.speechtotext.metrics.SpeechToTextMetrics;
+import org.nuxeo.runtime.api.Framework;
+
+import io.dropwizard.metrics5.Timer;
+
+/**
+ * Transcribes with a speech engine installed on the server (whisper.cpp), nothing is sent over the network. Contributed
+ * to the "providers" extension point of the service, it is not enabled by default.
+ * <p>
+ * The engine is run with the commands contributed to the CommandLineExecutorService (see commandline-config.xml):
+ * <ul>
+ * <li>With poolSize > 0 (default 2), that many processes of the server command are started with the provider and
+ * keep their model loaded. Each one transcribes one audio at a time, see {@link LocalEnginePool}.</li>
+ * <li>With poolSize = 0, the command line tool is run for each audio, loading the model each time.</li>
+ * </ul>
+ * The audio is sent as a 16 kHz mono WAV (converted in the JVM when possible, with ffmpeg otherwise). The options and
+ * parameters are read from the properties of the contribution, then from nuxeo.conf with the
+ * {@value #PARAM_PREFIX} prefix: model (path of the model file, required), threads, poolSize, command, serverCommand,
+ * startupTimeoutSeconds and acquireTimeoutSeconds.
+ *
+ * @since 2023.0.1
+ */
+public class LocalSpeechToTextProvider implements SpeechToTextProvider {
+
+    public static final String PROVIDER_NAME = "local";
+
+    public static final String PARAM_PREFIX = "speechtotext.local.";
+
+    public static final String MODEL_PARAM = "model";
+
+    public static final String THREADS_PARAM = "threads";
+
+    public static final String POOL_SIZE_PARAM = "poolSize";
+
+    public static final String COMMAND_PARAM = "command";
+
+    public static final String SERVER_COMMAND_PARAM = "serverCommand";
+
+    public static final String STARTUP_TIMEOUT_PARAM = "startupTimeoutSeconds";
+
+    public static final String ACQUIRE_TIMEOUT_PARAM = "acquireTimeoutSeconds";
+
+    public static final String DEFAULT_COMMAND = "whisper-cpp-cli";
+
+    public static final String DEFAULT_SERVER_COMMAND = "whisper-cpp-server";
+
+    public static final int DEFAULT_THREADS = 4;
+
+    public static final int DEFAULT_POOL_SIZE = 2;
+
+    public static final int DEFAULT_STARTUP_TIMEOUT = 120;
+
+    public static final int DEFAULT_ACQUIRE_TIMEOUT = 600;
+
+    // What whisper expects
+    public static final int SAMPLE_RATE = 16000;
+
+    protected String name = PROVIDER_NAME;
+
+    protected Map<String, String> properties = Collections.emptyMap();
+
+    protected SpeechToTextMetrics metrics = new SpeechToTextMetrics(PROVIDER_NAME);
+
+    // null when the command line tool is used
+    protected LocalEnginePool pool;
+
+    protected CloseableHttpClient httpClient;
+
+    // Long running transcriptions
+    protected ExecutorService executor;
+
+    @Override
+    public void initialize(String name, Map<String, String> properties) {
+        this.name = name;
+        this.properties = properties;
+        metrics = new SpeechToTextMetrics(name);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public SpeechToTextMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public synchronized void start() {
+
+        if (executor != null) {
+            return;
+        }
+        int poolSize = getIntProperty(POOL_SIZE_PARAM, DEFAULT_POOL_SIZE);
+        executor = Executors.newFixedThreadPool(Math.max(1, poolSize), new NamedThreadFactory("speechtotext-local"));
+        if (poolSize <= 0) {
+            return;
+        }
+
+        startPool(createServers(poolSize));
+    }
+
+    /**
+     * @return the processes of the pool, running the server command
+     */
+    protected List<LocalEngineServer> createServers(int poolSize) {
+
+        String commandName = getProperty(SERVER_COMMAND_PARAM, DEFAULT_SERVER_COMMAND);
+        CommandLineDescriptor descriptor = Framework.getService(CommandLineExecutorService.class)
+                                                    .getCommandLineDescriptor(commandName);
+        if (descriptor == null) {
+            throw new NuxeoException("Unknown command line: " + commandName);
+        }
+        Map<String, String> values = getEngineValues();
+        List<LocalEngineServer> servers = new ArrayList<>();
+        for (int i = 0; i < poolSize; i++) {
+            servers.add(new LocalEngineServer(descriptor.getCommand(), descriptor.getParametersString(), values, i));
+        }
+        return servers;
+    }
+
+    /**
+     * Starts the processes, does not wait for them to load their model.
+     */
+    protected void startPool(List<LocalEngineServer> servers) {
+
+        // One call per process, no timeout: A long audio can take a while
+        httpClient = HttpClients.custom()
+                                .setMaxConnTotal(servers.size())
+                                .setMaxConnPerRoute(servers.size())
+                                .setDefaultRequestConfig(RequestConfig.custom().setConnectTimeout(10000).build())
+                                .build();
+        pool = new LocalEnginePool(servers,
+                TimeUnit.SECONDS.toMillis(getIntProperty(STARTUP_TIMEOUT_PARAM, DEFAULT_STARTUP_TIMEOUT)),
+                TimeUnit.SECONDS.toMillis(getIntProperty(ACQUIRE_TIMEOUT_PARAM, DEFAULT_ACQUIRE_TIMEOUT)));
+        pool.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        if (pool != null) {
+            pool.stop();
+            pool = null;
+        }
+        if (httpClient != null) {
+            try {
+                httpClient.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+            httpClient = null;
+        }
+    }
+
+    /**
+     * @return the pool of processes, null if the command line tool is used
+     */
+    public LocalEnginePool getPool() {
+        return pool;
+    }
+
+    protected String getProperty(String param, String defaultValue) {
+
+        String value = properties.get(param);
+        if (StringUtils.isBlank(value)) {
+            value = Framework.getProperty(PARAM_PREFIX + param);
+        }
+        return StringUtils.isBlank(value) ? defaultValue : value.trim();
+    }
+
+    protected int getIntProperty(String param, int defaultValue) {
+        return ConfigurationHelper.toInt(PARAM_PREFIX + param, getProperty(param, null), defaultValue);
+    }
+
+    /*
+     * The #{...} parameters of the commands, other than the audio, the output and the language
+     */
+    protected Map<String, String> getEngineValues() {
+
+        String model = getProperty(MODEL_PARAM, null);
+        if (model == null) {
+            throw new NuxeoException("The model of the local speech-to-text provider " + name + " is not set ("
+                    + PARAM_PREFIX + MODEL_PARAM + ")");
+        }
+        Map<String, String> values = new HashMap<>();
+        values.put(MODEL_PARAM, model);
+        values.put(THREADS_PARAM, String.valueOf(getIntProperty(THREADS_PARAM, DEFAULT_THREADS)));
+        return values;
+    }
+
+    /**
+     * @return the language as whisper expects it: "en" for "en-US", "auto" if not set
+     */
+    public static String toEngineLanguage(String languageCode) {
+        if (StringUtils.isBlank(languageCode)) {
+            return "auto";
+        }
+        return StringUtils.substringBefore(languageCode.trim(), "-").toLowerCase(Locale.ROOT);
+    }
+
+    @Override
+    public SpeechToTextResponse run(SpeechToTextOptions options, Blob blob, String languageCode,
+            JSONObject moreOptions) {
+
+        Blob wav;
+        try (Timer.Context timer = metrics.timer("normalize", languageCode).time()) {
+            wav = toEngineWav(blob);
+        }
+        return transcribe(options, wav, languageCode);
+    }
+
+    @Override
+    public Blob prepareAudio(Blob blob, String languageCode) {
+        try (Timer.Context timer = metrics.timer("normalize", languageCode).time()) {
+            return toEngineWav(blob);
+        }
+    }
+
+    /*
+     * Only the WAV normalized in the JVM is owned by the provider: The result of the converter can be in the cache of
+     * the conversion service
+     */
+    @Override
+    public void disposePreparedAudio(Blob blob, Blob prepared) {
+        if (prepared != blob) {
+            WavNormalizer.dispose(prepared);
+        }
+    }
+
+    /*
+     * The engine reads the format from the header, the encoding and sample rate are not needed
+     */
+    @Override
+    public SpeechToTextResponse run(SpeechToTextOptions options, Blob blob, String audioEncoding, int sampleRateHertz,
+            String languageCode, JSONObject moreOptions) {
+        return run(options, blob, languageCode, moreOptions);
+    }
+
+    /*
+     * The engine has no asynchronous API, the job runs in the threads of the provider
+     */
+    @Override
+    public SpeechToTextJob runLongRunning(SpeechToTextOptions options, Blob blob, String languageCode,
+            JSONObject moreOptions) {
+
+        SpeechToTextJob job = new SpeechToTextJob(name + ":" + UUID.randomUUID());
+        CompletableFuture.supplyAsync(() -> run(options, blob, languageCode, moreOptions), getExecutor())
+                         .whenComplete((response, error) -> {
+                             if (error != null) {
+                                 job.getResult().completeExceptionally(error);
+                             } else {
+                                 job.getResult().complete(response);
+                             }
+                         });
+        return job;
+    }
+
+    @Override
+    public SpeechToTextJob runLongRunning(SpeechToTextOptions options, Blob blob, String audioEncoding,
+            int sampleRateHertz, String languageCode, JSONObject moreOptions) {
+        return runLongRunning(options, blob, languageCode, moreOptions);
+    }
+
+    protected ExecutorService getExecutor() {
+        if (executor == null) {
+            start();
+        }
+        return executor;
+    }
+
+    protected SpeechToTextResponse transcribe(SpeechToTextOptions options, Blob wav, String languageCode) {
+
+        boolean withWordTimeOffsets = options == null || options.isWithWordTimeOffsets();
+        metrics.callStarted();
+        try {
+            JSONObject output;
+            try (Timer.Context timer = metrics.timer("engine", languageCode).time()) {
+                output = pool == null ? runCommandLine(wav, languageCode)
+                        : runServer(wav, languageCode, withWordTimeOffsets);
+            }
+            try (Timer.Context timer = metrics.timer("parse", languageCode).time()) {
+                return pool == null ? LocalSpeechToTextResponse.fromCommandLineOutput(output)
+                        : LocalSpeechToTextResponse.fromServerOutput(output);
+            }
+        } catch (IOException | JSONException e) {
+            metrics.error(languageCode, "io");
+            throw new NuxeoException("Error transcribing with the local engine " + name, e);
+        } catch (NuxeoException e) {
+            metrics.error(languageCode, String.valueOf(e.getStatusCode()));
+            throw e;
+        } finally {
+            metrics.callEnded();
+        }
+    }
+
+    protected JSONObject runServer(Blob wav, String languageCode, boolean withWordTimeOffsets)
+            throws IOException, JSONException {
+
+        LocalEngineServer server = pool.acquire();
+        try {
+            return server.transcribe(httpClient, wav, toEngineLanguage(languageCode), withWordTimeOffsets);
+        } finally {
+            pool.release(server);
+        }
+    }
+
+    /*
+     * The command writes its output to #{outputBase}.json
+     */
+    protected JSONObject runCommandLine(Blob wav, String languageCode) throws IOException, JSONException {
+
+        String commandName = getProperty(COMMAND_PARAM, DEFAULT_COMMAND);
+        CommandLineExecutorService service = Framework.getService(CommandLineExecutorService.class);
+        File outputBase = Framework.createTempFile("speechtotext-local-", "");
+        File output = new File(outputBase.getAbsolutePath() + ".json");
+        try (CloseableFile source = wav.getCloseableFile()) {
+            CmdParameters params = service.getDefaultCmdParameters();
+            params.addNamedParameter("sourceFilePath", source.getFile().getAbsolutePath());
+            params.addNamedParameter("outputBase", outputBase.getAbsolutePath());
+            params.addNamedParameter("language", toEngineLanguage(languageCode));
+            getEngineValues().forEach(params::addNamedParameter);
+
+            ExecResult result = service.execCommand(commandName, params);
+            if (!result.isSuccessful()) {
+                throw new IOException(commandName + " failed (exit value " + result.getReturnCode() + "): "
+                        + StringUtils.join(result.getOutput(), "\n"), result.getError());
+            }
+            return new JSONObject(new String(Files.readAllBytes(output.toPath()), StandardCharsets.UTF_8));
+        } catch (CommandNotAvailable e) {
+            throw new NuxeoException("Command " + commandName + " not available: " + e.getErrorMessage(), e);
+        } finally {
+            outputBase.delete();
+            output.delete();
+        }
+    }
+
+    /*
+     * A 16 kHz, 16 bits, mono WAV: the blob itself if it already is, converted in the JVM if it can be downsampled,
+     * with ffmpeg otherwise
+     */
+    protected Blob toEngineWav(Blob blob) {
+
+        try {
+            WavHeader header = WavHeader.read(blob);
+            if (header != null && header.isPCM() && header.getBitsPerSample() == 16 && header.getChannels() == 1
+                    && header.getSampleRate() == SAMPLE_RATE) {
+                return blob;
+            }
+            // The normalizer never upsamples
+            if (WavNormalizer.canNormalize(header) && header.getSampleRate() >= SAMPLE_RATE) {
+                return new WavNormalizer(SAMPLE_RATE).normalize(blob);
+            }
+        } catch (IOException e) {
+            throw new NuxeoException("Error reading the audio",
+                    new AudioReadException("Cannot read the audio " + blob.getFilename(), e));
+        }
+
+        ConversionService service = Framework.getService(ConversionService.class);
+        return service.convert(AUDIO_TO_WAV_CONVERTER, new SimpleBlobHolder(blob), new HashMap<>()).getBlob();
+    }
+
+}
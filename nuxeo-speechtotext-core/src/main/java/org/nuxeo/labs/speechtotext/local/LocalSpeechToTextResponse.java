@@ -0,0 +1,196 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.local;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextResponse;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextWord;
+
+/**
+ * The result of a local engine (whisper.cpp), read once: The outputs are small compared to the audio, and the words
+ * are needed to build the text anyway.
+ * <p>
+ * Two formats are read:
+ * <ul>
+ * <li>The full JSON of the command line ({@code whisper-cli -ojf}): "transcription" is the list of segments, with
+ * their offsets in milliseconds and their tokens, with their probability.</li>
+ * <li>The verbose JSON of the server ({@code whisper-server}, response_format=verbose_json): "text", and the
+ * "segments" with their start and end in seconds, and their "words" if the server returns them.</li>
+ * </ul>
+ * When asked with a maximum length of 1 (and split on words), each segment is one word.
+ * <p>
+ * Whisper does not tell speakers apart, the speaker tag is always 0.
+ *
+ * @since 2023.0.1
+ */
+public class LocalSpeechToTextResponse implements SpeechToTextResponse {
+
+    protected final String text;
+
+    protected final double confidence;
+
+    protected final List<SpeechToTextWord> words;
+
+    protected final JSONObject nativeResponse;
+
+    public LocalSpeechToTextResponse(String text, double confidence, List<SpeechToTextWord> words,
+            JSONObject nativeResponse) {
+        this.text = text;
+        this.confidence = confidence;
+        this.words = Collections.unmodifiableList(words);
+        this.nativeResponse = nativeResponse;
+    }
+
+    /**
+     * Reads the output of {@code whisper-cli -ojf} (the ".json" file)
+     */
+    public static LocalSpeechToTextResponse fromCommandLineOutput(JSONObject output) throws JSONException {
+
+        List<SpeechToTextWord> words = new ArrayList<>();
+        StringBuilder text = new StringBuilder();
+        double probabilities = 0;
+        int tokenCount = 0;
+
+        JSONArray segments = output.optJSONArray("transcription");
+        int max = segments == null ? 0 : segments.length();
+        for (int i = 0; i < max; i++) {
+            JSONObject segment = segments.getJSONObject(i);
+            String segmentText = segment.optString("text", "");
+            text.append(segmentText);
+
+            double segmentProbabilities = 0;
+            int segmentTokens = 0;
+            JSONArray tokens = segment.optJSONArray("tokens");
+            for (int j = 0; tokens != null && j < tokens.length(); j++) {
+                JSONObject token = tokens.getJSONObject(j);
+                // Special tokens: [_BEG_], [_TT_150]...
+                if (!token.optString("text", "").startsWith("[_") && token.has("p")) {
+                    segmentProbabilities += token.getDouble("p");
+                    segmentTokens++;
+                }
+            }
+            probabilities += segmentProbabilities;
+            tokenCount += segmentTokens;
+
+            JSONObject offsets = segment.optJSONObject("offsets");
+            if (StringUtils.isNotBlank(segmentText) && offsets != null) {
+                words.add(new SpeechToTextWord(segmentText.trim(), offsets.getLong("from") / 1000.0,
+                        offsets.getLong("to") / 1000.0,
+                        segmentTokens == 0 ? -1 : segmentProbabilities / segmentTokens, 0));
+            }
+        }
+
+        return new LocalSpeechToTextResponse(text.toString().trim(), tokenCount == 0 ? 0 : probabilities / tokenCount,
+                words, output);
+    }
+
+    /**
+     * Reads the response of {@code whisper-server} (response_format=verbose_json)
+     */
+    public static LocalSpeechToTextResponse fromServerOutput(JSONObject output) throws JSONException {
+
+        List<SpeechToTextWord> words = new ArrayList<>();
+        StringBuilder segmentsText = new StringBuilder();
+        double probabilities = 0;
+        int probabilityCount = 0;
+
+        JSONArray segments = output.optJSONArray("segments");
+        int max = segments == null ? 0 : segments.length();
+        for (int i = 0; i < max; i++) {
+            JSONObject segment = segments.getJSONObject(i);
+            String segmentText = segment.optString("text", "");
+            segmentsText.append(segmentText);
+
+            JSONArray segmentWords = segment.optJSONArray("words");
+            if (segmentWords != null && segmentWords.length() > 0) {
+                for (int j = 0; j < segmentWords.length(); j++) {
+                    JSONObject word = segmentWords.getJSONObject(j);
+                    double probability = word.optDouble("probability", -1);
+                    if (probability >= 0) {
+                        probabilities += probability;
+                        probabilityCount++;
+                    }
+                    String wordText = word.optString("word", "").trim();
+                    if (!wordText.isEmpty()) {
+                        words.add(new SpeechToTextWord(wordText, word.getDouble("start"), word.getDouble("end"),
+                                probability, 0));
+                    }
+                }
+            } else if (StringUtils.isNotBlank(segmentText)) {
+                words.add(new SpeechToTextWord(segmentText.trim(), segment.getDouble("start"),
+                        segment.getDouble("end"), -1, 0));
+            }
+        }
+
+        String text = output.optString("text", null);
+        if (text == null) {
+            text = segmentsText.toString();
+        }
+        return new LocalSpeechToTextResponse(text.trim(), probabilityCount == 0 ? 0 : probabilities / probabilityCount,
+                words, output);
+    }
+
+    /**
+     * Reads the output of the command line or of the server, depending on its format
+     *
+     * @see #getNativeResponse()
+     */
+    public static LocalSpeechToTextResponse fromNativeResponse(JSONObject output) throws JSONException {
+        return output.has("transcription") ? fromCommandLineOutput(output) : fromServerOutput(output);
+    }
+
+    @Override
+    public String getText() {
+        return text;
+    }
+
+    @Override
+    public double getConfidence() {
+        return confidence;
+    }
+
+    @Override
+    public JSONArray getWordTimeOffsets(boolean withSpeakerTag) throws JSONException {
+
+        JSONArray array = new JSONArray();
+        for (SpeechToTextWord word : words) {
+            array.put(word.toJSON(withSpeakerTag));
+        }
+        return array;
+    }
+
+    @Override
+    public Iterator<SpeechToTextWord> getWordIterator(boolean withSpeakerTag) {
+        return words.iterator();
+    }
+
+    @Override
+    public Object getNativeResponse() {
+        return nativeResponse;
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.metrics;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.StringUtils;
+import org.nuxeo.runtime.metrics.MetricsService;
+
+import io.dropwizard.metrics5.Gauge;
+import io.dropwizard.metrics5.MetricName;
+import io.dropwizard.metrics5.MetricRegistry;
+import io.dropwizard.metrics5.SharedMetricRegistries;
+import io.dropwizard.metrics5.Timer;
+
+/**
+ * Metrics of the transcription pipeline, registered in the Nuxeo metrics registry (so they are sent to the configured
+ * reporters), tagged with the provider and the language:
+ * <ul>
+ * <li>Timers for each stage: nuxeo.speechtotext.normalize, .read (reading the audio, a streamed conversion
+ * included), .encode (Base64), .upload, .http (the whole HTTP exchange), .parse and .save (of the document)</li>
+ * <li>Histograms: nuxeo.speechtotext.upload.bytes and nuxeo.speechtotext.audio.seconds</li>
+ * <li>Counters: nuxeo.speechtotext.cache.hits, nuxeo.speechtotext.cache.misses and nuxeo.speechtotext.errors (also
+ * tagged with the HTTP status)</li>
+ * <li>Gauge: nuxeo.speechtotext.inflight, the number of HTTP calls in progress (tagged with the provider only)</li>
+ * </ul>
+ * The metrics of the service itself, all providers included, are tagged provider=all (its inflight gauge counts the
+ * calls waiting for the limits too).
+ *
+ * @since 2023.0.1
+ */
+public class SpeechToTextMetrics {
+
+    public static final String PREFIX = "nuxeo.speechtotext";
+
+    public static final String UNKNOWN = "unknown";
+
+    // Survive a restart of the component: The gauge is registered once
+    protected static final ConcurrentMap<String, AtomicInteger> IN_FLIGHT = new ConcurrentHashMap<>();
+
+    protected final MetricRegistry registry;
+
+    protected final String provider;
+
+    protected final AtomicInteger inFlight;
+
+    public SpeechToTextMetrics(String provider) {
+        this(SharedMetricRegistries.getOrCreate(MetricsService.class.getName()), provider);
+    }
+
+    public SpeechToTextMetrics(MetricRegistry registry, String provider) {
+        this.registry = registry;
+        this.provider = provider;
+        inFlight = IN_FLIGHT.computeIfAbsent(provider, k -> new AtomicInteger());
+        registry.gauge(MetricName.build(PREFIX, "inflight").tagged("provider", provider),
+                () -> (Gauge<Integer>) inFlight::get);
+    }
+
+    public Timer timer(String stage, String language) {
+        return registry.timer(name(stage, language));
+    }
+
+    public void time(String stage, String language, long nanos) {
+        timer(stage, language).update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void uploaded(String language, long bytes) {
+        registry.histogram(name("upload.bytes", language)).update(bytes);
+    }
+
+    public void audioSeconds(String language, double seconds) {
+        registry.histogram(name("audio.seconds", language)).update(Math.round(seconds));
+    }
+
+    public void cacheHit(String language) {
+        registry.counter(name("cache.hits", language)).inc();
+    }
+
+    public void cacheMiss(String language) {
+        registry.counter(name("cache.misses", language)).inc();
+    }
+
+    /**
+     * @param status the HTTP status, or the kind of error when there is no status ("io", ...)
+     */
+    public void error(String language, String status) {
+        registry.counter(name("errors", language).tagged("status", status)).inc();
+    }
+
+    public void callStarted() {
+        inFlight.incrementAndGet();
+    }
+
+    public void callEnded() {
+        inFlight.decrementAndGet();
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public MetricRegistry getRegistry() {
+        return registry;
+    }
+
+    protected MetricName name(String metric, String language) {
+        return MetricName.build(PREFIX, metric)
+                         .tagged("provider", provider, "language",
+                                 StringUtils.isBlank(language) ? UNKNOWN : language);
+    }
+
+}
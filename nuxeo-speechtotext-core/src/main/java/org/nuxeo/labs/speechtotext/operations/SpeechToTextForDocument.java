@@ -32,9 +32,12 @@ import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.labs.speechtotext.api.SpeechToText;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextJob;
 import org.nuxeo.labs.speechtotext.api.SpeechToTextOptions;
 import org.nuxeo.labs.speechtotext.api.SpeechToTextResponse;
 
+import io.dropwizard.metrics5.Timer;
+
 /**
  *
  */
@@ -43,7 +46,12 @@ import org.nuxeo.labs.speechtotext.api.SpeechToTextResponse;
         + " If the blob is not a FLAC or a WAV audio, a conversion will be sent to the service."
         + " Misc. options can be set (punctuation, wordTimeOffsets.)"
         + " If resultVarName is not empty this context variable is set to the SpeechToTextResponse object which has more accessors"
-        + " like accessing the worg time offsets")
+        + " like accessing the worg time offsets."
+        + " If longRunning is true, the audio is submitted for a long running recognition (for audio longer than 1mn) and"
+        + " the operation returns immediately. The transcript is saved in transcriptXpath when available, and"
+        + " resultVarName, if set, is the SpeechToTextJob (not the response)."
+        + " If maxSegmentSeconds is > 0, the audio is split in segments of this maximum duration, transcribed in"
+        + " parallel, and the results are merged")
 public class SpeechToTextForDocument {
 
     public static final String ID = "Convert.SpeechToTextForDocument";
@@ -81,22 +89,33 @@ public class SpeechToTextForDocument {
     @Param(name = "resultVarName", required = false)
     protected String resultVarName;
 
+    @Param(name = "longRunning", required = false, values = { "false" })
+    protected boolean longRunning = false;
+
+    @Param(name = "maxSegmentSeconds", required = false, values = { "0" })
+    protected int maxSegmentSeconds = 0;
+
     @OperationMethod
     public DocumentModel run(DocumentModel input) throws JSONException {
 
+        if (longRunning) {
+            SpeechToTextJob job = speechToText.runLongRunning(input, blobXpath, transcriptXpath,
+                    new SpeechToTextOptions(withPunctuation, withWordTimeOffets), languageCode, getMoreOptions());
+            if (StringUtils.isNotBlank(resultVarName)) {
+                ctx.put(resultVarName, job);
+            }
+            return input;
+        }
+
         String transcript = null;
         SpeechToTextResponse response = null;
 
         Blob blob = (Blob) input.getPropertyValue(blobXpath);
 
         if (blob != null) {
-            JSONObject moreOptions = null;
-            if (StringUtils.isNotBlank(moreOptionsJSONStr)) {
-                moreOptions = new JSONObject(moreOptionsJSONStr);
-            }
-
-            response = speechToText.run(new SpeechToTextOptions(withPunctuation, withWordTimeOffets), blob,
-                    languageCode, moreOptions);
+            SpeechToTextOptions options = new SpeechToTextOptions(withPunctuation, withWordTimeOffets);
+            options.setMaxSegmentSeconds(maxSegmentSeconds);
+            response = speechToText.run(options, blob, languageCode, getMoreOptions());
             transcript = response.getText();
         }
 
@@ -107,10 +126,21 @@ public class SpeechToTextForDocument {
         }
 
         if (saveDocument) {
-            input = session.saveDocument(input);
+            try (Timer.Context timer = speechToText.getMetrics().timer("save", languageCode).time()) {
+                input = session.saveDocument(input);
+            }
         }
 
         return input;
 
     }
-}
\ No newline at end of file
+
+    protected JSONObject getMoreOptions() throws JSONException {
+
+        JSONObject moreOptions = null;
+        if (StringUtils.isNotBlank(moreOptionsJSONStr)) {
+            moreOptions = new JSONObject(moreOptionsJSONStr);
+        }
+        return moreOptions;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.operations;
+
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.work.api.WorkManager;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextOptions;
+import org.nuxeo.labs.speechtotext.work.SpeechToTextWork;
+
+/**
+ * @since 2023.0.1
+ */
+@Operation(id = SpeechToTextForDocumentAsync.ID, category = Constants.CAT_CONVERSION, label = "Document: Speech to Text (Async)", description = "Same as Convert.SpeechToTextForDocument, but the transcription is done"
+        + " asynchronously in the speechToText WorkManager queue, and the operation returns immediately. The document"
+        + " is saved with the transcript in transcriptXpath once available. Scheduling several times the same document"
+        + " (and transcriptXpath) before it is processed transcribes it only once.")
+public class SpeechToTextForDocumentAsync {
+
+    public static final String ID = "Convert.SpeechToTextForDocumentAsync";
+
+    @Context
+    protected WorkManager workManager;
+
+    @Param(name = "blobXpath", required = false, values = { "file:content" })
+    protected String blobXpath = "file:content";
+
+    @Param(name = "transcriptXpath", required = true)
+    protected String transcriptXpath;
+
+    @Param(name = "languageCode", required = true, values = { "en-US" })
+    protected String languageCode = "en-US";
+
+    @Param(name = "withPunctuation", required = false, values = { "true" })
+    protected boolean withPunctuation = true;
+
+    @Param(name = "withWordTimeOffets", required = false, values = { "false" })
+    protected boolean withWordTimeOffets = false;
+
+    @Param(name = "moreOptionsJSONStr", required = false)
+    protected String moreOptionsJSONStr = null;
+
+    @Param(name = "maxSegmentSeconds", required = false, values = { "0" })
+    protected int maxSegmentSeconds = 0;
+
+    @OperationMethod
+    public DocumentModel run(DocumentModel input) {
+
+        if (input.getId() == null) {
+            throw new NuxeoException("The document must be created before scheduling its transcription");
+        }
+
+        SpeechToTextOptions options = new SpeechToTextOptions(withPunctuation, withWordTimeOffets);
+        options.setMaxSegmentSeconds(maxSegmentSeconds);
+
+        SpeechToTextWork work = new SpeechToTextWork(input.getRepositoryName(), input.getId(), blobXpath,
+                transcriptXpath, languageCode);
+        work.setOptions(options);
+        work.setMoreOptionsJSONStr(moreOptionsJSONStr);
+        // After commit, so the worker sees the document as it is now
+        workManager.schedule(work, true);
+
+        return input;
+    }
+
+}
@@ -0,0 +1,67 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.operations;
+
+import org.json.JSONException;
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.labs.speechtotext.api.SpeechToText;
+import org.nuxeo.labs.speechtotext.api.WordTimings;
+
+/**
+ * @since 2023.0.1
+ */
+@Operation(id = SpeechToTextGetWords.ID, category = Constants.CAT_DOCUMENT, label = "Speech to Text: Get Words", description = "Return the words spoken between startMs and endMs (milliseconds from the start of the audio), as a JSON blob"
+        + " (an array of {word, start, end, speakerTag}, times in seconds). A word partially in the range is returned."
+        + " The input is a document with the transcript schema (see Convert.SpeechToTextStoreTranscript), or the"
+        + " word timings blob itself. Only the words of the range are read from the blob.")
+public class SpeechToTextGetWords {
+
+    public static final String ID = "Document.SpeechToTextGetWords";
+
+    @Context
+    protected SpeechToText speechToText;
+
+    @Param(name = "startMs", required = false, values = { "0" })
+    protected int startMs = 0;
+
+    @Param(name = "endMs", required = true)
+    protected int endMs;
+
+    @OperationMethod
+    public Blob run(DocumentModel input) throws JSONException {
+        return toJSONBlob(speechToText.getWords(input, startMs / 1000d, endMs / 1000d));
+    }
+
+    @OperationMethod
+    public Blob run(Blob input) throws JSONException {
+        return toJSONBlob(speechToText.getWords(input, startMs / 1000d, endMs / 1000d));
+    }
+
+    protected Blob toJSONBlob(WordTimings words) throws JSONException {
+        return Blobs.createJSONBlob(words.toJSON(true).toString());
+    }
+
+}
@@ -0,0 +1,65 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.operations;
+
+import java.io.IOException;
+
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.labs.speechtotext.api.SpeechToText;
+import org.nuxeo.labs.speechtotext.api.WordTimings;
+import org.nuxeo.labs.speechtotext.index.TranscriptIndex;
+
+/**
+ * @since 2023.0.1
+ */
+@Operation(id = SpeechToTextIndexTranscript.ID, category = Constants.CAT_SERVICES, label = "Speech to Text: Index Transcript", description = "Index the word timings of the input document in the transcript index, now."
+        + " Documents are indexed automatically when their transcript is saved, use this operation to index the"
+        + " transcripts stored before the index was enabled (with Bulk.RunAction and the automation action for example)."
+        + " A document without the Transcript facet is removed from the index. Return the input document")
+public class SpeechToTextIndexTranscript {
+
+    public static final String ID = "Document.SpeechToTextIndexTranscript";
+
+    @Context
+    protected SpeechToText speechToText;
+
+    @OperationMethod
+    public DocumentModel run(DocumentModel input) throws IOException {
+
+        TranscriptIndex index = speechToText.getTranscriptIndex();
+        if (index == null) {
+            throw new NuxeoException("The transcript index is disabled");
+        }
+
+        WordTimings words = speechToText.getWords(input, 0, Integer.MAX_VALUE);
+        String key = TranscriptIndex.key(input.getRepositoryName(), input.getId());
+        if (words.size() == 0) {
+            index.delete(key);
+        } else {
+            index.index(key, words);
+        }
+        return input;
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.operations;
+
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.api.security.SecurityConstants;
+import org.nuxeo.labs.speechtotext.api.SpeechToText;
+import org.nuxeo.labs.speechtotext.index.TranscriptHit;
+import org.nuxeo.labs.speechtotext.index.TranscriptIndex;
+
+/**
+ * @since 2023.0.1
+ */
+@Operation(id = SpeechToTextSearch.ID, category = Constants.CAT_FETCH, label = "Speech to Text: Search Transcripts", description = "Search the transcripts indexed with their word timings (see Convert.SpeechToTextStoreTranscript)."
+        + " Return a JSON blob, the best hits first: an array of {repository, docId, score, times}, times being the"
+        + " seconds where the query is said in the audio. If phrase is true (default), the words of the query must be"
+        + " said in this order, else any of them is searched. Only the documents the current user can read are returned.")
+public class SpeechToTextSearch {
+
+    public static final String ID = "Document.SpeechToTextSearch";
+
+    @Context
+    protected CoreSession session;
+
+    @Context
+    protected SpeechToText speechToText;
+
+    @Param(name = "query", required = true)
+    protected String query;
+
+    @Param(name = "phrase", required = false, values = { "true" })
+    protected boolean phrase = true;
+
+    @Param(name = "limit", required = false, values = { "20" })
+    protected int limit = 20;
+
+    @OperationMethod
+    public Blob run() throws JSONException {
+
+        TranscriptIndex index = speechToText.getTranscriptIndex();
+        if (index == null) {
+            throw new NuxeoException("The transcript index is disabled");
+        }
+
+        String repositoryName = session.getRepositoryName();
+        List<TranscriptHit> hits = index.search(query, phrase, limit, docKey -> {
+            if (!docKey.startsWith(repositoryName + ":")) {
+                return false;
+            }
+            IdRef ref = new IdRef(docKey.substring(repositoryName.length() + 1));
+            return session.exists(ref) && session.hasPermission(ref, SecurityConstants.READ);
+        });
+
+        JSONArray array = new JSONArray();
+        for (TranscriptHit hit : hits) {
+            array.put(hit.toJSON());
+        }
+        return Blobs.createJSONBlob(array.toString());
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.operations;
+
+import org.apache.commons.lang3.StringUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.nuxeo.ecm.automation.OperationContext;
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.labs.speechtotext.api.SpeechToText;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextOptions;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextResponse;
+
+import io.dropwizard.metrics5.Timer;
+
+/**
+ * @since 2023.0.1
+ */
+@Operation(id = SpeechToTextStoreTranscript.ID, category = Constants.CAT_CONVERSION, label = "Document: Speech to Text with word timings", description = "Send the blob found in blobXpath (default file:content) to SpeechToText, using the languageCode."
+        + " Store the transcript, the language, the number of words and the word timings (a compact binary blob) in the"
+        + " transcript schema, adding the Transcript facet to the document if needed. Optionaly save the document (default false)."
+        + " Use Document.SpeechToTextGetWords to get the words of a time range."
+        + " If resultVarName is not empty this context variable is set to the SpeechToTextResponse object."
+        + " If maxSegmentSeconds is > 0, the audio is split in segments of this maximum duration, transcribed in"
+        + " parallel, and the results are merged")
+public class SpeechToTextStoreTranscript {
+
+    public static final String ID = "Convert.SpeechToTextStoreTranscript";
+
+    @Context
+    protected CoreSession session;
+
+    @Context
+    protected OperationContext ctx;
+
+    @Context
+    protected SpeechToText speechToText;
+
+    @Param(name = "blobXpath", required = false, values = { "file:content" })
+    protected String blobXpath = "file:content";
+
+    @Param(name = "languageCode", required = true, values = { "en-US" })
+    protected String languageCode = "en-US";
+
+    @Param(name = "withPunctuation", required = false, values = { "true" })
+    protected boolean withPunctuation = true;
+
+    @Param(name = "moreOptionsJSONStr", required = false)
+    protected String moreOptionsJSONStr = null;
+
+    @Param(name = "saveDocument", required = false, values = { "false" })
+    protected boolean saveDocument = false;
+
+    @Param(name = "resultVarName", required = false)
+    protected String resultVarName;
+
+    @Param(name = "maxSegmentSeconds", required = false, values = { "0" })
+    protected int maxSegmentSeconds = 0;
+
+    @OperationMethod
+    public DocumentModel run(DocumentModel input) throws JSONException {
+
+        Blob blob = (Blob) input.getPropertyValue(blobXpath);
+        if (blob == null) {
+            return input;
+        }
+
+        SpeechToTextOptions options = new SpeechToTextOptions(withPunctuation, true);
+        options.setMaxSegmentSeconds(maxSegmentSeconds);
+        JSONObject moreOptions = null;
+        if (StringUtils.isNotBlank(moreOptionsJSONStr)) {
+            moreOptions = new JSONObject(moreOptionsJSONStr);
+        }
+        SpeechToTextResponse response = speechToText.run(options, blob, languageCode, moreOptions);
+        speechToText.setTranscript(input, response, languageCode);
+
+        if (StringUtils.isNotBlank(resultVarName)) {
+            ctx.put(resultVarName, response);
+        }
+
+        if (saveDocument) {
+            try (Timer.Context timer = speechToText.getMetrics().timer("save", languageCode).time()) {
+                input = session.saveDocument(input);
+            }
+        }
+
+        return input;
+    }
+
+}
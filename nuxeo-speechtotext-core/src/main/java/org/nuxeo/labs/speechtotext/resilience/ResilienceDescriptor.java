@@ -0,0 +1,139 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.resilience;
+
+import org.nuxeo.common.xmap.annotation.XNode;
+import org.nuxeo.common.xmap.annotation.XObject;
+
+/**
+ * Contribution to the "resilience" extension point of the service: Retries, per attempt timeout and hedging of the
+ * calls to the provider. The last contribution wins. The default values apply when there is no contribution.
+ *
+ * <pre>
+ * &lt;extension target="org.nuxeo.labs.SpeechToText" point="resilience"&gt;
+ *   &lt;resilience&gt;
+ *     &lt;maxAttempts&gt;3&lt;/maxAttempts&gt;
+ *     &lt;initialBackoffMs&gt;500&lt;/initialBackoffMs&gt;
+ *     &lt;maxBackoffMs&gt;10000&lt;/maxBackoffMs&gt;
+ *     &lt;attemptTimeoutSeconds&gt;60&lt;/attemptTimeoutSeconds&gt;
+ *     &lt;hedging&gt;true&lt;/hedging&gt;
+ *     &lt;hedgingPercentile&gt;95&lt;/hedgingPercentile&gt;
+ *     &lt;hedgingMinDelayMs&gt;2000&lt;/hedgingMinDelayMs&gt;
+ *     &lt;hedgingThreads&gt;16&lt;/hedgingThreads&gt;
+ *   &lt;/resilience&gt;
+ * &lt;/extension&gt;
+ * </pre>
+ *
+ * @since 2023.0.1
+ */
+@XObject("resilience")
+public class ResilienceDescriptor {
+
+    // 1 means no retry
+    @XNode("maxAttempts")
+    protected int maxAttempts = 3;
+
+    @XNode("initialBackoffMs")
+    protected long initialBackoffMs = 500;
+
+    @XNode("maxBackoffMs")
+    protected long maxBackoffMs = 10000;
+
+    // 0: No timeout other than the HTTP socket timeout
+    @XNode("attemptTimeoutSeconds")
+    protected int attemptTimeoutSeconds = 0;
+
+    @XNode("hedging")
+    protected boolean hedging = false;
+
+    @XNode("hedgingPercentile")
+    protected int hedgingPercentile = 95;
+
+    @XNode("hedgingMinDelayMs")
+    protected long hedgingMinDelayMs = 2000;
+
+    // Attempts running in parallel when hedging, per provider. Read when the provider starts
+    @XNode("hedgingThreads")
+    protected int hedgingThreads = 16;
+
+    public int getMaxAttempts() {
+        return Math.max(1, maxAttempts);
+    }
+
+    public void setMaxAttempts(int value) {
+        maxAttempts = value;
+    }
+
+    public long getInitialBackoffMs() {
+        return initialBackoffMs;
+    }
+
+    public void setInitialBackoffMs(long value) {
+        initialBackoffMs = value;
+    }
+
+    public long getMaxBackoffMs() {
+        return maxBackoffMs;
+    }
+
+    public void setMaxBackoffMs(long value) {
+        maxBackoffMs = value;
+    }
+
+    public int getAttemptTimeoutSeconds() {
+        return attemptTimeoutSeconds;
+    }
+
+    public void setAttemptTimeoutSeconds(int value) {
+        attemptTimeoutSeconds = value;
+    }
+
+    public boolean isHedging() {
+        return hedging;
+    }
+
+    public void setHedging(boolean value) {
+        hedging = value;
+    }
+
+    public int getHedgingPercentile() {
+        return hedgingPercentile;
+    }
+
+    public void setHedgingPercentile(int value) {
+        hedgingPercentile = value;
+    }
+
+    public long getHedgingMinDelayMs() {
+        return hedgingMinDelayMs;
+    }
+
+    public void setHedgingMinDelayMs(long value) {
+        hedgingMinDelayMs = value;
+    }
+
+    public int getHedgingThreads() {
+        return hedgingThreads;
+    }
+
+    public void setHedgingThreads(int value) {
+        hedgingThreads = value;
+    }
+
+}
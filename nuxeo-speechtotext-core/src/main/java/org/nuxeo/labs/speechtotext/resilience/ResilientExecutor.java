@@ -0,0 +1,365 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.resilience;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextProviderException;
+import org.nuxeo.labs.speechtotext.audio.AudioReadException;
+import org.nuxeo.labs.speechtotext.impl.NamedThreadFactory;
+
+/**
+ * Runs the calls to the provider with the {@link ResilienceDescriptor} configuration:
+ * <ul>
+ * <li>Retries, with an exponential backoff and jitter, the IO errors (timeouts included) and the errors returned by
+ * the provider with a 429 or 5xx status. Other errors (bad request, invalid key, ...) are thrown right away.</li>
+ * <li>Aborts an attempt after attemptTimeoutSeconds.</li>
+ * <li>Hedging: If an attempt is not done after the hedgingPercentile of the latencies of the last calls, a second one
+ * is sent, the first to succeed is used and the other one is aborted. Only for idempotent calls. The latencies are per
+ * second of audio, so the delay is scaled by the duration of the audio sent (the raw latencies are used when the
+ * duration is unknown). The attempts run on at most hedgingThreads threads: When they are all busy, the call is not
+ * hedged.</li>
+ * </ul>
+ *
+ * @since 2023.0.1
+ */
+public class ResilientExecutor {
+
+    private static final Logger log = LogManager.getLogger(ResilientExecutor.class);
+
+    /**
+     * A call that can be aborted from another thread, such as an HTTP request.
+     */
+    public interface AbortableCall<T> {
+
+        T call() throws IOException;
+
+        void abort();
+    }
+
+    protected static final int LATENCY_WINDOW = 200;
+
+    // No hedging until the percentile is meaningful
+    protected static final int MIN_LATENCY_SAMPLES = 20;
+
+    protected volatile ResilienceDescriptor config;
+
+    protected final ScheduledExecutorService timeoutScheduler;
+
+    protected final ExecutorService hedgingExecutor;
+
+    // Milliseconds, of the calls whose audio duration is not known
+    protected final LatencyWindow latencies = new LatencyWindow();
+
+    // Milliseconds per second of audio
+    protected final LatencyWindow latenciesPerSecond = new LatencyWindow();
+
+    public ResilientExecutor(ResilienceDescriptor config) {
+        this.config = config;
+        timeoutScheduler = Executors.newSingleThreadScheduledExecutor(
+                new NamedThreadFactory("speechtotext-timeout"));
+        // No queue: an attempt is run right away, or not hedged
+        int threads = Math.max(2, config.getHedgingThreads());
+        hedgingExecutor = new ThreadPoolExecutor(0, threads, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                new NamedThreadFactory("speechtotext-hedging"));
+    }
+
+    public void setConfiguration(ResilienceDescriptor config) {
+        this.config = config;
+    }
+
+    public ResilienceDescriptor getConfiguration() {
+        return config;
+    }
+
+    public void shutdown() {
+        timeoutScheduler.shutdownNow();
+        hedgingExecutor.shutdownNow();
+    }
+
+    /**
+     * Same as {@link #execute(Supplier, boolean, double)}, the duration of the audio being unknown
+     */
+    public <T> T execute(Supplier<AbortableCall<T>> callFactory, boolean idempotent) throws IOException {
+        return execute(callFactory, idempotent, 0);
+    }
+
+    /**
+     * @param callFactory creates a new call for each attempt
+     * @param idempotent if false, the call is not hedged
+     * @param audioSeconds the duration of the audio sent, 0 if unknown
+     * @return the result of the first successful attempt
+     * @throws IOException or NuxeoException, the error of the last attempt
+     */
+    public <T> T execute(Supplier<AbortableCall<T>> callFactory, boolean idempotent, double audioSeconds)
+            throws IOException {
+
+        ResilienceDescriptor conf = config;
+        for (int attempt = 1;; attempt++) {
+            try {
+                if (idempotent && conf.isHedging()) {
+                    return runHedged(callFactory, conf, audioSeconds);
+                }
+                return runAttempt(callFactory.get(), conf, audioSeconds);
+            } catch (IOException | RuntimeException e) {
+                if (attempt >= conf.getMaxAttempts() || !isRetryable(e)) {
+                    throw e;
+                }
+                long backoff = getBackoffMs(conf, attempt);
+                log.warn("Attempt " + attempt + " failed (" + e.getMessage() + "), retrying in " + backoff + "ms");
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new NuxeoException("Interrupted before retrying", ie);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true for IO errors (except the ones reading the audio, see {@link AudioReadException}) and for 429 or 5xx
+     *         errors returned by the provider
+     */
+    public static boolean isRetryable(Throwable t) {
+
+        if (t instanceof AudioReadException) {
+            return false;
+        }
+        if (t instanceof IOException) {
+            return true;
+        }
+        if (t instanceof SpeechToTextProviderException) {
+            int status = ((SpeechToTextProviderException) t).getStatusCode();
+            return status == 429 || (status >= 500 && status < 600);
+        }
+        return false;
+    }
+
+    /*
+     * Exponential, half of it being random, so the callers failing together don't retry together
+     */
+    protected long getBackoffMs(ResilienceDescriptor conf, int attempt) {
+
+        double exponential = conf.getInitialBackoffMs() * Math.pow(2, attempt - 1);
+        long cap = (long) Math.min(conf.getMaxBackoffMs(), exponential);
+        long half = cap / 2;
+        return half + ThreadLocalRandom.current().nextLong(cap - half + 1);
+    }
+
+    protected <T> T runAttempt(AbortableCall<T> call, ResilienceDescriptor conf, double audioSeconds)
+            throws IOException {
+
+        AtomicBoolean timedOut = new AtomicBoolean(false);
+        ScheduledFuture<?> timeout = null;
+        int timeoutSeconds = conf.getAttemptTimeoutSeconds();
+        if (timeoutSeconds > 0) {
+            timeout = timeoutScheduler.schedule(() -> {
+                timedOut.set(true);
+                call.abort();
+            }, timeoutSeconds, TimeUnit.SECONDS);
+        }
+
+        long start = System.currentTimeMillis();
+        try {
+            T result = call.call();
+            addLatency(System.currentTimeMillis() - start, audioSeconds);
+            return result;
+        } catch (IOException e) {
+            if (timedOut.get()) {
+                throw new IOException("Attempt aborted after " + timeoutSeconds + "s", e);
+            }
+            throw e;
+        } finally {
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+        }
+    }
+
+    protected <T> T runHedged(Supplier<AbortableCall<T>> callFactory, ResilienceDescriptor conf,
+            double audioSeconds) throws IOException {
+
+        long delay = getHedgingDelayMs(conf, audioSeconds);
+        if (delay < 0) {
+            return runAttempt(callFactory.get(), conf, audioSeconds);
+        }
+
+        AbortableCall<T> primary = callFactory.get();
+        AbortableCall<T> hedge = null;
+        try {
+            CompletableFuture<T> first;
+            try {
+                first = submit(primary, conf, audioSeconds);
+            } catch (RejectedExecutionException e) {
+                // All the threads are busy hedging other calls
+                return runAttempt(primary, conf, audioSeconds);
+            }
+            try {
+                return first.get(delay, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // Slower than usual, hedge
+            }
+
+            CompletableFuture<T> second;
+            try {
+                hedge = callFactory.get();
+                second = submit(hedge, conf, audioSeconds);
+            } catch (RejectedExecutionException e) {
+                return first.get();
+            }
+            log.debug("Hedging a call not done after " + delay + "ms");
+
+            // The first to succeed, or the last error
+            CompletableFuture<T> winner = new CompletableFuture<>();
+            AtomicInteger failures = new AtomicInteger();
+            first.whenComplete((result, error) -> complete(winner, result, error, failures));
+            second.whenComplete((result, error) -> complete(winner, result, error, failures));
+            return winner.get();
+
+        } catch (ExecutionException e) {
+            throw unwrap(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NuxeoException("Interrupted waiting for the provider", e);
+        } finally {
+            // Aborting a call already done has no effect
+            primary.abort();
+            if (hedge != null) {
+                hedge.abort();
+            }
+        }
+    }
+
+    protected <T> void complete(CompletableFuture<T> winner, T result, Throwable error, AtomicInteger failures) {
+        if (error == null) {
+            winner.complete(result);
+        } else if (failures.incrementAndGet() == 2) {
+            winner.completeExceptionally(error);
+        }
+    }
+
+    protected <T> CompletableFuture<T> submit(AbortableCall<T> call, ResilienceDescriptor conf, double audioSeconds) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return runAttempt(call, conf, audioSeconds);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, hedgingExecutor);
+    }
+
+    protected IOException unwrap(Throwable t) {
+
+        while (t instanceof CompletionException && t.getCause() != null) {
+            t = t.getCause();
+        }
+        if (t instanceof IOException) {
+            return (IOException) t;
+        }
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        throw new NuxeoException(t);
+    }
+
+    protected void addLatency(long latencyMs, double audioSeconds) {
+        if (audioSeconds > 0) {
+            latenciesPerSecond.add(latencyMs / audioSeconds);
+        } else {
+            latencies.add(latencyMs);
+        }
+    }
+
+    /**
+     * @return the delay before hedging, -1 if there are not enough latencies yet
+     */
+    protected long getHedgingDelayMs(ResilienceDescriptor conf, double audioSeconds) {
+
+        double percentile;
+        if (audioSeconds > 0) {
+            percentile = latenciesPerSecond.getPercentile(conf.getHedgingPercentile()) * audioSeconds;
+        } else {
+            percentile = latencies.getPercentile(conf.getHedgingPercentile());
+        }
+        if (percentile < 0) {
+            return -1;
+        }
+        return Math.max(conf.getHedgingMinDelayMs(), (long) Math.ceil(percentile));
+    }
+
+    /*
+     * The last LATENCY_WINDOW latencies
+     */
+    protected static class LatencyWindow {
+
+        protected final double[] values = new double[LATENCY_WINDOW];
+
+        protected int count = 0;
+
+        protected int index = 0;
+
+        public synchronized void add(double value) {
+            values[index] = value;
+            index = (index + 1) % LATENCY_WINDOW;
+            count = Math.min(count + 1, LATENCY_WINDOW);
+        }
+
+        /**
+         * @return the percentile, -1 if there are not enough values yet
+         */
+        public double getPercentile(int percentile) {
+
+            double[] sorted;
+            synchronized (this) {
+                if (count < MIN_LATENCY_SAMPLES) {
+                    return -1;
+                }
+                sorted = Arrays.copyOf(values, count);
+            }
+            Arrays.sort(sorted);
+            int i = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+        }
+    }
+
+}
@@ -0,0 +1,160 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.router;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.nuxeo.common.xmap.annotation.XNode;
+import org.nuxeo.common.xmap.annotation.XNodeList;
+import org.nuxeo.common.xmap.annotation.XNodeMap;
+import org.nuxeo.common.xmap.annotation.XObject;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextProvider;
+
+/**
+ * Contribution to the "providers" extension point of the service. Each provider gets its own instance of the class,
+ * so its own connection pool and limits (see the properties of the class, for example
+ * GoogleSpeechToTextProvider#PARAM_PREFIX).
+ * <p>
+ * A contribution with the same name replaces the previous one, enabled="false" removes it.
+ *
+ * <pre>
+ * &lt;extension target="org.nuxeo.labs.SpeechToText" point="providers"&gt;
+ *   &lt;provider name="google-eu" class="org.nuxeo.labs.speechtotext.google.GoogleSpeechToTextProvider"&gt;
+ *     &lt;!-- Empty: all the languages. "fr" accepts fr-FR, fr-CA... --&gt;
+ *     &lt;languages&gt;
+ *       &lt;language&gt;fr&lt;/language&gt;
+ *       &lt;language&gt;de-DE&lt;/language&gt;
+ *     &lt;/languages&gt;
+ *     &lt;!-- 0: no limit --&gt;
+ *     &lt;maxAudioSeconds&gt;60&lt;/maxAudioSeconds&gt;
+ *     &lt;!-- A provider with a weight of 2 can take about twice as many calls as one with 1 --&gt;
+ *     &lt;weight&gt;2&lt;/weight&gt;
+ *     &lt;properties&gt;
+ *       &lt;property name="endpoint"&gt;https://eu-speech.googleapis.com/&lt;/property&gt;
+ *       &lt;property name="apikey"&gt;${google.speechtotext.eu.apikey}&lt;/property&gt;
+ *       &lt;property name="http.maxConnectionsPerRoute"&gt;10&lt;/property&gt;
+ *     &lt;/properties&gt;
+ *   &lt;/provider&gt;
+ * &lt;/extension&gt;
+ * </pre>
+ *
+ * @since 2023.0.1
+ */
+@XObject("provider")
+public class ProviderDescriptor {
+
+    @XNode("@name")
+    protected String name;
+
+    @XNode("@class")
+    protected Class<? extends SpeechToTextProvider> klass;
+
+    @XNode("@enabled")
+    protected boolean enabled = true;
+
+    @XNodeList(value = "languages/language", type = ArrayList.class, componentType = String.class)
+    protected List<String> languages = new ArrayList<>();
+
+    @XNode("maxAudioSeconds")
+    protected double maxAudioSeconds = 0;
+
+    @XNode("weight")
+    protected int weight = 1;
+
+    @XNodeMap(value = "properties/property", key = "@name", type = HashMap.class, componentType = String.class)
+    protected Map<String, String> properties = new HashMap<>();
+
+    public ProviderDescriptor() {
+    }
+
+    public ProviderDescriptor(String name, Class<? extends SpeechToTextProvider> klass) {
+        this.name = name;
+        this.klass = klass;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Class<? extends SpeechToTextProvider> getKlass() {
+        return klass;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean value) {
+        enabled = value;
+    }
+
+    public List<String> getLanguages() {
+        return languages;
+    }
+
+    public double getMaxAudioSeconds() {
+        return maxAudioSeconds;
+    }
+
+    public void setMaxAudioSeconds(double value) {
+        maxAudioSeconds = value;
+    }
+
+    public int getWeight() {
+        return Math.max(1, weight);
+    }
+
+    public void setWeight(int value) {
+        weight = value;
+    }
+
+    public Map<String, String> getProperties() {
+        return properties;
+    }
+
+    /**
+     * @return true if no language is set, if the language is listed, or if its prefix is listed ("fr" for "fr-CA")
+     */
+    public boolean acceptsLanguage(String languageCode) {
+
+        if (languages.isEmpty() || languageCode == null) {
+            return true;
+        }
+        String lang = languageCode.toLowerCase(Locale.ROOT);
+        for (String accepted : languages) {
+            String acceptedLowerCase = accepted.toLowerCase(Locale.ROOT);
+            if (lang.equals(acceptedLowerCase) || lang.startsWith(acceptedLowerCase + "-")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param audioSeconds 0 or less when unknown, always accepted
+     */
+    public boolean acceptsDuration(double audioSeconds) {
+        return maxAudioSeconds <= 0 || audioSeconds <= 0 || audioSeconds <= maxAudioSeconds;
+    }
+
+}
@@ -0,0 +1,200 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.router;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextProvider;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextProviderException;
+import org.nuxeo.labs.speechtotext.audio.AudioReadException;
+import org.nuxeo.labs.speechtotext.resilience.ResilienceDescriptor;
+import org.nuxeo.labs.speechtotext.resilience.ResilientExecutor;
+
+/**
+ * Picks the provider of each call, among the ones accepting its language and audio duration: The healthy provider
+ * with the best score (see {@link RoutedProvider#getScore()}: calls in progress, average latency and weight) is tried
+ * first. If it fails with an error another provider may not have (IO error, quota or throttling, 5xx, invalid
+ * credentials), the call fails over to the next one. Degraded providers come last.
+ * <p>
+ * Errors due to the call itself (bad request, audio that cannot be read or converted...) are thrown right away, and
+ * don't count as failures of the provider.
+ *
+ * @since 2023.0.1
+ */
+public class ProviderRouter {
+
+    private static final Logger log = LogManager.getLogger(ProviderRouter.class);
+
+    public static final String FAILURE_THRESHOLD_PARAM = "speechtotext.router.failureThreshold";
+
+    public static final String DEGRADED_SECONDS_PARAM = "speechtotext.router.degradedSeconds";
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+
+    public static final int DEFAULT_DEGRADED_SECONDS = 30;
+
+    protected final List<RoutedProvider> providers;
+
+    protected final int failureThreshold;
+
+    protected final long degradedMs;
+
+    /**
+     * @param providers in the order of the contributions, which breaks the ties
+     */
+    public ProviderRouter(List<RoutedProvider> providers, int failureThreshold, int degradedSeconds) {
+        this.providers = providers;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        degradedMs = TimeUnit.SECONDS.toMillis(degradedSeconds);
+    }
+
+    public List<RoutedProvider> getProviders() {
+        return providers;
+    }
+
+    public void start() {
+        providers.forEach(p -> p.getProvider().start());
+    }
+
+    public void stop() {
+        for (RoutedProvider p : providers) {
+            try {
+                p.getProvider().stop();
+            } catch (RuntimeException e) {
+                log.error("Error stopping the provider " + p.getName(), e);
+            }
+        }
+    }
+
+    public void setResilienceDescriptor(ResilienceDescriptor descriptor) {
+        providers.forEach(p -> p.getProvider().setResilienceDescriptor(descriptor));
+    }
+
+    /**
+     * @param audioSeconds 0 or less when unknown
+     * @return the providers accepting the call, in the order they should be tried
+     */
+    public List<RoutedProvider> select(String languageCode, double audioSeconds) {
+
+        long now = System.currentTimeMillis();
+        List<RoutedProvider> healthy = new ArrayList<>();
+        List<RoutedProvider> degraded = new ArrayList<>();
+        for (RoutedProvider p : providers) {
+            if (p.accepts(languageCode, audioSeconds)) {
+                (p.isDegraded(now) ? degraded : healthy).add(p);
+            }
+        }
+        // Stable sort: same score, order of the contributions
+        Comparator<RoutedProvider> byScore = Comparator.comparingDouble(RoutedProvider::getScore);
+        healthy.sort(byScore);
+        degraded.sort(byScore);
+        healthy.addAll(degraded);
+        return healthy;
+    }
+
+    /**
+     * Runs the call on the best provider, failing over to the next ones if needed.
+     *
+     * @param audioSeconds 0 or less when unknown
+     * @return the result of the first provider to succeed
+     * @throws NuxeoException if no provider accepts the call, or the error of the last provider tried
+     */
+    public <T> T call(String languageCode, double audioSeconds, Function<SpeechToTextProvider, T> call) {
+        return call(select(languageCode, audioSeconds), languageCode, audioSeconds, call);
+    }
+
+    /**
+     * Runs the call on the given providers, in this order, failing over to the next ones if needed: The call was
+     * prepared for the first one (see {@link #select(String, double)}).
+     *
+     * @param audioSeconds 0 or less when unknown
+     * @return the result of the first provider to succeed
+     * @throws NuxeoException if there is no candidate, or the error of the last provider tried
+     * @since 2023.0.1
+     */
+    public <T> T call(List<RoutedProvider> candidates, String languageCode, double audioSeconds,
+            Function<SpeechToTextProvider, T> call) {
+
+        if (candidates.isEmpty()) {
+            throw new NuxeoException("No speech-to-text provider for the language " + languageCode
+                    + (audioSeconds > 0 ? " and " + audioSeconds + "s of audio" : ""));
+        }
+
+        RuntimeException lastError = null;
+        for (int i = 0; i < candidates.size(); i++) {
+            RoutedProvider candidate = candidates.get(i);
+            long start = System.currentTimeMillis();
+            candidate.callStarted();
+            try {
+                T result = call.apply(candidate.getProvider());
+                candidate.onSuccess(System.currentTimeMillis() - start, audioSeconds);
+                return result;
+            } catch (RuntimeException e) {
+                if (!isFailover(e)) {
+                    throw e;
+                }
+                if (candidate.onFailure(System.currentTimeMillis(), failureThreshold, degradedMs)) {
+                    log.warn("Provider " + candidate.getName() + " degraded for " + degradedMs + "ms after "
+                            + candidate.getConsecutiveFailures() + " failures");
+                }
+                if (i < candidates.size() - 1) {
+                    log.warn("Provider " + candidate.getName() + " failed (" + e.getMessage() + "), trying "
+                            + candidates.get(i + 1).getName());
+                }
+                lastError = e;
+            } finally {
+                candidate.callEnded();
+            }
+        }
+        throw lastError;
+    }
+
+    /**
+     * @return true if another provider may succeed: IO errors of the exchange with the provider, 429 (from the
+     *         provider or the local limits), 5xx, 401 and 403 (credentials of this provider). Not if the audio cannot
+     *         be read or converted ({@link AudioReadException}), whatever the error wrapping it
+     */
+    public static boolean isFailover(Throwable t) {
+
+        if (AudioReadException.isAudioError(t)) {
+            return false;
+        }
+        for (; t != null; t = t.getCause()) {
+            if (t instanceof IOException || ResilientExecutor.isRetryable(t)) {
+                return true;
+            }
+            if (t instanceof NuxeoException) {
+                int status = ((NuxeoException) t).getStatusCode();
+                if (status == 429 || (t instanceof SpeechToTextProviderException && (status == 401 || status == 403))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,134 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.router;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.nuxeo.labs.speechtotext.api.SpeechToTextProvider;
+
+/**
+ * A provider of the router, with what is observed of its calls: The number of calls in progress (its queue depth),
+ * the average latency per second of audio (exponentially weighted, so it follows the recent calls: a long audio is
+ * not taken for a slow provider) and the consecutive failures. After
+ * too many failures, it is degraded for a while: It is used again only if no other provider can take the call, and a
+ * success makes it healthy again.
+ *
+ * @since 2023.0.1
+ */
+public class RoutedProvider {
+
+    // Weight of the last call in the average latency
+    protected static final double LATENCY_ALPHA = 0.2;
+
+    protected final ProviderDescriptor descriptor;
+
+    protected final SpeechToTextProvider provider;
+
+    protected final AtomicInteger pending = new AtomicInteger();
+
+    protected final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    // 0 until a first call of a known duration succeeds, so a new provider is tried
+    protected double averageMsPerAudioSecond = 0;
+
+    protected volatile long degradedUntil = 0;
+
+    public RoutedProvider(ProviderDescriptor descriptor, SpeechToTextProvider provider) {
+        this.descriptor = descriptor;
+        this.provider = provider;
+    }
+
+    public ProviderDescriptor getDescriptor() {
+        return descriptor;
+    }
+
+    public SpeechToTextProvider getProvider() {
+        return provider;
+    }
+
+    public String getName() {
+        return descriptor.getName();
+    }
+
+    public int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * @return the average latency, in milliseconds per second of audio
+     */
+    public synchronized double getAverageMsPerAudioSecond() {
+        return averageMsPerAudioSecond;
+    }
+
+    public int getConsecutiveFailures() {
+        return consecutiveFailures.get();
+    }
+
+    public boolean isDegraded(long now) {
+        return now < degradedUntil;
+    }
+
+    public boolean accepts(String languageCode, double audioSeconds) {
+        return descriptor.acceptsLanguage(languageCode) && descriptor.acceptsDuration(audioSeconds);
+    }
+
+    /**
+     * The expected wait for a new call, relative to the other providers: the lower the better. The duration of the
+     * audio is the same for all of them, so the latency per second of audio is enough.
+     */
+    public double getScore() {
+        return (pending.get() + 1) * Math.max(1, getAverageMsPerAudioSecond()) / descriptor.getWeight();
+    }
+
+    protected void callStarted() {
+        pending.incrementAndGet();
+    }
+
+    protected void callEnded() {
+        pending.decrementAndGet();
+    }
+
+    /**
+     * @param audioSeconds 0 or less when unknown: the latency is then not averaged
+     */
+    protected void onSuccess(long latencyMs, double audioSeconds) {
+        if (audioSeconds > 0) {
+            double perSecond = latencyMs / audioSeconds;
+            synchronized (this) {
+                averageMsPerAudioSecond = averageMsPerAudioSecond == 0 ? perSecond
+                        : LATENCY_ALPHA * perSecond + (1 - LATENCY_ALPHA) * averageMsPerAudioSecond;
+            }
+        }
+        consecutiveFailures.set(0);
+        degradedUntil = 0;
+    }
+
+    /**
+     * @return true if the provider is now degraded
+     */
+    protected boolean onFailure(long now, int failureThreshold, long degradedMs) {
+        if (consecutiveFailures.incrementAndGet() >= failureThreshold) {
+            degradedUntil = now + degradedMs;
+            return true;
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,62 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.segmentation;
+
+import org.nuxeo.ecm.core.api.Blob;
+
+/**
+ * A chunk of a longer audio: A WAV blob and its position in the original audio.
+ *
+ * @since 2023.0.1
+ */
+public class AudioSegment {
+
+    protected final int index;
+
+    protected final Blob blob;
+
+    protected final double offsetSeconds;
+
+    protected final double durationSeconds;
+
+    public AudioSegment(int index, Blob blob, double offsetSeconds, double durationSeconds) {
+        super();
+        this.index = index;
+        this.blob = blob;
+        this.offsetSeconds = offsetSeconds;
+        this.durationSeconds = durationSeconds;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public Blob getBlob() {
+        return blob;
+    }
+
+    public double getOffsetSeconds() {
+        return offsetSeconds;
+    }
+
+    public double getDurationSeconds() {
+        return durationSeconds;
+    }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.segmentation;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.function.Consumer;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.labs.speechtotext.audio.WavHeader;
+
+/**
+ * Splits a 16 bits mono PCM WAV into WAV segments of at most <code>maxSegmentSeconds</code>.
+ * <p>
+ * When a segment must be cut, the cut is made in the quietest 20ms window found in the last
+ * <code>silenceSearchSeconds</code> of the segment, so we avoid (as much as possible) cutting a word in two.
+ * <p>
+ * The audio is read sequentially, only one segment is held in memory at a time, and each segment is passed to the
+ * consumer as soon as it is written, so the caller can start transcribing it while the next one is prepared.
+ *
+ * @since 2023.0.1
+ */
+public class AudioSegmenter {
+
+    protected static final int SILENCE_WINDOW_MS = 20;
+
+    protected final int maxSegmentSeconds;
+
+    protected final int silenceSearchSeconds;
+
+    public AudioSegmenter(int maxSegmentSeconds, int silenceSearchSeconds) {
+        super();
+        if (maxSegmentSeconds <= 0) {
+            throw new IllegalArgumentException("maxSegmentSeconds must be > 0");
+        }
+        this.maxSegmentSeconds = maxSegmentSeconds;
+        this.silenceSearchSeconds = Math.max(0, Math.min(silenceSearchSeconds, maxSegmentSeconds / 2));
+    }
+
+    /**
+     * @param wav a 16 bits mono PCM WAV
+     * @param consumer receives the segments, in order
+     * @return the number of segments
+     */
+    public int split(Blob wav, Consumer<AudioSegment> consumer) throws IOException {
+
+        try (InputStream in = wav.getStream()) {
+
+            WavHeader header = WavHeader.read(in);
+            if (header == null || !header.isPCM() || header.getBitsPerSample() != 16 || header.getChannels() != 1) {
+                throw new NuxeoException("Segmentation requires a 16 bits mono PCM WAV");
+            }
+
+            int rate = header.getSampleRate();
+            int bytesPerSecond = rate * 2;
+            int maxBytes = maxSegmentSeconds * bytesPerSecond;
+            int searchBytes = silenceSearchSeconds * bytesPerSecond;
+            long remaining = header.getDataLength() < 0 ? Long.MAX_VALUE : header.getDataLength();
+
+            byte[] buffer = new byte[maxBytes];
+            int filled = 0;
+            long offsetBytes = 0;
+            int index = 0;
+            boolean eof = false;
+
+            while (true) {
+                // Fill the buffer
+                while (!eof && filled < maxBytes) {
+                    int toRead = (int) Math.min(maxBytes - filled, remaining);
+                    int count = toRead == 0 ? -1 : in.read(buffer, filled, toRead);
+                    if (count < 0) {
+                        eof = true;
+                    } else {
+                        filled += count;
+                        remaining -= count;
+                    }
+                }
+                // Ignore an odd trailing byte
+                filled &= ~1;
+                if (filled == 0) {
+                    break;
+                }
+
+                int cut = eof ? filled : findCut(buffer, filled - searchBytes, filled, rate);
+
+                Blob segmentBlob = createSegmentBlob(buffer, cut, rate);
+                consumer.accept(new AudioSegment(index++, segmentBlob, (double) offsetBytes / bytesPerSecond,
+                        (double) cut / bytesPerSecond));
+
+                System.arraycopy(buffer, cut, buffer, 0, filled - cut);
+                filled -= cut;
+                offsetBytes += cut;
+            }
+
+            return index;
+        }
+    }
+
+    /*
+     * Returns the byte position (even) of the middle of the quietest window in [from, to)
+     */
+    protected int findCut(byte[] buffer, int from, int to, int rate) {
+
+        int windowBytes = Math.max(2, rate * SILENCE_WINDOW_MS / 1000 * 2);
+        from = Math.max(0, from) & ~1;
+        if (to - from < windowBytes) {
+            return to;
+        }
+
+        long bestEnergy = Long.MAX_VALUE;
+        int bestStart = to - windowBytes;
+        for (int start = from; start + windowBytes <= to; start += windowBytes) {
+            long energy = 0;
+            for (int i = start; i < start + windowBytes; i += 2) {
+                int sample = (short) ((buffer[i] & 0xFF) | (buffer[i + 1] << 8));
+                energy += (long) sample * sample;
+            }
+            // Later windows win on equality: Longer segments, fewer requests
+            if (energy <= bestEnergy) {
+                bestEnergy = energy;
+                bestStart = start;
+            }
+        }
+
+        return (bestStart + windowBytes / 2) & ~1;
+    }
+
+    protected Blob createSegmentBlob(byte[] buffer, int length, int rate) throws IOException {
+
+        Blob blob = Blobs.createBlobWithExtension(".wav");
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(blob.getFile()))) {
+            WavHeader.writePCMHeader(out, rate, 1, 16, length);
+            out.write(buffer, 0, length);
+        }
+        blob.setMimeType("audio/wav");
+
+        return blob;
+    }
+
+}
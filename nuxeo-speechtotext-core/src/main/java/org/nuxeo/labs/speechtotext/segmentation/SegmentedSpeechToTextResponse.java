@@ -0,0 +1,227 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.segmentation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.commons.lang3.StringUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextResponse;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextSegment;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextWord;
+
+/**
+ * The responses of the segments of an audio, merged as if the whole audio had been sent in one call.
+ * <p>
+ * The text is the concatenation of the texts of each segment, the confidence is the average of the confidences,
+ * weighted by the duration of each segment, and the word time offsets are rebased on the start of the original audio.
+ * A segment without speech (empty text, confidence -1, no word) is skipped.
+ * <p>
+ * Speaker tags are the ones returned for each segment: The provider does not know a speaker was already found in
+ * another segment, so the same tag may not always be the same person.
+ *
+ * @since 2023.0.1
+ */
+public class SegmentedSpeechToTextResponse implements SpeechToTextResponse {
+
+    protected final List<AudioSegment> segments;
+
+    protected final List<SpeechToTextResponse> responses;
+
+    protected String cachedText = null;
+
+    /**
+     * @param segments the segments, in order
+     * @param responses the response for each segment, same order
+     */
+    public SegmentedSpeechToTextResponse(List<AudioSegment> segments, List<SpeechToTextResponse> responses) {
+        super();
+        if (segments.size() != responses.size()) {
+            throw new IllegalArgumentException("One response per segment is expected");
+        }
+        this.segments = segments;
+        this.responses = responses;
+    }
+
+    @Override
+    public String getText() {
+
+        if (cachedText == null) {
+            StringBuilder text = new StringBuilder();
+            for (SpeechToTextResponse response : responses) {
+                String segmentText = response.getText();
+                if (StringUtils.isNotBlank(segmentText)) {
+                    if (text.length() > 0) {
+                        text.append(' ');
+                    }
+                    text.append(segmentText.trim());
+                }
+            }
+            cachedText = text.toString();
+        }
+        return cachedText;
+    }
+
+    @Override
+    public double getConfidence() {
+
+        double total = 0;
+        double duration = 0;
+        for (int i = 0; i < responses.size(); i++) {
+            double confidence = responses.get(i).getConfidence();
+            if (confidence >= 0) {
+                double segmentDuration = segments.get(i).getDurationSeconds();
+                total += confidence * segmentDuration;
+                duration += segmentDuration;
+            }
+        }
+        return duration > 0 ? total / duration : -1;
+    }
+
+    @Override
+    public JSONArray getWordTimeOffsets(boolean withSpeakerTag) throws JSONException {
+
+        JSONArray array = new JSONArray();
+
+        for (int i = 0; i < responses.size(); i++) {
+            double offset = segments.get(i).getOffsetSeconds();
+            JSONArray words = responses.get(i).getWordTimeOffsets(withSpeakerTag);
+            int max = words.length();
+            for (int j = 0; j < max; j++) {
+                JSONObject word = words.getJSONObject(j);
+                word.put("start", rebase(word.getDouble("start"), offset));
+                word.put("end", rebase(word.getDouble("end"), offset));
+                array.put(word);
+            }
+        }
+
+        return array;
+    }
+
+    /*
+     * Words are read from each segment in turn, as they are iterated
+     */
+    @Override
+    public Iterator<SpeechToTextWord> getWordIterator(boolean withSpeakerTag) {
+
+        return new Iterator<SpeechToTextWord>() {
+
+            protected int index = -1;
+
+            protected Iterator<SpeechToTextWord> current = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext() && index < responses.size() - 1) {
+                    index++;
+                    current = responses.get(index).getWordIterator(withSpeakerTag);
+                }
+                return current.hasNext();
+            }
+
+            @Override
+            public SpeechToTextWord next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                SpeechToTextWord word = current.next();
+                double offset = segments.get(index).getOffsetSeconds();
+                return new SpeechToTextWord(word.getWord(), rebase(word.getStart(), offset),
+                        rebase(word.getEnd(), offset), word.getConfidence(), word.getSpeakerTag());
+            }
+        };
+    }
+
+    /*
+     * The segments of each response in turn, rebased and numbered from the first one
+     */
+    @Override
+    public Iterator<SpeechToTextSegment> getSegmentIterator() {
+
+        return new Iterator<SpeechToTextSegment>() {
+
+            protected int index = -1;
+
+            protected int segmentIndex = 0;
+
+            protected Iterator<SpeechToTextSegment> current = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext() && index < responses.size() - 1) {
+                    index++;
+                    current = responses.get(index).getSegmentIterator();
+                }
+                return current.hasNext();
+            }
+
+            @Override
+            public SpeechToTextSegment next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                SpeechToTextSegment segment = current.next();
+                double offset = segments.get(index).getOffsetSeconds();
+                List<SpeechToTextWord> words = new ArrayList<>(segment.getWords().size());
+                for (SpeechToTextWord word : segment.getWords()) {
+                    words.add(new SpeechToTextWord(word.getWord(), rebase(word.getStart(), offset),
+                            rebase(word.getEnd(), offset), word.getConfidence(), word.getSpeakerTag()));
+                }
+                return new SpeechToTextSegment(segmentIndex++, segment.getText(), segment.getConfidence(),
+                        rebase(segment.getStart(), offset), rebase(segment.getEnd(), offset),
+                        segment.getLanguageCode(), words);
+            }
+        };
+    }
+
+    /*
+     * Keeps the 3 digits precision of the offsets
+     */
+    protected double rebase(double seconds, double offset) {
+        return Math.round((seconds + offset) * 1000) / 1000.0;
+    }
+
+    /**
+     * @return the list of the native responses, one per segment
+     */
+    @Override
+    public Object getNativeResponse() {
+
+        List<Object> natives = new ArrayList<>(responses.size());
+        for (SpeechToTextResponse response : responses) {
+            natives.add(response.getNativeResponse());
+        }
+        return natives;
+    }
+
+    public List<AudioSegment> getSegments() {
+        return segments;
+    }
+
+    public List<SpeechToTextResponse> getSegmentResponses() {
+        return responses;
+    }
+
+}
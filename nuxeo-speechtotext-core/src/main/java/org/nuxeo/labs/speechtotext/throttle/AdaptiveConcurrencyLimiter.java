@@ -0,0 +1,205 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.throttle;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits the number of concurrent calls, the limit being adjusted with AIMD (additive increase, multiplicative
+ * decrease):
+ * <ul>
+ * <li>Each successful call increases the limit by 1/limit (so, about +1 once the limit calls are done)</li>
+ * <li>An overload (429 from the provider) or a latency spike multiplies it by backoffRatio. Calls in flight when the
+ * provider starts refusing fail together: The limit is decreased at most once per second.</li>
+ * </ul>
+ * The latency is expected to be comparable between calls (for example, per second of audio). A spike is a latency
+ * higher than latencySpikeRatio times its moving average, 0 disables the detection.
+ * <p>
+ * The calls wait for a slot on a lock, not a monitor: A virtual thread waiting in a monitor is pinned to its carrier
+ * thread (before Java 24), thousands of asynchronous calls waiting for a slot would hold all the carriers.
+ *
+ * @since 2023.0.1
+ */
+public class AdaptiveConcurrencyLimiter {
+
+    protected static final double LATENCY_EWMA_ALPHA = 0.1;
+
+    protected static final long DECREASE_COOLDOWN_MS = 1000;
+
+    protected final int minLimit;
+
+    protected final int maxLimit;
+
+    protected final double backoffRatio;
+
+    protected final double latencySpikeRatio;
+
+    protected final LongSupplier clock;
+
+    protected final ReentrantLock lock = new ReentrantLock();
+
+    // Signaled when a slot is released or the limit increases
+    protected final Condition slotAvailable = lock.newCondition();
+
+    protected double limit;
+
+    protected int inFlight = 0;
+
+    protected double averageLatency = -1;
+
+    protected long lastDecrease = Long.MIN_VALUE;
+
+    public AdaptiveConcurrencyLimiter(int minLimit, int maxLimit, double backoffRatio, double latencySpikeRatio) {
+        this(minLimit, maxLimit, backoffRatio, latencySpikeRatio, System::currentTimeMillis);
+    }
+
+    public AdaptiveConcurrencyLimiter(int minLimit, int maxLimit, double backoffRatio, double latencySpikeRatio,
+            LongSupplier clock) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Invalid limits: " + minLimit + "-" + maxLimit);
+        }
+        if (backoffRatio <= 0 || backoffRatio >= 1) {
+            throw new IllegalArgumentException("backoffRatio must be in ]0, 1[");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.backoffRatio = backoffRatio;
+        this.latencySpikeRatio = latencySpikeRatio;
+        this.clock = clock;
+        limit = maxLimit;
+    }
+
+    /**
+     * Waits for a slot. A successful acquire must be followed by one of onSuccess, onOverload or onIgnore.
+     *
+     * @return false if no slot was available after maxWaitMs
+     */
+    public boolean acquire(long maxWaitMs) throws InterruptedException {
+
+        long remaining = TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+        lock.lockInterruptibly();
+        try {
+            while (inFlight >= (int) limit) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                remaining = slotAvailable.awaitNanos(remaining);
+            }
+            inFlight++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void onSuccess() {
+        lock.lock();
+        try {
+            release();
+            increase();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param latency the latency of the call, in a unit comparable between calls
+     */
+    public void onSuccess(double latency) {
+
+        lock.lock();
+        try {
+            release();
+            if (latencySpikeRatio > 0 && averageLatency > 0 && latency > latencySpikeRatio * averageLatency) {
+                decrease();
+            } else {
+                increase();
+            }
+            averageLatency = averageLatency < 0 ? latency
+                    : averageLatency + LATENCY_EWMA_ALPHA * (latency - averageLatency);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void onOverload() {
+        lock.lock();
+        try {
+            release();
+            decrease();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The call failed for another reason, the limit is unchanged.
+     */
+    public void onIgnore() {
+        lock.lock();
+        try {
+            release();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * Called with the lock held, as increase() and decrease()
+     */
+    protected void release() {
+        inFlight--;
+        slotAvailable.signalAll();
+    }
+
+    protected void increase() {
+        limit = Math.min(maxLimit, limit + 1 / limit);
+    }
+
+    protected void decrease() {
+        long now = clock.getAsLong();
+        if (lastDecrease != Long.MIN_VALUE && now - lastDecrease < DECREASE_COOLDOWN_MS) {
+            return;
+        }
+        lastDecrease = now;
+        limit = Math.max(minLimit, limit * backoffRatio);
+    }
+
+}
@@ -0,0 +1,130 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.throttle;
+
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+/**
+ * Throttles the calls to a provider: Requests per minute and audio seconds per minute ({@link TokenBucket}, possibly
+ * shared by the nodes), then number of concurrent calls ({@link AdaptiveConcurrencyLimiter}, per node).
+ * <p>
+ * Each of them is optional (null).
+ *
+ * @since 2023.0.1
+ */
+public class CallThrottle {
+
+    @FunctionalInterface
+    public interface ThrottledCall<T, E extends Exception> {
+        T call() throws E;
+    }
+
+    protected final TokenBucket requests;
+
+    protected final TokenBucket audioSeconds;
+
+    protected final AdaptiveConcurrencyLimiter concurrency;
+
+    protected final long maxWaitMs;
+
+    public CallThrottle(TokenBucket requests, TokenBucket audioSeconds, AdaptiveConcurrencyLimiter concurrency,
+            long maxWaitMs) {
+        this.requests = requests;
+        this.audioSeconds = audioSeconds;
+        this.concurrency = concurrency;
+        this.maxWaitMs = maxWaitMs;
+    }
+
+    /**
+     * Waits until the call is allowed, then runs it.
+     *
+     * @param audioDurationSeconds the duration of the audio sent, 0 if unknown (only the requests are then limited)
+     * @throws NuxeoException (status 429) if the call is still not allowed after the max wait
+     */
+    public <T, E extends Exception> T call(double audioDurationSeconds, ThrottledCall<T, E> call) throws E {
+
+        if (requests != null) {
+            requests.acquire(1, maxWaitMs);
+        }
+        if (audioSeconds != null && audioDurationSeconds > 0) {
+            audioSeconds.acquire(audioDurationSeconds, maxWaitMs);
+        }
+        if (concurrency == null) {
+            return call.call();
+        }
+
+        try {
+            if (!concurrency.acquire(maxWaitMs)) {
+                throw new NuxeoException("Too many concurrent calls (" + concurrency.getLimit() + ")",
+                        TokenBucket.HTTP_TOO_MANY_REQUESTS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NuxeoException("Interrupted waiting for a call slot", e);
+        }
+
+        long start = System.currentTimeMillis();
+        boolean released = false;
+        try {
+            T result = call.call();
+            long latency = System.currentTimeMillis() - start;
+            released = true;
+            if (audioDurationSeconds > 0) {
+                concurrency.onSuccess(latency / audioDurationSeconds);
+            } else {
+                concurrency.onSuccess();
+            }
+            return result;
+        } catch (Exception e) {
+            released = true;
+            if (isOverload(e)) {
+                concurrency.onOverload();
+            } else {
+                concurrency.onIgnore();
+            }
+            throw e;
+        } finally {
+            if (!released) {
+                concurrency.onIgnore();
+            }
+        }
+    }
+
+    public AdaptiveConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrency;
+    }
+
+    /**
+     * @return true if the error (or one of its causes) is a NuxeoException with the 429 status
+     */
+    public static boolean isOverload(Throwable t) {
+
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof NuxeoException
+                    && ((NuxeoException) cause).getStatusCode() == TokenBucket.HTTP_TOO_MANY_REQUESTS) {
+                return true;
+            }
+            if (cause.getCause() == cause) {
+                break;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,46 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.throttle;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Store local to the JVM: The limits are then per node.
+ *
+ * @since 2023.0.1
+ */
+public class InMemoryTokenBucketStore implements TokenBucketStore {
+
+    protected final ConcurrentMap<String, String> values = new ConcurrentHashMap<>();
+
+    @Override
+    public String get(String key) {
+        return values.get(key);
+    }
+
+    @Override
+    public boolean compareAndSet(String key, String expected, String value, long refillSeconds) {
+        if (expected == null) {
+            return values.putIfAbsent(key, value) == null;
+        }
+        return values.replace(key, expected, value);
+    }
+
+}
@@ -0,0 +1,54 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.throttle;
+
+import org.nuxeo.runtime.kv.KeyValueStore;
+
+/**
+ * Store shared by the nodes of the cluster (when the KeyValueStore is, Redis or MongoDB for example).
+ * <p>
+ * A bucket expires once it would be full again, refilled from its last update: A bucket in debt (see
+ * {@link TokenBucket}) is kept until its debt is paid back.
+ *
+ * @since 2023.0.1
+ */
+public class KeyValueTokenBucketStore implements TokenBucketStore {
+
+    public static final String KEY_PREFIX = "speechtotext:bucket:";
+
+    // Added to the time to refill the bucket, so the clocks of the nodes don't need to be exactly in sync
+    public static final long TTL_MARGIN_SECONDS = 60;
+
+    protected final KeyValueStore store;
+
+    public KeyValueTokenBucketStore(KeyValueStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public String get(String key) {
+        return store.getString(KEY_PREFIX + key);
+    }
+
+    @Override
+    public boolean compareAndSet(String key, String expected, String value, long refillSeconds) {
+        return store.compareAndSet(KEY_PREFIX + key, expected, value, Math.max(0, refillSeconds) + TTL_MARGIN_SECONDS);
+    }
+
+}
@@ -0,0 +1,149 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.throttle;
+
+import java.util.function.LongSupplier;
+
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+/**
+ * A token bucket, refilled continuously with ratePerMinute tokens per minute, holding at most ratePerMinute tokens.
+ * <p>
+ * The state ("tokens@lastUpdateMillis") is read and updated in the {@link TokenBucketStore} with a compare and set,
+ * so the nodes sharing the store share the bucket. The clocks of the nodes are expected to be in sync: A node behind
+ * the last update only gets no refill.
+ * <p>
+ * Acquiring more tokens than the capacity (a recording longer than the audio quota per minute) waits for a full
+ * bucket, and the bucket then goes in debt.
+ *
+ * @since 2023.0.1
+ */
+public class TokenBucket {
+
+    public static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    // Heavy contention on the store: Give up this attempt and retry after a short sleep
+    protected static final int MAX_CAS_ATTEMPTS = 10;
+
+    protected final TokenBucketStore store;
+
+    protected final String key;
+
+    protected final double capacity;
+
+    protected final double refillPerMs;
+
+    protected final LongSupplier clock;
+
+    public TokenBucket(TokenBucketStore store, String key, double ratePerMinute) {
+        this(store, key, ratePerMinute, System::currentTimeMillis);
+    }
+
+    public TokenBucket(TokenBucketStore store, String key, double ratePerMinute, LongSupplier clock) {
+        if (ratePerMinute <= 0) {
+            throw new IllegalArgumentException("ratePerMinute must be > 0");
+        }
+        this.store = store;
+        this.key = key;
+        this.clock = clock;
+        capacity = ratePerMinute;
+        refillPerMs = ratePerMinute / 60000.0;
+    }
+
+    /**
+     * Takes the tokens if available, does not wait.
+     *
+     * @return 0 if the tokens were taken, else the number of milliseconds to wait before they can be
+     */
+    public long tryAcquire(double amount) {
+
+        double needed = Math.min(amount, capacity);
+        for (int i = 0; i < MAX_CAS_ATTEMPTS; i++) {
+            long now = clock.getAsLong();
+            String current = store.get(key);
+            double tokens = getTokens(current, now);
+            if (tokens < needed) {
+                return Math.max(1, (long) Math.ceil((needed - tokens) / refillPerMs));
+            }
+            if (store.compareAndSet(key, current, (tokens - amount) + "@" + now, getRefillSeconds(tokens - amount))) {
+                return 0;
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Waits for the tokens.
+     *
+     * @throws NuxeoException (status 429) if they are not available after maxWaitMs
+     */
+    public void acquire(double amount, long maxWaitMs) {
+
+        long deadline = clock.getAsLong() + maxWaitMs;
+        long wait;
+        while ((wait = tryAcquire(amount)) > 0) {
+            long remaining = deadline - clock.getAsLong();
+            if (wait > remaining) {
+                throw new NuxeoException("Rate limit " + key + " (" + capacity + "/mn) exceeded, waited "
+                        + (maxWaitMs - remaining) + "ms", HTTP_TOO_MANY_REQUESTS);
+            }
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new NuxeoException("Interrupted waiting for rate limit " + key, e);
+            }
+        }
+    }
+
+    /**
+     * @return the tokens currently available (can be negative when in debt)
+     */
+    public double getAvailable() {
+        return getTokens(store.get(key), clock.getAsLong());
+    }
+
+    public double getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the seconds needed to refill the bucket to its capacity, paying back its debt if any
+     */
+    protected long getRefillSeconds(double tokens) {
+        return (long) Math.ceil((capacity - tokens) / refillPerMs / 1000);
+    }
+
+    protected double getTokens(String state, long now) {
+
+        if (state == null) {
+            return capacity;
+        }
+        int sep = state.indexOf('@');
+        try {
+            double tokens = Double.parseDouble(state.substring(0, sep));
+            long last = Long.parseLong(state.substring(sep + 1));
+            return Math.min(capacity, tokens + Math.max(0, now - last) * refillPerMs);
+        } catch (IndexOutOfBoundsException | NumberFormatException e) {
+            // Corrupted: Start again with a full bucket
+            return capacity;
+        }
+    }
+
+}
@@ -0,0 +1,42 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.throttle;
+
+/**
+ * Where the state of the {@link TokenBucket}s is stored. Sharing the store between nodes makes the limit cluster-wide.
+ *
+ * @since 2023.0.1
+ */
+public interface TokenBucketStore {
+
+    /**
+     * @return the value, null if not set
+     */
+    String get(String key);
+
+    /**
+     * Sets the value only if the current one is expected (null meaning not set).
+     *
+     * @param refillSeconds the time until the bucket is full again: A value not updated for longer can be dropped, it
+     *            then reads as a full bucket
+     * @return true if the value was set
+     */
+    boolean compareAndSet(String key, String expected, String value, long refillSeconds);
+
+}
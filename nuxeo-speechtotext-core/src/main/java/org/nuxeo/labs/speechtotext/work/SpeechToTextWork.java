@@ -0,0 +1,156 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.work;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.work.AbstractWork;
+import org.nuxeo.labs.speechtotext.api.SpeechToText;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextOptions;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextResponse;
+import org.nuxeo.runtime.api.Framework;
+
+import io.dropwizard.metrics5.Timer;
+
+/**
+ * Transcribes the blob of a document, and stores the transcript in transcriptXpath, in the speechToText queue (see
+ * work-contrib.xml for its number of threads).
+ * <p>
+ * The id depends only on the document and transcriptXpath: The work is coalescing, so a document scheduled several
+ * times before being processed is transcribed only once. The transaction is not held during the call to the
+ * provider, and the document is fetched again before saving the transcript.
+ *
+ * @since 2023.0.1
+ */
+public class SpeechToTextWork extends AbstractWork {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger log = LogManager.getLogger(SpeechToTextWork.class);
+
+    public static final String CATEGORY = "speechToText";
+
+    protected String blobXpath;
+
+    protected String transcriptXpath;
+
+    protected String languageCode;
+
+    protected boolean withPunctuation = true;
+
+    protected boolean withWordTimeOffsets = false;
+
+    protected int maxSegmentSeconds = 0;
+
+    // A String, JSONObject is not Serializable
+    protected String moreOptionsJSONStr;
+
+    public SpeechToTextWork(String repositoryName, String docId, String blobXpath, String transcriptXpath,
+            String languageCode) {
+        super(buildId(repositoryName, docId, transcriptXpath));
+        setDocument(repositoryName, docId);
+        this.blobXpath = blobXpath;
+        this.transcriptXpath = transcriptXpath;
+        this.languageCode = languageCode;
+    }
+
+    public static String buildId(String repositoryName, String docId, String transcriptXpath) {
+        return CATEGORY + ":" + repositoryName + ":" + docId + ":" + transcriptXpath;
+    }
+
+    public void setOptions(SpeechToTextOptions options) {
+        withPunctuation = options.isWithPunctuation();
+        withWordTimeOffsets = options.isWithWordTimeOffsets();
+        maxSegmentSeconds = options.getMaxSegmentSeconds();
+    }
+
+    public void setMoreOptionsJSONStr(String value) {
+        moreOptionsJSONStr = value;
+    }
+
+    @Override
+    public String getCategory() {
+        return CATEGORY;
+    }
+
+    @Override
+    public String getTitle() {
+        return "Speech to text: " + docId;
+    }
+
+    @Override
+    public boolean isCoalescing() {
+        return true;
+    }
+
+    @Override
+    public void work() {
+
+        openSystemSession();
+        IdRef ref = new IdRef(docId);
+        if (!session.exists(ref)) {
+            log.debug("Document " + docId + " does not exist anymore, no transcript");
+            return;
+        }
+
+        Blob blob = (Blob) session.getDocument(ref).getPropertyValue(blobXpath);
+        if (blob == null) {
+            return;
+        }
+
+        SpeechToTextOptions options = new SpeechToTextOptions(withPunctuation, withWordTimeOffsets);
+        options.setMaxSegmentSeconds(maxSegmentSeconds);
+        JSONObject moreOptions = null;
+        if (StringUtils.isNotBlank(moreOptionsJSONStr)) {
+            try {
+                moreOptions = new JSONObject(moreOptionsJSONStr);
+            } catch (JSONException e) {
+                throw new NuxeoException("Invalid moreOptionsJSONStr: " + moreOptionsJSONStr, e);
+            }
+        }
+
+        setStatus("Transcribing");
+        // Don't hold the transaction while waiting for the provider
+        commitOrRollbackTransaction();
+        SpeechToText speechToText = Framework.getService(SpeechToText.class);
+        SpeechToTextResponse response;
+        try {
+            response = speechToText.run(options, blob, languageCode, moreOptions);
+        } finally {
+            startTransaction();
+        }
+
+        if (session.exists(ref)) {
+            DocumentModel doc = session.getDocument(ref);
+            doc.setPropertyValue(transcriptXpath, response.getText());
+            try (Timer.Context timer = speechToText.getMetrics().timer("save", languageCode).time()) {
+                session.saveDocument(doc);
+            }
+        }
+        setStatus("Done");
+    }
+
+}
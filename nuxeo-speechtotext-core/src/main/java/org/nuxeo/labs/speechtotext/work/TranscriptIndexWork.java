@@ -0,0 +1,105 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.work;
+
+import java.io.IOException;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.work.AbstractWork;
+import org.nuxeo.labs.speechtotext.api.SpeechToText;
+import org.nuxeo.labs.speechtotext.api.WordTimings;
+import org.nuxeo.labs.speechtotext.api.WordTimingsCodec;
+import org.nuxeo.labs.speechtotext.index.TranscriptIndex;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Indexes the word timings of a document in the transcript index, or removes it from the index if it does not exist
+ * anymore, or has no transcript. Coalescing: Only the last version of the document is indexed.
+ *
+ * @since 2023.0.1
+ */
+public class TranscriptIndexWork extends AbstractWork {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String CATEGORY = "speechToTextIndex";
+
+    public TranscriptIndexWork(String repositoryName, String docId) {
+        super(CATEGORY + ":" + repositoryName + ":" + docId);
+        setDocument(repositoryName, docId);
+    }
+
+    @Override
+    public String getCategory() {
+        return CATEGORY;
+    }
+
+    @Override
+    public String getTitle() {
+        return "Transcript index: " + docId;
+    }
+
+    @Override
+    public boolean isCoalescing() {
+        return true;
+    }
+
+    @Override
+    public void work() {
+
+        TranscriptIndex index = Framework.getService(SpeechToText.class).getTranscriptIndex();
+        if (index == null) {
+            return;
+        }
+
+        openSystemSession();
+        IdRef ref = new IdRef(docId);
+        WordTimings words = WordTimings.EMPTY;
+        if (session.exists(ref)) {
+            DocumentModel doc = session.getDocument(ref);
+            if (doc.hasFacet(SpeechToText.TRANSCRIPT_FACET)) {
+                Blob blob = (Blob) doc.getPropertyValue(SpeechToText.TRANSCRIPT_WORD_TIMINGS_XPATH);
+                words = blob == null ? WordTimings.EMPTY : decode(blob);
+            }
+        }
+
+        String key = TranscriptIndex.key(repositoryName, docId);
+        try {
+            if (words.size() == 0) {
+                index.delete(key);
+            } else {
+                index.index(key, words);
+            }
+        } catch (IOException e) {
+            throw new NuxeoException("Cannot index the transcript of " + docId, e);
+        }
+    }
+
+    protected WordTimings decode(Blob blob) {
+        try {
+            return WordTimingsCodec.decode(blob);
+        } catch (IOException e) {
+            throw new NuxeoException("Cannot read the word timings of " + docId, e);
+        }
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs.speechtotext.work;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.work.AbstractWork;
+import org.nuxeo.labs.speechtotext.api.SpeechToText;
+import org.nuxeo.runtime.api.Framework;
+
+import io.dropwizard.metrics5.Timer;
+
+/**
+ * Saves the transcript of a long running recognition in transcriptXpath, once the provider is done (see
+ * {@link SpeechToText#runLongRunning(DocumentModel, String, String, org.nuxeo.labs.speechtotext.api.SpeechToTextOptions,
+ * String, org.json.JSONObject)}), in the speechToTextSave queue: The thread completing the job (the poller of the
+ * operations, or the caller on a cache hit) does not write to the repository.
+ * <p>
+ * Coalescing: Only the last transcript of a document is saved.
+ *
+ * @since 2023.0.1
+ */
+public class TranscriptSaveWork extends AbstractWork {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger log = LogManager.getLogger(TranscriptSaveWork.class);
+
+    public static final String CATEGORY = "speechToTextSave";
+
+    protected String transcriptXpath;
+
+    protected String transcript;
+
+    protected String languageCode;
+
+    public TranscriptSaveWork(String repositoryName, String docId, String transcriptXpath, String transcript,
+            String languageCode) {
+        super(CATEGORY + ":" + repositoryName + ":" + docId + ":" + transcriptXpath);
+        setDocument(repositoryName, docId);
+        this.transcriptXpath = transcriptXpath;
+        this.transcript = transcript;
+        this.languageCode = languageCode;
+    }
+
+    @Override
+    public String getCategory() {
+        return CATEGORY;
+    }
+
+    @Override
+    public String getTitle() {
+        return "Speech to text save: " + docId;
+    }
+
+    @Override
+    public boolean isCoalescing() {
+        return true;
+    }
+
+    @Override
+    public void work() {
+
+        SpeechToText speechToText = Framework.getService(SpeechToText.class);
+        openSystemSession();
+        IdRef ref = new IdRef(docId);
+        if (!session.exists(ref)) {
+            log.debug("Document " + docId + " does not exist anymore, transcript not saved");
+            return;
+        }
+        DocumentModel doc = session.getDocument(ref);
+        doc.setPropertyValue(transcriptXpath, transcript);
+        try (Timer.Context timer = speechToText.getMetrics().timer("save", languageCode).time()) {
+            session.saveDocument(doc);
+        }
+    }
+
+}
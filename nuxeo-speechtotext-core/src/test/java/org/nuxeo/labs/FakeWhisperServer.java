@@ -0,0 +1,108 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.io.IOUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Stands for whisper-server in the tests: Run as a separate process with the port as argument, it answers
+ * /inference with a fixed verbose JSON transcript ("hello world"), with word timings if max_len is sent.
+ *
+ * @since 2023.0.1
+ */
+public class FakeWhisperServer {
+
+    public static final String TRANSCRIPT = "hello world";
+
+    public static void main(String[] args) throws IOException {
+
+        int port = Integer.parseInt(args[0]);
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/inference", FakeWhisperServer::handle);
+        server.start();
+    }
+
+    protected static void handle(HttpExchange exchange) throws IOException {
+
+        String body;
+        try (InputStream in = exchange.getRequestBody()) {
+            body = new String(IOUtils.toByteArray(in), StandardCharsets.ISO_8859_1);
+        }
+        byte[] response;
+        int status = 200;
+        if (!body.contains("name=\"file\"") || !body.contains("verbose_json")) {
+            status = 400;
+            response = "{\"error\":\"bad request\"}".getBytes(StandardCharsets.UTF_8);
+        } else {
+            try {
+                response = buildResponse(body.contains("name=\"max_len\"")).toString()
+                                                                            .getBytes(StandardCharsets.UTF_8);
+            } catch (JSONException e) {
+                throw new IOException(e);
+            }
+        }
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, response.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(response);
+        }
+    }
+
+    protected static JSONObject buildResponse(boolean withWords) throws JSONException {
+
+        JSONArray segments = new JSONArray();
+        String[] words = TRANSCRIPT.split(" ");
+        for (int i = 0; i < words.length; i++) {
+            JSONObject segment = new JSONObject();
+            segment.put("id", i);
+            segment.put("text", " " + words[i]);
+            segment.put("start", i * 0.5);
+            segment.put("end", i * 0.5 + 0.4);
+            if (withWords) {
+                JSONObject word = new JSONObject();
+                word.put("word", " " + words[i]);
+                word.put("start", i * 0.5);
+                word.put("end", i * 0.5 + 0.4);
+                word.put("probability", 0.9);
+                segment.put("words", new JSONArray().put(word));
+            }
+            segments.put(segment);
+        }
+        JSONObject response = new JSONObject();
+        response.put("task", "transcribe");
+        response.put("language", "english");
+        response.put("text", " " + TRANSCRIPT);
+        response.put("segments", segments);
+        return response;
+    }
+
+}
@@ -0,0 +1,370 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.IOUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.nuxeo.labs.speechtotext.google.GoogleSpeechToTextProvider;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local server implementing the REST API used by {@link GoogleSpeechToTextProvider}: speech:recognize,
+ * speech:longrunningrecognize and operations/{name}. Point the provider to it with the google.speechtotext.endpoint
+ * parameter (see {@link #getEndpoint()}), no API key or network needed.
+ * <p>
+ * The transcript depends only on the audio (same audio => same transcript), with the configured number
+ * of words, and the word time offsets when asked for. Latency and errors (429, 5xx) can be injected, randomly or for
+ * the next requests.
+ *
+ * @since 2023.0.1
+ */
+public class MockSpeechServer implements AutoCloseable {
+
+    public static final String RECOGNIZE = "speech:recognize";
+
+    public static final String LONG_RUNNING_RECOGNIZE = "speech:longrunningrecognize";
+
+    public static final String OPERATIONS = "operations";
+
+    protected static final String[] VOCABULARY = { "the", "quick", "brown", "fox", "jumps", "over", "a", "lazy",
+            "dog", "this", "is", "john", "and", "it", "was", "a", "test", "of", "speech", "to", "text", "nuxeo",
+            "document", "audio", "video", "transcript" };
+
+    protected static final double WORD_SECONDS = 0.3;
+
+    protected HttpServer server;
+
+    protected ExecutorService executor;
+
+    protected volatile int wordCount = 10;
+
+    protected volatile long latencyMs = 0;
+
+    protected volatile long latencyJitterMs = 0;
+
+    protected volatile double tooManyRequestsRate = 0;
+
+    protected volatile double serverErrorRate = 0;
+
+    // Number of GET of an operation before it is done
+    protected volatile int operationPolls = 1;
+
+    protected final Random random = new Random(42);
+
+    protected final Queue<Integer> nextErrors = new ConcurrentLinkedQueue<>();
+
+    protected final Map<String, AtomicInteger> requestCounts = new ConcurrentHashMap<>();
+
+    protected final AtomicInteger errorCount = new AtomicInteger();
+
+    // Address and port of the clients, one per connection
+    protected final Set<String> connections = ConcurrentHashMap.newKeySet();
+
+    protected final AtomicLong operationIds = new AtomicLong(1000);
+
+    // name => [polls left, response]
+    protected final Map<String, Object[]> operations = new ConcurrentHashMap<>();
+
+    public MockSpeechServer start() throws IOException {
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/" + GoogleSpeechToTextProvider.SPEECHTOTEXT_API_VERSION + "/", this::handle);
+        // Answers concurrent calls, as the service does
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+        return this;
+    }
+
+    public void stop() {
+
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+            server = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        stop();
+    }
+
+    /**
+     * @return the value of google.speechtotext.endpoint to use this server
+     */
+    public String getEndpoint() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/";
+    }
+
+    public MockSpeechServer setWordCount(int wordCount) {
+        this.wordCount = wordCount;
+        return this;
+    }
+
+    public MockSpeechServer setLatency(long latencyMs, long jitterMs) {
+        this.latencyMs = latencyMs;
+        latencyJitterMs = jitterMs;
+        return this;
+    }
+
+    /**
+     * @param rate between 0 and 1, the part of the recognize requests answered with a 429
+     */
+    public MockSpeechServer setTooManyRequestsRate(double rate) {
+        tooManyRequestsRate = rate;
+        return this;
+    }
+
+    /**
+     * @param rate between 0 and 1, the part of the recognize requests answered with a 503
+     */
+    public MockSpeechServer setServerErrorRate(double rate) {
+        serverErrorRate = rate;
+        return this;
+    }
+
+    public MockSpeechServer setOperationPolls(int polls) {
+        operationPolls = polls;
+        return this;
+    }
+
+    /**
+     * The next count requests (recognize or long running) are answered with this status
+     */
+    public MockSpeechServer failNext(int status, int count) {
+        for (int i = 0; i < count; i++) {
+            nextErrors.add(status);
+        }
+        return this;
+    }
+
+    /**
+     * @param method RECOGNIZE, LONG_RUNNING_RECOGNIZE or OPERATIONS
+     */
+    public int getRequestCount(String method) {
+        AtomicInteger count = requestCounts.get(method);
+        return count == null ? 0 : count.get();
+    }
+
+    public int getErrorCount() {
+        return errorCount.get();
+    }
+
+    /**
+     * @return the number of connections the requests came from, less than the requests with keep-alive
+     */
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    protected void handle(HttpExchange exchange) throws IOException {
+
+        connections.add(exchange.getRemoteAddress().toString());
+        try {
+            String path = exchange.getRequestURI().getPath();
+            String method = path.substring(path.indexOf('/', 1) + 1);
+            if (method.startsWith(OPERATIONS + "/")) {
+                count(OPERATIONS);
+                handleOperation(exchange, method.substring(OPERATIONS.length() + 1));
+                return;
+            }
+            if (!RECOGNIZE.equals(method) && !LONG_RUNNING_RECOGNIZE.equals(method)) {
+                sendError(exchange, 404, "NOT_FOUND", "Unknown method " + method);
+                return;
+            }
+            count(method);
+
+            byte[] body;
+            try (InputStream in = exchange.getRequestBody()) {
+                body = IOUtils.toByteArray(in);
+            }
+            sleep();
+
+            int status = nextStatus();
+            if (status != 200) {
+                errorCount.incrementAndGet();
+                sendError(exchange, status, status == 429 ? "RESOURCE_EXHAUSTED" : "UNAVAILABLE",
+                        "Injected error");
+                return;
+            }
+
+            JSONObject request = new JSONObject(new String(body, StandardCharsets.UTF_8));
+            JSONObject response = buildResponse(request.getJSONObject("audio").getString("content"),
+                    request.getJSONObject("config"));
+            if (RECOGNIZE.equals(method)) {
+                send(exchange, 200, response);
+            } else {
+                String name = String.valueOf(operationIds.incrementAndGet());
+                operations.put(name, new Object[] { new AtomicInteger(operationPolls), response });
+                send(exchange, 200, new JSONObject().put("name", name));
+            }
+        } catch (JSONException e) {
+            sendError(exchange, 400, "INVALID_ARGUMENT", e.getMessage());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    protected void handleOperation(HttpExchange exchange, String name) throws IOException, JSONException {
+
+        Object[] operation = operations.get(name);
+        if (operation == null) {
+            sendError(exchange, 404, "NOT_FOUND", "Unknown operation " + name);
+            return;
+        }
+        JSONObject result = new JSONObject().put("name", name);
+        if (((AtomicInteger) operation[0]).decrementAndGet() > 0) {
+            result.put("done", false);
+        } else {
+            result.put("done", true);
+            result.put("response", operation[1]);
+            operations.remove(name);
+        }
+        send(exchange, 200, result);
+    }
+
+    protected void count(String method) {
+        requestCounts.computeIfAbsent(method, k -> new AtomicInteger()).incrementAndGet();
+    }
+
+    protected int nextStatus() {
+
+        Integer next = nextErrors.poll();
+        if (next != null) {
+            return next;
+        }
+        double draw;
+        synchronized (random) {
+            draw = random.nextDouble();
+        }
+        if (draw < tooManyRequestsRate) {
+            return 429;
+        }
+        if (draw < tooManyRequestsRate + serverErrorRate) {
+            return 503;
+        }
+        return 200;
+    }
+
+    protected void sleep() {
+
+        long delay = latencyMs;
+        if (latencyJitterMs > 0) {
+            synchronized (random) {
+                delay += (long) (random.nextDouble() * latencyJitterMs);
+            }
+        }
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /*
+     * Same format as Google, all the words in one result. The words are drawn from a generator seeded with the audio,
+     * so the options don't change them.
+     */
+    protected JSONObject buildResponse(String audio, JSONObject config) throws JSONException {
+
+        CRC32 crc = new CRC32();
+        crc.update(audio.getBytes(StandardCharsets.US_ASCII));
+        Random words = new Random(crc.getValue());
+        boolean withOffsets = config.optBoolean("enableWordTimeOffsets", false);
+
+        StringBuilder transcript = new StringBuilder();
+        JSONArray wordsArray = new JSONArray();
+        for (int i = 0; i < wordCount; i++) {
+            String word = VOCABULARY[words.nextInt(VOCABULARY.length)];
+            if (i > 0) {
+                transcript.append(' ');
+            }
+            transcript.append(word);
+            if (withOffsets) {
+                wordsArray.put(new JSONObject().put("startTime", formatDuration(i * WORD_SECONDS))
+                                               .put("endTime", formatDuration((i + 1) * WORD_SECONDS))
+                                               .put("word", word));
+            }
+        }
+
+        JSONObject alternative = new JSONObject().put("transcript", transcript.toString()).put("confidence", 0.9);
+        if (withOffsets) {
+            alternative.put("words", wordsArray);
+        }
+        JSONObject result = new JSONObject().put("alternatives", new JSONArray().put(alternative))
+                                            .put("languageCode",
+                                                    config.optString("languageCode", "en-US").toLowerCase(Locale.ROOT));
+        return new JSONObject().put("results", new JSONArray().put(result));
+    }
+
+    /*
+     * As Google does: "1.500s", or "2s"
+     */
+    protected static String formatDuration(double seconds) {
+        long millis = Math.round(seconds * 1000);
+        return millis % 1000 == 0 ? (millis / 1000) + "s" : String.format(Locale.ROOT, "%.3fs", millis / 1000.0);
+    }
+
+    protected void sendError(HttpExchange exchange, int status, String reason, String message) throws IOException {
+        try {
+            send(exchange, status, new JSONObject().put("error", new JSONObject().put("code", status)
+                                                                                  .put("message", message)
+                                                                                  .put("status", reason)));
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+    }
+
+    protected void send(HttpExchange exchange, int status, JSONObject json) throws IOException {
+
+        byte[] bytes = json.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+}
@@ -0,0 +1,182 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.labs.speechtotext.impl.AsyncExecutor;
+import org.nuxeo.labs.speechtotext.throttle.AdaptiveConcurrencyLimiter;
+import org.nuxeo.labs.speechtotext.throttle.CallThrottle;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.RuntimeFeature;
+
+@RunWith(FeaturesRunner.class)
+@Features(RuntimeFeature.class)
+public class TestAsyncExecutor {
+
+    protected AsyncExecutor executor;
+
+    @After
+    public void tearDown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testVirtualThreadsWhenAvailable() throws Exception {
+
+        executor = new AsyncExecutor(true, 4);
+        assertEquals(Runtime.version().feature() >= 21, executor.isVirtual());
+        String threadName = executor.submit(() -> Thread.currentThread().getName()).get(5, TimeUnit.SECONDS);
+        assertTrue(threadName, threadName.startsWith("speechtotext-async-"));
+
+        executor.shutdown();
+        executor = new AsyncExecutor(false, 4);
+        assertEquals(false, executor.isVirtual());
+    }
+
+    @Test
+    public void testFanOut() throws Exception {
+
+        // Many more calls than threads
+        executor = new AsyncExecutor(true, 4);
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            int value = i;
+            futures.add(executor.submit(() -> {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    throw new NuxeoException(e);
+                }
+                return value;
+            }));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+        for (int i = 0; i < 200; i++) {
+            assertEquals(i, futures.get(i).get().intValue());
+        }
+
+        CompletableFuture<Object> failed = executor.submit(() -> {
+            throw new NuxeoException("Provider error");
+        });
+        try {
+            failed.get(5, TimeUnit.SECONDS);
+            throw new AssertionError("The error was not propagated");
+        } catch (ExecutionException e) {
+            assertEquals("Provider error", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void testFanOutAboveTheConcurrencyLimit() throws Exception {
+
+        // The calls waiting for a slot must not hold the (carrier) threads of the calls holding one
+        executor = new AsyncExecutor(true, 64);
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 20, 0.5, 0);
+        CallThrottle throttle = new CallThrottle(null, null, limiter, 60000);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            int value = i;
+            futures.add(executor.submit(() -> throttle.call(1, () -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException e) {
+                    throw new NuxeoException(e);
+                } finally {
+                    running.decrementAndGet();
+                }
+                return value;
+            })));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(60, TimeUnit.SECONDS);
+        for (int i = 0; i < 2000; i++) {
+            assertEquals(i, futures.get(i).get().intValue());
+        }
+        assertTrue(maxRunning.get() <= 20);
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void testCancelInterruptsTheCall() throws Exception {
+
+        executor = new AsyncExecutor(false, 2);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        CompletableFuture<String> future = executor.submit(() -> {
+            started.countDown();
+            try {
+                Thread.sleep(10000);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+                Thread.currentThread().interrupt();
+                throw new NuxeoException(e);
+            }
+            return "done";
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertTrue(future.cancel(true));
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        assertTrue(future.isCancelled());
+        try {
+            future.join();
+            throw new AssertionError("Not cancelled");
+        } catch (CancellationException e) {
+            // expected
+        }
+
+        // Cancelled before running: never called
+        AtomicInteger calls = new AtomicInteger();
+        executor.shutdown();
+        executor = new AsyncExecutor(false, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.submit(() -> {
+            try {
+                return release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new NuxeoException(e);
+            }
+        });
+        CompletableFuture<Integer> queued = executor.submit(calls::incrementAndGet);
+        queued.cancel(true);
+        release.countDown();
+        Thread.sleep(200);
+        assertEquals(0, calls.get());
+    }
+
+}
@@ -0,0 +1,65 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.ByteArrayBlob;
+import org.nuxeo.labs.speechtotext.audio.WavHeader;
+
+/**
+ * Audio built by the tests
+ *
+ * @since 2023.0.1
+ */
+public class TestAudio {
+
+    /**
+     * A tone (silence if frequency is 0), 16 bits PCM, the same on each channel. Audio of a different frequency has a
+     * different digest, so it is not a cache hit.
+     */
+    public static Blob sineWav(int rate, int channels, double seconds, double frequency) throws IOException {
+        return sineWav(rate, channels, seconds, frequency, 0, 0);
+    }
+
+    /**
+     * Same, with silence between silenceStart and silenceEnd (in seconds)
+     */
+    public static Blob sineWav(int rate, int channels, double seconds, double frequency, double silenceStart,
+            double silenceEnd) throws IOException {
+
+        int frames = (int) (rate * seconds);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WavHeader.writePCMHeader(out, rate, channels, 16, frames * 2L * channels);
+        for (int i = 0; i < frames; i++) {
+            double t = (double) i / rate;
+            int sample = t >= silenceStart && t < silenceEnd ? 0 : (int) (8000 * Math.sin(2 * Math.PI * frequency * t));
+            for (int channel = 0; channel < channels; channel++) {
+                out.write(sample & 0xFF);
+                out.write((sample >> 8) & 0xFF);
+            }
+        }
+        Blob blob = new ByteArrayBlob(out.toByteArray(), "audio/wav");
+        blob.setFilename("audio.wav");
+        return blob;
+    }
+
+}
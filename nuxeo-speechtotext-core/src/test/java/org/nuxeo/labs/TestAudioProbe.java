@@ -0,0 +1,322 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.common.utils.FileUtils;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.ByteArrayBlob;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextOptions;
+import org.nuxeo.labs.speechtotext.audio.AudioProbe;
+import org.nuxeo.labs.speechtotext.audio.AudioProbe.Container;
+import org.nuxeo.labs.speechtotext.google.GoogleSpeechToTextProvider;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.RuntimeFeature;
+
+/*
+ * The headers are built in memory, with silent or empty audio: Only the header is read
+ */
+@RunWith(FeaturesRunner.class)
+@Features(RuntimeFeature.class)
+public class TestAudioProbe {
+
+    // Larger than what is read first, so the end of the file is read separately
+    protected static final int FILLER = AudioProbe.PROBE_SIZE + 10000;
+
+    protected static class ProbingProvider extends GoogleSpeechToTextProvider {
+
+        public String encoding(Blob blob) {
+            return getGoogleEncoding(probeAudio(blob));
+        }
+
+        public JSONObject config(Blob blob) throws Exception {
+            return buildConfig(SpeechToTextOptions.buildDefaultOptions(), blob, null, -1, "en-US", null);
+        }
+
+        public Blob normalize(Blob blob) {
+            return normalizeAudio(blob);
+        }
+    }
+
+    protected Blob buildWav(int rate, int channels, double seconds) throws IOException {
+        Blob blob = TestAudio.sineWav(rate, channels, seconds, 440);
+        blob.setMimeType("application/octet-stream");
+        return blob;
+    }
+
+    protected Blob buildFlac(int rate, int channels, int bits, long totalSamples) throws IOException {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeID3(out, 100);
+        out.write("fLaC".getBytes(StandardCharsets.US_ASCII));
+        // Last metadata block, STREAMINFO, 34 bytes
+        out.write(new byte[] { (byte) 0x80, 0, 0, 34 });
+        byte[] info = new byte[34];
+        info[10] = (byte) (rate >> 12);
+        info[11] = (byte) (rate >> 4);
+        info[12] = (byte) ((rate & 0x0F) << 4 | (channels - 1) << 1 | (bits - 1) >> 4);
+        info[13] = (byte) (((bits - 1) & 0x0F) << 4 | (int) (totalSamples >> 32) & 0x0F);
+        putIntBE(info, 14, (int) totalSamples);
+        out.write(info);
+        out.write(new byte[1000]);
+        return new ByteArrayBlob(out.toByteArray(), "application/octet-stream");
+    }
+
+    protected Blob buildOggOpus(int inputRate, int preSkip, long lastGranule) throws IOException {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] head = new byte[19];
+        System.arraycopy("OpusHead".getBytes(StandardCharsets.US_ASCII), 0, head, 0, 8);
+        head[8] = 1;
+        head[9] = 1;
+        head[10] = (byte) preSkip;
+        head[11] = (byte) (preSkip >> 8);
+        head[12] = (byte) inputRate;
+        head[13] = (byte) (inputRate >> 8);
+        head[14] = (byte) (inputRate >> 16);
+        writeOggPage(out, 0, head);
+        writeOggPage(out, 0, new byte[200]);
+        out.write(new byte[FILLER]);
+        writeOggPage(out, lastGranule, new byte[100]);
+        return new ByteArrayBlob(out.toByteArray(), "audio/ogg");
+    }
+
+    protected void writeOggPage(ByteArrayOutputStream out, long granule, byte[] payload) throws IOException {
+
+        byte[] header = new byte[28];
+        System.arraycopy("OggS".getBytes(StandardCharsets.US_ASCII), 0, header, 0, 4);
+        for (int i = 0; i < 8; i++) {
+            header[6 + i] = (byte) (granule >> (8 * i));
+        }
+        header[26] = 1;
+        header[27] = (byte) payload.length;
+        out.write(header);
+        out.write(payload);
+    }
+
+    /*
+     * MPEG 1 Layer III, 128 kbps, 44.1 kHz, mono: 417 bytes frames of 1152 samples
+     */
+    protected Blob buildMP3(int frames, int xingFrames) throws IOException {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeID3(out, 500);
+        for (int i = 0; i < frames; i++) {
+            byte[] frame = new byte[417];
+            frame[0] = (byte) 0xFF;
+            frame[1] = (byte) 0xFB;
+            frame[2] = (byte) 0x90;
+            frame[3] = (byte) 0xC0;
+            if (i == 0 && xingFrames > 0) {
+                System.arraycopy("Xing".getBytes(StandardCharsets.US_ASCII), 0, frame, 21, 4);
+                putIntBE(frame, 25, 1);
+                putIntBE(frame, 29, xingFrames);
+            }
+            out.write(frame);
+        }
+        return new ByteArrayBlob(out.toByteArray(), "audio/mpeg");
+    }
+
+    protected void writeID3(ByteArrayOutputStream out, int size) throws IOException {
+        out.write(new byte[] { 'I', 'D', '3', 4, 0, 0, 0, 0, (byte) (size >> 7), (byte) (size & 0x7F) });
+        out.write(new byte[size]);
+    }
+
+    /*
+     * ftyp, mdat, then moov (as written by most encoders without "faststart")
+     */
+    protected Blob buildM4A(int rate, int channels, int timeScale, int duration) throws IOException {
+
+        byte[] mvhd = new byte[100];
+        putIntBE(mvhd, 12, timeScale);
+        putIntBE(mvhd, 16, duration);
+
+        byte[] hdlr = new byte[24];
+        System.arraycopy("soun".getBytes(StandardCharsets.US_ASCII), 0, hdlr, 8, 4);
+        byte[] mdhd = new byte[24];
+        putIntBE(mdhd, 12, rate);
+        putIntBE(mdhd, 16, (int) ((long) duration * rate / timeScale));
+
+        byte[] entry = box("mp4a", new byte[28]);
+        byte[] sampleEntry = new byte[8 + entry.length];
+        // channels and 16.16 sample rate of the entry, after its own header
+        putIntBE(sampleEntry, 4, 1);
+        System.arraycopy(entry, 0, sampleEntry, 8, entry.length);
+        sampleEntry[8 + 24] = (byte) (channels >> 8);
+        sampleEntry[8 + 25] = (byte) channels;
+        sampleEntry[8 + 32] = (byte) (rate >> 8);
+        sampleEntry[8 + 33] = (byte) rate;
+
+        byte[] stbl = box("stbl", box("stsd", sampleEntry));
+        byte[] mdia = box("mdia", concat(box("mdhd", mdhd), box("hdlr", hdlr), box("minf", stbl)));
+        byte[] moov = box("moov", concat(box("mvhd", mvhd), box("trak", concat(box("tkhd", new byte[84]), mdia))));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(box("ftyp", "M4A isomiso2".getBytes(StandardCharsets.US_ASCII)));
+        out.write(box("mdat", new byte[FILLER]));
+        out.write(moov);
+        return new ByteArrayBlob(out.toByteArray(), "audio/mp4");
+    }
+
+    protected byte[] box(String type, byte[] payload) {
+        byte[] box = new byte[8 + payload.length];
+        putIntBE(box, 0, box.length);
+        System.arraycopy(type.getBytes(StandardCharsets.US_ASCII), 0, box, 4, 4);
+        System.arraycopy(payload, 0, box, 8, payload.length);
+        return box;
+    }
+
+    protected byte[] concat(byte[]... parts) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part);
+        }
+        return out.toByteArray();
+    }
+
+    protected void putIntBE(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >> 24);
+        b[offset + 1] = (byte) (value >> 16);
+        b[offset + 2] = (byte) (value >> 8);
+        b[offset + 3] = (byte) value;
+    }
+
+    @Test
+    public void testWav() throws Exception {
+
+        // Whatever its mime type
+        AudioProbe probe = AudioProbe.probe(buildWav(16000, 1, 2.5));
+        assertEquals(Container.WAV, probe.getContainer());
+        assertEquals(AudioProbe.CODEC_PCM, probe.getCodec());
+        assertEquals(16000, probe.getSampleRate());
+        assertEquals(1, probe.getChannels());
+        assertEquals(16, probe.getBitsPerSample());
+        assertEquals(2.5, probe.getDurationSeconds(), 0.001);
+        assertNotNull(probe.getWavHeader());
+    }
+
+    @Test
+    public void testFlac() throws Exception {
+
+        AudioProbe probe = AudioProbe.probe(buildFlac(44100, 2, 24, 44100L * 90));
+        assertEquals(Container.FLAC, probe.getContainer());
+        assertEquals(AudioProbe.CODEC_FLAC, probe.getCodec());
+        assertEquals(44100, probe.getSampleRate());
+        assertEquals(2, probe.getChannels());
+        assertEquals(24, probe.getBitsPerSample());
+        assertEquals(90, probe.getDurationSeconds(), 0.001);
+    }
+
+    @Test
+    public void testOggOpus() throws Exception {
+
+        AudioProbe probe = AudioProbe.probe(buildOggOpus(16000, 312, 48000L * 7 + 312));
+        assertEquals(Container.OGG, probe.getContainer());
+        assertEquals(AudioProbe.CODEC_OPUS, probe.getCodec());
+        assertEquals(16000, probe.getSampleRate());
+        assertEquals(1, probe.getChannels());
+        assertEquals(7, probe.getDurationSeconds(), 0.001);
+    }
+
+    @Test
+    public void testMP3() throws Exception {
+
+        // Constant bitrate: From the length
+        AudioProbe probe = AudioProbe.probe(buildMP3(200, 0));
+        assertEquals(Container.MP3, probe.getContainer());
+        assertEquals(AudioProbe.CODEC_MP3, probe.getCodec());
+        assertEquals(44100, probe.getSampleRate());
+        assertEquals(1, probe.getChannels());
+        assertEquals(200 * 1152 / 44100.0, probe.getDurationSeconds(), 0.05);
+
+        // Xing header: From the number of frames
+        probe = AudioProbe.probe(buildMP3(10, 5000));
+        assertEquals(5000 * 1152 / 44100.0, probe.getDurationSeconds(), 0.001);
+    }
+
+    @Test
+    public void testM4A() throws Exception {
+
+        AudioProbe probe = AudioProbe.probe(buildM4A(22050, 2, 1000, 12500));
+        assertEquals(Container.MP4, probe.getContainer());
+        assertEquals(AudioProbe.CODEC_AAC, probe.getCodec());
+        assertEquals(22050, probe.getSampleRate());
+        assertEquals(2, probe.getChannels());
+        assertEquals(12.5, probe.getDurationSeconds(), 0.001);
+    }
+
+    @Test
+    public void testADTS() throws Exception {
+
+        Blob blob = new FileBlob(FileUtils.getResourceFileFromContext("test-audio.aac"));
+        AudioProbe probe = AudioProbe.probe(blob);
+        assertEquals(Container.ADTS, probe.getContainer());
+        assertEquals(AudioProbe.CODEC_AAC, probe.getCodec());
+        assertTrue(probe.getSampleRate() > 0);
+        assertTrue(probe.getChannels() > 0);
+        assertTrue(probe.getDurationSeconds() > 0);
+    }
+
+    @Test
+    public void testUnknown() throws Exception {
+
+        Blob blob = new ByteArrayBlob(new byte[3000], "audio/wav");
+        assertNull(AudioProbe.probe(blob));
+        assertEquals(0, AudioProbe.readDurationSeconds(blob), 0);
+    }
+
+    @Test
+    public void testGoogleEncoding() throws Exception {
+
+        ProbingProvider provider = new ProbingProvider();
+        assertEquals("LINEAR16", provider.encoding(buildWav(16000, 1, 1)));
+        assertEquals("OGG_OPUS", provider.encoding(buildOggOpus(16000, 312, 48000)));
+        assertEquals("MP3", provider.encoding(buildMP3(20, 0)));
+        assertEquals("FLAC", provider.encoding(buildFlac(16000, 1, 16, 16000)));
+        // Stereo, and AAC are converted
+        assertNull(provider.encoding(buildFlac(16000, 2, 16, 16000)));
+        assertNull(provider.encoding(buildM4A(16000, 1, 1000, 1000)));
+
+        // Sent as is, with the encoding and the rate of its header
+        Blob mp3 = buildMP3(20, 0);
+        assertSame(mp3, provider.normalize(mp3));
+        JSONObject config = provider.config(mp3);
+        assertEquals("MP3", config.getString("encoding"));
+        assertEquals(44100, config.getInt("sampleRateHertz"));
+
+        // Google reads the header of a FLAC
+        config = provider.config(buildFlac(16000, 1, 16, 16000));
+        assertTrue(!config.has("encoding"));
+    }
+
+}
@@ -0,0 +1,361 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextBatchItem;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextBatchResult;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextOptions;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextProviderException;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextResponse;
+import org.nuxeo.labs.speechtotext.batch.SpeechToTextBatch;
+import org.nuxeo.labs.speechtotext.impl.SpeechToTextImpl;
+import org.nuxeo.labs.speechtotext.router.ProviderDescriptor;
+import org.nuxeo.labs.speechtotext.router.ProviderRouter;
+import org.nuxeo.labs.speechtotext.router.RoutedProvider;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.RuntimeFeature;
+
+@RunWith(FeaturesRunner.class)
+@Features(RuntimeFeature.class)
+public class TestBatch {
+
+    protected final ExecutorService prepareExecutor = Executors.newFixedThreadPool(2);
+
+    protected final ExecutorService transcribeExecutor = Executors.newFixedThreadPool(4);
+
+    @After
+    public void tearDown() {
+        prepareExecutor.shutdownNow();
+        transcribeExecutor.shutdownNow();
+    }
+
+    /*
+     * Counts the items pulled
+     */
+    protected static Iterator<SpeechToTextBatchItem> items(int count, AtomicInteger pulled) {
+        return IntStream.range(0, count).mapToObj(i -> {
+            pulled.incrementAndGet();
+            return new SpeechToTextBatchItem("item" + i, Blobs.createBlob("audio" + i), null, "en-US", null);
+        }).iterator();
+    }
+
+    protected static SpeechToTextResponse response(String text) {
+        return new TestSegmentation.FakeResponse(text, 1, 0, 1);
+    }
+
+    protected static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NuxeoException(e);
+        }
+    }
+
+    @Test
+    public void testResultsAndErrors() {
+
+        AtomicInteger pulled = new AtomicInteger();
+        SpeechToTextBatch<Blob> batch = new SpeechToTextBatch<>(items(50, pulled), 8, item -> {
+            if (item.getId().equals("item7")) {
+                throw new NuxeoException("Cannot convert");
+            }
+            return item.getBlob();
+        }, (item, blob) -> {
+            if (item.getId().equals("item13")) {
+                throw new IllegalStateException("Provider error");
+            }
+            try {
+                return response(blob.getString());
+            } catch (IOException e) {
+                throw new NuxeoException(e);
+            }
+        }, prepareExecutor, transcribeExecutor);
+
+        List<SpeechToTextBatchResult> results;
+        try (Stream<SpeechToTextBatchResult> stream = batch.stream()) {
+            results = stream.collect(Collectors.toList());
+        }
+        assertEquals(50, results.size());
+        Set<String> ids = new HashSet<>();
+        for (SpeechToTextBatchResult result : results) {
+            ids.add(result.getItem().getId());
+            String id = result.getItem().getId();
+            if (id.equals("item7")) {
+                assertFalse(result.isSuccess());
+                assertEquals("Cannot convert", result.getError().getMessage());
+            } else if (id.equals("item13")) {
+                assertTrue(result.getError() instanceof IllegalStateException);
+                assertNull(result.getResponse());
+            } else {
+                assertTrue(result.isSuccess());
+                assertEquals(id.replace("item", "audio"), result.getResponse().getText());
+            }
+        }
+        assertEquals(50, ids.size());
+        assertEquals(0, batch.getInFlight());
+    }
+
+    @Test
+    public void testStagesOverlap() throws Exception {
+
+        // The second item is prepared while the first one is transcribed
+        CountDownLatch firstTranscribing = new CountDownLatch(1);
+        CountDownLatch secondPrepared = new CountDownLatch(1);
+        AtomicInteger pulled = new AtomicInteger();
+        SpeechToTextBatch<Blob> batch = new SpeechToTextBatch<>(items(2, pulled), 2, item -> {
+            if (item.getId().equals("item1")) {
+                try {
+                    assertTrue(firstTranscribing.await(10, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    throw new NuxeoException(e);
+                }
+                secondPrepared.countDown();
+            }
+            return item.getBlob();
+        }, (item, blob) -> {
+            if (item.getId().equals("item0")) {
+                firstTranscribing.countDown();
+                try {
+                    assertTrue(secondPrepared.await(10, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    throw new NuxeoException(e);
+                }
+            }
+            return response(item.getId());
+        }, prepareExecutor, transcribeExecutor);
+
+        assertEquals(2, batch.stream().filter(SpeechToTextBatchResult::isSuccess).count());
+    }
+
+    @Test
+    public void testBackPressure() {
+
+        AtomicInteger pulled = new AtomicInteger();
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        SpeechToTextBatch<Blob> batch = new SpeechToTextBatch<>(items(40, pulled), 4, item -> item.getBlob(),
+                (item, blob) -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    sleep(5);
+                    running.decrementAndGet();
+                    return response(item.getId());
+                }, prepareExecutor, transcribeExecutor);
+
+        int consumed = 0;
+        while (batch.hasNext()) {
+            batch.next();
+            consumed++;
+            // A slow consumer: the items are not pulled ahead
+            sleep(2);
+            assertTrue(pulled.get() <= consumed + 4);
+        }
+        assertEquals(40, consumed);
+        assertTrue(maxRunning.get() <= 4);
+    }
+
+    @Test
+    public void testClose() {
+
+        AtomicInteger pulled = new AtomicInteger();
+        AtomicInteger transcribed = new AtomicInteger();
+        SpeechToTextBatch<Blob> batch = new SpeechToTextBatch<>(items(1000, pulled), 4, item -> item.getBlob(),
+                (item, blob) -> {
+                    sleep(20);
+                    transcribed.incrementAndGet();
+                    return response(item.getId());
+                }, prepareExecutor, transcribeExecutor);
+
+        try (Stream<SpeechToTextBatchResult> stream = batch.stream()) {
+            assertEquals(2, stream.limit(2).count());
+        }
+        assertFalse(batch.hasNext());
+        assertTrue(pulled.get() <= 6);
+        sleep(100);
+        assertTrue(transcribed.get() <= 6);
+    }
+
+    @Test
+    public void testPreparedIsDisposed() {
+
+        Set<String> disposed = ConcurrentHashMap.newKeySet();
+        SpeechToTextBatch<Blob> batch = new SpeechToTextBatch<>(items(10, new AtomicInteger()), 4, item -> {
+            if (item.getId().equals("item7")) {
+                throw new NuxeoException("Cannot convert");
+            }
+            return item.getBlob();
+        }, (item, blob) -> {
+            if (item.getId().equals("item3")) {
+                throw new NuxeoException("Cannot transcribe");
+            }
+            return response(item.getId());
+        }, (item, blob) -> disposed.add(item.getId()), prepareExecutor, transcribeExecutor);
+
+        try (Stream<SpeechToTextBatchResult> stream = batch.stream()) {
+            assertEquals(2, stream.filter(result -> result.getError() != null).count());
+        }
+        // Transcribed or failed, not the item which was not prepared
+        assertEquals(9, disposed.size());
+        assertFalse(disposed.contains("item7"));
+    }
+
+    @Test
+    public void testCloseCancelsThePrepareStage() throws Exception {
+
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        Set<String> prepared = ConcurrentHashMap.newKeySet();
+        Set<String> disposed = ConcurrentHashMap.newKeySet();
+        AtomicInteger transcribed = new AtomicInteger();
+        CountDownLatch disposedLatch = new CountDownLatch(2);
+        // 4 items submitted, 2 of them prepared at once
+        SpeechToTextBatch<Blob> batch = new SpeechToTextBatch<>(items(10, new AtomicInteger()), 4, item -> {
+            started.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            prepared.add(item.getId());
+            return item.getBlob();
+        }, (item, blob) -> {
+            transcribed.incrementAndGet();
+            return response(item.getId());
+        }, (item, blob) -> {
+            disposed.add(item.getId());
+            disposedLatch.countDown();
+        }, prepareExecutor, transcribeExecutor);
+
+        assertTrue(batch.hasNext());
+        assertEquals(4, batch.getInFlight());
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        batch.close();
+        release.countDown();
+
+        // The preparations already running are disposed of, the waiting ones never run
+        assertTrue(disposedLatch.await(10, TimeUnit.SECONDS));
+        sleep(100);
+        assertEquals(2, prepared.size());
+        assertEquals(prepared, disposed);
+        assertEquals(0, transcribed.get());
+    }
+
+    /*
+     * Prepares the audio as a blob of its own, records the audio it transcribes and the audio it disposes of
+     */
+    protected static class PreparingProvider extends TestProviderRouter.FakeProvider {
+
+        protected final List<Blob> transcribed = new CopyOnWriteArrayList<>();
+
+        protected final List<Blob> disposed = new CopyOnWriteArrayList<>();
+
+        @Override
+        public Blob prepareAudio(Blob blob, String languageCode) {
+            return Blobs.createBlob("prepared by " + name);
+        }
+
+        @Override
+        public SpeechToTextResponse run(SpeechToTextOptions options, Blob blob, String audioEncoding,
+                int sampleRateHertz, String languageCode, JSONObject moreOptions) {
+            transcribed.add(blob);
+            return super.run(options, blob, audioEncoding, sampleRateHertz, languageCode, moreOptions);
+        }
+
+        @Override
+        public void disposePreparedAudio(Blob blob, Blob prepared) {
+            disposed.add(prepared);
+        }
+    }
+
+    /*
+     * The batches of the service, without the runtime
+     */
+    protected static class BatchSpeechToText extends SpeechToTextImpl {
+
+        public BatchSpeechToText(List<RoutedProvider> providers, ExecutorService prepareExecutor,
+                ExecutorService transcribeExecutor) {
+            super();
+            router = new ProviderRouter(providers, 3, 30);
+            batchPrepareExecutor = prepareExecutor;
+            batchTranscribeExecutor = transcribeExecutor;
+        }
+    }
+
+    @Test
+    public void testFailoverPreparesTheAudioAgain() throws IOException {
+
+        PreparingProvider first = new PreparingProvider();
+        first.initialize("first", null);
+        first.error = new SpeechToTextProviderException("Unavailable", 503);
+        PreparingProvider second = new PreparingProvider();
+        second.initialize("second", null);
+        BatchSpeechToText service = new BatchSpeechToText(
+                List.of(new RoutedProvider(new ProviderDescriptor("first", PreparingProvider.class), first),
+                        new RoutedProvider(new ProviderDescriptor("second", PreparingProvider.class), second)),
+                prepareExecutor, transcribeExecutor);
+
+        Blob audio = Blobs.createBlob("audio");
+        List<SpeechToTextBatchResult> results;
+        try (Stream<SpeechToTextBatchResult> stream = service.runBatch(
+                List.of(new SpeechToTextBatchItem("item", audio, null, "en-US", null)).iterator())) {
+            results = stream.collect(Collectors.toList());
+        }
+
+        assertEquals(1, results.size());
+        assertNull(results.get(0).getError());
+        assertEquals("second", results.get(0).getResponse().getText());
+        // The audio prepared for the first provider is not sent to the second one
+        assertEquals(1, first.transcribed.size());
+        assertEquals("prepared by first", first.transcribed.get(0).getString());
+        assertEquals(List.of(audio), second.transcribed);
+        // Disposed of by the provider which prepared it
+        assertEquals(first.transcribed, first.disposed);
+        assertTrue(second.disposed.isEmpty());
+    }
+
+}
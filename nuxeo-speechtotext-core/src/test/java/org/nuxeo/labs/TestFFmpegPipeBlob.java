@@ -0,0 +1,108 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.SystemUtils;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.common.utils.FileUtils;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.labs.speechtotext.audio.FFmpegPipeBlob;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.RuntimeFeature;
+
+/**
+ * The pipe does not depend on ffmpeg, these tests use basic unix commands so they run everywhere.
+ */
+@RunWith(FeaturesRunner.class)
+@Features(RuntimeFeature.class)
+public class TestFFmpegPipeBlob {
+
+    protected Blob getAudio() {
+        File audioFile = FileUtils.getResourceFileFromContext("test-audio.aac");
+        return new FileBlob(audioFile);
+    }
+
+    @Test
+    public void testStreamIsTheCommandOutput() throws Exception {
+
+        assumeTrue(SystemUtils.IS_OS_UNIX);
+
+        Blob audio = getAudio();
+        Blob piped = new FFmpegPipeBlob(audio, "cat", FFmpegPipeBlob.SOURCE_FILE_PATH, "audio/aac", ".aac");
+
+        assertEquals(-1, piped.getLength());
+        assertEquals("test-audio.aac", piped.getFilename());
+        try (InputStream in = piped.getStream()) {
+            assertArrayEquals(IOUtils.toByteArray(audio.getStream()), IOUtils.toByteArray(in));
+        }
+    }
+
+    @Test
+    public void testFailureIsReportedAtTheEndOfTheStream() throws Exception {
+
+        assumeTrue(SystemUtils.IS_OS_UNIX);
+
+        Blob piped = new FFmpegPipeBlob(getAudio(), "false", "", "audio/flac", ".flac");
+
+        try (InputStream in = piped.getStream()) {
+            IOUtils.toByteArray(in);
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("exit value 1"));
+            return;
+        }
+        throw new AssertionError("The failure of the command was not reported");
+    }
+
+    @Test
+    public void testStreamCanBeReadOnlyOnce() throws Exception {
+
+        assumeTrue(SystemUtils.IS_OS_UNIX);
+
+        FFmpegPipeBlob piped = new FFmpegPipeBlob(getAudio(), "cat", FFmpegPipeBlob.SOURCE_FILE_PATH, "audio/aac",
+                ".aac");
+        assertFalse(piped.isConsumed());
+        try (InputStream in = piped.getStream()) {
+            IOUtils.toByteArray(in);
+        }
+        assertTrue(piped.isConsumed());
+
+        try {
+            piped.getStream();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("only once"));
+            return;
+        }
+        throw new AssertionError("The command should not run again");
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextResponse;
+import org.nuxeo.labs.speechtotext.google.GoogleSpeechToTextProvider;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.RuntimeFeature;
+
+/*
+ * The calls share the pooled, keep-alive, client of the provider
+ */
+@RunWith(FeaturesRunner.class)
+@Features(RuntimeFeature.class)
+public class TestGoogleHttpClient {
+
+    protected MockSpeechServer server;
+
+    protected GoogleSpeechToTextProvider provider;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockSpeechServer().start();
+        Framework.getProperties().setProperty(GoogleSpeechToTextProvider.ENDPOINT_PARAM, server.getEndpoint());
+        provider = new GoogleSpeechToTextProvider();
+    }
+
+    @After
+    public void tearDown() {
+        provider.stop();
+        server.stop();
+        Framework.getProperties().remove(GoogleSpeechToTextProvider.ENDPOINT_PARAM);
+        Framework.getProperties().remove(GoogleSpeechToTextProvider.HTTP_MAX_CONNECTIONS_PER_ROUTE_PARAM);
+    }
+
+    protected Blob buildWav(int seed) throws IOException {
+        return TestAudio.sineWav(16000, 1, 0.1, 200 + seed);
+    }
+
+    @Test
+    public void testConnectionIsKeptAlive() throws Exception {
+
+        for (int i = 0; i < 5; i++) {
+            SpeechToTextResponse response = provider.run(null, buildWav(i), "en-US", null);
+            assertEquals(10, response.getText().split(" ").length);
+        }
+        assertEquals(5, server.getRequestCount(MockSpeechServer.RECOGNIZE));
+        assertEquals(1, server.getConnectionCount());
+    }
+
+    @Test
+    public void testConnectionsPerRouteAreLimited() throws Exception {
+
+        Framework.getProperties().setProperty(GoogleSpeechToTextProvider.HTTP_MAX_CONNECTIONS_PER_ROUTE_PARAM, "2");
+        server.setLatency(50, 0);
+
+        ExecutorService executor = Executors.newFixedThreadPool(6);
+        try {
+            List<Future<SpeechToTextResponse>> futures = new ArrayList<>();
+            for (int i = 0; i < 12; i++) {
+                Blob wav = buildWav(i);
+                futures.add(executor.submit(() -> provider.run(null, wav, "en-US", null)));
+            }
+            for (Future<SpeechToTextResponse> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(12, server.getRequestCount(MockSpeechServer.RECOGNIZE));
+        assertTrue(String.valueOf(server.getConnectionCount()), server.getConnectionCount() <= 2);
+    }
+
+    @Test
+    public void testStopClosesThePool() throws Exception {
+
+        provider.run(null, buildWav(1), "en-US", null);
+        provider.stop();
+        // Started again by the next call, with a new pool
+        provider.run(null, buildWav(2), "en-US", null);
+        assertEquals(2, server.getConnectionCount());
+    }
+
+}
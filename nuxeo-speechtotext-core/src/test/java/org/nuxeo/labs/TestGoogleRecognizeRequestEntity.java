@@ -0,0 +1,108 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.IOUtils;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.ByteArrayBlob;
+import org.nuxeo.labs.speechtotext.audio.FFmpegPipeBlob;
+import org.nuxeo.labs.speechtotext.google.GoogleRecognizeRequestEntity;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.RuntimeFeature;
+
+@RunWith(FeaturesRunner.class)
+@Features(RuntimeFeature.class)
+public class TestGoogleRecognizeRequestEntity {
+
+    protected byte[] buildAudio(int length) {
+        byte[] audio = new byte[length];
+        for (int i = 0; i < length; i++) {
+            audio[i] = (byte) (i * 31 + 7);
+        }
+        return audio;
+    }
+
+    protected String expectedBody(JSONObject config, byte[] audio) {
+        return "{\"config\":" + config.toString() + ",\"audio\":{\"content\":\"" + Base64.encodeBase64String(audio)
+                + "\"}}";
+    }
+
+    @Test
+    public void testWriteTo() throws Exception {
+
+        JSONObject config = new JSONObject().put("languageCode", "en-US");
+        // Not a multiple of 3, so the Base64 is padded, and larger than the buffer
+        for (int length : new int[] { 0, 1, 2, 100000 }) {
+            byte[] audio = buildAudio(length);
+            GoogleRecognizeRequestEntity entity = new GoogleRecognizeRequestEntity(config,
+                    new ByteArrayBlob(audio, "audio/wav"));
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            entity.writeTo(out);
+            String body = out.toString(StandardCharsets.UTF_8.name());
+
+            assertEquals(expectedBody(config, audio), body);
+            assertEquals(entity.getContentLength(), out.size());
+            JSONObject json = new JSONObject(body);
+            assertEquals("en-US", json.getJSONObject("config").getString("languageCode"));
+        }
+    }
+
+    @Test
+    public void testGetContentIsTheWrittenBody() throws Exception {
+
+        JSONObject config = new JSONObject().put("languageCode", "fr-FR");
+        byte[] audio = buildAudio(5000);
+        GoogleRecognizeRequestEntity entity = new GoogleRecognizeRequestEntity(config,
+                new ByteArrayBlob(audio, "audio/wav"));
+
+        // Repeatable, each read gives the whole body
+        assertTrue(entity.isRepeatable());
+        for (int i = 0; i < 2; i++) {
+            try (InputStream in = entity.getContent()) {
+                assertEquals(expectedBody(config, audio), IOUtils.toString(in, StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    @Test
+    public void testStreamedConversionIsNotRepeatable() {
+
+        Blob piped = new FFmpegPipeBlob(new ByteArrayBlob(new byte[10], "audio/aac"), "cat",
+                FFmpegPipeBlob.SOURCE_FILE_PATH, "audio/flac", ".flac");
+        GoogleRecognizeRequestEntity entity = new GoogleRecognizeRequestEntity(new JSONObject(), piped);
+
+        assertFalse(entity.isRepeatable());
+        assertEquals(-1, entity.getContentLength());
+    }
+
+}
@@ -0,0 +1,247 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+import org.apache.commons.io.FileUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.labs.speechtotext.api.SegmentWordSpliterator;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextSegment;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextWord;
+import org.nuxeo.labs.speechtotext.api.WordTimings;
+import org.nuxeo.labs.speechtotext.google.GoogleRESTSpeechToTextResponse;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.RuntimeFeature;
+
+import io.dropwizard.metrics5.Timer;
+
+@RunWith(FeaturesRunner.class)
+@Features(RuntimeFeature.class)
+public class TestGoogleResponse {
+
+    protected GoogleRESTSpeechToTextResponse loadResponse(String name) throws Exception {
+        File file = org.nuxeo.common.utils.FileUtils.getResourceFileFromContext(name);
+        return new GoogleRESTSpeechToTextResponse(FileUtils.readFileToString(file, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testTextAndConfidence() throws Exception {
+
+        GoogleRESTSpeechToTextResponse response = loadResponse("google-response-speakers.json");
+
+        assertEquals("hello there general Kenobi", response.getText());
+        assertEquals(0.92, response.getConfidence(), 0.0001);
+    }
+
+    @Test
+    public void testWords() throws Exception {
+
+        GoogleRESTSpeechToTextResponse response = loadResponse("google-response-speakers.json");
+
+        Iterator<SpeechToTextWord> words = response.getWordIterator(false);
+        SpeechToTextWord word = words.next();
+        assertEquals("hello", word.getWord());
+        assertEquals(0.5, word.getStart(), 0.0001);
+        assertEquals(0.9, word.getEnd(), 0.0001);
+        words.next();
+        word = words.next();
+        assertEquals("general", word.getWord());
+        assertEquals(2.0, word.getStart(), 0.0001);
+        assertEquals(2.5, word.getEnd(), 0.0001);
+        words.next();
+        assertFalse(words.hasNext());
+
+        JSONArray array = response.getWordTimeOffsets(false);
+        assertEquals(4, array.length());
+        assertEquals("Kenobi", array.getJSONObject(3).getString("word"));
+        assertFalse(array.getJSONObject(3).has("speakerTag"));
+    }
+
+    @Test
+    public void testSpeakerTagsAreReadFromSecondResult() throws Exception {
+
+        GoogleRESTSpeechToTextResponse response = loadResponse("google-response-speakers.json");
+
+        JSONArray array = response.getWordTimeOffsets(true);
+        assertEquals(4, array.length());
+        assertEquals(1, array.getJSONObject(0).getInt("speakerTag"));
+        assertEquals(2, array.getJSONObject(3).getInt("speakerTag"));
+    }
+
+    @Test
+    public void testWordTimings() throws Exception {
+
+        GoogleRESTSpeechToTextResponse response = loadResponse("google-response-speakers.json");
+
+        WordTimings timings = response.getWordTimings(true);
+        assertEquals(4, timings.size());
+        assertEquals("general", timings.getWordAt(2.1));
+        assertEquals(2, timings.getSpeakerTag(timings.indexAt(2.1)));
+        assertEquals(2.5, timings.getEnd(2), 0.0001);
+    }
+
+    /*
+     * One result per sentence, as returned for a long audio
+     */
+    protected static String buildLongResponse(int resultCount, int wordsPerResult) throws Exception {
+
+        JSONArray results = new JSONArray();
+        double time = 0;
+        for (int i = 0; i < resultCount; i++) {
+            JSONArray words = new JSONArray();
+            StringBuilder transcript = new StringBuilder();
+            for (int j = 0; j < wordsPerResult; j++) {
+                String word = "w" + (i * wordsPerResult + j);
+                transcript.append(j == 0 ? "" : " ").append(word);
+                words.put(new JSONObject().put("word", word)
+                                          .put("startTime", String.format(Locale.ROOT, "%.3fs", time))
+                                          .put("endTime", String.format(Locale.ROOT, "%.3fs", time + 0.4)));
+                time += 0.5;
+            }
+            JSONObject alternative = new JSONObject().put("transcript", transcript.toString())
+                                                     .put("confidence", 0.9)
+                                                     .put("words", words);
+            JSONObject other = new JSONObject().put("transcript", "something else").put("confidence", 0.1);
+            results.put(new JSONObject().put("alternatives", new JSONArray().put(alternative).put(other))
+                                        .put("resultEndTime", String.format(Locale.ROOT, "%.3fs", time))
+                                        .put("languageCode", "en-us"));
+        }
+        return new JSONObject().put("results", results).toString();
+    }
+
+    @Test
+    public void testSegments() throws Exception {
+
+        GoogleRESTSpeechToTextResponse response = new GoogleRESTSpeechToTextResponse(buildLongResponse(3, 4));
+
+        // getText() is the first result only
+        assertEquals("w0 w1 w2 w3", response.getText());
+
+        List<SpeechToTextSegment> segments = response.getSegmentStream(false).collect(Collectors.toList());
+        assertEquals(3, segments.size());
+        SpeechToTextSegment segment = segments.get(1);
+        assertEquals(1, segment.getIndex());
+        assertEquals("w4 w5 w6 w7", segment.getText());
+        assertEquals(0.9, segment.getConfidence(), 0.0001);
+        assertEquals(2.0, segment.getStart(), 0.0001);
+        assertEquals(4.0, segment.getEnd(), 0.0001);
+        assertEquals("en-us", segment.getLanguageCode());
+        assertEquals(4, segment.getWords().size());
+        assertEquals("w5", segment.getWords().get(1).getWord());
+        assertEquals(2.5, segment.getWords().get(1).getStart(), 0.0001);
+
+        // The summary of the speakers is not a segment
+        segments = loadResponse("google-response-speakers.json").getSegmentStream(false)
+                                                                 .collect(Collectors.toList());
+        assertEquals(1, segments.size());
+        assertEquals("hello there general Kenobi", segments.get(0).getText());
+        assertEquals(3.1, segments.get(0).getEnd(), 0.0001);
+    }
+
+    @Test
+    public void testParallelWords() throws Exception {
+
+        GoogleRESTSpeechToTextResponse response = new GoogleRESTSpeechToTextResponse(buildLongResponse(2000, 7));
+
+        List<String> words = response.getWordStream(true).map(SpeechToTextWord::getWord).collect(Collectors.toList());
+        assertEquals(14000, words.size());
+        for (int i = 0; i < words.size(); i++) {
+            assertEquals("w" + i, words.get(i));
+        }
+        assertEquals(response.getWordStream(false).mapToDouble(SpeechToTextWord::getStart).sum(),
+                response.getWordStream(true).mapToDouble(SpeechToTextWord::getStart).sum(), 0.001);
+
+        // One big segment is split on its words
+        List<SpeechToTextWord> all = response.getWordStream(false).collect(Collectors.toList());
+        SpeechToTextSegment segment = new SpeechToTextSegment(0, "", 1, 0, 7000, null, all);
+        List<SpeechToTextWord> split = StreamSupport.stream(
+                new SegmentWordSpliterator(Collections.singletonList(segment).spliterator()), true)
+                                                    .collect(Collectors.toList());
+        assertEquals(all, split);
+
+        WordTimings timings = WordTimings.from(all.iterator());
+        assertEquals(all.size(), timings.stream(true).filter(word -> word.getEnd() > word.getStart()).count());
+        assertEquals("w13999", timings.stream(true).reduce((a, b) -> b).get().getWord());
+    }
+
+    @Test
+    public void testInvalidResponse() throws Exception {
+
+        GoogleRESTSpeechToTextResponse response = new GoogleRESTSpeechToTextResponse("{\"results\": [ not json");
+
+        assertTrue(response.getText().startsWith("AN ERROR OCCURED"));
+        assertEquals(0, response.getConfidence(), 0.0001);
+        assertFalse(response.getWordIterator(false).hasNext());
+        assertTrue(response.getSegmentIterator().next().getText().startsWith("AN ERROR OCCURED"));
+        assertTrue(response.getNativeResponse() instanceof JSONObject);
+    }
+
+    @Test
+    public void testNoSpeechIsAnEmptyTranscript() throws Exception {
+
+        for (String json : new String[] { "{}", "{\"results\": []}" }) {
+            GoogleRESTSpeechToTextResponse response = new GoogleRESTSpeechToTextResponse(json);
+
+            assertEquals("", response.getText());
+            assertEquals(-1, response.getConfidence(), 0.0001);
+            assertFalse(response.getWordIterator(false).hasNext());
+            assertFalse(response.getSegmentIterator().hasNext());
+        }
+    }
+
+    @Test
+    public void testMissingConfidence() throws Exception {
+
+        GoogleRESTSpeechToTextResponse response = new GoogleRESTSpeechToTextResponse(
+                "{\"results\": [{\"alternatives\": [{\"transcript\": \"hello\"}]}]}");
+
+        assertEquals("hello", response.getText());
+        assertEquals(-1, response.getConfidence(), 0.0001);
+    }
+
+    @Test
+    public void testParseIsTimedOnFirstRead() throws Exception {
+
+        Timer timer = new Timer();
+        GoogleRESTSpeechToTextResponse response = loadResponse("google-response-speakers.json");
+        response.setParseTimer(timer);
+        assertEquals(0, timer.getCount());
+
+        response.getText();
+        response.getConfidence();
+        assertEquals(1, timer.getCount());
+    }
+
+}
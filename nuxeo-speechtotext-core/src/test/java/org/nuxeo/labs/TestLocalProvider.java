@@ -0,0 +1,219 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextJob;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextOptions;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextResponse;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextWord;
+import org.nuxeo.labs.speechtotext.local.LocalEnginePool;
+import org.nuxeo.labs.speechtotext.local.LocalEngineServer;
+import org.nuxeo.labs.speechtotext.local.LocalSpeechToTextProvider;
+import org.nuxeo.labs.speechtotext.local.LocalSpeechToTextResponse;
+import org.nuxeo.labs.speechtotext.throttle.TokenBucket;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.RuntimeFeature;
+
+@RunWith(FeaturesRunner.class)
+@Features(RuntimeFeature.class)
+public class TestLocalProvider {
+
+    protected LocalSpeechToTextProvider provider;
+
+    @After
+    public void cleanup() {
+        if (provider != null) {
+            provider.stop();
+        }
+    }
+
+    /*
+     * FakeWhisperServer processes instead of whisper-server
+     */
+    protected static List<LocalEngineServer> buildFakeServers(int count) {
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Map<String, String> values = new HashMap<>();
+        values.put("classpath", System.getProperty("java.class.path"));
+        List<LocalEngineServer> servers = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            servers.add(new LocalEngineServer(java, "-cp #{classpath} " + FakeWhisperServer.class.getName() + " #{port}",
+                    values, i));
+        }
+        return servers;
+    }
+
+    protected LocalSpeechToTextProvider startProvider(int poolSize, int acquireTimeoutSeconds) {
+
+        Map<String, String> properties = new HashMap<>();
+        properties.put(LocalSpeechToTextProvider.POOL_SIZE_PARAM, String.valueOf(poolSize));
+        properties.put(LocalSpeechToTextProvider.STARTUP_TIMEOUT_PARAM, "60");
+        properties.put(LocalSpeechToTextProvider.ACQUIRE_TIMEOUT_PARAM, String.valueOf(acquireTimeoutSeconds));
+        provider = new LocalSpeechToTextProvider() {
+            @Override
+            protected List<LocalEngineServer> createServers(int size) {
+                return buildFakeServers(size);
+            }
+        };
+        provider.initialize("local-test", properties);
+        provider.start();
+        return provider;
+    }
+
+    @Test
+    public void testCommandLineOutput() throws Exception {
+
+        // whisper-cli -ml 1 -sow -ojf: one word per segment
+        JSONObject output = new JSONObject("{\"transcription\":["
+                + "{\"offsets\":{\"from\":0,\"to\":480},\"text\":\" Hello\",\"tokens\":["
+                + "{\"text\":\"[_BEG_]\",\"p\":0.5},{\"text\":\" Hello\",\"p\":0.9}]},"
+                + "{\"offsets\":{\"from\":480,\"to\":1020},\"text\":\" world.\",\"tokens\":["
+                + "{\"text\":\" world\",\"p\":0.8},{\"text\":\".\",\"p\":0.6},{\"text\":\"[_TT_51]\",\"p\":0.1}]}"
+                + "]}");
+        SpeechToTextResponse response = LocalSpeechToTextResponse.fromCommandLineOutput(output);
+
+        assertEquals("Hello world.", response.getText());
+        assertEquals((0.9 + 0.8 + 0.6) / 3, response.getConfidence(), 0.0001);
+        assertSame(output, response.getNativeResponse());
+
+        JSONArray words = response.getWordTimeOffsets(false);
+        assertEquals(2, words.length());
+        SpeechToTextWord word = SpeechToTextWord.fromJSON(words.getJSONObject(1));
+        assertEquals("world.", word.getWord());
+        assertEquals(0.48, word.getStart(), 0.0001);
+        assertEquals(1.02, word.getEnd(), 0.0001);
+        assertEquals(0.7, word.getConfidence(), 0.0001);
+    }
+
+    @Test
+    public void testServerOutput() throws Exception {
+
+        JSONObject output = FakeWhisperServer.buildResponse(true);
+        SpeechToTextResponse response = LocalSpeechToTextResponse.fromServerOutput(output);
+        assertEquals(FakeWhisperServer.TRANSCRIPT, response.getText());
+        assertEquals(0.9, response.getConfidence(), 0.0001);
+        JSONArray words = response.getWordTimeOffsets(false);
+        assertEquals(2, words.length());
+        assertEquals("world", words.getJSONObject(1).getString("word"));
+        assertEquals(0.5, words.getJSONObject(1).getDouble("start"), 0.0001);
+
+        // No word timings: one entry per segment, no confidence
+        response = LocalSpeechToTextResponse.fromServerOutput(FakeWhisperServer.buildResponse(false));
+        assertEquals(FakeWhisperServer.TRANSCRIPT, response.getText());
+        assertEquals(0, response.getConfidence(), 0.0001);
+        assertEquals(2, response.getWordTimeOffsets(false).length());
+    }
+
+    @Test
+    public void testEngineLanguage() {
+        assertEquals("en", LocalSpeechToTextProvider.toEngineLanguage("en-US"));
+        assertEquals("fr", LocalSpeechToTextProvider.toEngineLanguage("FR-ca"));
+        assertEquals("de", LocalSpeechToTextProvider.toEngineLanguage("de"));
+        assertEquals("auto", LocalSpeechToTextProvider.toEngineLanguage(null));
+        assertEquals("auto", LocalSpeechToTextProvider.toEngineLanguage(" "));
+    }
+
+    @Test
+    public void testWarmPool() throws Exception {
+
+        startProvider(2, 30);
+        LocalEnginePool pool = provider.getPool();
+        assertEquals(2, pool.getSize());
+        assertEquals(2, pool.getAvailable());
+
+        // Already what the engine expects: sent as is
+        Blob wav = TestAudio.sineWav(16000, 1, 1, 440);
+        SpeechToTextOptions options = new SpeechToTextOptions(true, true);
+        SpeechToTextResponse response = provider.run(options, wav, "en-US", null);
+        assertEquals(FakeWhisperServer.TRANSCRIPT, response.getText());
+        assertEquals(2, response.getWordTimeOffsets(false).length());
+        assertEquals(0.9, response.getConfidence(), 0.0001);
+        assertEquals(2, pool.getAvailable());
+
+        // Normalized in the JVM
+        response = provider.run(options, TestAudio.sineWav(44100, 2, 1, 440), "en-US", null);
+        assertEquals(FakeWhisperServer.TRANSCRIPT, response.getText());
+
+        SpeechToTextJob job = provider.runLongRunning(options, wav, "en-US", null);
+        assertTrue(job.getId().startsWith("local-test:"));
+        response = job.getResult().get(30, TimeUnit.SECONDS);
+        assertEquals(FakeWhisperServer.TRANSCRIPT, response.getText());
+
+        assertEquals(0, provider.getMetrics().getInFlight());
+    }
+
+    @Test
+    public void testRestartDeadEngine() throws Exception {
+
+        startProvider(1, 30);
+        LocalEnginePool pool = provider.getPool();
+        LocalEngineServer server = pool.acquire();
+        assertTrue(server.isAlive());
+        // Killed, or crashed
+        server.stop();
+        assertFalse(server.isAlive());
+        pool.release(server);
+
+        SpeechToTextResponse response = provider.run(new SpeechToTextOptions(true, false), TestAudio.sineWav(16000, 1, 1, 440),
+                "fr-FR", null);
+        assertEquals(FakeWhisperServer.TRANSCRIPT, response.getText());
+        // Started again by the call
+        assertTrue(server.isAlive());
+        assertEquals(1, pool.getAvailable());
+    }
+
+    @Test
+    public void testNoEngineAvailable() throws Exception {
+
+        startProvider(1, 1);
+        LocalEnginePool pool = provider.getPool();
+        LocalEngineServer server = pool.acquire();
+        try {
+            pool.acquire();
+            fail("No engine should be available");
+        } catch (NuxeoException e) {
+            assertEquals(TokenBucket.HTTP_TOO_MANY_REQUESTS, e.getStatusCode());
+        } finally {
+            pool.release(server);
+        }
+        assertEquals(1, pool.getAvailable());
+    }
+
+}
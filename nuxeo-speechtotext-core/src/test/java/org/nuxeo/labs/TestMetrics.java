@@ -0,0 +1,84 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.core.api.impl.blob.ByteArrayBlob;
+import org.nuxeo.labs.speechtotext.google.GoogleRecognizeRequestEntity;
+import org.nuxeo.labs.speechtotext.metrics.SpeechToTextMetrics;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.RuntimeFeature;
+
+import io.dropwizard.metrics5.MetricName;
+import io.dropwizard.metrics5.MetricRegistry;
+
+@RunWith(FeaturesRunner.class)
+@Features(RuntimeFeature.class)
+public class TestMetrics {
+
+    @Test
+    public void testCountersAreTagged() {
+
+        MetricRegistry registry = new MetricRegistry();
+        SpeechToTextMetrics metrics = new SpeechToTextMetrics(registry, "test");
+
+        metrics.cacheHit("en-US");
+        metrics.cacheHit("en-US");
+        metrics.cacheMiss("fr-FR");
+        metrics.error(null, "503");
+
+        MetricName hits = MetricName.build(SpeechToTextMetrics.PREFIX, "cache.hits")
+                                    .tagged("provider", "test", "language", "en-US");
+        assertEquals(2, registry.getCounters().get(hits).getCount());
+        MetricName errors = MetricName.build(SpeechToTextMetrics.PREFIX, "errors")
+                                      .tagged("provider", "test", "language", SpeechToTextMetrics.UNKNOWN, "status",
+                                              "503");
+        assertEquals(1, registry.getCounters().get(errors).getCount());
+
+        metrics.callStarted();
+        MetricName inFlight = MetricName.build(SpeechToTextMetrics.PREFIX, "inflight").tagged("provider", "test");
+        assertEquals(1, registry.getGauges().get(inFlight).getValue());
+        metrics.callEnded();
+        assertEquals(0, registry.getGauges().get(inFlight).getValue());
+    }
+
+    @Test
+    public void testRequestEntityReportsTheUpload() throws Exception {
+
+        GoogleRecognizeRequestEntity entity = new GoogleRecognizeRequestEntity(new JSONObject(),
+                new ByteArrayBlob(new byte[3000], "audio/wav"));
+        AtomicLong written = new AtomicLong();
+        entity.setWriteListener((bytes, readNanos, encodeNanos, uploadNanos) -> written.set(bytes));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entity.writeTo(out);
+
+        assertEquals(out.size(), written.get());
+        assertEquals(entity.getContentLength(), written.get());
+    }
+
+}
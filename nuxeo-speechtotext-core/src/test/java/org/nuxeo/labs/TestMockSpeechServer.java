@@ -0,0 +1,228 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.SystemUtils;
+import org.json.JSONArray;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.ByteArrayBlob;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextJob;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextOptions;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextProviderException;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextResponse;
+import org.nuxeo.labs.speechtotext.audio.AudioProbe;
+import org.nuxeo.labs.speechtotext.audio.FFmpegPipeBlob;
+import org.nuxeo.labs.speechtotext.google.GoogleSpeechToTextProvider;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.RuntimeFeature;
+
+@RunWith(FeaturesRunner.class)
+@Features(RuntimeFeature.class)
+public class TestMockSpeechServer {
+
+    protected MockSpeechServer server;
+
+    protected GoogleSpeechToTextProvider provider;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockSpeechServer().start();
+        Framework.getProperties().setProperty(GoogleSpeechToTextProvider.ENDPOINT_PARAM, server.getEndpoint());
+        Framework.getProperties().setProperty(GoogleSpeechToTextProvider.LONG_RUNNING_POLL_INTERVAL_PARAM, "1");
+        provider = new GoogleSpeechToTextProvider();
+    }
+
+    @After
+    public void tearDown() {
+        provider.stop();
+        server.stop();
+        Framework.getProperties().remove(GoogleSpeechToTextProvider.ENDPOINT_PARAM);
+        Framework.getProperties().remove(GoogleSpeechToTextProvider.LONG_RUNNING_POLL_INTERVAL_PARAM);
+    }
+
+    /*
+     * 16 kHz mono, already normalized
+     */
+    protected Blob buildWav(double seconds, int seed) throws IOException {
+        return TestAudio.sineWav(16000, 1, seconds, 200 + seed);
+    }
+
+    @Test
+    public void testEndpoint() {
+        assertEquals(server.getEndpoint(), provider.getEndpoint());
+
+        Framework.getProperties().remove(GoogleSpeechToTextProvider.ENDPOINT_PARAM);
+        assertEquals(GoogleSpeechToTextProvider.SERVICE_URL, provider.getEndpoint());
+    }
+
+    @Test
+    public void testRecognize() throws Exception {
+
+        server.setWordCount(50);
+        Blob wav = buildWav(1, 1);
+
+        SpeechToTextResponse response = provider.run(new SpeechToTextOptions(true, true), wav, "en-US", null);
+        assertEquals(50, response.getText().split(" ").length);
+        JSONArray words = response.getWordTimeOffsets(false);
+        assertEquals(50, words.length());
+
+        // Deterministic
+        assertEquals(response.getText(), provider.run(null, wav, "en-US", null).getText());
+        assertEquals(2, server.getRequestCount(MockSpeechServer.RECOGNIZE));
+    }
+
+    @Test
+    public void testRetryInjectedErrors() throws Exception {
+
+        server.failNext(429, 1).failNext(503, 1);
+
+        SpeechToTextResponse response = provider.run(null, buildWav(1, 1), "en-US", null);
+        assertEquals(10, response.getText().split(" ").length);
+        assertEquals(3, server.getRequestCount(MockSpeechServer.RECOGNIZE));
+        assertEquals(2, server.getErrorCount());
+    }
+
+    @Test
+    public void testRetryOfStreamedConversion() throws Exception {
+
+        assumeTrue(SystemUtils.IS_OS_UNIX);
+
+        // The converter is not deployed, the retries get the same audio
+        AtomicInteger conversions = new AtomicInteger();
+        provider = new GoogleSpeechToTextProvider() {
+            @Override
+            protected Blob convertToFlac(Blob blob) {
+                conversions.incrementAndGet();
+                return blob;
+            }
+        };
+        server.failNext(503, 2);
+        Blob wav = buildWav(1, 1);
+        FFmpegPipeBlob piped = new FFmpegPipeBlob(wav, "cat", FFmpegPipeBlob.SOURCE_FILE_PATH, "audio/wav", ".wav");
+
+        SpeechToTextResponse response = provider.run(null, piped, null, -1, "en-US", null);
+        assertEquals(10, response.getText().split(" ").length);
+        assertEquals(3, server.getRequestCount(MockSpeechServer.RECOGNIZE));
+        // The command ran once, the converter once for both retries
+        assertTrue(piped.isConsumed());
+        assertEquals(1, conversions.get());
+    }
+
+    @Test
+    public void testAudioIsProbedOnce() throws Exception {
+
+        AtomicInteger probes = new AtomicInteger();
+        provider = new GoogleSpeechToTextProvider() {
+            @Override
+            protected AudioProbe probeAudio(Blob blob) {
+                probes.incrementAndGet();
+                return super.probeAudio(blob);
+            }
+        };
+        Blob wav = buildWav(1, 1);
+        AtomicInteger reads = new AtomicInteger();
+        Blob counted = new ByteArrayBlob(wav.getByteArray(), "audio/wav") {
+            @Override
+            public InputStream getStream() {
+                reads.incrementAndGet();
+                return super.getStream();
+            }
+        };
+
+        // Normalized, config, duration (quota) all from the same probe
+        provider.run(null, counted, "en-US", null);
+        assertEquals(1, probes.get());
+        // The probe and the upload
+        assertEquals(2, reads.get());
+
+        // Probed by the service
+        provider.run(null, counted, AudioProbe.probe(counted), "en-US", null);
+        assertEquals(1, probes.get());
+        assertEquals(4, reads.get());
+    }
+
+    @Test
+    public void testGiveUp() throws Exception {
+
+        server.failNext(503, 3);
+        try {
+            provider.run(null, buildWav(1, 1), "en-US", null);
+            fail("Should have failed");
+        } catch (SpeechToTextProviderException e) {
+            assertEquals(503, e.getStatusCode());
+        }
+        assertEquals(3, server.getRequestCount(MockSpeechServer.RECOGNIZE));
+    }
+
+    @Test
+    public void testLongRunning() throws Exception {
+
+        server.setOperationPolls(2).setWordCount(20);
+
+        SpeechToTextJob job = provider.runLongRunning(null, buildWav(1, 1), "en-US", null);
+        SpeechToTextResponse response = job.getResult().get(30, TimeUnit.SECONDS);
+        assertEquals(20, response.getText().split(" ").length);
+        assertEquals(1, server.getRequestCount(MockSpeechServer.LONG_RUNNING_RECOGNIZE));
+        assertTrue(server.getRequestCount(MockSpeechServer.OPERATIONS) >= 2);
+    }
+
+    @Test
+    public void testConcurrentCalls() throws Exception {
+
+        server.setLatency(20, 30).setWordCount(100);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 40; i++) {
+                Blob wav = buildWav(0.5, i);
+                results.add(executor.submit(() -> provider.run(null, wav, "en-US", null).getText()));
+            }
+            for (Future<String> result : results) {
+                assertEquals(100, result.get(60, TimeUnit.SECONDS).split(" ").length);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(40, server.getRequestCount(MockSpeechServer.RECOGNIZE));
+        assertEquals(0, provider.getMetrics().getInFlight());
+    }
+
+}
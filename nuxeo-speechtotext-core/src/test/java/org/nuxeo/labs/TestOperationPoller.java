@@ -0,0 +1,176 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextJob;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextResponse;
+import org.nuxeo.labs.speechtotext.google.GoogleOperationPoller;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.RuntimeFeature;
+
+/*
+ * The operations are fetched from a function, no server needed
+ */
+@RunWith(FeaturesRunner.class)
+@Features(RuntimeFeature.class)
+public class TestOperationPoller {
+
+    protected static final String RESPONSE = "{\"results\":[{\"alternatives\":[{\"transcript\":\"hello world\","
+            + "\"confidence\":0.9}]}]}";
+
+    protected GoogleOperationPoller poller;
+
+    protected final Map<String, AtomicInteger> polls = new ConcurrentHashMap<>();
+
+    @After
+    public void tearDown() {
+        if (poller != null) {
+            poller.shutdown();
+        }
+    }
+
+    /*
+     * Done after doneAfter polls, with this result (the "response" or the "error" of the operation)
+     */
+    protected Function<String, JSONObject> operations(int doneAfter, String key, String result) {
+        return name -> {
+            int count = polls.computeIfAbsent(name, k -> new AtomicInteger()).incrementAndGet();
+            try {
+                JSONObject operation = new JSONObject().put("name", name);
+                if (count < doneAfter) {
+                    return operation.put("done", false);
+                }
+                return operation.put("done", true).put(key, new JSONObject(result));
+            } catch (Exception e) {
+                throw new NuxeoException(e);
+            }
+        };
+    }
+
+    @Test
+    public void testResultWhenDone() throws Exception {
+
+        poller = new GoogleOperationPoller(2, 5, 30000, operations(3, "response", RESPONSE));
+        SpeechToTextJob first = new SpeechToTextJob("1");
+        SpeechToTextJob second = new SpeechToTextJob("2");
+        poller.watch(first);
+        poller.watch(second);
+
+        SpeechToTextResponse response = first.getResult().get(10, TimeUnit.SECONDS);
+        assertEquals("hello world", response.getText());
+        assertEquals("hello world", second.getResult().get(10, TimeUnit.SECONDS).getText());
+        assertEquals(3, polls.get("1").get());
+        assertEquals(0, poller.getPendingCount());
+    }
+
+    @Test
+    public void testOperationError() throws Exception {
+
+        poller = new GoogleOperationPoller(1, 5, 30000,
+                operations(1, "error", "{\"code\":3,\"message\":\"Invalid audio\"}"));
+        SpeechToTextJob job = new SpeechToTextJob("1");
+        poller.watch(job);
+
+        try {
+            job.getResult().get(10, TimeUnit.SECONDS);
+            fail("The error of the operation was not reported");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("Invalid audio"));
+        }
+    }
+
+    @Test
+    public void testPollingErrorIsRetried() throws Exception {
+
+        Function<String, JSONObject> done = operations(1, "response", RESPONSE);
+        AtomicInteger calls = new AtomicInteger();
+        poller = new GoogleOperationPoller(1, 5, 30000, name -> {
+            if (calls.incrementAndGet() <= 2) {
+                throw new NuxeoException("Temporary failure");
+            }
+            return done.apply(name);
+        });
+        SpeechToTextJob job = new SpeechToTextJob("1");
+        poller.watch(job);
+
+        assertEquals("hello world", job.getResult().get(10, TimeUnit.SECONDS).getText());
+        assertEquals(3, calls.get());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+
+        poller = new GoogleOperationPoller(1, 5, 50, operations(Integer.MAX_VALUE, "response", RESPONSE));
+        SpeechToTextJob job = new SpeechToTextJob("1");
+        poller.watch(job);
+
+        try {
+            job.getResult().get(10, TimeUnit.SECONDS);
+            fail("The timeout was not reported");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("Timeout"));
+        }
+    }
+
+    @Test
+    public void testShutdownCompletesThePendingJobs() throws Exception {
+
+        poller = new GoogleOperationPoller(1, 10000, 30000, operations(1, "response", RESPONSE));
+        SpeechToTextJob job = new SpeechToTextJob("1");
+        poller.watch(job);
+        assertEquals(1, poller.getPendingCount());
+
+        poller.shutdown();
+        assertTrue(job.getResult().isCompletedExceptionally());
+        assertEquals(0, poller.getPendingCount());
+    }
+
+    @Test
+    public void testCancelledJobIsNotPolledAnymore() throws Exception {
+
+        poller = new GoogleOperationPoller(1, 5, 30000, operations(Integer.MAX_VALUE, "response", RESPONSE));
+        SpeechToTextJob job = new SpeechToTextJob("1");
+        poller.watch(job);
+        job.getResult().cancel(false);
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (poller.getPendingCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, poller.getPendingCount());
+    }
+
+}
@@ -0,0 +1,365 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextJob;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextOptions;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextProvider;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextProviderException;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextResponse;
+import org.nuxeo.labs.speechtotext.audio.AudioReadException;
+import org.nuxeo.labs.speechtotext.audio.WavHeader;
+import org.nuxeo.labs.speechtotext.google.GoogleRESTSpeechToTextResponse;
+import org.nuxeo.labs.speechtotext.google.GoogleSpeechToTextProvider;
+import org.nuxeo.labs.speechtotext.resilience.ResilientExecutor;
+import org.nuxeo.labs.speechtotext.router.ProviderDescriptor;
+import org.nuxeo.labs.speechtotext.router.ProviderRouter;
+import org.nuxeo.labs.speechtotext.router.RoutedProvider;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.RuntimeFeature;
+
+@RunWith(FeaturesRunner.class)
+@Features(RuntimeFeature.class)
+public class TestProviderRouter {
+
+    /*
+     * Returns its name as the transcript, or throws the error
+     */
+    public static class FakeProvider implements SpeechToTextProvider {
+
+        protected String name;
+
+        protected volatile RuntimeException error;
+
+        protected volatile CountDownLatch blocker;
+
+        protected volatile long delayMs = 0;
+
+        protected final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public void initialize(String name, java.util.Map<String, String> properties) {
+            this.name = name;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public SpeechToTextResponse run(SpeechToTextOptions options, Blob blob, String languageCode,
+                JSONObject moreOptions) {
+            return run(options, blob, null, -1, languageCode, moreOptions);
+        }
+
+        @Override
+        public SpeechToTextResponse run(SpeechToTextOptions options, Blob blob, String audioEncoding,
+                int sampleRateHertz, String languageCode, JSONObject moreOptions) {
+            calls.incrementAndGet();
+            if (blocker != null) {
+                try {
+                    blocker.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (delayMs > 0) {
+                try {
+                    Thread.sleep(delayMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+            try {
+                return new GoogleRESTSpeechToTextResponse("{\"results\": [{\"alternatives\": [{\"transcript\": \""
+                        + name + "\", \"confidence\": 1}]}]}");
+            } catch (JSONException e) {
+                throw new NuxeoException(e);
+            }
+        }
+
+        @Override
+        public SpeechToTextJob runLongRunning(SpeechToTextOptions options, Blob blob, String languageCode,
+                JSONObject moreOptions) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SpeechToTextJob runLongRunning(SpeechToTextOptions options, Blob blob, String audioEncoding,
+                int sampleRateHertz, String languageCode, JSONObject moreOptions) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    protected static RoutedProvider routed(ProviderDescriptor descriptor) {
+        FakeProvider provider = new FakeProvider();
+        provider.initialize(descriptor.getName(), descriptor.getProperties());
+        return new RoutedProvider(descriptor, provider);
+    }
+
+    protected static FakeProvider fake(RoutedProvider routed) {
+        return (FakeProvider) routed.getProvider();
+    }
+
+    protected static String transcribe(ProviderRouter router, String languageCode) {
+        return transcribe(router, languageCode, 0);
+    }
+
+    protected static String transcribe(ProviderRouter router, String languageCode, double audioSeconds) {
+        return router.call(languageCode, audioSeconds, p -> p.run(null, null, languageCode, null)).getText();
+    }
+
+    protected static List<String> names(List<RoutedProvider> providers) {
+        return providers.stream().map(RoutedProvider::getName).collect(Collectors.toList());
+    }
+
+    @Test
+    public void testSelectByLanguageAndDuration() {
+
+        ProviderDescriptor french = new ProviderDescriptor("french", FakeProvider.class);
+        french.getLanguages().add("fr");
+        ProviderDescriptor shortAudio = new ProviderDescriptor("short", FakeProvider.class);
+        shortAudio.setMaxAudioSeconds(60);
+        ProviderRouter router = new ProviderRouter(Arrays.asList(routed(french), routed(shortAudio)), 3, 30);
+
+        assertEquals(Arrays.asList("french", "short"), names(router.select("fr-CA", 10)));
+        assertEquals(Arrays.asList("french", "short"), names(router.select("FR", 0)));
+        assertEquals(Arrays.asList("short"), names(router.select("en-US", 10)));
+        assertEquals(Arrays.asList("french"), names(router.select("fr-FR", 120)));
+        // Unknown duration
+        assertEquals(Arrays.asList("short"), names(router.select("en-US", 0)));
+        assertTrue(router.select("en-US", 120).isEmpty());
+
+        try {
+            router.call("en-US", 120, p -> p.run(null, null, "en-US", null));
+            fail("No provider should accept the call");
+        } catch (NuxeoException e) {
+            assertTrue(e.getMessage().contains("No speech-to-text provider"));
+        }
+    }
+
+    @Test
+    public void testFailover() {
+
+        RoutedProvider first = routed(new ProviderDescriptor("first", FakeProvider.class));
+        RoutedProvider second = routed(new ProviderDescriptor("second", FakeProvider.class));
+        ProviderRouter router = new ProviderRouter(Arrays.asList(first, second), 2, 30);
+
+        assertEquals("first", transcribe(router, "en-US"));
+
+        // Quota, then unavailable: fails over, and first is degraded after 2 failures
+        fake(first).error = new SpeechToTextProviderException("Quota", 429);
+        assertEquals("second", transcribe(router, "en-US"));
+        fake(first).error = new SpeechToTextProviderException("Unavailable", 503);
+        assertEquals("second", transcribe(router, "en-US"));
+        assertTrue(first.isDegraded(System.currentTimeMillis()));
+        assertEquals(Arrays.asList("second", "first"), names(router.select("en-US", 0)));
+
+        // Degraded providers are still used when needed, and a success makes them healthy
+        fake(first).error = null;
+        fake(second).error = new SpeechToTextProviderException("Unavailable", 503);
+        assertEquals("first", transcribe(router, "en-US"));
+        assertFalse(first.isDegraded(System.currentTimeMillis()));
+        assertEquals(0, first.getConsecutiveFailures());
+    }
+
+    @Test
+    public void testNoFailoverOnBadRequest() {
+
+        RoutedProvider first = routed(new ProviderDescriptor("first", FakeProvider.class));
+        RoutedProvider second = routed(new ProviderDescriptor("second", FakeProvider.class));
+        ProviderRouter router = new ProviderRouter(Arrays.asList(first, second), 1, 30);
+
+        fake(first).error = new SpeechToTextProviderException("Bad request", 400);
+        try {
+            transcribe(router, "en-US");
+            fail("Should have failed");
+        } catch (SpeechToTextProviderException e) {
+            assertEquals(400, e.getStatusCode());
+        }
+        // Not the fault of the provider
+        assertFalse(first.isDegraded(System.currentTimeMillis()));
+
+        assertTrue(ProviderRouter.isFailover(new NuxeoException("Wrapped", new IOException("Connection reset"))));
+        assertTrue(ProviderRouter.isFailover(new SpeechToTextProviderException("Invalid key", 403)));
+        assertFalse(ProviderRouter.isFailover(new NuxeoException("Invalid moreOptions")));
+    }
+
+    @Test
+    public void testNoFailoverOnAudioError() {
+
+        RoutedProvider first = routed(new ProviderDescriptor("first", FakeProvider.class));
+        RoutedProvider second = routed(new ProviderDescriptor("second", FakeProvider.class));
+        ProviderRouter router = new ProviderRouter(Arrays.asList(first, second), 1, 30);
+
+        // ffmpeg failing while the audio is sent: the HTTP client throws it as an IOException
+        NuxeoException error = new NuxeoException("Error getting the speech-to-text result.",
+                new AudioReadException("ffmpeg failed on audio.mp3 (exit value 1)"));
+        fake(first).error = error;
+        try {
+            transcribe(router, "en-US");
+            fail("Should have failed");
+        } catch (NuxeoException e) {
+            assertSame(error, e);
+        }
+        // Another provider would fail the same way, and it is not the fault of this one
+        assertFalse(first.isDegraded(System.currentTimeMillis()));
+        assertEquals(0, first.getConsecutiveFailures());
+
+        assertFalse(ProviderRouter.isFailover(new AudioReadException("Cannot read the audio", new IOException())));
+        assertFalse(ResilientExecutor.isRetryable(new AudioReadException("Cannot read the audio")));
+        assertTrue(ResilientExecutor.isRetryable(new IOException("Connection reset")));
+    }
+
+    @Test
+    public void testQueueDepth() throws Exception {
+
+        RoutedProvider first = routed(new ProviderDescriptor("first", FakeProvider.class));
+        RoutedProvider second = routed(new ProviderDescriptor("second", FakeProvider.class));
+        ProviderRouter router = new ProviderRouter(Arrays.asList(first, second), 3, 30);
+
+        // A call in progress on first, the next one goes to second
+        CountDownLatch blocker = new CountDownLatch(1);
+        fake(first).blocker = blocker;
+        CompletableFuture<String> blocked = CompletableFuture.supplyAsync(() -> transcribe(router, "en-US"));
+        long start = System.currentTimeMillis();
+        while (first.getPending() == 0 && System.currentTimeMillis() - start < 10000) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, first.getPending());
+        assertEquals("second", transcribe(router, "en-US"));
+
+        blocker.countDown();
+        assertEquals("first", blocked.get(10, TimeUnit.SECONDS));
+        assertEquals(0, first.getPending());
+    }
+
+    @Test
+    public void testLatencyAndWeight() {
+
+        RoutedProvider slow = routed(new ProviderDescriptor("slow", FakeProvider.class));
+        RoutedProvider fast = routed(new ProviderDescriptor("fast", FakeProvider.class));
+        ProviderRouter router = new ProviderRouter(Arrays.asList(slow, fast), 3, 30);
+        fake(slow).delayMs = 100;
+
+        // No latency yet, order of the contributions
+        assertEquals("slow", transcribe(router, "en-US", 1));
+        assertTrue(slow.getAverageMsPerAudioSecond() >= 100);
+        assertEquals("fast", transcribe(router, "en-US", 1));
+        assertEquals("fast", transcribe(router, "en-US", 1));
+
+        // A much bigger weight compensates the latency
+        ProviderDescriptor weighted = new ProviderDescriptor("weighted", FakeProvider.class);
+        weighted.setWeight(1000);
+        RoutedProvider big = routed(weighted);
+        fake(big).delayMs = 100;
+        router = new ProviderRouter(Arrays.asList(fast, big), 3, 30);
+        assertEquals("weighted", transcribe(router, "en-US", 1));
+        assertTrue(big.getAverageMsPerAudioSecond() >= 100);
+        assertEquals("weighted", transcribe(router, "en-US", 1));
+    }
+
+    @Test
+    public void testLatencyPerSecondOfAudio() {
+
+        RoutedProvider first = routed(new ProviderDescriptor("first", FakeProvider.class));
+        RoutedProvider second = routed(new ProviderDescriptor("second", FakeProvider.class));
+        ProviderRouter router = new ProviderRouter(Arrays.asList(first, second), 3, 30);
+
+        // A long audio on first: 100ms for 100s, faster than 50ms for 1s on second
+        fake(first).delayMs = 100;
+        assertEquals("first", transcribe(router, "en-US", 100));
+        fake(second).delayMs = 50;
+        assertEquals("second", router.call(router.getProviders().subList(1, 2), "en-US", 1,
+                p -> p.run(null, null, "en-US", null)).getText());
+        assertTrue(first.getAverageMsPerAudioSecond() < second.getAverageMsPerAudioSecond());
+        assertEquals("first", transcribe(router, "en-US", 1));
+
+        // Unknown duration: the average is kept
+        double average = first.getAverageMsPerAudioSecond();
+        assertEquals("first", transcribe(router, "en-US"));
+        assertEquals(average, first.getAverageMsPerAudioSecond(), 0);
+    }
+
+    @Test
+    public void testGoogleProviderProperties() throws Exception {
+
+        try (MockSpeechServer failing = new MockSpeechServer().start();
+                MockSpeechServer working = new MockSpeechServer().start()) {
+            failing.failNext(503, 100);
+            working.setWordCount(5);
+
+            ProviderRouter router = new ProviderRouter(
+                    Arrays.asList(googleProvider("failing", failing), googleProvider("working", working)), 3, 30);
+            router.start();
+            try {
+                assertEquals("failing", router.getProviders().get(0).getProvider().getName());
+                assertEquals(failing.getEndpoint(),
+                        ((GoogleSpeechToTextProvider) router.getProviders().get(0).getProvider()).getEndpoint());
+
+                Blob wav = TestAudio.sineWav(16000, 1, 1, 440);
+                SpeechToTextResponse response = router.call("en-US", WavHeader.readDurationSeconds(wav),
+                        p -> p.run(null, wav, "en-US", null));
+                assertEquals(5, response.getText().split(" ").length);
+                // Retried by the failing provider (resilience), then failed over
+                assertEquals(3, failing.getRequestCount(MockSpeechServer.RECOGNIZE));
+                assertEquals(1, working.getRequestCount(MockSpeechServer.RECOGNIZE));
+            } finally {
+                router.stop();
+            }
+        }
+    }
+
+    protected RoutedProvider googleProvider(String name, MockSpeechServer server) {
+
+        ProviderDescriptor descriptor = new ProviderDescriptor(name, GoogleSpeechToTextProvider.class);
+        descriptor.getProperties().put("endpoint", server.getEndpoint());
+        descriptor.getProperties().put("http.maxConnectionsPerRoute", "4");
+        GoogleSpeechToTextProvider provider = new GoogleSpeechToTextProvider();
+        provider.initialize(name, descriptor.getProperties());
+        return new RoutedProvider(descriptor, provider);
+    }
+
+}
@@ -0,0 +1,260 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextProviderException;
+import org.nuxeo.labs.speechtotext.resilience.ResilienceDescriptor;
+import org.nuxeo.labs.speechtotext.resilience.ResilientExecutor;
+import org.nuxeo.labs.speechtotext.resilience.ResilientExecutor.AbortableCall;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.RuntimeFeature;
+
+@RunWith(FeaturesRunner.class)
+@Features(RuntimeFeature.class)
+public class TestResilience {
+
+    protected ResilienceDescriptor config;
+
+    protected ResilientExecutor executor;
+
+    @Before
+    public void setUp() {
+        config = new ResilienceDescriptor();
+        config.setInitialBackoffMs(1);
+        config.setMaxBackoffMs(5);
+        executor = new ResilientExecutor(config);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    /*
+     * Waits for the delay (or until aborted), then throws the error if any
+     */
+    protected static class FakeCall implements AbortableCall<String> {
+
+        protected final long delayMs;
+
+        protected final RuntimeException error;
+
+        protected final CountDownLatch aborted = new CountDownLatch(1);
+
+        public FakeCall(long delayMs, RuntimeException error) {
+            this.delayMs = delayMs;
+            this.error = error;
+        }
+
+        @Override
+        public String call() throws IOException {
+            try {
+                if (aborted.await(delayMs, TimeUnit.MILLISECONDS)) {
+                    throw new InterruptedIOException("Aborted");
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            if (error != null) {
+                throw error;
+            }
+            return "done in " + delayMs;
+        }
+
+        @Override
+        public void abort() {
+            aborted.countDown();
+        }
+    }
+
+    @Test
+    public void testRetryTransientErrors() throws Exception {
+
+        AtomicInteger attempts = new AtomicInteger();
+        String result = executor.execute(() -> attempts.incrementAndGet() < 3
+                ? new FakeCall(0, new SpeechToTextProviderException("Unavailable", 503))
+                : new FakeCall(0, null), true);
+
+        assertEquals("done in 0", result);
+        assertEquals(3, attempts.get());
+    }
+
+    @Test
+    public void testDontRetryBadRequest() throws Exception {
+
+        AtomicInteger attempts = new AtomicInteger();
+        try {
+            executor.execute(() -> {
+                attempts.incrementAndGet();
+                return new FakeCall(0, new SpeechToTextProviderException("Bad request", 400));
+            }, true);
+            fail("Should have failed");
+        } catch (SpeechToTextProviderException e) {
+            assertEquals(400, e.getStatusCode());
+        }
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    public void testGiveUpAfterMaxAttempts() throws Exception {
+
+        AtomicInteger attempts = new AtomicInteger();
+        try {
+            executor.execute(() -> {
+                attempts.incrementAndGet();
+                return new FakeCall(0, new SpeechToTextProviderException("Quota", 429));
+            }, true);
+            fail("Should have failed");
+        } catch (SpeechToTextProviderException e) {
+            assertEquals(429, e.getStatusCode());
+        }
+        assertEquals(3, attempts.get());
+    }
+
+    @Test
+    public void testAttemptTimeout() throws Exception {
+
+        config.setAttemptTimeoutSeconds(1);
+        AtomicInteger attempts = new AtomicInteger();
+        String result = executor.execute(
+                () -> attempts.incrementAndGet() == 1 ? new FakeCall(60000, null) : new FakeCall(0, null), true);
+
+        assertEquals("done in 0", result);
+        assertEquals(2, attempts.get());
+    }
+
+    @Test
+    public void testHedging() throws Exception {
+
+        config.setHedging(true);
+        config.setHedgingMinDelayMs(50);
+
+        // Latencies of the previous calls
+        for (int i = 0; i < 20; i++) {
+            executor.execute(() -> new FakeCall(0, null), true);
+        }
+
+        // Slow first call, the hedged one answers first
+        AtomicInteger attempts = new AtomicInteger();
+        FakeCall slow = new FakeCall(60000, null);
+        long start = System.currentTimeMillis();
+        String result = executor.execute(() -> attempts.incrementAndGet() == 1 ? slow : new FakeCall(10, null),
+                true);
+
+        assertEquals("done in 10", result);
+        assertEquals(2, attempts.get());
+        assertTrue(System.currentTimeMillis() - start < 30000);
+        // The slow one was aborted
+        assertEquals(0, slow.aborted.getCount());
+    }
+
+    @Test
+    public void testHedgingDelayIsPerSecondOfAudio() throws Exception {
+
+        config.setHedging(true);
+        config.setHedgingMinDelayMs(1);
+
+        // About 20ms per second of audio
+        for (int i = 0; i < 20; i++) {
+            executor.execute(() -> new FakeCall(20, null), true, 1);
+        }
+
+        // 1 second of audio: hedged after about 20ms
+        AtomicInteger attempts = new AtomicInteger();
+        executor.execute(() -> attempts.incrementAndGet() == 1 ? new FakeCall(500, null) : new FakeCall(0, null), true,
+                1);
+        assertEquals(2, attempts.get());
+
+        // 100 seconds of audio: not hedged before about 2s
+        attempts.set(0);
+        String result = executor.execute(
+                () -> attempts.incrementAndGet() == 1 ? new FakeCall(500, null) : new FakeCall(0, null), true, 100);
+        assertEquals("done in 500", result);
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    public void testHedgingThreadsAreBounded() throws Exception {
+
+        executor.shutdown();
+        config.setHedging(true);
+        config.setHedgingMinDelayMs(1);
+        config.setHedgingThreads(2);
+        executor = new ResilientExecutor(config);
+        for (int i = 0; i < 20; i++) {
+            executor.execute(() -> new FakeCall(0, null), true);
+        }
+
+        // Slow attempts, on the hedging threads or on the callers when they are busy
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        Supplier<AbortableCall<String>> factory = () -> new FakeCall(200, null) {
+            @Override
+            public String call() throws IOException {
+                boolean hedging = Thread.currentThread().getName().startsWith("speechtotext-hedging");
+                if (hedging) {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                }
+                try {
+                    return super.call();
+                } finally {
+                    if (hedging) {
+                        running.decrementAndGet();
+                    }
+                }
+            }
+        };
+
+        ExecutorService callers = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(callers.submit(() -> executor.execute(factory, true)));
+            }
+            for (Future<String> future : futures) {
+                assertEquals("done in 200", future.get(30, TimeUnit.SECONDS));
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+        assertTrue(maxRunning.get() <= 2);
+    }
+
+}
@@ -0,0 +1,278 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextOptions;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextProvider;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextResponse;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextSegment;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextWord;
+import org.nuxeo.labs.speechtotext.audio.WavHeader;
+import org.nuxeo.labs.speechtotext.google.GoogleRESTSpeechToTextResponse;
+import org.nuxeo.labs.speechtotext.impl.SpeechToTextImpl;
+import org.nuxeo.labs.speechtotext.router.ProviderDescriptor;
+import org.nuxeo.labs.speechtotext.router.ProviderRouter;
+import org.nuxeo.labs.speechtotext.router.RoutedProvider;
+import org.nuxeo.labs.speechtotext.segmentation.AudioSegment;
+import org.nuxeo.labs.speechtotext.segmentation.AudioSegmenter;
+import org.nuxeo.labs.speechtotext.segmentation.SegmentedSpeechToTextResponse;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.RuntimeFeature;
+
+@RunWith(FeaturesRunner.class)
+@Features(RuntimeFeature.class)
+public class TestSegmentation {
+
+    protected static final int RATE = 16000;
+
+    /*
+     * A 440Hz tone, with silence between silenceStart and silenceEnd
+     */
+    protected Blob buildWav(double durationSeconds, double silenceStart, double silenceEnd) throws IOException {
+        return TestAudio.sineWav(RATE, 1, durationSeconds, 440, silenceStart, silenceEnd);
+    }
+
+    @Test
+    public void testSplitAtSilence() throws Exception {
+
+        Blob wav = buildWav(25, 17.0, 17.5);
+
+        List<AudioSegment> segments = new ArrayList<>();
+        int count = new AudioSegmenter(20, 10).split(wav, segments::add);
+
+        assertEquals(2, count);
+
+        AudioSegment first = segments.get(0);
+        assertEquals(0, first.getOffsetSeconds(), 0.0001);
+        assertTrue(first.getDurationSeconds() > 17.0 && first.getDurationSeconds() < 17.5);
+
+        AudioSegment second = segments.get(1);
+        assertEquals(first.getDurationSeconds(), second.getOffsetSeconds(), 0.0001);
+        assertEquals(25, second.getOffsetSeconds() + second.getDurationSeconds(), 0.0001);
+
+        // Each segment is a valid WAV
+        WavHeader header = WavHeader.read(second.getBlob().getStream());
+        assertTrue(header.isPCM16Mono(RATE));
+        assertEquals(second.getDurationSeconds(), header.getDurationSeconds(), 0.0001);
+    }
+
+    @Test
+    public void testShortAudioIsNotSplit() throws Exception {
+
+        Blob wav = buildWav(5, 1, 2);
+
+        List<AudioSegment> segments = new ArrayList<>();
+        int count = new AudioSegmenter(20, 10).split(wav, segments::add);
+
+        assertEquals(1, count);
+        assertEquals(5, segments.get(0).getDurationSeconds(), 0.0001);
+    }
+
+    @Test
+    public void testMergedResponse() throws Exception {
+
+        List<AudioSegment> segments = Arrays.asList(new AudioSegment(0, null, 0, 10),
+                new AudioSegment(1, null, 10, 30));
+        List<SpeechToTextResponse> responses = Arrays.asList(new FakeResponse("Hello there", 1.0, 0.5, 1.2),
+                new FakeResponse("General Kenobi", 0.5, 0.25, 2.0));
+
+        SegmentedSpeechToTextResponse merged = new SegmentedSpeechToTextResponse(segments, responses);
+
+        assertEquals("Hello there General Kenobi", merged.getText());
+        // Weighted by duration: (1.0 * 10 + 0.5 * 30) / 40
+        assertEquals(0.625, merged.getConfidence(), 0.0001);
+
+        JSONArray words = merged.getWordTimeOffsets(false);
+        assertEquals(4, words.length());
+        assertEquals("Hello", words.getJSONObject(0).getString("word"));
+        assertEquals(0.5, words.getJSONObject(0).getDouble("start"), 0.0001);
+        assertEquals("General", words.getJSONObject(2).getString("word"));
+        assertEquals(10.25, words.getJSONObject(2).getDouble("start"), 0.0001);
+        assertEquals(12.0, words.getJSONObject(3).getDouble("end"), 0.0001);
+
+        Iterator<SpeechToTextWord> it = merged.getWordIterator(false);
+        assertEquals(0.5, it.next().getStart(), 0.0001);
+        it.next();
+        SpeechToTextWord word = it.next();
+        assertEquals("General", word.getWord());
+        assertEquals(10.25, word.getStart(), 0.0001);
+        assertEquals(12.0, it.next().getEnd(), 0.0001);
+        assertFalse(it.hasNext());
+
+        Iterator<SpeechToTextSegment> segmentIt = merged.getSegmentIterator();
+        segmentIt.next();
+        SpeechToTextSegment segment = segmentIt.next();
+        assertEquals(1, segment.getIndex());
+        assertEquals("General Kenobi", segment.getText());
+        assertEquals(10.25, segment.getStart(), 0.0001);
+        assertEquals(12.0, segment.getWords().get(1).getEnd(), 0.0001);
+        assertFalse(segmentIt.hasNext());
+    }
+
+    /*
+     * Returns no result for a segment that is only silence, as Google does
+     */
+    public static class SilenceAwareProvider extends TestProviderRouter.FakeProvider {
+
+        protected final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public SpeechToTextResponse run(SpeechToTextOptions options, Blob blob, String audioEncoding,
+                int sampleRateHertz, String languageCode, JSONObject moreOptions) {
+            calls.incrementAndGet();
+            try (InputStream in = blob.getStream()) {
+                WavHeader.read(in);
+                int b;
+                while ((b = in.read()) != -1) {
+                    if (b != 0) {
+                        return new GoogleRESTSpeechToTextResponse("{\"results\": [{\"alternatives\": [{"
+                                + "\"transcript\": \"tone\", \"confidence\": 0.5, \"words\": [{"
+                                + "\"startTime\": \"1s\", \"endTime\": \"2s\", \"word\": \"tone\"}]}]}]}");
+                    }
+                }
+                return new GoogleRESTSpeechToTextResponse("{}");
+            } catch (IOException | JSONException e) {
+                throw new NuxeoException(e);
+            }
+        }
+    }
+
+    /*
+     * Gives access to the segmentation of the service, without the runtime
+     */
+    protected static class SegmentingSpeechToText extends SpeechToTextImpl {
+
+        public SegmentingSpeechToText(SpeechToTextProvider provider, ExecutorService executor) {
+            super();
+            router = new ProviderRouter(
+                    Arrays.asList(new RoutedProvider(new ProviderDescriptor("fake", provider.getClass()), provider)),
+                    3, 30);
+            segmentExecutor = executor;
+        }
+
+        public SpeechToTextResponse transcribe(SpeechToTextOptions options, Blob blob, String languageCode) {
+            return runSegmented(options, blob, languageCode, null);
+        }
+    }
+
+    @Test
+    public void testSilentSegment() throws Exception {
+
+        // Segments of 10s: tone, only silence, then silence and tone
+        Blob wav = buildWav(28, 8, 22);
+        SilenceAwareProvider provider = new SilenceAwareProvider();
+        provider.initialize("fake", null);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            SpeechToTextOptions options = new SpeechToTextOptions(true, true);
+            options.setMaxSegmentSeconds(10);
+            SpeechToTextResponse response = new SegmentingSpeechToText(provider, executor).transcribe(options, wav,
+                    "en-US");
+
+            assertEquals(3, provider.calls.get());
+            assertEquals("tone tone", response.getText());
+            assertEquals(0.5, response.getConfidence(), 0.0001);
+            assertEquals(2, response.getWordTimeOffsets(false).length());
+            List<SpeechToTextWord> words = new ArrayList<>();
+            response.getWordIterator(false).forEachRemaining(words::add);
+            assertEquals(2, words.size());
+            assertTrue(words.get(1).getStart() > 20);
+            Iterator<SpeechToTextSegment> segments = response.getSegmentIterator();
+            assertEquals(0, segments.next().getIndex());
+            assertEquals(1, segments.next().getIndex());
+            assertFalse(segments.hasNext());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /*
+     * Words are evenly spread between start and end
+     */
+    protected static class FakeResponse implements SpeechToTextResponse {
+
+        protected final String text;
+
+        protected final double confidence;
+
+        protected final double start;
+
+        protected final double end;
+
+        public FakeResponse(String text, double confidence, double start, double end) {
+            this.text = text;
+            this.confidence = confidence;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public String getText() {
+            return text;
+        }
+
+        @Override
+        public double getConfidence() {
+            return confidence;
+        }
+
+        @Override
+        public JSONArray getWordTimeOffsets(boolean withSpeakerTag) throws JSONException {
+            JSONArray array = new JSONArray();
+            String[] words = text.split(" ");
+            double step = (end - start) / words.length;
+            for (int i = 0; i < words.length; i++) {
+                JSONObject word = new JSONObject();
+                word.put("word", words[i]);
+                word.put("start", start + i * step);
+                word.put("end", start + (i + 1) * step);
+                array.put(word);
+            }
+            return array;
+        }
+
+        @Override
+        public Object getNativeResponse() {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,163 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.labs.speechtotext.cache.SingleFlight;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.RuntimeFeature;
+
+@RunWith(FeaturesRunner.class)
+@Features(RuntimeFeature.class)
+public class TestSingleFlight {
+
+    protected static final int THREADS = 8;
+
+    /*
+     * Starts THREADS calls for the same key. The supplier is blocked until all the calls are started.
+     */
+    protected List<Future<Object>> runConcurrently(SingleFlight<String, Object> singleFlight, AtomicInteger calls,
+            RuntimeException error) throws InterruptedException {
+
+        CountDownLatch release = new CountDownLatch(1);
+        Object value = new Object();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<Object>> futures = new ArrayList<>();
+        try {
+            for (int i = 0; i < THREADS; i++) {
+                futures.add(executor.submit(() -> singleFlight.execute("key", () -> {
+                    calls.incrementAndGet();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    if (error != null) {
+                        throw error;
+                    }
+                    return value;
+                })));
+            }
+            // Wait for the first call to be running and the others to wait for it
+            long deadline = System.currentTimeMillis() + 5000;
+            while (calls.get() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(200);
+            release.countDown();
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+        return futures;
+    }
+
+    @Test
+    public void testConcurrentCallsAreCoalesced() throws Exception {
+
+        SingleFlight<String, Object> singleFlight = new SingleFlight<>();
+        AtomicInteger calls = new AtomicInteger();
+
+        List<Future<Object>> futures = runConcurrently(singleFlight, calls, null);
+
+        assertEquals(1, calls.get());
+        Object first = futures.get(0).get();
+        for (Future<Object> future : futures) {
+            assertSame(first, future.get());
+        }
+        assertEquals(0, singleFlight.getInFlightCount());
+    }
+
+    @Test
+    public void testFailureIsPropagatedToAllCallers() throws Exception {
+
+        SingleFlight<String, Object> singleFlight = new SingleFlight<>();
+        AtomicInteger calls = new AtomicInteger();
+        NuxeoException error = new NuxeoException("Provider failed");
+
+        List<Future<Object>> futures = runConcurrently(singleFlight, calls, error);
+
+        assertEquals(1, calls.get());
+        for (Future<Object> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                assertSame(error, e.getCause());
+                continue;
+            }
+            throw new AssertionError("The error was not propagated");
+        }
+
+        // Not remembered: The next call runs again
+        assertEquals("ok", singleFlight.execute("key", () -> "ok"));
+    }
+
+    @Test
+    public void testCancelledCallerDoesNotFailTheOthers() throws Exception {
+
+        SingleFlight<String, Object> singleFlight = new SingleFlight<>();
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch firstStarted = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            // The first call waits until interrupted
+            Future<Object> first = executor.submit(() -> singleFlight.execute("key", () -> {
+                calls.incrementAndGet();
+                firstStarted.countDown();
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new NuxeoException("Interrupted", e);
+                }
+                return "first";
+            }));
+            assertTrue(firstStarted.await(5, TimeUnit.SECONDS));
+            Future<Object> second = executor.submit(() -> singleFlight.execute("key", () -> {
+                calls.incrementAndGet();
+                return "second";
+            }));
+            Thread.sleep(200);
+            first.cancel(true);
+
+            assertEquals("second", second.get(5, TimeUnit.SECONDS));
+            assertEquals(2, calls.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
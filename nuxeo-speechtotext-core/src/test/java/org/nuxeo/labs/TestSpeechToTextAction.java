@@ -0,0 +1,163 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.nuxeo.ecm.core.bulk.message.BulkStatus.State.COMPLETED;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.time.Duration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.automation.test.AutomationFeature;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.bulk.BulkService;
+import org.nuxeo.ecm.core.bulk.CoreBulkFeature;
+import org.nuxeo.ecm.core.bulk.message.BulkCommand;
+import org.nuxeo.ecm.core.bulk.message.BulkStatus;
+import org.nuxeo.ecm.core.test.annotations.Granularity;
+import org.nuxeo.ecm.core.test.annotations.RepositoryConfig;
+import org.nuxeo.labs.speechtotext.bulk.SpeechToTextAction;
+import org.nuxeo.labs.speechtotext.google.GoogleSpeechToTextProvider;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.test.runner.Deploy;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.TransactionalFeature;
+
+import com.google.inject.Inject;
+
+/**
+ * The bulk action, with the provider calling the mock server.
+ */
+@RunWith(FeaturesRunner.class)
+@Features({ AutomationFeature.class, CoreBulkFeature.class })
+@RepositoryConfig(cleanup = Granularity.METHOD)
+@Deploy("org.nuxeo.labs.nuxeo-speechtotext-core")
+public class TestSpeechToTextAction {
+
+    @Inject
+    protected CoreSession session;
+
+    @Inject
+    protected BulkService bulkService;
+
+    @Inject
+    protected TransactionalFeature txFeature;
+
+    protected MockSpeechServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockSpeechServer().start();
+        Framework.getProperties().setProperty(GoogleSpeechToTextProvider.ENDPOINT_PARAM, server.getEndpoint());
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+        Framework.getProperties().remove(GoogleSpeechToTextProvider.ENDPOINT_PARAM);
+    }
+
+    /*
+     * 16 kHz mono, a different audio for each seed (no cache hit)
+     */
+    protected Blob buildWav(int seed) throws IOException {
+        Blob blob = TestAudio.sineWav(16000, 1, 1, 200 + seed);
+        blob.setFilename("audio" + seed + ".wav");
+        return blob;
+    }
+
+    protected void createDocuments(int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            DocumentModel doc = session.createDocumentModel("/", "audio" + i, "File");
+            doc.setPropertyValue("file:content", (Serializable) buildWav(i));
+            session.createDocument(doc);
+        }
+        txFeature.nextTransaction();
+    }
+
+    protected BulkStatus runAction(String transcriptXpath, String maxSegmentSeconds) throws InterruptedException {
+
+        BulkCommand.Builder builder = new BulkCommand.Builder(SpeechToTextAction.ACTION_NAME,
+                "SELECT * FROM File WHERE ecm:isVersion = 0", session.getPrincipal().getName()).param(
+                        SpeechToTextAction.PARAM_TRANSCRIPT_XPATH, transcriptXpath);
+        if (maxSegmentSeconds != null) {
+            builder.param(SpeechToTextAction.PARAM_MAX_SEGMENT_SECONDS, maxSegmentSeconds);
+        }
+        String commandId = bulkService.submit(builder.build());
+        assertTrue(bulkService.await(commandId, Duration.ofSeconds(60)));
+        txFeature.nextTransaction();
+        return bulkService.getStatus(commandId);
+    }
+
+    @Test
+    public void testErrorsAreCountedInTheStatus() throws Exception {
+
+        createDocuments(4);
+
+        // Not retried: one of the documents fails
+        server.failNext(400, 1);
+
+        BulkStatus status = runAction("dc:description", null);
+        assertEquals(COMPLETED, status.getState());
+        assertEquals(4, status.getProcessed());
+        assertEquals(1, status.getErrorCount());
+        assertTrue(status.getErrorMessage(), status.getErrorMessage().startsWith("Error transcribing document"));
+
+        long transcribed = session.query("SELECT * FROM File WHERE dc:description IS NOT NULL").size();
+        assertEquals(3, transcribed);
+        assertEquals(4, server.getRequestCount(MockSpeechServer.RECOGNIZE));
+    }
+
+    @Test
+    public void testSaveErrorsAreCountedInTheStatus() throws Exception {
+
+        createDocuments(3);
+
+        // Transcribed, but cannot be saved
+        BulkStatus status = runAction("dc:noSuchProperty", null);
+        assertEquals(COMPLETED, status.getState());
+        assertEquals(3, status.getProcessed());
+        assertEquals(3, status.getErrorCount());
+        assertEquals(3, server.getRequestCount(MockSpeechServer.RECOGNIZE));
+    }
+
+    @Test
+    public void testInvalidParameters() throws Exception {
+
+        createDocuments(3);
+
+        BulkStatus status = runAction("dc:description", "ten");
+        assertEquals(COMPLETED, status.getState());
+        assertEquals(3, status.getProcessed());
+        assertEquals(3, status.getErrorCount());
+        assertTrue(status.getErrorMessage(), status.getErrorMessage().contains("maxSegmentSeconds"));
+        // Checked before calling the provider
+        assertEquals(0, server.getRequestCount(MockSpeechServer.RECOGNIZE));
+    }
+
+}
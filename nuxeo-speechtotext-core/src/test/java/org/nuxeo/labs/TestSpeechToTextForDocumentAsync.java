@@ -0,0 +1,142 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.automation.AutomationService;
+import org.nuxeo.ecm.automation.OperationContext;
+import org.nuxeo.ecm.automation.OperationException;
+import org.nuxeo.ecm.automation.test.AutomationFeature;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.test.annotations.Granularity;
+import org.nuxeo.ecm.core.test.annotations.RepositoryConfig;
+import org.nuxeo.ecm.core.work.api.WorkManager;
+import org.nuxeo.labs.speechtotext.google.GoogleSpeechToTextProvider;
+import org.nuxeo.labs.speechtotext.operations.SpeechToTextForDocumentAsync;
+import org.nuxeo.labs.speechtotext.work.SpeechToTextWork;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.test.runner.Deploy;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.TransactionalFeature;
+
+import com.google.inject.Inject;
+
+/**
+ * The async operation, through the WorkManager, with the provider calling the mock server.
+ */
+@RunWith(FeaturesRunner.class)
+@Features(AutomationFeature.class)
+@RepositoryConfig(cleanup = Granularity.METHOD)
+@Deploy("org.nuxeo.labs.nuxeo-speechtotext-core")
+public class TestSpeechToTextForDocumentAsync {
+
+    @Inject
+    protected CoreSession session;
+
+    @Inject
+    protected AutomationService automationService;
+
+    @Inject
+    protected WorkManager workManager;
+
+    @Inject
+    protected TransactionalFeature txFeature;
+
+    protected MockSpeechServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockSpeechServer().start().setWordCount(5);
+        Framework.getProperties().setProperty(GoogleSpeechToTextProvider.ENDPOINT_PARAM, server.getEndpoint());
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+        Framework.getProperties().remove(GoogleSpeechToTextProvider.ENDPOINT_PARAM);
+    }
+
+    /*
+     * 1s, 16 kHz mono. A different frequency in each test: The transcripts are cached by the service
+     */
+    protected DocumentModel createDocument(int frequency) throws IOException {
+        DocumentModel doc = session.createDocumentModel("/", "audio", "File");
+        doc.setPropertyValue("file:content", (Serializable) TestAudio.sineWav(16000, 1, 1, frequency));
+        doc = session.createDocument(doc);
+        txFeature.nextTransaction();
+        return doc;
+    }
+
+    protected void schedule(DocumentModel doc) throws OperationException {
+        OperationContext ctx = new OperationContext(session);
+        ctx.setInput(doc);
+        Map<String, Object> params = new HashMap<>();
+        params.put("transcriptXpath", "dc:description");
+        automationService.run(ctx, SpeechToTextForDocumentAsync.ID, params);
+    }
+
+    /*
+     * The works are scheduled after the commit
+     */
+    protected void awaitWorks() throws InterruptedException {
+        txFeature.nextTransaction();
+        assertTrue(workManager.awaitCompletion(SpeechToTextWork.CATEGORY, 60, TimeUnit.SECONDS));
+        txFeature.nextTransaction();
+    }
+
+    @Test
+    public void testTranscriptIsSaved() throws Exception {
+
+        DocumentModel doc = createDocument(440);
+        schedule(doc);
+        awaitWorks();
+
+        String transcript = (String) session.getDocument(doc.getRef()).getPropertyValue("dc:description");
+        assertEquals(5, transcript.split(" ").length);
+        assertEquals(1, server.getRequestCount(MockSpeechServer.RECOGNIZE));
+    }
+
+    @Test
+    public void testScheduledTwiceIsTranscribedOnce() throws Exception {
+
+        DocumentModel doc = createDocument(880);
+        schedule(doc);
+        schedule(doc);
+        awaitWorks();
+
+        assertEquals(1, server.getRequestCount(MockSpeechServer.RECOGNIZE));
+        assertEquals(5, ((String) session.getDocument(doc.getRef()).getPropertyValue("dc:description")).split(
+                " ").length);
+    }
+
+}
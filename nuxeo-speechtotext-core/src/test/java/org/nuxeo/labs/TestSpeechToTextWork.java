@@ -0,0 +1,65 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.labs.speechtotext.work.SpeechToTextWork;
+import org.nuxeo.labs.speechtotext.work.TranscriptSaveWork;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.RuntimeFeature;
+
+@RunWith(FeaturesRunner.class)
+@Features(RuntimeFeature.class)
+public class TestSpeechToTextWork {
+
+    @Test
+    public void testSameDocumentIsCoalesced() {
+
+        SpeechToTextWork first = new SpeechToTextWork("default", "1234", "file:content", "dc:description", "en-US");
+        SpeechToTextWork second = new SpeechToTextWork("default", "1234", "file:content", "dc:description", "fr-FR");
+        SpeechToTextWork other = new SpeechToTextWork("default", "1234", "file:content", "dc:title", "en-US");
+
+        assertTrue(first.isCoalescing());
+        assertEquals(SpeechToTextWork.CATEGORY, first.getCategory());
+        assertEquals(first.getId(), second.getId());
+        assertNotEquals(first.getId(), other.getId());
+    }
+
+    @Test
+    public void testOnlyTheLastTranscriptIsSaved() {
+
+        TranscriptSaveWork first = new TranscriptSaveWork("default", "1234", "dc:description", "hello", "en-US");
+        TranscriptSaveWork second = new TranscriptSaveWork("default", "1234", "dc:description", "hello world", "en-US");
+        TranscriptSaveWork other = new TranscriptSaveWork("default", "1234", "dc:title", "hello", "en-US");
+
+        assertTrue(first.isCoalescing());
+        assertEquals(TranscriptSaveWork.CATEGORY, first.getCategory());
+        assertEquals(first.getId(), second.getId());
+        assertNotEquals(first.getId(), other.getId());
+        assertNotEquals(first.getId(), new SpeechToTextWork("default", "1234", "file:content", "dc:description",
+                "en-US").getId());
+    }
+
+}
@@ -0,0 +1,225 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.labs.speechtotext.throttle.AdaptiveConcurrencyLimiter;
+import org.nuxeo.labs.speechtotext.throttle.CallThrottle;
+import org.nuxeo.labs.speechtotext.throttle.InMemoryTokenBucketStore;
+import org.nuxeo.labs.speechtotext.throttle.KeyValueTokenBucketStore;
+import org.nuxeo.labs.speechtotext.throttle.TokenBucket;
+import org.nuxeo.labs.speechtotext.throttle.TokenBucketStore;
+import org.nuxeo.runtime.kv.MemKeyValueStore;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.RuntimeFeature;
+
+@RunWith(FeaturesRunner.class)
+@Features(RuntimeFeature.class)
+public class TestThrottle {
+
+    protected final AtomicLong now = new AtomicLong(1_000_000);
+
+    @Test
+    public void testTokenBucket() {
+
+        TokenBucket bucket = new TokenBucket(new InMemoryTokenBucketStore(), "test", 60, now::get);
+
+        for (int i = 0; i < 60; i++) {
+            assertEquals(0, bucket.tryAcquire(1));
+        }
+        // 1 token per second
+        assertEquals(1000, bucket.tryAcquire(1));
+
+        now.addAndGet(500);
+        assertEquals(500, bucket.tryAcquire(1));
+        now.addAndGet(500);
+        assertEquals(0, bucket.tryAcquire(1));
+
+        // Never more than the capacity
+        now.addAndGet(3_600_000);
+        assertEquals(60, bucket.getAvailable(), 0.0001);
+    }
+
+    @Test
+    public void testBucketIsSharedThroughTheStore() {
+
+        TokenBucketStore store = new InMemoryTokenBucketStore();
+        TokenBucket node1 = new TokenBucket(store, "test", 10, now::get);
+        TokenBucket node2 = new TokenBucket(store, "test", 10, now::get);
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, node1.tryAcquire(1));
+            assertEquals(0, node2.tryAcquire(1));
+        }
+        assertTrue(node1.tryAcquire(1) > 0);
+        assertTrue(node2.tryAcquire(1) > 0);
+    }
+
+    @Test
+    public void testMoreThanCapacityGoesInDebt() {
+
+        TokenBucket bucket = new TokenBucket(new InMemoryTokenBucketStore(), "test", 60, now::get);
+
+        // 90s of audio with a quota of 60s per minute
+        assertEquals(0, bucket.tryAcquire(90));
+        assertEquals(-30, bucket.getAvailable(), 0.0001);
+        assertEquals(31000, bucket.tryAcquire(1));
+    }
+
+    /*
+     * Drops the values when their TTL expires, on the clock of the test
+     */
+    protected class ExpiringKeyValueStore extends MemKeyValueStore {
+
+        protected final Map<String, Long> expirations = new ConcurrentHashMap<>();
+
+        @Override
+        public String getString(String key) {
+            Long expiration = expirations.get(key);
+            if (expiration != null && now.get() >= expiration) {
+                put(key, (String) null);
+                expirations.remove(key);
+            }
+            return super.getString(key);
+        }
+
+        @Override
+        public boolean compareAndSet(String key, String expected, String value, long ttl) {
+            if (!super.compareAndSet(key, expected, value, ttl)) {
+                return false;
+            }
+            expirations.put(key, now.get() + ttl * 1000);
+            return true;
+        }
+    }
+
+    @Test
+    public void testDebtOutlivesTheTTL() {
+
+        TokenBucket bucket = new TokenBucket(new KeyValueTokenBucketStore(new ExpiringKeyValueStore()), "test", 60,
+                now::get);
+
+        // 1h of audio with a quota of 60s per minute: 1h to pay back the debt
+        assertEquals(0, bucket.tryAcquire(3600));
+        now.addAndGet(600_000);
+        // Still in debt, well after the 2mn of the previous TTL
+        assertEquals(-2940, bucket.getAvailable(), 0.0001);
+        assertTrue(bucket.tryAcquire(1) > 0);
+
+        // Full again, then expired
+        now.addAndGet(3_000_000);
+        assertEquals(60, bucket.getAvailable(), 0.0001);
+        now.addAndGet(KeyValueTokenBucketStore.TTL_MARGIN_SECONDS * 1000);
+        assertEquals(60, bucket.getAvailable(), 0.0001);
+    }
+
+    @Test
+    public void testAcquireTimeout() {
+
+        TokenBucket bucket = new TokenBucket(new InMemoryTokenBucketStore(), "test", 1);
+        bucket.acquire(1, 0);
+        try {
+            bucket.acquire(1, 10);
+            fail("Should have timed out");
+        } catch (NuxeoException e) {
+            assertEquals(429, e.getStatusCode());
+        }
+    }
+
+    @Test
+    public void testAIMD() throws Exception {
+
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 8, 0.5, 3, now::get);
+        assertEquals(8, limiter.getLimit());
+
+        for (int i = 0; i < 8; i++) {
+            assertTrue(limiter.acquire(0));
+        }
+        assertFalse(limiter.acquire(0));
+
+        // All the calls in flight are refused together: Only one decrease
+        for (int i = 0; i < 8; i++) {
+            limiter.onOverload();
+        }
+        assertEquals(4, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+
+        now.addAndGet(2000);
+        assertTrue(limiter.acquire(0));
+        limiter.onOverload();
+        assertEquals(2, limiter.getLimit());
+
+        // Ramps up, about one per limit calls
+        for (int i = 0; i < 10; i++) {
+            assertTrue(limiter.acquire(0));
+            limiter.onSuccess(100);
+        }
+        assertTrue(limiter.getLimit() >= 4 && limiter.getLimit() < 8);
+
+        // Latency spike
+        now.addAndGet(2000);
+        int before = limiter.getLimit();
+        assertTrue(limiter.acquire(0));
+        limiter.onSuccess(1000);
+        assertTrue(limiter.getLimit() < before);
+    }
+
+    @Test
+    public void testThrottledCall() throws Exception {
+
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 4, 0.5, 0, now::get);
+        CallThrottle throttle = new CallThrottle(null, null, limiter, 0);
+
+        assertEquals("ok", throttle.call(0, () -> "ok"));
+        try {
+            throttle.call(0, () -> {
+                throw new NuxeoException("Quota exceeded", 429);
+            });
+            fail("Should have failed");
+        } catch (NuxeoException e) {
+            assertTrue(CallThrottle.isOverload(e));
+        }
+        assertEquals(2, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+
+        try {
+            throttle.call(0, () -> {
+                throw new NuxeoException("Other error", 500);
+            });
+            fail("Should have failed");
+        } catch (NuxeoException e) {
+            assertFalse(CallThrottle.isOverload(e));
+        }
+        assertEquals(2, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+}
@@ -0,0 +1,299 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.lang3.StringUtils;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.StringBlob;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextOptions;
+import org.nuxeo.labs.speechtotext.api.SpeechToTextResponse;
+import org.nuxeo.labs.speechtotext.cache.TranscriptCache;
+import org.nuxeo.labs.speechtotext.cache.TranscriptCacheKey;
+import org.nuxeo.labs.speechtotext.google.GoogleRESTSpeechToTextResponse;
+import org.nuxeo.labs.speechtotext.impl.SpeechToTextImpl;
+import org.nuxeo.labs.speechtotext.local.LocalSpeechToTextResponse;
+import org.nuxeo.labs.speechtotext.router.ProviderDescriptor;
+import org.nuxeo.labs.speechtotext.router.ProviderRouter;
+import org.nuxeo.labs.speechtotext.router.RoutedProvider;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.kv.MemKeyValueStore;
+import org.nuxeo.runtime.test.runner.RuntimeFeature;
+
+@RunWith(FeaturesRunner.class)
+@Features(RuntimeFeature.class)
+public class TestTranscriptCache {
+
+    protected static final String RESPONSE = "{\"results\": [{\"alternatives\": [{\"transcript\": \"Hello\", \"confidence\": 0.9}]}]}";
+
+    @Test
+    public void testKeyIgnoresMoreOptionsOrder() throws Exception {
+
+        Blob blob = new StringBlob("not really an audio");
+        SpeechToTextOptions options = SpeechToTextOptions.buildDefaultOptions();
+
+        JSONObject more1 = new JSONObject("{\"model\": \"video\", \"metadata\": {\"a\": 1, \"b\": [1, 2]}}");
+        JSONObject more2 = new JSONObject("{\"metadata\": {\"b\": [1, 2], \"a\": 1}, \"model\": \"video\"}");
+
+        String key1 = TranscriptCacheKey.compute(blob, options, null, -1, "en-US", more1);
+        String key2 = TranscriptCacheKey.compute(blob, options, null, -1, "en-US", more2);
+        assertEquals(key1, key2);
+
+        // Anything that changes the result changes the key
+        assertNotEquals(key1, TranscriptCacheKey.compute(blob, options, null, -1, "fr-FR", more1));
+        assertNotEquals(key1, TranscriptCacheKey.compute(blob, options, "LINEAR16", 16000, "en-US", more1));
+        assertNotEquals(key1, TranscriptCacheKey.compute(new StringBlob("other audio"), options, null, -1, "en-US",
+                more1));
+        SpeechToTextOptions otherOptions = SpeechToTextOptions.buildDefaultOptions();
+        otherOptions.setWithPunctuation(!options.isWithPunctuation());
+        assertNotEquals(key1, TranscriptCacheKey.compute(blob, otherOptions, null, -1, "en-US", more1));
+    }
+
+    @Test
+    public void testKeyUsesBlobDigest() throws Exception {
+
+        Blob blob1 = new StringBlob("audio 1");
+        Blob blob2 = new StringBlob("audio 2");
+        blob1.setDigest("0123456789abcdef");
+        blob2.setDigest("0123456789abcdef");
+
+        assertEquals(TranscriptCacheKey.compute(blob1, null, null, -1, "en-US", null),
+                TranscriptCacheKey.compute(blob2, null, null, -1, "en-US", null));
+    }
+
+    @Test
+    public void testLRUEviction() throws Exception {
+
+        // Room for 2 responses
+        TranscriptCache cache = new TranscriptCache(2 * weigh(RESPONSE), null, 0);
+        SpeechToTextResponse response1 = new GoogleRESTSpeechToTextResponse(RESPONSE);
+        SpeechToTextResponse response2 = new GoogleRESTSpeechToTextResponse(RESPONSE);
+        SpeechToTextResponse response3 = new GoogleRESTSpeechToTextResponse(RESPONSE);
+
+        cache.put("k1", response1);
+        cache.put("k2", response2);
+        // k1 is now the most recently used
+        assertSame(response1, cache.get("k1"));
+        cache.put("k3", response3);
+
+        assertEquals(2, cache.size());
+        assertNull(cache.get("k2"));
+        assertSame(response1, cache.get("k1"));
+        assertSame(response3, cache.get("k3"));
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    protected static long weigh(String json) throws Exception {
+        TranscriptCache cache = new TranscriptCache(Integer.MAX_VALUE, null, 0);
+        cache.put("key", new GoogleRESTSpeechToTextResponse(json));
+        return cache.getMemorySize();
+    }
+
+    @Test
+    public void testMemoryIsBoundedBySize() throws Exception {
+
+        String longResponse = "{\"results\": [{\"alternatives\": [{\"transcript\": \""
+                + StringUtils.repeat("Hello ", 1000) + "\", \"confidence\": 0.9}]}]}";
+        TranscriptCache cache = new TranscriptCache(weigh(longResponse) + weigh(RESPONSE), null, 0);
+
+        for (int i = 0; i < 10; i++) {
+            cache.put("short" + i, new GoogleRESTSpeechToTextResponse(RESPONSE));
+        }
+        assertEquals(10, cache.size());
+
+        // Evicts the least recently used short responses, to make room for the long one
+        cache.put("long", new GoogleRESTSpeechToTextResponse(longResponse));
+        assertTrue(cache.getMemorySize() <= weigh(longResponse) + weigh(RESPONSE));
+        assertEquals(2, cache.size());
+        assertEquals("Hello", cache.get("short9").getText());
+        assertNull(cache.get("short8"));
+
+        // Larger than the whole tier: not held in memory
+        TranscriptCache small = new TranscriptCache(weigh(RESPONSE), null, 0);
+        small.put("long", new GoogleRESTSpeechToTextResponse(longResponse));
+        assertEquals(0, small.size());
+        assertEquals(0, small.getMemorySize());
+    }
+
+    @Test
+    public void testMemoryTierDisabled() throws Exception {
+
+        // Only the KeyValueStore is used
+        MemKeyValueStore store = new MemKeyValueStore();
+        TranscriptCache cache = new TranscriptCache(0, store, 60);
+        cache.put("google", new GoogleRESTSpeechToTextResponse(RESPONSE));
+        assertEquals(0, cache.size());
+        assertEquals("Hello", cache.get("google").getText());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testKeyValueStoreKeepsTheResponseType() throws Exception {
+
+        MemKeyValueStore store = new MemKeyValueStore();
+        TranscriptCache cache = new TranscriptCache(1024 * 1024, store, 60);
+
+        cache.put("google", new GoogleRESTSpeechToTextResponse(RESPONSE));
+        JSONObject cliOutput = new JSONObject("{\"transcription\":[{\"offsets\":{\"from\":0,\"to\":480},"
+                + "\"text\":\" Hello\",\"tokens\":[{\"text\":\" Hello\",\"p\":0.9}]}]}");
+        cache.put("cli", LocalSpeechToTextResponse.fromCommandLineOutput(cliOutput));
+        cache.put("server", LocalSpeechToTextResponse.fromServerOutput(FakeWhisperServer.buildResponse(true)));
+        // Not stored in the KeyValueStore
+        cache.put("other", new TestSegmentation.FakeResponse("Hello", 1, 0, 1));
+
+        // Another node, or after a restart: read from the KeyValueStore
+        TranscriptCache other = new TranscriptCache(1024 * 1024, store, 60);
+
+        SpeechToTextResponse response = other.get("google");
+        assertTrue(response instanceof GoogleRESTSpeechToTextResponse);
+        assertEquals("Hello", response.getText());
+        assertEquals(0.9, response.getConfidence(), 0.0001);
+
+        response = other.get("cli");
+        assertTrue(response instanceof LocalSpeechToTextResponse);
+        assertEquals("Hello", response.getText());
+        assertEquals(0.9, response.getConfidence(), 0.0001);
+        assertEquals(0.48, response.getWordIterator(false).next().getEnd(), 0.0001);
+
+        response = other.get("server");
+        assertTrue(response instanceof LocalSpeechToTextResponse);
+        assertEquals(FakeWhisperServer.TRANSCRIPT, response.getText());
+        assertEquals(2, response.getWordTimeOffsets(false).length());
+
+        assertNull(other.get("other"));
+
+        // Entries stored before the type was added are Google responses
+        store.put("speechtotext:untyped", RESPONSE);
+        assertEquals("Hello", other.get("untyped").getText());
+    }
+
+    /*
+     * The service, without the runtime, with the cache to test
+     */
+    protected static class CachingSpeechToText extends SpeechToTextImpl {
+
+        public CachingSpeechToText(TranscriptCache cache) {
+            super();
+            TestProviderRouter.FakeProvider provider = new TestProviderRouter.FakeProvider();
+            provider.initialize("fake", null);
+            router = new ProviderRouter(
+                    Arrays.asList(new RoutedProvider(new ProviderDescriptor("fake", provider.getClass()), provider)),
+                    3, 30);
+            this.cache = cache;
+        }
+
+        protected TestProviderRouter.FakeProvider getFakeProvider() {
+            return (TestProviderRouter.FakeProvider) router.getProviders().get(0).getProvider();
+        }
+    }
+
+    @Test
+    public void testCallsAreCoalescedWhenCacheIsDisabled() throws Exception {
+
+        CachingSpeechToText service = new CachingSpeechToText(null);
+        TestProviderRouter.FakeProvider provider = service.getFakeProvider();
+        CountDownLatch blocker = new CountDownLatch(1);
+        provider.blocker = blocker;
+
+        // Stored in the repository: the digest is known without reading the blob
+        Blob blob = new StringBlob("audio");
+        blob.setDigest("0123456789abcdef");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<SpeechToTextResponse>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(executor.submit(() -> service.run(null, blob, "en-US", null)));
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (provider.calls.get() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(200);
+            blocker.countDown();
+            for (Future<SpeechToTextResponse> future : futures) {
+                assertEquals("fake", future.get(10, TimeUnit.SECONDS).getText());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, provider.calls.get());
+
+        // Not cached
+        service.run(null, blob, "en-US", null);
+        assertEquals(2, provider.calls.get());
+    }
+
+    @Test
+    public void testKeyIsNotComputedWhenCacheIsDisabled() throws Exception {
+
+        // The router reads the head of the audio, the digest reads all of it
+        int size = 1024 * 1024;
+        AtomicLong read = new AtomicLong();
+        Blob blob = new StringBlob(StringUtils.repeat('a', size)) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public InputStream getStream() {
+                return new CountingInputStream(super.getStream()) {
+                    @Override
+                    protected synchronized void afterRead(int n) {
+                        super.afterRead(n);
+                        if (n > 0) {
+                            read.addAndGet(n);
+                        }
+                    }
+                };
+            }
+        };
+
+        assertEquals("fake", new CachingSpeechToText(null).run(null, blob, "en-US", null).getText());
+        assertTrue(read.get() < size);
+
+        read.set(0);
+        CachingSpeechToText service = new CachingSpeechToText(new TranscriptCache(1024 * 1024, null, 0));
+        service.run(null, blob, "en-US", null);
+        assertTrue(read.get() >= size);
+        service.run(null, blob, "en-US", null);
+        assertEquals(1, service.getCache().getHits());
+    }
+
+}
@@ -0,0 +1,238 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.labs.speechtotext.api.WordTimings;
+import org.nuxeo.labs.speechtotext.index.TranscriptHit;
+import org.nuxeo.labs.speechtotext.index.TranscriptIndex;
+import org.nuxeo.labs.speechtotext.index.TranscriptTokenizer;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.RuntimeFeature;
+
+@RunWith(FeaturesRunner.class)
+@Features(RuntimeFeature.class)
+public class TestTranscriptIndex {
+
+    protected Path directory;
+
+    protected TranscriptIndex index;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("transcript-index");
+        index = open(2);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        index.close();
+        FileUtils.deleteQuietly(directory.toFile());
+    }
+
+    protected TranscriptIndex open(int maxSegments) throws IOException {
+        TranscriptIndex result = new TranscriptIndex(directory, 100000, maxSegments, 64 * 1024 * 1024);
+        result.open();
+        return result;
+    }
+
+    /*
+     * One word per second, starting at startSeconds
+     */
+    protected static WordTimings timings(double startSeconds, String text) {
+        WordTimings.Builder builder = new WordTimings.Builder();
+        double time = startSeconds;
+        for (String word : text.split(" ")) {
+            builder.add(word, time, time + 0.8, 0.9, 0);
+            time += 1;
+        }
+        return builder.build();
+    }
+
+    protected List<String> search(String query, boolean phrase) {
+        return index.search(query, phrase, 100, null)
+                    .stream()
+                    .map(TranscriptHit::getDocKey)
+                    .sorted()
+                    .collect(Collectors.toList());
+    }
+
+    @Test
+    public void testTokenizer() {
+        assertEquals(List.of("hello", "eleve", "its", "42"),
+                TranscriptTokenizer.tokenize("Hello, Élève! It's 42."));
+        assertTrue(TranscriptTokenizer.tokenize(" ... ").isEmpty());
+    }
+
+    @Test
+    public void testPhraseAndTimes() throws IOException {
+
+        index.index("test:doc1", timings(10, "the quick brown fox jumps over the lazy dog"));
+        index.index("test:doc2", timings(0, "a brown dog and a quick fox"));
+
+        assertEquals(List.of("test:doc1"), search("quick brown fox", true));
+        assertEquals(List.of("test:doc1", "test:doc2"), search("quick brown fox", false));
+        assertEquals(List.of("test:doc1", "test:doc2"), search("Fox", true));
+
+        List<TranscriptHit> hits = index.search("the", true, 10, null);
+        assertEquals(1, hits.size());
+        assertArrayEquals(new double[] { 10, 16 }, hits.get(0).getTimes(), 0.001);
+        assertEquals("test", hits.get(0).getRepositoryName());
+        assertEquals("doc1", hits.get(0).getDocId());
+
+        // Longer than the n-grams
+        assertEquals(List.of("test:doc1"), search("brown fox jumps over the lazy", true));
+        assertEquals(List.of(), search("brown fox jumps over the dog", true));
+        hits = index.search("fox jumps over the lazy dog", true, 10, null);
+        assertArrayEquals(new double[] { 13 }, hits.get(0).getTimes(), 0.001);
+
+        // Filter
+        assertEquals(List.of("test:doc1"),
+                index.search("fox", true, 10, key -> key.endsWith("1"))
+                     .stream()
+                     .map(TranscriptHit::getDocKey)
+                     .collect(Collectors.toList()));
+    }
+
+    @Test
+    public void testScoring() throws IOException {
+
+        index.index("test:few", timings(0, "some words about nuxeo and many other words to make it longer"));
+        index.index("test:many", timings(0, "nuxeo nuxeo nuxeo"));
+        index.index("test:none", timings(0, "nothing to see here"));
+
+        List<TranscriptHit> hits = index.search("nuxeo", true, 10, null);
+        assertEquals(2, hits.size());
+        assertEquals("test:many", hits.get(0).getDocKey());
+        assertTrue(hits.get(0).getScore() > hits.get(1).getScore());
+
+        assertEquals(1, index.search("nuxeo", true, 1, null).size());
+    }
+
+    @Test
+    public void testReindexDeleteAndReopen() throws IOException {
+
+        index.index("test:doc1", timings(0, "hello world"));
+        index.index("test:doc2", timings(0, "hello there"));
+        index.flush();
+        assertEquals(1, index.getSegmentCount());
+
+        // Update in the buffer over a flushed version
+        index.index("test:doc1", timings(0, "goodbye world"));
+        assertEquals(List.of("test:doc2"), search("hello", true));
+        assertEquals(List.of("test:doc1"), search("goodbye", true));
+        index.delete("test:doc2");
+        assertEquals(List.of(), search("hello", true));
+        assertEquals(1, index.getDocCount());
+        index.flush();
+
+        index.close();
+        index = open(2);
+        assertEquals(1, index.getDocCount());
+        assertEquals(List.of("test:doc1"), search("goodbye world", true));
+        assertEquals(List.of(), search("hello", false));
+    }
+
+    @Test
+    public void testJournalIsReplayedAfterACrash() throws IOException {
+
+        index.index("test:doc1", timings(0, "hello world"));
+        index.flush();
+        index.index("test:doc2", timings(0, "hello there"));
+        index.delete("test:doc1");
+
+        // The directory as a crash would leave it, with a record truncated at the end of the journal
+        Path crashed = Files.createTempDirectory("transcript-index");
+        try {
+            FileUtils.copyDirectory(directory.toFile(), crashed.toFile());
+            List<Path> journals = journals(crashed);
+            assertEquals(1, journals.size());
+            Files.write(journals.get(0), new byte[] { 0, 0, 1, 0, 42 }, StandardOpenOption.APPEND);
+
+            try (TranscriptIndex reopened = new TranscriptIndex(crashed, 100000, 2, 64 * 1024 * 1024)) {
+                reopened.open();
+                assertEquals(1, reopened.getDocCount());
+                assertEquals(List.of("test:doc2"), reopened.search("hello there", true, 10, null)
+                                                           .stream()
+                                                           .map(TranscriptHit::getDocKey)
+                                                           .collect(Collectors.toList()));
+                assertEquals(0, reopened.search("world", true, 10, null).size());
+
+                // Written as a segment by the next flush, then forgotten
+                reopened.flush();
+                assertEquals(1, journals(crashed).size());
+                assertFalse(journals(crashed).contains(journals.get(0)));
+            }
+            assertEquals(0, journals(crashed).size());
+        } finally {
+            FileUtils.deleteQuietly(crashed.toFile());
+        }
+    }
+
+    protected static List<Path> journals(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().startsWith("journal-"))
+                        .collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    public void testMerge() throws IOException {
+
+        for (int i = 0; i < 20; i++) {
+            index.index("test:doc" + i, timings(i, "document number " + i + " says hello"));
+            if (i % 3 == 0) {
+                index.delete("test:doc" + (i / 2));
+            }
+            index.flush();
+            assertTrue(index.getSegmentCount() <= 2);
+        }
+
+        // doc0, doc1, doc3, doc4, doc6, doc7, doc9 were deleted
+        List<String> found = search("says hello", true);
+        assertEquals(13, found.size());
+        assertEquals(13, index.getDocCount());
+        assertEquals(List.of("test:doc12"), search("number 12 says", true));
+        assertEquals(List.of(), search("number 9", true));
+
+        index.close();
+        index = open(1);
+        assertEquals(13, index.getDocCount());
+        assertEquals(List.of("test:doc19"), search("document number 19 says hello", true));
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.labs.speechtotext.audio.WavHeader;
+import org.nuxeo.labs.speechtotext.audio.WavNormalizer;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.RuntimeFeature;
+
+@RunWith(FeaturesRunner.class)
+@Features(RuntimeFeature.class)
+public class TestWavNormalizer {
+
+    protected double rms(Blob wav) throws IOException {
+
+        try (InputStream in = wav.getStream()) {
+            WavHeader.read(in);
+            double sum = 0;
+            long count = 0;
+            int low;
+            while ((low = in.read()) >= 0) {
+                int sample = (short) (low | in.read() << 8);
+                sum += (double) sample * sample;
+                count++;
+            }
+            return Math.sqrt(sum / count);
+        }
+    }
+
+    @Test
+    public void testDownmixAndResample() throws Exception {
+
+        Blob wav = TestAudio.sineWav(48000, 2, 2, 440);
+        WavNormalizer normalizer = new WavNormalizer();
+
+        WavHeader header = WavHeader.read(wav);
+        assertTrue(WavNormalizer.canNormalize(header));
+        assertTrue(normalizer.needsNormalization(header));
+
+        Blob normalized = normalizer.normalize(wav);
+        WavHeader normalizedHeader = WavHeader.read(normalized);
+        assertTrue(normalizedHeader.isPCM16Mono(16000));
+        assertEquals(2.0, normalizedHeader.getDurationSeconds(), 0.001);
+        assertFalse(normalizer.needsNormalization(normalizedHeader));
+        // 6 times smaller
+        assertEquals(wav.getLength() / 6.0, normalized.getLength(), 100);
+
+        // Same level: 16000 / sqrt(2)
+        assertEquals(rms(wav), rms(normalized), 200);
+    }
+
+    @Test
+    public void testFrequenciesAboveNyquistAreRemoved() throws Exception {
+
+        // 12KHz can't be represented at 16KHz, it must not come back as an 4KHz alias
+        Blob normalized = new WavNormalizer().normalize(TestAudio.sineWav(48000, 2, 1, 12000));
+
+        assertTrue(rms(normalized) < 200);
+    }
+
+    @Test
+    public void testLowRateIsNotUpsampled() throws Exception {
+
+        Blob wav = TestAudio.sineWav(8000, 2, 1, 440);
+        Blob normalized = new WavNormalizer().normalize(wav);
+
+        assertTrue(WavHeader.read(normalized).isPCM16Mono(8000));
+        assertEquals(1.0, WavHeader.read(normalized).getDurationSeconds(), 0.001);
+    }
+
+    @Test
+    public void testOnlyTheNormalizedWavIsDisposed() throws Exception {
+
+        Blob wav = TestAudio.sineWav(48000, 2, 1, 440);
+        Blob normalized = new WavNormalizer().normalize(wav);
+        assertTrue(WavNormalizer.isNormalized(normalized));
+        assertFalse(WavNormalizer.isNormalized(wav));
+
+        // Like the result of a converter, which can be in the conversion cache
+        Blob converted = Blobs.createBlobWithExtension(".wav");
+        WavNormalizer.dispose(converted);
+        assertTrue(converted.getFile().exists());
+
+        assertTrue(normalized.getFile().exists());
+        WavNormalizer.dispose(normalized);
+        assertFalse(normalized.getFile().exists());
+    }
+
+}
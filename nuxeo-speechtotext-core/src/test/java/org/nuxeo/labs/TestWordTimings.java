@@ -0,0 +1,80 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.json.JSONArray;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.labs.speechtotext.api.WordTimings;
+import org.nuxeo.labs.speechtotext.google.DurationParser;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.RuntimeFeature;
+
+@RunWith(FeaturesRunner.class)
+@Features(RuntimeFeature.class)
+public class TestWordTimings {
+
+    @Test
+    public void testDurationParser() {
+
+        assertEquals(3.5, DurationParser.parse("3.5s"), 0);
+        assertEquals(5.05, DurationParser.parse("5.050006765s"), 0);
+        assertEquals(12.0, DurationParser.parse("12s"), 0);
+        assertEquals(0.0, DurationParser.parse(""), 0);
+        assertEquals(0.0, DurationParser.parse((String) null), 0);
+
+        char[] chars = "xx1.234567sxx".toCharArray();
+        assertEquals(1.234, DurationParser.parse(chars, 2, 9), 0);
+    }
+
+    @Test
+    public void testWordAt() throws Exception {
+
+        WordTimings timings = new WordTimings.Builder().add("the", 0.5, 0.7, 0.9, 1)
+                                                       .add("cat", 0.7, 1.1, 0.8, 1)
+                                                       .add("the", 2.0, 2.2, 0.95, 2)
+                                                       .add("dog", 2.2, 2.6, -1, 2)
+                                                       .build();
+
+        assertEquals(4, timings.size());
+        // "the" is stored once
+        assertEquals(3, timings.getDictionary().length);
+        assertEquals(timings.getWordId(0), timings.getWordId(2));
+
+        assertEquals("the", timings.getWordAt(0.5));
+        assertEquals("cat", timings.getWordAt(0.7));
+        assertEquals("cat", timings.getWordAt(1.0));
+        assertNull(timings.getWordAt(1.5));
+        assertNull(timings.getWordAt(0.1));
+        assertEquals(3, timings.indexAt(2.5));
+        assertEquals(-1, timings.indexAt(10));
+        assertEquals(2, timings.getSpeakerTag(3));
+
+        JSONArray json = timings.toJSON(true);
+        assertEquals(4, json.length());
+        assertEquals("dog", json.getJSONObject(3).getString("word"));
+        assertEquals(2.2, json.getJSONObject(3).getDouble("start"), 0);
+        assertEquals(2, json.getJSONObject(3).getInt("speakerTag"));
+    }
+
+}
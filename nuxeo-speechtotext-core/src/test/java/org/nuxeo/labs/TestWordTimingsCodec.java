@@ -0,0 +1,158 @@
+/*
+ * (C) Copyright 2018 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.labs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.labs.speechtotext.api.WordTimings;
+import org.nuxeo.labs.speechtotext.api.WordTimingsCodec;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.RuntimeFeature;
+
+@RunWith(FeaturesRunner.class)
+@Features(RuntimeFeature.class)
+public class TestWordTimingsCodec {
+
+    protected static final String[] WORDS = { "the", "a", "speech", "to", "text", "transcript", "of", "recording",
+            "Nuxeo", "élève" };
+
+    /*
+     * About 2 hours of speech, with silences and a few long words
+     */
+    protected static WordTimings buildTimings(int count) {
+
+        Random random = new Random(42);
+        WordTimings.Builder builder = new WordTimings.Builder();
+        double time = 0.2;
+        for (int i = 0; i < count; i++) {
+            double duration = i % 500 == 0 ? 2.5 : 0.1 + random.nextInt(400) / 1000d;
+            builder.add(WORDS[random.nextInt(WORDS.length)], time, time + duration,
+                    i % 7 == 0 ? -1 : random.nextInt(1000) / 1000d, random.nextInt(3));
+            time += duration + (i % 100 == 0 ? 5 : random.nextInt(200) / 1000d);
+        }
+        return builder.build();
+    }
+
+    protected static void assertSameWord(WordTimings expected, int expectedIndex, WordTimings actual,
+            int actualIndex) {
+        assertEquals(expected.getWord(expectedIndex), actual.getWord(actualIndex));
+        assertEquals(expected.getStart(expectedIndex), actual.getStart(actualIndex), 0.0006);
+        assertEquals(expected.getEnd(expectedIndex), actual.getEnd(actualIndex), 0.0011);
+        assertEquals(expected.getSpeakerTag(expectedIndex), actual.getSpeakerTag(actualIndex));
+        if (expected.getConfidence(expectedIndex) < 0) {
+            assertEquals(-1, actual.getConfidence(actualIndex), 0);
+        } else {
+            assertEquals(expected.getConfidence(expectedIndex), actual.getConfidence(actualIndex), 0.002);
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+
+        WordTimings timings = buildTimings(20000);
+        byte[] bytes = WordTimingsCodec.encode(timings);
+        WordTimings decoded = WordTimingsCodec.decode(new ByteArrayInputStream(bytes));
+
+        assertEquals(timings.size(), decoded.size());
+        assertEquals(timings.getDictionary().length, decoded.getDictionary().length);
+        for (int i = 0; i < timings.size(); i++) {
+            assertSameWord(timings, i, decoded, i);
+        }
+
+        // Much smaller than the JSON
+        int jsonLength = timings.toJSON(true).toString().getBytes(StandardCharsets.UTF_8).length;
+        assertTrue(bytes.length + " vs " + jsonLength, bytes.length * 4 < jsonLength);
+    }
+
+    @Test
+    public void testTimeRange() throws Exception {
+
+        WordTimings timings = buildTimings(20000);
+        Blob blob = WordTimingsCodec.toBlob(timings);
+        assertEquals(WordTimingsCodec.MIME_TYPE, blob.getMimeType());
+        double duration = timings.getEnd(timings.size() - 1);
+
+        Random random = new Random(1);
+        for (int test = 0; test < 200; test++) {
+            double from = random.nextDouble() * (duration + 20) - 10;
+            double to = from + random.nextInt(30000) / 1000d;
+            WordTimings window = WordTimingsCodec.read(blob, from, to);
+
+            // Compared to the millisecond, as stored
+            int count = 0;
+            for (int i = 0; i < timings.size(); i++) {
+                if (Math.round(timings.getStart(i) * 1000d) <= Math.round(to * 1000)
+                        && Math.round(timings.getEnd(i) * 1000d) >= Math.round(from * 1000)) {
+                    assertSameWord(timings, i, window, count++);
+                }
+            }
+            assertEquals("Words between " + from + " and " + to, count, window.size());
+        }
+
+        // A long word (2.5s) started before the range
+        WordTimings window = WordTimingsCodec.read(blob, timings.getStart(500) + 2, timings.getStart(500) + 2.1);
+        assertTrue(window.size() >= 1);
+        assertSameWord(timings, 500, window, 0);
+
+        assertEquals(0, WordTimingsCodec.read(blob, 10, 5).size());
+        assertEquals(timings.size(), WordTimingsCodec.read(blob, 0, duration + 1).size());
+    }
+
+    @Test
+    public void testUnsortedAndEmpty() throws Exception {
+
+        WordTimings timings = new WordTimings.Builder().add("world", 1.5, 2.0, 0.5, 1)
+                                                       .add("hello", 0.2, 0.6, 0.9, 1)
+                                                       .add("again", 1.0, 1.4, -1, 2)
+                                                       .build();
+        WordTimings decoded = WordTimingsCodec.decode(WordTimingsCodec.toBlob(timings));
+        // Stored by start time
+        assertEquals("hello", decoded.getWord(0));
+        assertEquals("again", decoded.getWord(1));
+        assertEquals("world", decoded.getWord(2));
+        assertEquals("again", decoded.getWordAt(1.2));
+        assertEquals("world", WordTimingsCodec.read(WordTimingsCodec.toBlob(timings), 1.7, 1.8).getWord(0));
+
+        Blob empty = WordTimingsCodec.toBlob(WordTimings.EMPTY);
+        assertEquals(0, WordTimingsCodec.decode(empty).size());
+        assertEquals(0, WordTimingsCodec.read(empty, 0, 100).size());
+    }
+
+    @Test
+    public void testNotWordTimings() {
+        try {
+            WordTimingsCodec.decode(new ByteArrayInputStream("[{\"word\":\"hello\"}]".getBytes()));
+            fail("Not word timings");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+}